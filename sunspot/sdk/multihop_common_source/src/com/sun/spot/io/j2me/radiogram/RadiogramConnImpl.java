@@ -45,6 +45,7 @@ import com.sun.spot.peripheral.radio.RadioPolicy;
 import com.sun.spot.peripheral.radio.RadiogramProtocolManager;
 import com.sun.spot.peripheral.radio.ILowPan;
 import com.sun.spot.peripheral.radio.RadioFactory;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
 import com.sun.spot.util.IEEEAddress;
 
 
@@ -206,6 +207,14 @@ public class RadiogramConnImpl extends RadioConnectionBase implements RadiogramC
 			throw new IllegalStateException("Can't set radio policy for output-only connections");
 		}
 	}
+
+	public void setLatencyBudget(int millis) {
+		if (receiveConnectionID != null) {
+			getRadioPolicyManager().setLatencyBudget(receiveConnectionID, millis);
+		} else {
+			throw new IllegalStateException("Can't set latency budget for output-only connections");
+		}
+	}
 	
 	public Connection open(String arg0, String arg1, int arg2, boolean arg3) throws IOException {
 		throw new SpotFatalException("cannot reopen a connection");
@@ -239,4 +248,15 @@ public class RadiogramConnImpl extends RadioConnectionBase implements RadiogramC
         public int getMaxBroadcastHops() {
             return sendConnectionID.getMaxBroadcastHops();           
         }
+
+	public void setTrafficClass(int trafficClass) {
+		if (trafficClass < 0 || trafficClass >= TransmitScheduler.NUMBER_OF_TRAFFIC_CLASSES) {
+			throw new IllegalArgumentException("Unknown traffic class " + trafficClass);
+		}
+		sendConnectionID.setTrafficClass(trafficClass);
+	}
+
+	public int getTrafficClass() {
+		return sendConnectionID.getTrafficClass();
+	}
 }
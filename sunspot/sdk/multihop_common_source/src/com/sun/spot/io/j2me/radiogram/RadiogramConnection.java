@@ -82,5 +82,18 @@ public interface RadiogramConnection extends ITimeoutableConnection, DatagramCon
      * @return true if there are packets that can be read from the connection
      */
 	public boolean packetsAvailable();
+
+	/**
+	 * Set the traffic class that radiograms sent on this connection are queued in. Use
+	 * TransmitScheduler.TRAFFIC_CLASS_PERIODIC for regular reports, so that they are sent in
+	 * this node's transmit slot when a slot schedule is in force.
+	 * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+	 */
+	public void setTrafficClass(int trafficClass);
+
+	/**
+	 * @return the traffic class that radiograms sent on this connection are queued in
+	 */
+	public int getTrafficClass();
     
 }
@@ -187,6 +187,12 @@ public class RadioInputStream extends InputStream implements IRadioControl {
 		}
 	}
 
+	public void setLatencyBudget(int millis) {
+		if (!closed) {
+			radioPolicyManager.setLatencyBudget(connectionID, millis);
+		}
+	}
+
 	public byte getLocalPort() {
 		return connectionID.getPortNo();
 	}
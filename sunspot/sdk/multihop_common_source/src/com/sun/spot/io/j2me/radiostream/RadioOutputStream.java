@@ -156,6 +156,12 @@ public class RadioOutputStream extends OutputStream implements IRadioControl {
 		}
 	}
 
+	public void setLatencyBudget(int millis) {
+		if (!closed) {
+			radioPolicyManager.setLatencyBudget(connectionID, millis);
+		}
+	}
+
 	public byte getLocalPort() {
 		return connectionID.getPortNo();
 	}
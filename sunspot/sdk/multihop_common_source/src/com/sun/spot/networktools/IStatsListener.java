@@ -0,0 +1,47 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.networktools;
+
+import com.sun.spot.peripheral.radio.LowPanStats;
+
+/**
+ * Receives the statistics pushed by a remote node after a call to
+ * {@link NetManagementServer#subscribeStats(long, int, int, IStatsListener)}
+ */
+public interface IStatsListener {
+    /**
+     * Called each time the remote node pushes an update
+     * @param address the address of the node that sent the update
+     * @param stats the node's statistics, with any values that have not changed carried over from earlier updates
+     */
+    void statsReceived(long address, LowPanStats stats);
+
+    /**
+     * Called once when the subscription expires or updates stop arriving
+     * @param address the address of the node
+     */
+    void subscriptionEnded(long address);
+}
@@ -24,6 +24,8 @@
 
 package com.sun.spot.networktools;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import javax.microedition.io.Connector;
@@ -32,6 +34,8 @@ import javax.microedition.io.Datagram;
 import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
 import com.sun.spot.peripheral.radio.LowPan;
 import com.sun.spot.peripheral.radio.LowPanStats;
+import com.sun.spot.peripheral.radio.MeshProbeManager;
+import com.sun.spot.peripheral.radio.MeshProbeResult;
 import com.sun.spot.peripheral.radio.RadioFactory;
 import com.sun.spot.peripheral.radio.RadioPolicy;
 import com.sun.spot.peripheral.radio.routing.RouteInfo;
@@ -39,10 +43,22 @@ import com.sun.spot.peripheral.radio.routing.RouteTable;
 import com.sun.spot.peripheral.radio.routing.interfaces.IRoutingManager;
 import com.sun.spot.service.IService;
 import com.sun.spot.util.IEEEAddress;
+import com.sun.spot.util.Utils;
+import com.sun.spot.util.VarInt;
 import java.util.Enumeration;
+import java.util.Vector;
 
 /**
- * A daemon that responds to network management requests
+ * A daemon that responds to network management requests.
+ *
+ * Besides the original single-command requests, the server understands requests tagged
+ * with a request id: paged route table dumps that are resumed with a continuation token,
+ * batches of several queries answered in one reply, subscriptions that push changes
+ * to a node's statistics periodically, and compact refreshes that send only what has changed
+ * since the snapshot the host last received (see {@link #refreshStats(long, LowPanStats)}
+ * and {@link #refreshRouteTable(long, RouteTable)}). The static request methods can be called from
+ * several threads at once, and {@link #requestStats(long[])} and
+ * {@link #requestRouteTables(long[])} query many nodes concurrently.
  */
 public class NetManagementServer implements Runnable, IService {
     
@@ -60,12 +76,54 @@ public class NetManagementServer implements Runnable, IService {
     private static final int STATS_CMD = 0x02;
     private static final int CONFIG_CMD = 0x03;
     private static final int ROUTETABLE_CMD = 0x04;
+    private static final int ROUTETABLE_PAGE_CMD = 0x05;
+    private static final int BATCH_CMD = 0x06;
+    private static final int SUBSCRIBE_CMD = 0x07;
+    private static final int TRACE_CMD = 0x08;
+    private static final int STATS_COMPACT_CMD = 0x09;
+    private static final int ROUTETABLE_COMPACT_CMD = 0x0A;
     private static final int MAX_RETRIES = 3;
-    private static RadiogramConnection reqConn;
+    private static final int REPLY_TIMEOUT = 8000;
+    
+    /**
+     * continuation token that asks for the first page of the route table
+     */
+    private static final long FIRST_PAGE = 0;
+    /**
+     * returned in place of a continuation token after the last page has been read
+     */
+    private static final long LAST_PAGE = -1;
+    private static final int ROUTE_ENTRY_SIZE = 8 + 8 + 2;
+    private static final int PAGE_HEADER_SIZE = 2 + 1 + 1 + 8;
+    private static final int DEFAULT_PAGE_ENTRIES = 16;
+    private static final int MAX_CONCURRENT_REQUESTS = 8;
+    
+    private static final int MIN_SUBSCRIPTION_PERIOD = 1000;
+    private static final int MAX_SUBSCRIPTION_DURATION = 10 * 60 * 1000;
+    private static final int MAX_SUBSCRIPTIONS = 4;
+    /**
+     * every this many pushes a subscription sends all values, not just those that changed
+     */
+    private static final int KEYFRAME_INTERVAL = 10;
+    private static final int STATS_HEADER_SIZE = 8;
+    /**
+     * longest a node will wait for a probe to return, which must be well inside REPLY_TIMEOUT
+     */
+    private static final int MAX_TRACE_TIMEOUT = 5000;
+    /**
+     * number of hosts, times kinds of snapshot, for which the compact commands remember what was sent
+     */
+    private static final int MAX_SNAPSHOT_HISTORIES = 8;
+    
+    private static int nextRequestId;
     private RadiogramConnection respConn;
     private Thread mainThread;
     private int state;
     private static IService netMgr;
+    private Vector subscriptions = new Vector();
+    private Thread subscriptionThread;
+    private Vector snapshotHistories = new Vector();
+    private int nextSnapshotId;
     
     /**
      * A server for creating and answering network management related requests
@@ -107,20 +165,29 @@ public class NetManagementServer implements Runnable, IService {
         return netMgr;
     }
     
-    private static Datagram initRequest(long dest) {
+    private static RadiogramConnection initRequest(long dest) {
         RadioFactory.setProperty("spot.log.connections", "false");
         try {
-            reqConn = (RadiogramConnection)Connector.open("radiogram://" + dest + ":" +
+            RadiogramConnection reqConn = (RadiogramConnection)Connector.open("radiogram://" + dest + ":" +
                     NET_MANAGEMENT_SERVER_PORT);
             reqConn.setTimeout(10000);
-            Datagram dg = reqConn.newDatagram(reqConn.getMaximumLength());
-            return dg;
+            return reqConn;
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
     
+    private static Datagram newRequest(RadiogramConnection reqConn) throws IOException {
+        Datagram dg = reqConn.newDatagram(reqConn.getMaximumLength());
+        dg.reset();
+        return dg;
+    }
+    
+    private static synchronized int newRequestId() {
+        return ++nextRequestId;
+    }
+    
     private Datagram initResponse(String dest) {
         try {
             respConn = (RadiogramConnection)Connector.open("radiogram://" + dest + ":" +
@@ -133,7 +200,7 @@ public class NetManagementServer implements Runnable, IService {
         return null;
     }
     
-    private static void cleanupRequest() {
+    private static void cleanupRequest(RadiogramConnection reqConn) {
         if (reqConn != null) {
             try {
                 reqConn.close();
@@ -152,20 +219,33 @@ public class NetManagementServer implements Runnable, IService {
             }
         }
     }
-    private static Datagram makeRequest(Datagram datagram) {
+    
+    private static Datagram makeRequest(RadiogramConnection reqConn, Datagram datagram) {
+        return makeRequest(reqConn, datagram, -1);
+    }
+    
+    /**
+     * Send a request and wait for the reply, resending it up to MAX_RETRIES times.
+     * @param requestId the id at the start of the reply, or -1 for untagged requests
+     * @return the reply, positioned after the request id, or null if none arrived
+     */
+    private static Datagram makeRequest(RadiogramConnection reqConn, Datagram datagram, int requestId) {
         RadiogramConnection respConn=null;
         Datagram dg = null;
         if (reqConn != null) {
-            for (int i=0; i< MAX_RETRIES; i++) {
+            for (int i=0; i< MAX_RETRIES && dg == null; i++) {
                 try {
                     respConn = (RadiogramConnection)Connector.open("radiogram://" + datagram.getAddress() + ":" +
                             NET_MANAGEMENT_RECEIVE_PORT);
-                    respConn.setTimeout(8000);
+                    respConn.setTimeout(REPLY_TIMEOUT);
                     dg = respConn.newDatagram(respConn.getMaximumLength());
                     reqConn.send(datagram);
                     
                     respConn.receive(dg);
-                    
+                    // skip late replies to earlier attempts or earlier requests
+                    while (requestId != -1 && dg.readInt() != requestId) {
+                        respConn.receive(dg);
+                    }
                 } catch (IOException e) {
                     dg=null;
                 } finally {
@@ -182,27 +262,28 @@ public class NetManagementServer implements Runnable, IService {
     
     
     /**
-     * retrieve route information to a destination from a remote node
+     * retrieve route information to a destination from a remote node. This is what the node's route
+     * cache says; use {@link #requestTrace(long, long)} to find out what packets actually experience.
      * @param src the node to be queried for information
      * @param dst the address of the route destination of interest
      * @return a string value that contains the routing information and number of hops
      */
     public static String requestRoute(long src, long dst) {
         String result=null;
-        Datagram dg = initRequest(src);
-        if (dg != null) {
-            dg.reset();
+        RadiogramConnection reqConn = initRequest(src);
+        if (reqConn != null) {
             try {
+                Datagram dg = newRequest(reqConn);
                 dg.writeByte(ROUTE_CMD);
                 dg.writeLong(dst);
-                dg = makeRequest(dg);
+                dg = makeRequest(reqConn, dg);
                 if (dg != null) {
                     result = dg.readUTF();
                 } else result = null;
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                cleanupRequest();
+                cleanupRequest(reqConn);
             }
         } else
             return null;
@@ -210,50 +291,136 @@ public class NetManagementServer implements Runnable, IService {
         return result;
     }
     
+    /**
+     * Ask a remote node to send a probe along its route to a destination, and return what each node on
+     * the path recorded as the probe passed through.
+     * @param src the node that sends the probe
+     * @param dst the address the probe is sent to
+     * @return the path measurements, or null if the node did not reply or the probe did not return
+     */
+    public static MeshProbeResult requestTrace(long src, long dst) {
+        MeshProbeResult result = null;
+        RadiogramConnection reqConn = initRequest(src);
+        if (reqConn != null) {
+            try {
+                int requestId = newRequestId();
+                Datagram dg = newRequest(reqConn);
+                dg.writeByte(TRACE_CMD);
+                dg.writeInt(requestId);
+                dg.writeLong(dst);
+                dg.writeInt(MAX_TRACE_TIMEOUT);
+                dg = makeRequest(reqConn, dg, requestId);
+                if (dg != null && dg.readBoolean()) {
+                    result = MeshProbeResult.readFrom(dg);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                cleanupRequest(reqConn);
+            }
+        }
+        return result;
+    }
+    
+    private void doTrace(Datagram datagram, Datagram response) {
+        try {
+            int requestId = datagram.readInt();
+            long destination = datagram.readLong();
+            int timeout = Math.min(datagram.readInt(), MAX_TRACE_TIMEOUT);
+            MeshProbeResult result = null;
+            try {
+                result = MeshProbeManager.getInstance().probe(destination, timeout);
+            } catch (IOException e) {
+                // no route, or the channel was busy
+            }
+            response.reset();
+            response.writeInt(requestId);
+            response.writeBoolean(result != null);
+            if (result != null) {
+                result.writeTo(response);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
     private void doTraceRoute(Datagram datagram, Datagram response) {
-        IRoutingManager routingManager = LowPan.getInstance().getRoutingManager();
         try {
             long requestedAddress = datagram.readLong();
-            RouteInfo routeInfo = routingManager.getRouteInfo(requestedAddress);
-            
             response.reset();
-            response.writeUTF(routeInfo.toString());
+            writeRoute(requestedAddress, response);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+    
+    private void writeRoute(long requestedAddress, Datagram response) throws IOException {
+        IRoutingManager routingManager = LowPan.getInstance().getRoutingManager();
+        RouteInfo routeInfo = routingManager.getRouteInfo(requestedAddress);
+        response.writeUTF(routeInfo.toString());
+    }
+    
     /**
-     * Retrieve Route Table from a remote node
+     * Retrieve Route Table from a remote node. The table is fetched a page at a time, so
+     * it is not limited to what fits in one radiogram.
      * @param target address of the target node
      * @return A RouteTable object with a snapshot of the route info from the node
      */
     public static RouteTable requestRouteTable(long target) {
         RouteTable rt = null;
-        Datagram dg = initRequest(target);
-        if (dg != null) {
-            dg.reset();
+        RadiogramConnection reqConn = initRequest(target);
+        if (reqConn != null) {
             try {
-                dg.writeByte(ROUTETABLE_CMD);
-                dg = makeRequest(dg);
-                if (dg != null) {
-                    // parse result
-                    int size = dg.readInt(); // number of route entries
-                    // Each entry is two longs and a short
-                    rt = new RouteTable();
-                    for (int i=0; i<size; i++) {
-                        rt.addEntry(new RouteInfo(dg.readLong(), dg.readLong(), dg.readShort()));
-                    }
-                } else rt = null;
+                rt = new RouteTable();
+                if (!requestRouteTablePages(reqConn, FIRST_PAGE, rt)) {
+                    rt = null;
+                }
             } catch (IOException e) {
                 e.printStackTrace();
+                rt = null;
             } finally {
-                cleanupRequest();
+                cleanupRequest(reqConn);
             }
         } else
             return null;
         return rt;
     }
     
+    /**
+     * Fetch route table pages, starting from a continuation token, until the last page.
+     * @return false if a page could not be fetched
+     */
+    private static boolean requestRouteTablePages(RadiogramConnection reqConn, long token, RouteTable rt) throws IOException {
+        do {
+            int requestId = newRequestId();
+            Datagram dg = newRequest(reqConn);
+            dg.writeByte(ROUTETABLE_PAGE_CMD);
+            dg.writeInt(requestId);
+            dg.writeLong(token);
+            dg.writeByte(DEFAULT_PAGE_ENTRIES);
+            dg = makeRequest(reqConn, dg, requestId);
+            if (dg == null) {
+                return false;
+            }
+            token = readRouteTablePage(dg, rt);
+        } while (token != LAST_PAGE);
+        return true;
+    }
+    
+    /**
+     * @return the continuation token for the next page, or LAST_PAGE if this was the last
+     */
+    private static long readRouteTablePage(Datagram dg, RouteTable rt) throws IOException {
+        dg.readShort(); // total number of route entries
+        int count = dg.readUnsignedByte();
+        for (int i=0; i<count; i++) {
+            rt.addEntry(new RouteInfo(dg.readLong(), dg.readLong(), dg.readShort()));
+        }
+        boolean more = dg.readBoolean();
+        long token = dg.readLong();
+        return more ? token : LAST_PAGE;
+    }
+    
     private void doRouteTable(Datagram datagram, Datagram response) {
         // Right now, we just dump the whole object
         response.reset();
@@ -271,6 +438,62 @@ public class NetManagementServer implements Runnable, IService {
             e.printStackTrace();
         }
     }
+    
+    private void doRouteTablePage(Datagram datagram, Datagram response) {
+        try {
+            int requestId = datagram.readInt();
+            long token = datagram.readLong();
+            int maxEntries = datagram.readUnsignedByte();
+            response.reset();
+            response.writeInt(requestId);
+            writeRouteTablePage(token, maxEntries, response);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Write one page of the route table. Entries are sent in order of destination address and
+     * the continuation token is the last destination sent, so pages stay consistent even if the
+     * table changes between requests.
+     */
+    private void writeRouteTablePage(long token, int maxEntries, Datagram response) throws IOException {
+        int space = Math.max(0, (respConn.getMaximumLength() - response.getLength() - PAGE_HEADER_SIZE) / ROUTE_ENTRY_SIZE);
+        if (maxEntries == 0 || maxEntries > space) {
+            maxEntries = space;
+        }
+        RouteTable rt = LowPan.getInstance().getRoutingManager().getRoutingTable();
+        RouteInfo[] entries = new RouteInfo[rt.getSize()];
+        Enumeration en = rt.getAllEntries();
+        int size = 0;
+        while (en.hasMoreElements() && size < entries.length) {
+            RouteInfo ri = (RouteInfo)en.nextElement();
+            if (token == FIRST_PAGE || unsignedLessThan(token, ri.destination)) {
+                // insertion sort; route tables are small
+                int j = size++;
+                while (j > 0 && unsignedLessThan(ri.destination, entries[j-1].destination)) {
+                    entries[j] = entries[j-1];
+                    j--;
+                }
+                entries[j] = ri;
+            }
+        }
+        int count = Math.min(size, Math.min(maxEntries, 255));
+        response.writeShort(rt.getSize());
+        response.writeByte(count);
+        for (int i=0; i<count; i++) {
+            response.writeLong(entries[i].destination);
+            response.writeLong(entries[i].nextHop);
+            response.writeShort(entries[i].hopCount);
+        }
+        response.writeBoolean(count < size);
+        response.writeLong(count > 0 ? entries[count-1].destination : token);
+    }
+    
+    private static boolean unsignedLessThan(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+    
     /**
      * Retrieve LowPan statistics from a remote node
      * @param target address of the target node
@@ -278,25 +501,19 @@ public class NetManagementServer implements Runnable, IService {
      */
     public static LowPanStats requestStats(long target) {
         LowPanStats lps=null;
-        Datagram dg = initRequest(target);
-        if (dg != null) {
-            dg.reset();
+        RadiogramConnection reqConn = initRequest(target);
+        if (reqConn != null) {
             try {
+                Datagram dg = newRequest(reqConn);
                 dg.writeByte(STATS_CMD);
-                dg = makeRequest(dg);
+                dg = makeRequest(reqConn, dg);
                 if (dg != null) {
-                    // parse result
-                    int size = dg.readInt();
-                    byte b[] = new byte[size];
-                    for (int i=0; i<size; i++) {
-                        b[i] = dg.readByte();
-                    }
-                    lps = new LowPanStats(b);
+                    lps = readStats(dg);
                 } else lps = null;
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                cleanupRequest();
+                cleanupRequest(reqConn);
             }
             
         } else
@@ -305,20 +522,615 @@ public class NetManagementServer implements Runnable, IService {
         return lps;
     }
     
+    private static LowPanStats readStats(Datagram dg) throws IOException {
+        // parse result
+        int size = dg.readInt();
+        byte b[] = new byte[size];
+        dg.readFully(b);
+        return new LowPanStats(b);
+    }
+    
     private void doStats(Datagram datagram, Datagram response) {
-        // Right now, we just dump the whole object
         response.reset();
+        try {
+            writeStats(response);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private void writeStats(Datagram response) throws IOException {
+        // Right now, we just dump the whole object
         LowPanStats lps = ((LowPan)LowPan.getInstance()).getStatistics();
         byte b[] = lps.toByteArray();
+        response.writeInt(b.length);
+        response.write(b);
+    }
+    
+    /**
+     * Bring a copy of a remote node's LowPan statistics up to date. The node sends only the counters
+     * that have changed since the snapshot the copy was last updated from, as variable length
+     * differences, so repeated polling costs a small fraction of {@link #requestStats(long)}.
+     * The stats are decoded in place, without allocating.
+     * @param target address of the target node
+     * @param stats the copy to update: a new LowPanStats the first time, then the same object each time
+     * @return true if the stats were updated; if not, the next call fetches them in full
+     */
+    public static boolean refreshStats(long target, LowPanStats stats) {
+        RadiogramConnection reqConn = initRequest(target);
+        if (reqConn == null) {
+            return false;
+        }
+        try {
+            int requestId = newRequestId();
+            Datagram dg = newRequest(reqConn);
+            dg.writeByte(STATS_COMPACT_CMD);
+            dg.writeInt(requestId);
+            VarInt.writeUnsigned(dg, stats.getSnapshotId());
+            dg = makeRequest(reqConn, dg, requestId);
+            if (dg == null) {
+                return false;
+            }
+            stats.readCompact(dg);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            cleanupRequest(reqConn);
+        }
+    }
+    
+    /**
+     * Bring a copy of a remote node's route table up to date. The node sends only the routes that
+     * have changed since the snapshot the copy was last updated from, in a compact form. A table
+     * too big to send in one reply is fetched in full, a page at a time.
+     * @param target address of the target node
+     * @param rt the copy to update: a new RouteTable the first time, then the same object each time
+     * @return true if the table was updated; if not, the next call fetches it in full
+     */
+    public static boolean refreshRouteTable(long target, RouteTable rt) {
+        RadiogramConnection reqConn = initRequest(target);
+        if (reqConn == null) {
+            return false;
+        }
+        try {
+            int requestId = newRequestId();
+            Datagram dg = newRequest(reqConn);
+            dg.writeByte(ROUTETABLE_COMPACT_CMD);
+            dg.writeInt(requestId);
+            VarInt.writeUnsigned(dg, rt.getSnapshotId());
+            dg = makeRequest(reqConn, dg, requestId);
+            if (dg == null) {
+                return false;
+            }
+            if (dg.readBoolean()) {
+                rt.readCompact(dg);
+                return true;
+            }
+            rt.removeAllEntries();
+            return requestRouteTablePages(reqConn, FIRST_PAGE, rt);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            cleanupRequest(reqConn);
+        }
+    }
+    
+    /**
+     * The last snapshot of a node's stats or route table sent to a host by a compact command, and
+     * the last one the host acknowledged by quoting its id, which later replies are deltas against.
+     */
+    private static class SnapshotHistory {
+        String address;
+        int cmd;
+        int sentId;
+        Object sent;
+        int ackedId;
+        Object acked;
+        
+        /**
+         * @param id the id the host quoted
+         * @return the snapshot the host has, or null if it has none we know of
+         */
+        Object acknowledge(int id) {
+            if (id != 0 && id == sentId) {
+                ackedId = sentId;
+                acked = sent;
+            }
+            return id != 0 && id == ackedId ? acked : null;
+        }
+    }
+    
+    /**
+     * @return the history for this host and command, the least recently used being dropped to make room
+     */
+    private SnapshotHistory getSnapshotHistory(String address, int cmd) {
+        SnapshotHistory history = null;
+        for (int i = 0; i < snapshotHistories.size(); i++) {
+            SnapshotHistory h = (SnapshotHistory)snapshotHistories.elementAt(i);
+            if (h.cmd == cmd && h.address.equals(address)) {
+                history = h;
+                snapshotHistories.removeElementAt(i);
+                break;
+            }
+        }
+        if (history == null) {
+            if (snapshotHistories.size() == MAX_SNAPSHOT_HISTORIES) {
+                snapshotHistories.removeElementAt(0);
+            }
+            history = new SnapshotHistory();
+            history.address = address;
+            history.cmd = cmd;
+        }
+        snapshotHistories.addElement(history);
+        return history;
+    }
+    
+    private int newSnapshotId() {
+        if (++nextSnapshotId <= 0) {
+            nextSnapshotId = 1;
+        }
+        return nextSnapshotId;
+    }
+    
+    private void doCompactStats(Datagram datagram, Datagram response) {
+        try {
+            int requestId = datagram.readInt();
+            int ackedId = (int)VarInt.readUnsigned(datagram);
+            LowPanStats lps = ((LowPan)LowPan.getInstance()).getStatistics();
+            response.reset();
+            response.writeInt(requestId);
+            SnapshotHistory history = getSnapshotHistory(datagram.getAddress(), STATS_COMPACT_CMD);
+            int id = newSnapshotId();
+            lps.writeCompact(response, id, (LowPanStats)history.acknowledge(ackedId), ackedId);
+            history.sentId = id;
+            history.sent = lps;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private void doCompactRouteTable(Datagram datagram, Datagram response) {
+        try {
+            int requestId = datagram.readInt();
+            int ackedId = (int)VarInt.readUnsigned(datagram);
+            RouteTable rt = LowPan.getInstance().getRoutingManager().getRoutingTable();
+            SnapshotHistory history = getSnapshotHistory(datagram.getAddress(), ROUTETABLE_COMPACT_CMD);
+            int id = newSnapshotId();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            rt.writeCompact(new DataOutputStream(bytes), id, (RouteTable)history.acknowledge(ackedId), ackedId);
+            response.reset();
+            response.writeInt(requestId);
+            // the boolean takes one byte
+            boolean fits = bytes.size() < respConn.getMaximumLength() - response.getLength();
+            response.writeBoolean(fits);
+            if (fits) {
+                response.write(bytes.toByteArray());
+                history.sentId = id;
+                history.sent = rt;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Retrieve LowPan statistics from several remote nodes, querying up to
+     * MAX_CONCURRENT_REQUESTS of them at a time
+     * @param targets addresses of the target nodes
+     * @return the statistics from each node, in the same order as targets, with null for nodes that did not reply
+     */
+    public static LowPanStats[] requestStats(long[] targets) {
+        LowPanStats[] result = new LowPanStats[targets.length];
+        requestConcurrently(targets, STATS_CMD, result);
+        return result;
+    }
+    
+    /**
+     * Retrieve the route tables from several remote nodes, querying up to
+     * MAX_CONCURRENT_REQUESTS of them at a time
+     * @param targets addresses of the target nodes
+     * @return the route table from each node, in the same order as targets, with null for nodes that did not reply
+     */
+    public static RouteTable[] requestRouteTables(long[] targets) {
+        RouteTable[] result = new RouteTable[targets.length];
+        requestConcurrently(targets, ROUTETABLE_CMD, result);
+        return result;
+    }
+    
+    private static void requestConcurrently(final long[] targets, final int cmd, final Object[] result) {
+        final int[] nextTarget = new int[1];
+        Thread[] workers = new Thread[Math.min(MAX_CONCURRENT_REQUESTS, targets.length)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    while (true) {
+                        int index;
+                        synchronized (nextTarget) {
+                            if (nextTarget[0] == targets.length) {
+                                return;
+                            }
+                            index = nextTarget[0]++;
+                        }
+                        if (cmd == STATS_CMD) {
+                            result[index] = requestStats(targets[index]);
+                        } else {
+                            result[index] = requestRouteTable(targets[index]);
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                // carry on waiting for the others
+            }
+        }
+    }
+    
+    /**
+     * The answers to a batch of queries made with {@link NetManagementServer#requestReport(long, long[])}
+     */
+    public static class NodeReport {
+        private LowPanStats stats;
+        private RouteTable routeTable;
+        private String[] routes;
+        
+        /**
+         * @return the node's statistics
+         */
+        public LowPanStats getStats() {
+            return stats;
+        }
+        
+        /**
+         * @return the node's complete route table
+         */
+        public RouteTable getRouteTable() {
+            return routeTable;
+        }
+        
+        /**
+         * @param index index into the destinations passed to requestReport
+         * @return the node's route to that destination
+         */
+        public String getRoute(int index) {
+            return routes[index];
+        }
+    }
+    
+    /**
+     * Retrieve a node's statistics, route table and its routes to a set of destinations. These are
+     * asked for in one batched request, so a node with a small route table answers in a single round
+     * trip; only the rest of a larger route table needs further requests.
+     * @param target address of the target node
+     * @param destinations route destinations of interest, or an empty array
+     * @return the node's answers, or null if it did not reply
+     */
+    public static NodeReport requestReport(long target, long[] destinations) {
+        NodeReport report = null;
+        RadiogramConnection reqConn = initRequest(target);
+        if (reqConn != null) {
+            try {
+                int requestId = newRequestId();
+                Datagram dg = newRequest(reqConn);
+                dg.writeByte(BATCH_CMD);
+                dg.writeInt(requestId);
+                dg.writeByte(2 + destinations.length);
+                dg.writeByte(STATS_CMD);
+                for (int i = 0; i < destinations.length; i++) {
+                    dg.writeByte(ROUTE_CMD);
+                    dg.writeLong(destinations[i]);
+                }
+                // last, so that the page fills whatever space is left in the reply
+                dg.writeByte(ROUTETABLE_PAGE_CMD);
+                dg.writeLong(FIRST_PAGE);
+                dg.writeByte(0);
+                dg = makeRequest(reqConn, dg, requestId);
+                if (dg != null) {
+                    report = new NodeReport();
+                    report.routes = new String[destinations.length];
+                    report.routeTable = new RouteTable();
+                    long token = FIRST_PAGE;
+                    int count = dg.readUnsignedByte();
+                    for (int i = 0, route = 0; i < count; i++) {
+                        int cmd = dg.readUnsignedByte();
+                        if (cmd == STATS_CMD) {
+                            report.stats = readStats(dg);
+                        } else if (cmd == ROUTETABLE_PAGE_CMD) {
+                            token = readRouteTablePage(dg, report.routeTable);
+                        } else if (cmd == ROUTE_CMD) {
+                            report.routes[route++] = dg.readUTF();
+                        } else {
+                            break;
+                        }
+                    }
+                    if (token != LAST_PAGE && !requestRouteTablePages(reqConn, token, report.routeTable)) {
+                        report.routeTable = null;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                report = null;
+            } finally {
+                cleanupRequest(reqConn);
+            }
+        }
+        return report;
+    }
+    
+    /**
+     * Answer each query in a batch into the one response. A query the server does not understand
+     * is answered with a zero command byte and the rest of the batch is ignored.
+     */
+    private void doBatch(Datagram datagram, Datagram response) {
+        try {
+            int requestId = datagram.readInt();
+            int count = datagram.readUnsignedByte();
+            response.reset();
+            response.writeInt(requestId);
+            response.writeByte(count);
+            for (int i = 0; i < count; i++) {
+                int cmd = datagram.readUnsignedByte();
+                switch (cmd) {
+                    case ROUTE_CMD:
+                        response.writeByte(cmd);
+                        writeRoute(datagram.readLong(), response);
+                        break;
+                        
+                    case STATS_CMD:
+                        response.writeByte(cmd);
+                        writeStats(response);
+                        break;
+                        
+                    case ROUTETABLE_PAGE_CMD:
+                        response.writeByte(cmd);
+                        long token = datagram.readLong();
+                        writeRouteTablePage(token, datagram.readUnsignedByte(), response);
+                        break;
+                        
+                    default:
+                        response.writeByte(0);
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Ask a remote node to push its statistics periodically. Each update carries only the values that
+     * have changed since the last, with a full set every few updates in case one was lost. Updates are
+     * delivered to the listener from a separate thread until the subscription expires.
+     * @param target address of the target node
+     * @param period milliseconds between updates; the node may lengthen this
+     * @param duration milliseconds for which updates should be sent; the node may shorten this
+     * @param listener the object to notify of updates
+     * @return true if the node accepted the subscription
+     */
+    public static boolean subscribeStats(final long target, int period, int duration, final IStatsListener listener) {
+        RadiogramConnection reqConn = initRequest(target);
+        if (reqConn == null) {
+            return false;
+        }
+        try {
+            final int requestId = newRequestId();
+            Datagram dg = newRequest(reqConn);
+            dg.writeByte(SUBSCRIBE_CMD);
+            dg.writeInt(requestId);
+            dg.writeInt(period);
+            dg.writeInt(duration);
+            dg = makeRequest(reqConn, dg, requestId);
+            if (dg == null) {
+                return false;
+            }
+            final int acceptedPeriod = dg.readInt();
+            final int acceptedDuration = dg.readInt();
+            if (acceptedDuration == 0) {
+                return false;
+            }
+            Thread receiver = new Thread() {
+                public void run() {
+                    receiveStatsUpdates(target, requestId, acceptedPeriod, acceptedDuration, listener);
+                }
+            };
+            RadioFactory.setAsDaemonThread(receiver);
+            receiver.start();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            cleanupRequest(reqConn);
+        }
+    }
+    
+    private static void receiveStatsUpdates(long target, int requestId, int period, int duration, IStatsListener listener) {
+        RadiogramConnection conn = null;
+        byte[] values = null;
+        long endTime = System.currentTimeMillis() + duration;
+        try {
+            conn = (RadiogramConnection)Connector.open("radiogram://" + target + ":" + NET_MANAGEMENT_RECEIVE_PORT);
+            conn.setTimeout(2 * period + REPLY_TIMEOUT);
+            Datagram dg = conn.newDatagram(conn.getMaximumLength());
+            while (System.currentTimeMillis() < endTime) {
+                conn.receive(dg);
+                if (dg.readInt() != requestId) {
+                    continue;
+                }
+                int size = dg.readUnsignedByte();
+                long timestamp = dg.readLong();
+                int changed = dg.readInt();
+                if (values == null) {
+                    values = new byte[size];
+                }
+                Utils.writeLittleEndLong(values, 0, timestamp);
+                for (int i = 0; STATS_HEADER_SIZE + i * 4 < size; i++) {
+                    if ((changed & (1 << i)) != 0) {
+                        Utils.writeLittleEndInt(values, STATS_HEADER_SIZE + i * 4, dg.readInt());
+                    }
+                }
+                listener.statsReceived(target, new LowPanStats(values));
+            }
+        } catch (IOException e) {
+            // updates stopped arriving
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        listener.subscriptionEnded(target);
+    }
+    
+    private static class Subscription {
+        String address;
+        int requestId;
+        int period;
+        long nextUpdate;
+        long endTime;
+        int updatesSent;
+        byte[] lastValues;
+    }
+    
+    private void doSubscribe(Datagram datagram, Datagram response) {
         try {
-            response.writeInt(b.length);
-            for (int i=0; i<b.length; i++)
-                response.writeByte(b[i]);
+            int requestId = datagram.readInt();
+            int period = Math.max(datagram.readInt(), MIN_SUBSCRIPTION_PERIOD);
+            int duration = Math.min(datagram.readInt(), MAX_SUBSCRIPTION_DURATION);
+            if (duration < 0) {
+                duration = 0;
+            }
+            synchronized (subscriptions) {
+                Subscription sub = null;
+                for (int i = 0; i < subscriptions.size(); i++) {
+                    Subscription s = (Subscription)subscriptions.elementAt(i);
+                    if (s.address.equals(datagram.getAddress())) {
+                        sub = s;
+                        break;
+                    }
+                }
+                if (sub == null && duration > 0) {
+                    if (subscriptions.size() < MAX_SUBSCRIPTIONS) {
+                        sub = new Subscription();
+                        sub.address = datagram.getAddress();
+                        subscriptions.addElement(sub);
+                    } else {
+                        duration = 0;
+                    }
+                }
+                if (sub != null) {
+                    // a new request from the same host replaces its previous subscription
+                    sub.requestId = requestId;
+                    sub.period = period;
+                    sub.nextUpdate = System.currentTimeMillis();
+                    sub.endTime = sub.nextUpdate + duration;
+                    sub.updatesSent = 0;
+                    sub.lastValues = null;
+                    if (subscriptionThread == null && duration > 0) {
+                        subscriptionThread = new Thread() {
+                            public void run() {
+                                pushStatsUpdates();
+                            }
+                        };
+                        RadioFactory.setAsDaemonThread(subscriptionThread);
+                        subscriptionThread.start();
+                    }
+                    subscriptions.notifyAll();
+                }
+            }
+            response.reset();
+            response.writeInt(requestId);
+            response.writeInt(period);
+            response.writeInt(duration);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     
+    private void pushStatsUpdates() {
+        while (true) {
+            Subscription due = null;
+            synchronized (subscriptions) {
+                long now = System.currentTimeMillis();
+                long wait = Long.MAX_VALUE;
+                for (int i = subscriptions.size() - 1; i >= 0; i--) {
+                    Subscription s = (Subscription)subscriptions.elementAt(i);
+                    if (now >= s.endTime) {
+                        subscriptions.removeElementAt(i);
+                    } else if (now >= s.nextUpdate) {
+                        due = s;
+                        s.nextUpdate = now + s.period;
+                        break;
+                    } else {
+                        wait = Math.min(wait, s.nextUpdate - now);
+                    }
+                }
+                if (due == null) {
+                    if (subscriptions.isEmpty() || state == IService.STOPPING) {
+                        subscriptions.removeAllElements();
+                        subscriptionThread = null;
+                        return;
+                    }
+                    try {
+                        subscriptions.wait(wait);
+                    } catch (InterruptedException e) {
+                        // check again
+                    }
+                    continue;
+                }
+            }
+            sendStatsUpdate(due);
+        }
+    }
+    
+    private void sendStatsUpdate(Subscription sub) {
+        byte[] values = ((LowPan)LowPan.getInstance()).getStatistics().toByteArray();
+        boolean keyframe = sub.lastValues == null || sub.updatesSent % KEYFRAME_INTERVAL == 0;
+        int changed = 0;
+        for (int i = 0; STATS_HEADER_SIZE + i * 4 < values.length; i++) {
+            int offset = STATS_HEADER_SIZE + i * 4;
+            if (keyframe || Utils.readLittleEndInt(values, offset) != Utils.readLittleEndInt(sub.lastValues, offset)) {
+                changed |= 1 << i;
+            }
+        }
+        RadiogramConnection conn = null;
+        try {
+            conn = (RadiogramConnection)Connector.open("radiogram://" + sub.address + ":" + NET_MANAGEMENT_RECEIVE_PORT);
+            Datagram dg = conn.newDatagram(conn.getMaximumLength());
+            dg.writeInt(sub.requestId);
+            dg.writeByte(values.length);
+            dg.writeLong(Utils.readLittleEndLong(values, 0));
+            dg.writeInt(changed);
+            for (int i = 0; STATS_HEADER_SIZE + i * 4 < values.length; i++) {
+                if ((changed & (1 << i)) != 0) {
+                    dg.writeInt(Utils.readLittleEndInt(values, STATS_HEADER_SIZE + i * 4));
+                }
+            }
+            conn.send(dg);
+            sub.lastValues = values;
+            sub.updatesSent++;
+        } catch (IOException e) {
+            // force a full update next time, in case the host missed part of this one
+            sub.lastValues = null;
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
     private void doConfig(Datagram datagram, Datagram response) {
         // Clearly -- not implemented yet.
         
@@ -359,6 +1171,30 @@ public class NetManagementServer implements Runnable, IService {
                         doRouteTable(datagram, response);
                         break;
                         
+                    case ROUTETABLE_PAGE_CMD:
+                        doRouteTablePage(datagram, response);
+                        break;
+                        
+                    case BATCH_CMD:
+                        doBatch(datagram, response);
+                        break;
+                        
+                    case SUBSCRIBE_CMD:
+                        doSubscribe(datagram, response);
+                        break;
+                        
+                    case TRACE_CMD:
+                        doTrace(datagram, response);
+                        break;
+                        
+                    case STATS_COMPACT_CMD:
+                        doCompactStats(datagram, response);
+                        break;
+                        
+                    case ROUTETABLE_COMPACT_CMD:
+                        doCompactRouteTable(datagram, response);
+                        break;
+                        
                     default:
                         valid = false;
                         break;
@@ -368,11 +1204,11 @@ public class NetManagementServer implements Runnable, IService {
                 if (valid) {
                     try {
                         respConn.send(response);
-                        cleanupResponse();
                     } catch (IOException e) {
                         System.err.println("[NetManagementServer] failed to send reply to " + new IEEEAddress(response.getAddress()));
                     }
                 }
+                cleanupResponse();
             }
             // Must be stopping.  Clean up and exit
             conn.close();
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+import com.sun.spot.peripheral.ChannelBusyException;
+import com.sun.spot.peripheral.NoAckException;
+import com.sun.spot.peripheral.NoRouteException;
+import com.sun.spot.peripheral.radio.mhrp.aodv.Constants;
+import com.sun.spot.peripheral.radio.routing.RouteInfo;
+import com.sun.spot.util.Utils;
+
+/**
+ * Combines sensor readings on their way to a sink, so that each node sends one partial result per
+ * epoch towards the sink however many nodes are behind it, instead of forwarding every reading.<br><br>
+ *
+ * Nodes call {@link #submit(AggregationQuery, int)} with each reading. Readings are grouped into
+ * epochs of the query's epoch length, counted from the start of network time (see
+ * {@link SlotScheduleManager#getNetworkTime()}). When an epoch ends each node waits a time that
+ * depends on how many hops it is from the sink, as given by the routing manager's {@link RouteInfo},
+ * so that the nodes furthest away send first: each node receives the partial results of the nodes
+ * whose route to the sink goes through it before it sends its own, merges them in and sends a single
+ * partial result one hop along its route. The sink reports the result for each epoch to its
+ * {@link IAggregationListener}s once the nodes nearest to it have had time to send, and drops any
+ * partial result for that epoch that arrives later.<br><br>
+ *
+ * The schedule works best when the nodes' clocks agree, so start a slot schedule coordinator on the
+ * sink (see {@link SlotScheduleManager#startCoordinating(int, int, int)}). Without one, results are
+ * still correct but less is combined on the way. A node that has no route to the sink sends its
+ * partial result end to end, which also starts route discovery.<br><br>
+ *
+ * Partial result format: [byte type][query][int epoch][partial aggregate], where the query is
+ * [short query id][long sink][byte operation][int epoch length] followed, for a histogram, by
+ * [int bucket min][int bucket width][byte bucket count], and the partial aggregate is [int count]
+ * [long sum][int min][int max] followed by [int] for each bucket.
+ */
+public class AggregationManager implements IProtocolManager {
+
+    /**
+     * the LowPan protocol number used for partial results
+     */
+    public static final byte PROTOCOL_NUMBER = 109;
+
+    private static final byte PARTIAL = 1;
+    private static final int HEADER_SIZE = 1;
+
+    /**
+     * the most hops from the sink that the schedule allows for; nodes further away send at the same
+     * time as nodes this far away
+     */
+    private static final int MAX_DEPTH = 8;
+    /**
+     * milliseconds between a node's send time and that of a node one hop nearer the sink
+     */
+    private static final int HOP_INTERVAL = 100;
+    /**
+     * the most random delay added to a send time, so neighbours at the same depth don't collide
+     */
+    private static final int MAX_JITTER = 40;
+
+    private static AggregationManager theInstance;
+
+    private ILowPan lowpan;
+    private long ourAddress;
+    private SlotScheduleManager schedule;
+    private Random random;
+    private Vector listeners = new Vector();
+    private Hashtable pending = new Hashtable();    // key -> Pending
+    private Hashtable delivered = new Hashtable();  // query key -> Integer, the last epoch reported at the sink
+    private Thread sendThread;
+
+    private static class Pending {
+        AggregationQuery query;
+        int epoch;
+        PartialAggregate aggregate;
+        long due;                                    // in network time
+
+        Pending(AggregationQuery query, int epoch, long due) {
+            this.query = query;
+            this.epoch = epoch;
+            this.due = due;
+            aggregate = new PartialAggregate(query);
+        }
+    }
+
+    /**
+     * Called by LowPan as it starts up.
+     */
+    AggregationManager(ILowPan lowpan, long ourAddress, SlotScheduleManager schedule) {
+        this.lowpan = lowpan;
+        this.ourAddress = ourAddress;
+        this.schedule = schedule;
+        random = new Random(ourAddress);
+        theInstance = this;
+    }
+
+    /**
+     * @return the aggregation manager for this node
+     */
+    public static AggregationManager getInstance() {
+        LowPan.getInstance(); // which creates and registers the aggregation manager
+        return theInstance;
+    }
+
+    /**
+     * Add a reading to the current epoch of a query. If this node is the query's sink the reading is
+     * included in the result reported to listeners; otherwise it is sent towards the sink at the end
+     * of the epoch, combined with the readings of any nodes whose route goes through this one.
+     * @param query the query the reading is for
+     * @param reading the reading
+     */
+    public void submit(AggregationQuery query, int reading) {
+        int epoch = (int) (getNetworkTime() / query.getEpochLength());
+        synchronized (this) {
+            Pending p = getPending(query, epoch);
+            if (p != null) {
+                p.aggregate.add(query, reading);
+            }
+        }
+    }
+
+    /**
+     * Register to receive the results of queries for which this node is the sink.
+     * @param listener the listener
+     */
+    public void addAggregationListener(IAggregationListener listener) {
+        synchronized (listeners) {
+            if (!listeners.contains(listener)) {
+                listeners.addElement(listener);
+            }
+        }
+    }
+
+    /**
+     * @param listener a listener to stop telling about results
+     */
+    public void removeAggregationListener(IAggregationListener listener) {
+        listeners.removeElement(listener);
+    }
+
+    public void processIncomingData(byte[] payload, LowPanHeaderInfo headerInfo) {
+        if (payload.length < HEADER_SIZE || payload[0] != PARTIAL) {
+            return;
+        }
+        try {
+            AggregationQuery query = AggregationQuery.readFrom(payload, HEADER_SIZE);
+            int offset = HEADER_SIZE + query.getSerializedSize();
+            int epoch = Utils.readBigEndInt(payload, offset);
+            PartialAggregate partial = PartialAggregate.readFrom(query, payload, offset + 4);
+            synchronized (this) {
+                Pending p = getPending(query, epoch);
+                if (p != null) {
+                    p.aggregate.merge(partial);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // not a valid query: ignore it
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // truncated: ignore it
+        }
+    }
+
+    /**
+     * @return the pending partial result for an epoch, or null if this is the sink and the epoch has already been reported
+     */
+    private Pending getPending(AggregationQuery query, int epoch) {
+        String key = query.getKey() + "/" + epoch;
+        Pending p = (Pending) pending.get(key);
+        if (p == null) {
+            Integer last = (Integer) delivered.get(query.getKey());
+            if (last != null && epoch <= last.intValue()) {
+                return null;
+            }
+            // a partial result for an epoch we have already sent is passed on straight away
+            long due = Math.max(getSendTime(query, epoch), getNetworkTime());
+            p = new Pending(query, epoch, due);
+            pending.put(key, p);
+            if (sendThread == null) {
+                sendThread = new Thread("AggregationManager") {
+                    public void run() {
+                        sendPartials();
+                    }
+                };
+                RadioFactory.setAsDaemonThread(sendThread);
+                sendThread.start();
+            }
+            notifyAll();
+        }
+        return p;
+    }
+
+    private long getSendTime(AggregationQuery query, int epoch) {
+        long epochEnd = ((long) epoch + 1) * query.getEpochLength();
+        if (query.getSink() == ourAddress) {
+            // after the nodes one hop away have sent
+            return epochEnd + (MAX_DEPTH + 1) * HOP_INTERVAL;
+        }
+        RouteInfo info = lowpan.getRoutingManager().getRouteInfo(query.getSink());
+        int depth = info.nextHop == Constants.INVALID_NEXT_HOP ? MAX_DEPTH : Math.min(Math.max(info.hopCount, 1), MAX_DEPTH);
+        return epochEnd + (MAX_DEPTH - depth) * HOP_INTERVAL + random.nextInt(MAX_JITTER);
+    }
+
+    private long getNetworkTime() {
+        return schedule.getNetworkTime();
+    }
+
+    private void sendPartials() {
+        while (true) {
+            Pending next = null;
+            synchronized (this) {
+                while (next == null) {
+                    Pending earliest = null;
+                    Enumeration e = pending.elements();
+                    while (e.hasMoreElements()) {
+                        Pending p = (Pending) e.nextElement();
+                        if (earliest == null || p.due < earliest.due) {
+                            earliest = p;
+                        }
+                    }
+                    long wait = earliest == null ? 0 : earliest.due - getNetworkTime();
+                    if (earliest != null && wait <= 0) {
+                        pending.remove(earliest.query.getKey() + "/" + earliest.epoch);
+                        if (earliest.query.getSink() == ourAddress) {
+                            delivered.put(earliest.query.getKey(), new Integer(earliest.epoch));
+                        }
+                        next = earliest;
+                    } else {
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException ex) {
+                            // check again
+                        }
+                    }
+                }
+            }
+            if (next.query.getSink() == ourAddress) {
+                deliver(next);
+            } else {
+                send(next);
+            }
+        }
+    }
+
+    private void deliver(Pending p) {
+        IAggregationListener[] copy;
+        synchronized (listeners) {
+            copy = new IAggregationListener[listeners.size()];
+            listeners.copyInto(copy);
+        }
+        for (int i = 0; i < copy.length; i++) {
+            copy[i].epochCompleted(p.query, p.epoch, p.aggregate);
+        }
+    }
+
+    private void send(Pending p) {
+        byte[] buffer = new byte[HEADER_SIZE + p.query.getSerializedSize() + 4 + p.aggregate.getSerializedSize()];
+        buffer[0] = PARTIAL;
+        int offset = p.query.writeTo(buffer, HEADER_SIZE);
+        Utils.writeBigEndInt(buffer, offset, p.epoch);
+        p.aggregate.writeTo(buffer, offset + 4);
+        long sink = p.query.getSink();
+        RouteInfo info = lowpan.getRoutingManager().getRouteInfo(sink);
+        try {
+            if (info.nextHop != Constants.INVALID_NEXT_HOP) {
+                try {
+                    // one hop, so that the next node can merge it with its own. The schedule already
+                    // spaces partial results out, so don't also wait for a periodic traffic slot
+                    lowpan.sendWithoutMeshingOrFragmentation(PROTOCOL_NUMBER, info.nextHop, buffer, 0, buffer.length,
+                            TransmitScheduler.DEFAULT_TRAFFIC_CLASS);
+                    return;
+                } catch (NoAckException e) {
+                    // the next hop has gone: let the mesh find another way
+                }
+            }
+            lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, sink, buffer, 0, buffer.length,
+                    TransmitScheduler.DEFAULT_TRAFFIC_CLASS);
+        } catch (ChannelBusyException e) {
+            // this epoch's readings from behind this node are lost
+        } catch (NoRouteException e) {
+            // this epoch's readings from behind this node are lost
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio;
+
+import com.sun.spot.util.Utils;
+
+/**
+ * Describes a reading to be combined across the mesh by the {@link AggregationManager}: which sink
+ * the results go to, how readings are combined and how often a result is produced.<br><br>
+ *
+ * A query is identified by its sink and query id. Every partial result sent towards the sink carries
+ * the whole query, so forwarding nodes need no set up: all nodes that submit readings for a query must
+ * use the same definition.
+ */
+public class AggregationQuery {
+
+    /**
+     * report the sum of the readings in each epoch
+     */
+    public static final int SUM = 0;
+    /**
+     * report the number of readings in each epoch
+     */
+    public static final int COUNT = 1;
+    /**
+     * report the smallest reading in each epoch
+     */
+    public static final int MIN = 2;
+    /**
+     * report the largest reading in each epoch
+     */
+    public static final int MAX = 3;
+    /**
+     * report how many readings in each epoch fell into each of a set of equal width buckets
+     */
+    public static final int HISTOGRAM = 4;
+
+    /**
+     * the most buckets a histogram can have, so that a partial result fits in one radio packet
+     */
+    public static final int MAX_BUCKETS = 8;
+
+    /**
+     * the shortest epoch allowed, in milliseconds
+     */
+    public static final int MIN_EPOCH_LENGTH = 1000;
+
+    private static final int SIZE = 15;
+    private static final int HISTOGRAM_SIZE = 9;
+
+    private int queryId;
+    private long sink;
+    private int operation;
+    private int epochLength;
+    private int bucketMin;
+    private int bucketWidth;
+    private int bucketCount;
+
+    /**
+     * Create a query that sums, counts or finds the minimum or maximum of readings.
+     * @param queryId identifies this query among those reporting to the same sink, from 0 to 65535
+     * @param sink the address of the node that receives the results
+     * @param operation one of {@link #SUM}, {@link #COUNT}, {@link #MIN} or {@link #MAX}
+     * @param epochLength milliseconds of readings combined into each result
+     */
+    public AggregationQuery(int queryId, long sink, int operation, int epochLength) {
+        this(queryId, sink, operation, epochLength, 0, 0, 0);
+        if (operation == HISTOGRAM) {
+            throw new IllegalArgumentException("A histogram query needs buckets");
+        }
+    }
+
+    /**
+     * Create a query that counts readings into buckets. Bucket i holds readings from
+     * bucketMin + i * bucketWidth up to, but not including, bucketMin + (i + 1) * bucketWidth;
+     * readings outside the range are counted in the first or last bucket.
+     * @param queryId identifies this query among those reporting to the same sink, from 0 to 65535
+     * @param sink the address of the node that receives the results
+     * @param epochLength milliseconds of readings combined into each result
+     * @param bucketMin the smallest reading in the first bucket
+     * @param bucketWidth the range of readings in each bucket
+     * @param bucketCount the number of buckets, up to {@link #MAX_BUCKETS}
+     */
+    public AggregationQuery(int queryId, long sink, int epochLength, int bucketMin, int bucketWidth, int bucketCount) {
+        this(queryId, sink, HISTOGRAM, epochLength, bucketMin, bucketWidth, bucketCount);
+        if (bucketWidth <= 0 || bucketCount < 1 || bucketCount > MAX_BUCKETS) {
+            throw new IllegalArgumentException("A histogram needs from 1 to " + MAX_BUCKETS + " buckets of positive width");
+        }
+    }
+
+    private AggregationQuery(int queryId, long sink, int operation, int epochLength, int bucketMin, int bucketWidth, int bucketCount) {
+        if (queryId < 0 || queryId > 0xFFFF) {
+            throw new IllegalArgumentException("Query id must be between 0 and 65535");
+        }
+        if (operation < SUM || operation > HISTOGRAM) {
+            throw new IllegalArgumentException("Unknown aggregation operation " + operation);
+        }
+        if (epochLength < MIN_EPOCH_LENGTH) {
+            throw new IllegalArgumentException("Epoch length must be at least " + MIN_EPOCH_LENGTH + " millis");
+        }
+        this.queryId = queryId;
+        this.sink = sink;
+        this.operation = operation;
+        this.epochLength = epochLength;
+        this.bucketMin = bucketMin;
+        this.bucketWidth = bucketWidth;
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * @return the id of this query
+     */
+    public int getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * @return the address of the node that receives the results
+     */
+    public long getSink() {
+        return sink;
+    }
+
+    /**
+     * @return how readings are combined: {@link #SUM}, {@link #COUNT}, {@link #MIN}, {@link #MAX} or {@link #HISTOGRAM}
+     */
+    public int getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return milliseconds of readings combined into each result
+     */
+    public int getEpochLength() {
+        return epochLength;
+    }
+
+    /**
+     * @return the number of histogram buckets, or 0 if this is not a histogram query
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * @param reading a reading
+     * @return the histogram bucket the reading is counted in
+     */
+    public int getBucket(int reading) {
+        if (reading < bucketMin) {
+            return 0;
+        }
+        long bucket = ((long) reading - bucketMin) / bucketWidth;
+        return bucket >= bucketCount ? bucketCount - 1 : (int) bucket;
+    }
+
+    int getSerializedSize() {
+        return operation == HISTOGRAM ? SIZE + HISTOGRAM_SIZE : SIZE;
+    }
+
+    int writeTo(byte[] buffer, int offset) {
+        Utils.writeBigEndShort(buffer, offset, queryId);
+        Utils.writeBigEndLong(buffer, offset + 2, sink);
+        buffer[offset + 10] = (byte) operation;
+        Utils.writeBigEndInt(buffer, offset + 11, epochLength);
+        if (operation == HISTOGRAM) {
+            Utils.writeBigEndInt(buffer, offset + SIZE, bucketMin);
+            Utils.writeBigEndInt(buffer, offset + SIZE + 4, bucketWidth);
+            buffer[offset + SIZE + 8] = (byte) bucketCount;
+        }
+        return offset + getSerializedSize();
+    }
+
+    static AggregationQuery readFrom(byte[] buffer, int offset) {
+        int queryId = Utils.readBigEndShort(buffer, offset);
+        long sink = Utils.readBigEndLong(buffer, offset + 2);
+        int operation = buffer[offset + 10];
+        int epochLength = Utils.readBigEndInt(buffer, offset + 11);
+        if (operation == HISTOGRAM) {
+            return new AggregationQuery(queryId, sink, epochLength,
+                    Utils.readBigEndInt(buffer, offset + SIZE),
+                    Utils.readBigEndInt(buffer, offset + SIZE + 4),
+                    buffer[offset + SIZE + 8] & 0xFF);
+        }
+        return new AggregationQuery(queryId, sink, operation, epochLength);
+    }
+
+    /**
+     * @return a key identifying this query in this node's tables
+     */
+    String getKey() {
+        return sink + "/" + queryId;
+    }
+}
@@ -49,6 +49,11 @@ public class ConnectionID implements IConnectionID {
      * The maximum number of hops a message will make 0=no forwarding
      */
     private byte maxBroadcastHops;
+
+    /**
+     * The traffic class that packets sent on this connection are queued in
+     */
+    private int trafficClass = TransmitScheduler.DEFAULT_TRAFFIC_CLASS;
 	
 	public ConnectionID(){
 	}
@@ -95,6 +100,14 @@ public class ConnectionID implements IConnectionID {
         public void setMaxBroadcastHops(byte maxHops) {
             this.maxBroadcastHops = maxHops;
         }
+
+        public int getTrafficClass() {
+            return trafficClass;
+        }
+
+        public void setTrafficClass(int trafficClass) {
+            this.trafficClass = trafficClass;
+        }
         
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
@@ -147,6 +160,7 @@ public class ConnectionID implements IConnectionID {
 		this.macAddress = other.macAddress;
 		this.portNo = other.portNo;
                 this.maxBroadcastHops = other.maxBroadcastHops;
+                this.trafficClass = other.trafficClass;
 	}
 
     public byte getMaxHops() {
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio;
+
+/**
+ * Implemented by classes that want the results of aggregation queries for which this node is the sink.
+ * See {@link AggregationManager#addAggregationListener(IAggregationListener)}.
+ */
+public interface IAggregationListener {
+
+    /**
+     * Called when the sink has the result for an epoch of a query. Each epoch is reported at most
+     * once, and a partial result that reaches the sink after its epoch has been reported is dropped.
+     * @param query the query
+     * @param epoch the number of the epoch, counted from the start of network time
+     * @param result the combined readings
+     */
+    public void epochCompleted(AggregationQuery query, int epoch, PartialAggregate result);
+}
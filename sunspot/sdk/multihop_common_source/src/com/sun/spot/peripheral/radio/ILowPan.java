@@ -221,6 +221,46 @@ public interface ILowPan {
      */
     public long send(byte protocolFamily, byte protocolNum, long toAddress, byte[] payload,
             int startOffset, int endOffset) throws ChannelBusyException, NoRouteException;
+
+    /**
+     * Send a byte buffer on a given protocol, scheduling it in the MAC transmit
+     * path according to the given traffic class.
+     *
+     * @param protocolFamily the protocol family associated with the outgoing packet
+     * @param protocolNum the protocol number associated with the outgoing packet
+     * @param toAddress the destination
+     * @param payload byte array that holds the data to be sent
+     * @param startOffset offset within the byte array at which data should be read
+     * @param endOffset offset within the byte array after which data
+     * <em>should not</em> be read
+     * @param failIfNotSingleHop if true this method should not send if not single hop.
+     * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+     * @return true if the buffer was sent
+     * @throws ChannelBusyException the radio channel could not be accessed
+     * @throws NoRouteException a route to the destination could not be found
+     */
+    public boolean send(byte protocolFamily, byte protocolNum, long toAddress, byte[] payload,
+            int startOffset, int endOffset, boolean failIfNotSingleHop, int trafficClass)
+            throws ChannelBusyException, NoRouteException;
+
+    /**
+     * Send a byte buffer on a given protocol, scheduling it in the MAC transmit
+     * path according to the given traffic class.
+     *
+     * @param protocolFamily the protocol family associated with the outgoing packet
+     * @param protocolNum the protocol number associated with the outgoing packet
+     * @param toAddress the destination
+     * @param payload byte array that holds the data to be sent
+     * @param startOffset offset within the byte array at which data should be read
+     * @param endOffset offset within the byte array after which data
+     * <em>should not</em> be read
+     * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+     * @return the time at which the data was sent
+     * @throws ChannelBusyException the radio channel could not be accessed
+     * @throws NoRouteException a route to the destination could not be found
+     */
+    public long send(byte protocolFamily, byte protocolNum, long toAddress, byte[] payload,
+            int startOffset, int endOffset, int trafficClass) throws ChannelBusyException, NoRouteException;
     
     /**
      * Send a byte buffer on a given protocol, without any attempt at meshing or fragmentation
@@ -233,6 +273,19 @@ public interface ILowPan {
      * @throws ChannelBusyException radio channel was busy when send was attempted
      */
     public void sendWithoutMeshingOrFragmentation(byte protocolNum, long toAddress, byte[] buffer, int startOffset, int endOffset) throws NoAckException, ChannelBusyException;
+
+    /**
+     * Send a byte buffer on a given protocol, without any attempt at meshing or fragmentation
+     * @param protocolNum higher level protocol number (for port based protocol manager)
+     * @param toAddress address of the remote device for radio packet
+     * @param buffer data buffer to be sent
+     * @param startOffset index of first byte of data to be sent from the buffer
+     * @param endOffset index of the last byte of data to be sent
+     * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+     * @throws NoAckException Ack was expected but not received
+     * @throws ChannelBusyException radio channel was busy when send was attempted
+     */
+    public void sendWithoutMeshingOrFragmentation(byte protocolNum, long toAddress, byte[] buffer, int startOffset, int endOffset, int trafficClass) throws NoAckException, ChannelBusyException;
     
     /**
      * Broadcast a byte buffer on a given protocol, without any attempt at meshing (can be fragmented)
@@ -247,6 +300,22 @@ public interface ILowPan {
      */
     public long sendBroadcast(byte protocolFamily, byte protocolNum, byte[] buffer, int startOffset,
             int endOffset, int hops) throws ChannelBusyException;
+
+    /**
+     * Broadcast a byte buffer on a given protocol, scheduling it in the MAC transmit
+     * path according to the given traffic class
+     * @return the time at which the data was sent
+     * @param protocolFamily The dispatch value for the family this protocol is part
+     * @param protocolNum higher level protocol number (for port based protocol manager)
+     * @param buffer data buffer to be sent
+     * @param startOffset index of first byte of data to be sent from the buffer
+     * @param endOffset index of the last byte of data to be sent
+     * @param hops number of mesh hops this broadcast should take
+     * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+     * @throws ChannelBusyException radio channel was busy when send attempted
+     */
+    public long sendBroadcast(byte protocolFamily, byte protocolNum, byte[] buffer, int startOffset,
+            int endOffset, int hops, int trafficClass) throws ChannelBusyException;
     
         /**
      * Broadcast a byte buffer on a given protocol, without any attempt at meshing (can be fragmented)
@@ -38,6 +38,7 @@ import com.sun.spot.peripheral.radio.routing.RouteInfo;
 import com.sun.spot.peripheral.radio.mhrp.aodv.Constants;
 import com.sun.spot.peripheral.radio.mhrp.interfaces.IMHEventListener;
 import com.sun.spot.peripheral.radio.mhrp.lqrp.LQRPManager;
+import com.sun.spot.peripheral.radio.routing.interfaces.IMultipathRoutingManager;
 import com.sun.spot.peripheral.radio.routing.interfaces.IRoutingManager;
 import com.sun.spot.peripheral.radio.routing.interfaces.RouteEventClient;
 import com.sun.spot.service.IService;
@@ -161,6 +162,12 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
         availRoutes = new Hashtable();
         setRoutingManager(routingManager);
 
+        // answer mesh probes
+        registerProtocol(MeshProbeManager.PROTOCOL_NUMBER, new MeshProbeManager(this, ourAddress));
+        SlotScheduleManager slotSchedule = new SlotScheduleManager(this, ourAddress);
+        registerProtocol(SlotScheduleManager.PROTOCOL_NUMBER, slotSchedule);
+        registerProtocol(AggregationManager.PROTOCOL_NUMBER, new AggregationManager(this, ourAddress, slotSchedule));
+
         // Must be the last thing we do
         packetDispatcher.initialize(this);
     }
@@ -527,17 +534,31 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
     public long send(byte protocolFamily, byte protocolNum, long toAddress, byte[] buffer,
                      int startOffset, int endOffset)
             throws ChannelBusyException, NoRouteException {
+        return send(protocolFamily, protocolNum, toAddress, buffer, startOffset, endOffset,
+                TransmitScheduler.DEFAULT_TRAFFIC_CLASS);
+    }
+
+    public long send(byte protocolFamily, byte protocolNum, long toAddress, byte[] buffer,
+                     int startOffset, int endOffset, int trafficClass)
+            throws ChannelBusyException, NoRouteException {
         LowPanPacket lpp = new LowPanPacket(LowPanPacket.DATA_PACKET);
         sendPrim(protocolFamily, protocolNum, toAddress, buffer, startOffset, endOffset, false,
-                lpp);
+                lpp, trafficClass);
         return lpp.getRadioPacket().getTimestamp();
     }
 
     public boolean send(byte protocolFamily, byte protocolNum, long toAddress, byte[] buffer,
                         int startOffset, int endOffset, boolean failIfNotSingleHop)
             throws ChannelBusyException, NoRouteException {
+        return send(protocolFamily, protocolNum, toAddress, buffer, startOffset, endOffset,
+                failIfNotSingleHop, TransmitScheduler.DEFAULT_TRAFFIC_CLASS);
+    }
+
+    public boolean send(byte protocolFamily, byte protocolNum, long toAddress, byte[] buffer,
+                        int startOffset, int endOffset, boolean failIfNotSingleHop, int trafficClass)
+            throws ChannelBusyException, NoRouteException {
         return sendPrim(protocolFamily, protocolNum, toAddress, buffer, startOffset, endOffset,
-                failIfNotSingleHop, new LowPanPacket(LowPanPacket.DATA_PACKET));
+                failIfNotSingleHop, new LowPanPacket(LowPanPacket.DATA_PACKET), trafficClass);
     }
 
     /**
@@ -545,7 +566,8 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
      * payload
      */
     private boolean sendPrim(byte protocolFamily, byte protocolNum, long toAddress, byte[] buffer,
-                             int startOffset, int endOffset, boolean failIfNotSingleHop, LowPanPacket lpp)
+                             int startOffset, int endOffset, boolean failIfNotSingleHop, LowPanPacket lpp,
+                             int trafficClass)
             throws ChannelBusyException, NoRouteException {
 //        System.out.println("[sendPrim] Start: " + startOffset + " end:" + endOffset);
         IProtocolManager protocolManager;
@@ -571,17 +593,20 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
 
         if (info.nextHop == Constants.INVALID_NEXT_HOP) {
             info = findNextHop(toAddress);
+        } else if (routingManager instanceof IMultipathRoutingManager) {
+            ((IMultipathRoutingManager) routingManager).routeInUse(toAddress);
         }
 
         lpp.getRadioPacket().setDestinationAddress(info.nextHop);
+        lpp.getRadioPacket().setTrafficClass(trafficClass);
 
-        //how much payload data can be filled into one radio packet
-        byte freeSpace = RadioPacket.MIN_PAYLOAD_LENGTH - ILowPan.MAC_PAYLOAD_OFFSET;
-        freeSpace -= LowPanHeader.MAX_PROTOCOL_HEADER_LENGTH;
-        if (info.hopCount > 1) {
-            freeSpace -= LowPanHeader.MAX_MESH_HEADER_LENGTH;
-        }
         for (int i = 0; i < 3; i++) {
+            //how much payload data can be filled into one radio packet
+            byte freeSpace = RadioPacket.MIN_PAYLOAD_LENGTH - ILowPan.MAC_PAYLOAD_OFFSET;
+            freeSpace -= LowPanHeader.MAX_PROTOCOL_HEADER_LENGTH;
+            if (info.hopCount > 1) {
+                freeSpace -= LowPanHeader.MAX_MESH_HEADER_LENGTH;
+            }
             try {
                 if (freeSpace >= (endOffset - startOffset)) {
                     if (info.hopCount > 1 && failIfNotSingleHop) {
@@ -607,6 +632,14 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
             } catch (NoAckException e) {
                 // originally deactivated next hop -- we really need to invalidate the whole route
                 // routingManager.invalidateRoute(ourAddress, info.nextHop);
+                // if another next hop is known switch to it at once rather than retrying this one
+                if (routingManager instanceof IMultipathRoutingManager) {
+                    RouteInfo alternate = ((IMultipathRoutingManager) routingManager).getAlternateRouteInfo(toAddress, info.nextHop);
+                    if (alternate.nextHop != Constants.INVALID_NEXT_HOP) {
+                        info = alternate;
+                        lpp.getRadioPacket().setDestinationAddress(info.nextHop);
+                    }
+                }
             }
         }
         // we did not successfully send - so invalidate the route and retry once, if we locate a new route
@@ -620,7 +653,7 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
                     IEEEAddress.toDottedHex(toAddress) + " through " + IEEEAddress.toDottedHex(info.nextHop));
         }
         send(protocolFamily, protocolNum, toAddress, buffer, startOffset, endOffset,
-                failIfNotSingleHop);
+                failIfNotSingleHop, trafficClass);
         return result;
     }
 
@@ -640,7 +673,29 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
      */
     public void sendWithoutMeshingOrFragmentation(byte protocolNum, long toAddress,
                                                   byte[] buffer, int startOffset, int endOffset) throws NoAckException, ChannelBusyException {
+        sendWithoutMeshingOrFragmentation(protocolNum, toAddress, buffer, startOffset, endOffset,
+                TransmitScheduler.DEFAULT_TRAFFIC_CLASS);
+    }
+
+    /**
+     * Sends a packet over a single hop.  The buffer must fit within a single 802.15.4 packet.
+     * No 6lowpan headers are used.
+     *
+     * @param protocolNum  SPOT protocol number
+     * @param toAddress    destination address for this packet
+     * @param buffer       the data buffer being sent
+     * @param startOffset  start index for data to be sent
+     * @param endOffset    end index of data from buffer to be sent
+     * @param trafficClass the class used to schedule the packet in the MAC transmit path
+     * @throws com.sun.spot.peripheral.NoAckException
+     *          receiving end did not generate the 802.15.4 layer ACK for this packet
+     * @throws com.sun.spot.peripheral.ChannelBusyException
+     *          radio was busy/in-use
+     */
+    public void sendWithoutMeshingOrFragmentation(byte protocolNum, long toAddress,
+                                                  byte[] buffer, int startOffset, int endOffset, int trafficClass) throws NoAckException, ChannelBusyException {
         LowPanPacket lpp = new LowPanPacket(LowPanPacket.DATA_PACKET);
+        lpp.getRadioPacket().setTrafficClass(trafficClass);
         LowPanHeader lph = new LowPanHeader();
         lph.setOutgoingDestinationAddress(toAddress);
         lph.setProtocolInfo(LowPanHeader.DISPATCH_SPOT, protocolNum);
@@ -695,7 +750,29 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
     public long sendBroadcast(byte protocolFamily, byte protocolNum, byte[] buffer, int startOffset,
                               int endOffset, int hops) throws ChannelBusyException {
 
+        return sendBroadcast(protocolFamily, protocolNum, buffer, startOffset, endOffset, hops,
+                TransmitScheduler.DEFAULT_TRAFFIC_CLASS);
+    }
+
+    /**
+     * send a LowPan packet using 802.15.4 broadcast packets
+     *
+     * @param protocolFamily The DISPATCH value for this protocol family
+     * @param protocolNum    The SPOT prootocol number of the packet
+     * @param buffer         data buffer to send
+     * @param startOffset    start of data buffer to send
+     * @param endOffset      end index of data buffer to send
+     * @param hops           maximum number of hops this LowPan packet should be passed within a mesh routed environment
+     * @param trafficClass   the class used to schedule the packet in the MAC transmit path
+     * @return timestamp packet was sent
+     * @throws com.sun.spot.peripheral.ChannelBusyException
+     *          radio channel was busy/in-use
+     */
+    public long sendBroadcast(byte protocolFamily, byte protocolNum, byte[] buffer, int startOffset,
+                              int endOffset, int hops, int trafficClass) throws ChannelBusyException {
+
         LowPanPacket lpp = new LowPanPacket(LowPanPacket.BROADCAST_PACKET);
+        lpp.getRadioPacket().setTrafficClass(trafficClass);
         LowPanHeader lph = new LowPanHeader();
         lph.setProtocolInfo(protocolFamily, protocolNum);
         //how much payload data can be filled into one radio packet
@@ -1044,6 +1121,11 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
 
                 lpp.getRadioPacket().setDestinationAddress(info.nextHop);
 
+                if (!lpp.isFragged() && lpp.getProtocolFamily() == LowPanHeader.DISPATCH_SPOT &&
+                        lpp.getProtocol() == MeshProbeManager.PROTOCOL_NUMBER) {
+                    MeshProbeManager.appendHop(lpp, ourAddress);
+                }
+
                 //save data for notifyForward
                 lastHop = lpp.getRPSourceAddress();
                 nextHop = info.nextHop;
@@ -1070,13 +1152,16 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
             Utils.sleep(delay); // Delay between packets to allow receivers to keep up
             // & to prevent collision with forwarding of fragment
         } catch (NoAckException e) {
-            Debug.print("forwardMeshPacket: can't forward packet from " +
-                    IEEEAddress.toDottedHex(lpp.getOriginatorAddress()) + " to " +
-                    IEEEAddress.toDottedHex(lpp.getFDestinationAddress()));
             if (!lpp.isBCast()) {
-                routingManager.invalidateRoute(lpp.getOriginatorAddress(),
-                        lpp.getFDestinationAddress());
-                return;
+                nextHop = forwardThroughAlternate(lpp, nextHop);
+                if (nextHop == Constants.INVALID_NEXT_HOP) {
+                    Debug.print("forwardMeshPacket: can't forward packet from " +
+                            IEEEAddress.toDottedHex(lpp.getOriginatorAddress()) + " to " +
+                            IEEEAddress.toDottedHex(lpp.getFDestinationAddress()));
+                    routingManager.invalidateRoute(lpp.getOriginatorAddress(),
+                            lpp.getFDestinationAddress());
+                    return;
+                }
             }
         }
 
@@ -1089,6 +1174,38 @@ public class LowPan extends BasicService implements ILowPan, RouteEventClient {
         }
     }
 
+    /**
+     * Try the alternate routes the routing manager knows of, if any, after the
+     * next hop for a mesh packet failed to acknowledge it.
+     *
+     * @param lpp the packet being forwarded
+     * @param failedNextHop the next hop that failed
+     * @return the next hop that accepted the packet, or INVALID_NEXT_HOP
+     */
+    private long forwardThroughAlternate(LowPanPacket lpp, long failedNextHop)
+            throws ChannelBusyException {
+        if (!(routingManager instanceof IMultipathRoutingManager)) {
+            return Constants.INVALID_NEXT_HOP;
+        }
+        IMultipathRoutingManager multipathManager = (IMultipathRoutingManager) routingManager;
+        long failed = failedNextHop;
+        while (true) {
+            // each call drops the failed next hop, so this ends when the alternates run out
+            RouteInfo info = multipathManager.getAlternateRouteInfo(lpp.getFDestinationAddress(), failed);
+            if (info.nextHop == Constants.INVALID_NEXT_HOP) {
+                return Constants.INVALID_NEXT_HOP;
+            }
+            lpp.getRadioPacket().setDestinationAddress(info.nextHop);
+            try {
+                lpStats.packetsForwarded++;
+                packetDispatcher.sendPacket(lpp.getRadioPacket());
+                return info.nextHop;
+            } catch (NoAckException e) {
+                failed = info.nextHop;
+            }
+        }
+    }
+
     private IProtocolManager getProtocolFamilyFor(byte protocolFam) {
         synchronized (protocolFamilyTable) {
             return (IProtocolManager) protocolFamilyTable.get(protocolFam);
@@ -24,6 +24,10 @@
 package com.sun.spot.peripheral.radio;
 
 import com.sun.spot.util.Utils;
+import com.sun.spot.util.VarInt;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Date;
 
 /**
@@ -31,8 +35,19 @@ import java.util.Date;
  * @author Pete St. Pierre
  */
 public class LowPanStats {
+    /**
+     * version of the format written by {@link #writeCompact(DataOutput, int, LowPanStats, int)}
+     */
+    public static final int COMPACT_VERSION = 1;
+    /**
+     * number of counters, in the order they appear in {@link #toByteArray()}
+     */
+    private static final int COUNTER_COUNT = 24;
     // Time these stats were snapshotted/cloned
-    private long timestamp;    // Protocol stats
+    private long timestamp;
+    // Snapshot these stats were last decoded from by readCompact, 0 if none
+    private int snapshotId;
+    // Protocol stats
     /**
      * number of SPOT protocol handlers registered
      */
@@ -529,6 +544,139 @@ public class LowPanStats {
         return b;
     }
 
+    /**
+     * Write these stats in a compact form: each counter is a variable length integer and, if a base
+     * snapshot is given, only the counters that differ from it are sent, as differences. This is
+     * typically a tenth of the size of {@link #toByteArray()}.
+     * Format: [byte version][varint snapshot id][varint base id, 0 if none][signed varint timestamp
+     * change][varint bitmap of counters sent] followed by a signed varint change for each counter sent.
+     * @param out where to write the stats
+     * @param snapshotId an id for these stats, which the reader quotes to ask for a delta against them
+     * @param base the stats the reader already has, or null to send them all
+     * @param baseId the id the base was sent with
+     * @throws IOException
+     */
+    public void writeCompact(DataOutput out, int snapshotId, LowPanStats base, int baseId) throws IOException {
+        out.writeByte(COMPACT_VERSION);
+        VarInt.writeUnsigned(out, snapshotId);
+        VarInt.writeUnsigned(out, base == null ? 0 : baseId);
+        VarInt.writeSigned(out, timestamp - (base == null ? 0 : base.timestamp));
+        int changed = 0;
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            if (getCounter(i) != (base == null ? 0 : base.getCounter(i))) {
+                changed |= 1 << i;
+            }
+        }
+        VarInt.writeUnsigned(out, changed);
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            if ((changed & (1 << i)) != 0) {
+                VarInt.writeSigned(out, (long) getCounter(i) - (base == null ? 0 : base.getCounter(i)));
+            }
+        }
+    }
+
+    /**
+     * Update these stats, in place, from stats written by {@link #writeCompact(DataOutput, int, LowPanStats, int)}.
+     * Nothing is allocated, so a host can poll many nodes without creating garbage.
+     * @param in where to read the stats from
+     * @throws IOException if the format is not understood, or the stats are a delta against a
+     * snapshot other than the one these stats hold. In either case the stats should be requested in full.
+     */
+    public void readCompact(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != COMPACT_VERSION) {
+            throw new IOException("Unsupported stats format version " + version);
+        }
+        int id = (int) VarInt.readUnsigned(in);
+        int baseId = (int) VarInt.readUnsigned(in);
+        int currentId = snapshotId;
+        // until we have read everything, these stats match no snapshot
+        snapshotId = 0;
+        if (baseId != 0 && baseId != currentId) {
+            throw new IOException("Stats are a delta against snapshot " + baseId + ", not " + currentId);
+        }
+        if (baseId == 0) {
+            timestamp = 0;
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                setCounter(i, 0);
+            }
+        }
+        timestamp += VarInt.readSigned(in);
+        int changed = (int) VarInt.readUnsigned(in);
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            if ((changed & (1 << i)) != 0) {
+                setCounter(i, (int) (getCounter(i) + VarInt.readSigned(in)));
+            }
+        }
+        snapshotId = id;
+    }
+
+    /**
+     * @return the id of the snapshot these stats were last read from by {@link #readCompact(DataInput)}, or 0
+     */
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+
+    private int getCounter(int index) {
+        switch (index) {
+            case 0: return protocolCount;
+            case 1: return protocolFamilyCount;
+            case 2: return protocolHandlerMissing;
+            case 3: return unicastsSent;
+            case 4: return unicastsFragmented;
+            case 5: return nonMeshPacketsSent;
+            case 6: return meshPacketsSent;
+            case 7: return packetsSent;
+            case 8: return broadcastsSent;
+            case 9: return broadcastsReceived;
+            case 10: return meshBroadcastsSent;
+            case 11: return meshBroadcastsReceived;
+            case 12: return broadcastsFragmented;
+            case 13: return packetsForwarded;
+            case 14: return meshBroadcastsForwarded;
+            case 15: return ttlExpired;
+            case 16: return droppedBroadcasts;
+            case 17: return broadcastsQueueFull;
+            case 18: return meshPacketsReceived;
+            case 19: return nonMeshPacketsReceived;
+            case 20: return datagramsReassembled;
+            case 21: return reassemblyExpired;
+            case 22: return fragmentsReceived;
+            case 23: return unicastsReceived;
+            default: return 0;
+        }
+    }
+
+    private void setCounter(int index, int value) {
+        switch (index) {
+            case 0: protocolCount = value; break;
+            case 1: protocolFamilyCount = value; break;
+            case 2: protocolHandlerMissing = value; break;
+            case 3: unicastsSent = value; break;
+            case 4: unicastsFragmented = value; break;
+            case 5: nonMeshPacketsSent = value; break;
+            case 6: meshPacketsSent = value; break;
+            case 7: packetsSent = value; break;
+            case 8: broadcastsSent = value; break;
+            case 9: broadcastsReceived = value; break;
+            case 10: meshBroadcastsSent = value; break;
+            case 11: meshBroadcastsReceived = value; break;
+            case 12: broadcastsFragmented = value; break;
+            case 13: packetsForwarded = value; break;
+            case 14: meshBroadcastsForwarded = value; break;
+            case 15: ttlExpired = value; break;
+            case 16: droppedBroadcasts = value; break;
+            case 17: broadcastsQueueFull = value; break;
+            case 18: meshPacketsReceived = value; break;
+            case 19: nonMeshPacketsReceived = value; break;
+            case 20: datagramsReassembled = value; break;
+            case 21: reassemblyExpired = value; break;
+            case 22: fragmentsReceived = value; break;
+            case 23: unicastsReceived = value; break;
+        }
+    }
+
     public String toString() {
         String s = "Timestamp: " + new Date(timestamp).toString() + "\n";
         s += "unicastsSent: " + unicastsSent + "\n";
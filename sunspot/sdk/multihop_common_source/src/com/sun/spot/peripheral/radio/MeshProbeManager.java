@@ -0,0 +1,261 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+import java.util.Hashtable;
+
+import com.sun.spot.peripheral.ChannelBusyException;
+import com.sun.spot.peripheral.NoRouteException;
+import com.sun.spot.util.Queue;
+import com.sun.spot.util.Utils;
+
+/**
+ * Sends probes along mesh routes, and answers probes sent by other nodes, to measure what packets
+ * actually experience on a path.<br><br>
+ *
+ * A probe is a small unfragmented packet. Each node that forwards it appends a record of its address,
+ * how long it held the probe, the RSSI and link quality of the probe as it arrived, and the depth of
+ * its transmit queue (see {@link LowPan}). The destination appends its own record and sends the whole
+ * lot back to the originator. Once a probe is full, nodes stop adding records and mark it as truncated.<br><br>
+ *
+ * Probe format: [byte type][int probe id][byte flags][byte hop count] followed by one hop record per
+ * hop: [long address][short residency millis][byte rssi][byte link quality][byte queue depth]
+ */
+public class MeshProbeManager implements IProtocolManager {
+
+    /**
+     * the LowPan protocol number used for probes
+     */
+    public static final byte PROTOCOL_NUMBER = 107;
+
+    private static final byte PROBE = 1;
+    private static final byte REPLY = 2;
+    private static final byte TRUNCATED = 0x01;
+    private static final int TYPE_OFFSET = 0;
+    private static final int ID_OFFSET = 1;
+    private static final int FLAGS_OFFSET = 5;
+    private static final int HOP_COUNT_OFFSET = 6;
+    private static final int HEADER_SIZE = 7;
+    private static final int HOP_RECORD_SIZE = 8 + 2 + 1 + 1 + 1;
+    /**
+     * probes received while this many replies are waiting to be sent are dropped
+     */
+    private static final int MAX_QUEUED_REPLIES = 4;
+
+    private static MeshProbeManager theInstance;
+
+    private ILowPan lowpan;
+    private long ourAddress;
+    private int nextProbeId;
+    private Hashtable pendingProbes = new Hashtable();
+    private Queue replyQueue = new Queue();
+    private Thread replyThread;
+
+    private static class PendingProbe {
+        byte[] reply;
+        long receivedAt;
+    }
+
+    private static class QueuedReply {
+        byte[] reply;
+        long originator;
+
+        QueuedReply(byte[] reply, long originator) {
+            this.reply = reply;
+            this.originator = originator;
+        }
+    }
+
+    /**
+     * Called by LowPan as it starts up.
+     */
+    MeshProbeManager(ILowPan lowpan, long ourAddress) {
+        this.lowpan = lowpan;
+        this.ourAddress = ourAddress;
+        theInstance = this;
+    }
+
+    /**
+     * @return the probe manager for this node
+     */
+    public static MeshProbeManager getInstance() {
+        LowPan.getInstance(); // which creates and registers the probe manager
+        return theInstance;
+    }
+
+    /**
+     * Send a probe to a node and wait for its reply.
+     * @param destination address of the node to probe
+     * @param timeout milliseconds to wait for the reply
+     * @return what the probe recorded along the way, or null if no reply arrived in time
+     * @throws ChannelBusyException if the probe could not be sent
+     * @throws NoRouteException if there is no route to the destination
+     */
+    public MeshProbeResult probe(long destination, int timeout) throws ChannelBusyException, NoRouteException {
+        Integer probeId;
+        synchronized (this) {
+            probeId = new Integer(++nextProbeId);
+        }
+        byte[] probe = new byte[HEADER_SIZE];
+        probe[TYPE_OFFSET] = PROBE;
+        Utils.writeBigEndInt(probe, ID_OFFSET, probeId.intValue());
+        PendingProbe pending = new PendingProbe();
+        pendingProbes.put(probeId, pending);
+        try {
+            long sentAt = System.currentTimeMillis();
+            lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, destination, probe, 0, HEADER_SIZE,
+                    TransmitScheduler.TRAFFIC_CLASS_INTERACTIVE);
+            synchronized (pending) {
+                long endTime = sentAt + timeout;
+                while (pending.reply == null) {
+                    long wait = endTime - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return null;
+                    }
+                    try {
+                        pending.wait(wait);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+            }
+            return parseReply(destination, (int) (pending.receivedAt - sentAt), pending.reply);
+        } finally {
+            pendingProbes.remove(probeId);
+        }
+    }
+
+    public void processIncomingData(byte[] payload, LowPanHeaderInfo headerInfo) {
+        if (payload.length < HEADER_SIZE) {
+            return;
+        }
+        if (payload[TYPE_OFFSET] == PROBE) {
+            if (replyQueue.size() >= MAX_QUEUED_REPLIES) {
+                return; // the originator will time out
+            }
+            byte[] reply = new byte[payload.length + HOP_RECORD_SIZE];
+            System.arraycopy(payload, 0, reply, 0, payload.length);
+            reply[TYPE_OFFSET] = REPLY;
+            writeHop(reply, payload.length, ourAddress, headerInfo.timestamp, headerInfo.rssi,
+                    headerInfo.linkQuality, TransmitScheduler.TRAFFIC_CLASS_INTERACTIVE);
+            reply[HOP_COUNT_OFFSET]++;
+            // we are called from LowPan's receive path, so don't send from here
+            replyQueue.put(new QueuedReply(reply, headerInfo.originator));
+            startReplyThread();
+        } else if (payload[TYPE_OFFSET] == REPLY) {
+            PendingProbe pending = (PendingProbe) pendingProbes.get(new Integer(Utils.readBigEndInt(payload, ID_OFFSET)));
+            if (pending != null) {
+                synchronized (pending) {
+                    pending.reply = payload;
+                    pending.receivedAt = System.currentTimeMillis();
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+    private synchronized void startReplyThread() {
+        if (replyThread == null) {
+            replyThread = new Thread("MeshProbeManager") {
+                public void run() {
+                    sendReplies();
+                }
+            };
+            RadioFactory.setAsDaemonThread(replyThread);
+            replyThread.start();
+        }
+    }
+
+    private void sendReplies() {
+        while (true) {
+            QueuedReply queued = (QueuedReply) replyQueue.get();
+            if (queued == null) {
+                continue;
+            }
+            try {
+                lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, queued.originator, queued.reply, 0,
+                        queued.reply.length, TransmitScheduler.TRAFFIC_CLASS_INTERACTIVE);
+            } catch (ChannelBusyException e) {
+                // the originator will time out
+            } catch (NoRouteException e) {
+                // the originator will time out
+            }
+        }
+    }
+
+    /**
+     * Called by LowPan for each unfragmented packet with our protocol number that it forwards, just
+     * before sending it on, to add this node's record to a probe.
+     * @param lpp the packet being forwarded
+     * @param ourAddress the address of this node
+     */
+    static void appendHop(LowPanPacket lpp, long ourAddress) {
+        RadioPacket rp = lpp.getRadioPacket();
+        int start = lpp.getLppPayloadOffset() - rp.getPayloadOffset();
+        if (lpp.getPayloadSize() < HEADER_SIZE || rp.getMACPayloadAt(start + TYPE_OFFSET) != PROBE) {
+            return;
+        }
+        int end = rp.getMACPayloadLength();
+        if (end + HOP_RECORD_SIZE > rp.getMaxMacPayloadSize()) {
+            rp.setMACPayloadAt(start + FLAGS_OFFSET, (byte) (rp.getMACPayloadAt(start + FLAGS_OFFSET) | TRUNCATED));
+            return;
+        }
+        byte[] record = new byte[HOP_RECORD_SIZE];
+        writeHop(record, 0, ourAddress, rp.getTimestamp(), rp.getRssi(), rp.getLinkQuality(), rp.getTrafficClass());
+        rp.setMACPayloadLength(end + HOP_RECORD_SIZE);
+        for (int i = 0; i < HOP_RECORD_SIZE; i++) {
+            rp.setMACPayloadAt(end + i, record[i]);
+        }
+        rp.setMACPayloadAt(start + HOP_COUNT_OFFSET, (byte) (rp.getMACPayloadAt(start + HOP_COUNT_OFFSET) + 1));
+    }
+
+    private static void writeHop(byte[] buffer, int offset, long address, long receivedAt, int rssi, int linkQuality, int trafficClass) {
+        int residency = (int) Math.min(0xFFFF, Math.max(0, System.currentTimeMillis() - receivedAt));
+        int queueDepth = 0;
+        I802_15_4_MAC mac = RadioFactory.getI802_15_4_MAC();
+        if (mac instanceof IProprietaryMAC) {
+            queueDepth = Math.min(0xFF, ((IProprietaryMAC) mac).getTransmitQueueDepth(trafficClass));
+        }
+        Utils.writeBigEndLong(buffer, offset, address);
+        Utils.writeBigEndShort(buffer, offset + 8, residency);
+        buffer[offset + 10] = (byte) rssi;
+        buffer[offset + 11] = (byte) Math.min(0xFF, Math.max(0, linkQuality));
+        buffer[offset + 12] = (byte) queueDepth;
+    }
+
+    private MeshProbeResult parseReply(long destination, int roundTripTime, byte[] reply) {
+        int count = Math.min(reply[HOP_COUNT_OFFSET] & 0xFF, (reply.length - HEADER_SIZE) / HOP_RECORD_SIZE);
+        MeshProbeResult.Hop[] hops = new MeshProbeResult.Hop[count];
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_SIZE + i * HOP_RECORD_SIZE;
+            hops[i] = new MeshProbeResult.Hop(Utils.readBigEndLong(reply, offset),
+                    Utils.readBigEndShort(reply, offset + 8) & 0xFFFF,
+                    reply[offset + 10],
+                    reply[offset + 11] & 0xFF,
+                    reply[offset + 12] & 0xFF);
+        }
+        return new MeshProbeResult(destination, roundTripTime, (reply[FLAGS_OFFSET] & TRUNCATED) != 0, hops);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.sun.spot.util.IEEEAddress;
+
+/**
+ * The result of sending a probe along a mesh route with {@link MeshProbeManager#probe(long, int)}.
+ * There is one {@link Hop} for each node that forwarded the probe, followed by one for the destination,
+ * each describing the link the probe arrived on and how long the node held it.
+ *
+ * Nodes do not share a clock, so the time spent on each link is estimated by sharing the part of the
+ * round trip not accounted for by the nodes themselves equally between the links in both directions.
+ */
+public class MeshProbeResult {
+
+    /**
+     * What one node on the path measured as the probe passed through it.
+     */
+    public static class Hop {
+        private long address;
+        private int residencyTime;
+        private int rssi;
+        private int linkQuality;
+        private int queueDepth;
+
+        Hop(long address, int residencyTime, int rssi, int linkQuality, int queueDepth) {
+            this.address = address;
+            this.residencyTime = residencyTime;
+            this.rssi = rssi;
+            this.linkQuality = linkQuality;
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         * @return the address of the node
+         */
+        public long getAddress() {
+            return address;
+        }
+
+        /**
+         * @return milliseconds between the node receiving the probe and passing it on, or replying to it
+         */
+        public int getResidencyTime() {
+            return residencyTime;
+        }
+
+        /**
+         * @return the RSSI of the probe as received by this node from the previous one
+         * @see RadioPacket#getRssi()
+         */
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * @return the link quality of the probe as received by this node from the previous one
+         * @see RadioPacket#getLinkQuality()
+         */
+        public int getLinkQuality() {
+            return linkQuality;
+        }
+
+        /**
+         * @return the number of packets waiting in the node's transmit queue when the probe was passed on
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+    }
+
+    private long destination;
+    private int roundTripTime;
+    private boolean truncated;
+    private Hop[] hops;
+
+    MeshProbeResult(long destination, int roundTripTime, boolean truncated, Hop[] hops) {
+        this.destination = destination;
+        this.roundTripTime = roundTripTime;
+        this.truncated = truncated;
+        this.hops = hops;
+    }
+
+    /**
+     * @return the address the probe was sent to
+     */
+    public long getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return milliseconds between sending the probe and receiving the reply
+     */
+    public int getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * @return true if the path was too long for every forwarding node to fit its record in the probe,
+     * in which case the hops recorded are the first ones and the destination
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the nodes on the path, in order, ending with the destination
+     */
+    public Hop[] getHops() {
+        return hops;
+    }
+
+    /**
+     * @return the estimated milliseconds the probe spent crossing each link
+     */
+    public int getEstimatedLinkTime() {
+        int inNodes = 0;
+        for (int i = 0; i < hops.length; i++) {
+            inNodes += hops[i].residencyTime;
+        }
+        return Math.max(0, roundTripTime - inNodes) / (2 * Math.max(1, hops.length));
+    }
+
+    /**
+     * @param index index of the hop
+     * @return the estimated milliseconds between the previous node sending the probe and this one passing it on
+     */
+    public int getHopLatency(int index) {
+        return getEstimatedLinkTime() + hops[index].residencyTime;
+    }
+
+    /**
+     * Write this result in the form read by {@link #readFrom(DataInput)}.
+     * @param out where to write the result
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(destination);
+        out.writeInt(roundTripTime);
+        out.writeBoolean(truncated);
+        out.writeByte(hops.length);
+        for (int i = 0; i < hops.length; i++) {
+            out.writeLong(hops[i].address);
+            out.writeShort(hops[i].residencyTime);
+            out.writeByte(hops[i].rssi);
+            out.writeByte(hops[i].linkQuality);
+            out.writeByte(hops[i].queueDepth);
+        }
+    }
+
+    /**
+     * Read a result written by {@link #writeTo(DataOutput)}.
+     * @param in where to read the result from
+     * @return the result
+     * @throws IOException
+     */
+    public static MeshProbeResult readFrom(DataInput in) throws IOException {
+        long destination = in.readLong();
+        int roundTripTime = in.readInt();
+        boolean truncated = in.readBoolean();
+        Hop[] hops = new Hop[in.readUnsignedByte()];
+        for (int i = 0; i < hops.length; i++) {
+            hops[i] = new Hop(in.readLong(), in.readUnsignedShort(), in.readByte(),
+                    in.readUnsignedByte(), in.readUnsignedByte());
+        }
+        return new MeshProbeResult(destination, roundTripTime, truncated, hops);
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        int linkTime = getEstimatedLinkTime();
+        sb.append("Probe to ").append(IEEEAddress.toDottedHex(destination));
+        sb.append(": round trip ").append(roundTripTime).append("ms");
+        if (truncated) {
+            sb.append(" (path truncated)");
+        }
+        sb.append("\n   Node\t\t\tLatency\tHeld\tRSSI\tLQI\tQueue\n");
+        for (int i = 0; i < hops.length; i++) {
+            sb.append("   ").append(IEEEAddress.toDottedHex(hops[i].address));
+            sb.append("\t").append(linkTime + hops[i].residencyTime);
+            sb.append("\t").append(hops[i].residencyTime);
+            sb.append("\t").append(hops[i].rssi);
+            sb.append("\t").append(hops[i].linkQuality);
+            sb.append("\t").append(hops[i].queueDepth).append("\n");
+        }
+        return sb.toString();
+    }
+}
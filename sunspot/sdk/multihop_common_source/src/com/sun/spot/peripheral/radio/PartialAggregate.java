@@ -0,0 +1,172 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio;
+
+import com.sun.spot.util.Utils;
+
+/**
+ * The combination of some of the readings for one epoch of an {@link AggregationQuery}. Forwarding
+ * nodes merge the partial results of their children into their own, so the result the sink receives
+ * covers every reading that reached it in time.<br><br>
+ *
+ * The count, sum, minimum and maximum are always kept, whatever the query's operation, so that the
+ * sink can also report, for example, the mean; histogram queries also keep a count per bucket.
+ */
+public class PartialAggregate {
+
+    private static final int SIZE = 20;
+
+    private int count;
+    private long sum;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private int[] buckets;
+
+    PartialAggregate(AggregationQuery query) {
+        buckets = new int[query.getBucketCount()];
+    }
+
+    /**
+     * @return the number of readings combined
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the readings
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the smallest reading, or Integer.MAX_VALUE if there are none
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * @return the largest reading, or Integer.MIN_VALUE if there are none
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean of the readings, or 0 if there are none
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param bucket a bucket of a histogram query
+     * @return the number of readings counted in the bucket
+     */
+    public int getBucket(int bucket) {
+        return buckets[bucket];
+    }
+
+    /**
+     * @param operation one of the operations defined by {@link AggregationQuery}, other than histogram
+     * @return the sum, count, minimum or maximum of the readings
+     */
+    public long getValue(int operation) {
+        switch (operation) {
+            case AggregationQuery.SUM:
+                return sum;
+            case AggregationQuery.COUNT:
+                return count;
+            case AggregationQuery.MIN:
+                return min;
+            case AggregationQuery.MAX:
+                return max;
+            default:
+                throw new IllegalArgumentException("No single value for operation " + operation);
+        }
+    }
+
+    void add(AggregationQuery query, int reading) {
+        count++;
+        sum += reading;
+        min = Math.min(min, reading);
+        max = Math.max(max, reading);
+        if (buckets.length > 0) {
+            buckets[query.getBucket(reading)]++;
+        }
+    }
+
+    void merge(PartialAggregate other) {
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        for (int i = 0; i < buckets.length && i < other.buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+    }
+
+    int getSerializedSize() {
+        return SIZE + 4 * buckets.length;
+    }
+
+    int writeTo(byte[] buffer, int offset) {
+        Utils.writeBigEndInt(buffer, offset, count);
+        Utils.writeBigEndLong(buffer, offset + 4, sum);
+        Utils.writeBigEndInt(buffer, offset + 12, min);
+        Utils.writeBigEndInt(buffer, offset + 16, max);
+        for (int i = 0; i < buckets.length; i++) {
+            Utils.writeBigEndInt(buffer, offset + SIZE + 4 * i, buckets[i]);
+        }
+        return offset + getSerializedSize();
+    }
+
+    static PartialAggregate readFrom(AggregationQuery query, byte[] buffer, int offset) {
+        PartialAggregate result = new PartialAggregate(query);
+        result.count = Utils.readBigEndInt(buffer, offset);
+        result.sum = Utils.readBigEndLong(buffer, offset + 4);
+        result.min = Utils.readBigEndInt(buffer, offset + 12);
+        result.max = Utils.readBigEndInt(buffer, offset + 16);
+        for (int i = 0; i < result.buckets.length; i++) {
+            result.buckets[i] = Utils.readBigEndInt(buffer, offset + SIZE + 4 * i);
+        }
+        return result;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("count=").append(count).append(" sum=").append(sum);
+        if (count > 0) {
+            sb.append(" min=").append(min).append(" max=").append(max);
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            sb.append(i == 0 ? " buckets=" : ",").append(buckets[i]);
+        }
+        return sb.toString();
+    }
+}
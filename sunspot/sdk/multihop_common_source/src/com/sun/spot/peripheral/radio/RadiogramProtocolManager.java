@@ -95,9 +95,11 @@ public class RadiogramProtocolManager extends RadioProtocolManager implements IP
         payload[PORT_OFFSET] = cid.getPortNo();
      //   System.out.println("Sending data to " + cid.getMacAddress() + " with length " + length + "isBdc " + cid.isBroadcast());
         if (cid.isBroadcast()) {
-            return lowpan.sendBroadcast(PROTOCOL_NUMBER, payload, 0, length, cid.getMaxBroadcastHops());
+            return lowpan.sendBroadcast(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, payload, 0, length, cid.getMaxBroadcastHops(),
+                    cid.getTrafficClass());
         } else {
-            return lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, toAddress, payload, 0, length);
+            return lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, toAddress, payload, 0, length,
+                    cid.getTrafficClass());
         }
     }
 
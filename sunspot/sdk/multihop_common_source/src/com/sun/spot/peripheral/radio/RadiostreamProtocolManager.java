@@ -218,7 +218,8 @@ public class RadiostreamProtocolManager extends RadioProtocolManager implements
         for (int i = 0; i <= 5; i++) {
             int delay = 5;
             try {
-                lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, connectionState.id.getMacAddress(), controlBuffer, 0, controlBuffer.length);
+                lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, connectionState.id.getMacAddress(), controlBuffer, 0, controlBuffer.length,
+                        TransmitScheduler.TRAFFIC_CLASS_ACK);
                 break;
             } catch (NoRouteException ex) {
                 delay = 200;
@@ -301,7 +302,8 @@ public class RadiostreamProtocolManager extends RadioProtocolManager implements
 	private void transmitWithRetries(RetransmitBuffer rb, ConnectionState cs) {
 		byte seqNum = rb.buffer[SEQ_OFFSET];
 		try {
-			boolean wasSent = lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, cs.id.getMacAddress(), rb.buffer, 0, rb.buffer.length, !isAckRequested(rb.buffer));
+			boolean wasSent = lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, cs.id.getMacAddress(), rb.buffer, 0, rb.buffer.length, !isAckRequested(rb.buffer),
+					TransmitScheduler.TRAFFIC_CLASS_BULK);
 			if (!wasSent) {
 				// ok, so it wasn't a single hop, now ask for an ack
 				rb.buffer[CTRL_OFFSET] = (byte)(rb.buffer[CTRL_OFFSET] | CTRL_ACK_REQUIRED);
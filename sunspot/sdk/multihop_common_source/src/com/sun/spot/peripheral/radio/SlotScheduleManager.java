@@ -0,0 +1,409 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+import java.util.Random;
+
+import com.sun.spot.peripheral.ChannelBusyException;
+import com.sun.spot.peripheral.NoRouteException;
+import com.sun.spot.peripheral.radio.routing.RoutingPolicyManager;
+import com.sun.spot.util.Utils;
+
+/**
+ * Synchronises clocks across the mesh and gives each node that asks for one a slot in which to send
+ * its periodic traffic (see {@link TransmitScheduler#TRAFFIC_CLASS_PERIODIC}), so that nodes that all
+ * report at the same moment take turns instead of colliding. Other traffic still uses CSMA at any time.<br><br>
+ *
+ * One node, usually the basestation, is the coordinator: call {@link #startCoordinating(int, int, int)}
+ * there. It broadcasts a beacon every beacon period carrying its clock and one page of the schedule.
+ * A node that hears a beacon sets its clock offset from the radio's receive timestamp and passes the
+ * beacon on one hop further, with its own estimate of the coordinator's time, so the whole mesh is
+ * synchronised to within a few milliseconds per hop. Slots are separated by guard times to cover this.<br><br>
+ *
+ * A node gets a slot by calling {@link #requestSlot()}; the request goes to the coordinator when the node
+ * next hears a beacon, and the assignment comes back in a later beacon. Until a node has a slot and a
+ * recent beacon, its periodic traffic is sent straight away with CSMA.<br><br>
+ *
+ * Beacon format: [byte type][int sequence][byte depth][long coordinator time][short slot length]
+ * [short slot count][long coordinator address][short first slot][byte owner count] followed by the
+ * owners of consecutive slots, as [long address] each. Slot request format: [byte type].
+ */
+public class SlotScheduleManager implements IProtocolManager, ISlotSchedule {
+
+    /**
+     * the LowPan protocol number used for beacons and slot requests
+     */
+    public static final byte PROTOCOL_NUMBER = 108;
+
+    /**
+     * the address that owns a slot that has not been assigned
+     */
+    public static final long UNASSIGNED = 0;
+
+    private static final byte BEACON = 1;
+    private static final byte SLOT_REQUEST = 2;
+    private static final int SEQUENCE_OFFSET = 1;
+    private static final int DEPTH_OFFSET = 5;
+    private static final int TIME_OFFSET = 6;
+    private static final int SLOT_LENGTH_OFFSET = 14;
+    private static final int SLOT_COUNT_OFFSET = 16;
+    private static final int COORDINATOR_OFFSET = 18;
+    private static final int FIRST_SLOT_OFFSET = 26;
+    private static final int OWNER_COUNT_OFFSET = 28;
+    private static final int BEACON_HEADER_SIZE = 29;
+    private static final int OWNERS_PER_BEACON = 6;
+
+    private static final int MAX_DEPTH = 8;
+    private static final int MAX_REBROADCAST_DELAY = 50;
+    private static final int MIN_SLOT_LENGTH = 20;
+    /**
+     * time left unused at each end of a slot, to cover clock error between neighbours
+     */
+    private static final int GUARD_TIME = 5;
+    /**
+     * estimated time between writing the time into a beacon and the radio starting to send it
+     */
+    private static final int SEND_LATENCY = 3;
+    /**
+     * how many beacon periods a node stays synchronised without hearing a beacon
+     */
+    private static final int MISSED_BEACONS_ALLOWED = 3;
+
+    private static SlotScheduleManager theInstance;
+
+    private ILowPan lowpan;
+    private long ourAddress;
+    private Random random;
+
+    private long clockOffset;               // coordinator time - our time
+    private long lastSyncTime;              // our time when we last synchronised, 0 if never
+    private int syncSequence;
+    private int syncDepth;
+    private long coordinatorAddress;
+    private int slotLength;
+    private int slotCount;
+    private int ourSlot = -1;
+    private boolean slotWanted;
+    private long lastSlotRequestTime;
+
+    private boolean coordinating;
+    private int beaconPeriod;
+    private int beaconSequence;
+    private long[] slotOwners;              // coordinator only
+    private int nextPage;
+    private Thread beaconThread;
+
+    /**
+     * Called by LowPan as it starts up.
+     */
+    SlotScheduleManager(ILowPan lowpan, long ourAddress) {
+        this.lowpan = lowpan;
+        this.ourAddress = ourAddress;
+        random = new Random(ourAddress);
+        I802_15_4_MAC mac = RadioFactory.getI802_15_4_MAC();
+        if (mac instanceof IProprietaryMAC) {
+            ((IProprietaryMAC) mac).setSlotSchedule(this);
+        }
+        theInstance = this;
+    }
+
+    /**
+     * @return the slot schedule manager for this node
+     */
+    public static SlotScheduleManager getInstance() {
+        LowPan.getInstance(); // which creates and registers the slot schedule manager
+        return theInstance;
+    }
+
+    /**
+     * Make this node the coordinator: the source of network time and of slot assignments.
+     * @param slotLength length of each slot in milliseconds
+     * @param slotCount number of slots in each frame, which is the most nodes that can have a slot
+     * @param beaconPeriod milliseconds between beacons
+     */
+    public synchronized void startCoordinating(int slotLength, int slotCount, int beaconPeriod) {
+        if (slotLength < MIN_SLOT_LENGTH) {
+            throw new IllegalArgumentException("Slot length must be at least " + MIN_SLOT_LENGTH + " millis");
+        }
+        if (slotCount < 1 || slotCount > 0xFFFF) {
+            throw new IllegalArgumentException("Slot count must be between 1 and 65535");
+        }
+        stopCoordinating();
+        this.slotLength = slotLength;
+        this.slotCount = slotCount;
+        this.beaconPeriod = beaconPeriod;
+        slotOwners = new long[slotCount];
+        ourSlot = -1;
+        clockOffset = 0;
+        coordinatorAddress = ourAddress;
+        coordinating = true;
+        beaconThread = new Thread("SlotScheduleManager beacons") {
+            public void run() {
+                while (isCoordinating(this)) {
+                    sendBeacon();
+                    Utils.sleep(SlotScheduleManager.this.beaconPeriod);
+                }
+            }
+        };
+        RadioFactory.setAsDaemonThread(beaconThread);
+        beaconThread.start();
+    }
+
+    /**
+     * Stop sending beacons. Nodes lose synchronisation, and fall back to CSMA for periodic
+     * traffic, after a few beacon periods.
+     */
+    public synchronized void stopCoordinating() {
+        coordinating = false;
+        beaconThread = null;
+        ourSlot = -1;
+    }
+
+    /**
+     * Give a node a slot. Only the coordinator can do this; other nodes use {@link #requestSlot()}.
+     * @param address the node to give a slot to
+     * @return the node's slot, which is its existing slot if it already has one
+     * @throws IllegalStateException if this node is not the coordinator, or all slots are taken
+     */
+    public synchronized int assignSlot(long address) {
+        if (!coordinating) {
+            throw new IllegalStateException("Only the coordinator can assign slots");
+        }
+        int free = -1;
+        for (int i = 0; i < slotOwners.length; i++) {
+            if (slotOwners[i] == address) {
+                return i;
+            }
+            if (free < 0 && slotOwners[i] == UNASSIGNED) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            throw new IllegalStateException("All " + slotOwners.length + " slots are assigned");
+        }
+        slotOwners[free] = address;
+        if (address == ourAddress) {
+            ourSlot = free;
+        }
+        nextPage = free / OWNERS_PER_BEACON; // announce it in the next beacon
+        return free;
+    }
+
+    /**
+     * Ask the coordinator for a slot for this node. The request is sent, and repeated if necessary,
+     * as beacons are heard.
+     */
+    public synchronized void requestSlot() {
+        if (coordinating) {
+            assignSlot(ourAddress);
+        } else {
+            slotWanted = true;
+        }
+    }
+
+    /**
+     * @return this node's slot, or -1 if it has none
+     */
+    public int getSlot() {
+        return ourSlot;
+    }
+
+    /**
+     * @return true if this node is the coordinator or has heard a recent beacon
+     */
+    public synchronized boolean isSynchronised() {
+        return coordinating || (lastSyncTime != 0 &&
+                System.currentTimeMillis() - lastSyncTime < (long) beaconPeriodEstimate() * MISSED_BEACONS_ALLOWED);
+    }
+
+    /**
+     * @return the coordinator's clock, as best this node knows it
+     */
+    public long getNetworkTime() {
+        return System.currentTimeMillis() + clockOffset;
+    }
+
+    public long getTimeUntilSlot() {
+        int slot;
+        long frame;
+        long start;
+        long end;
+        synchronized (this) {
+            slot = ourSlot;
+            if (slot < 0 || !isSynchronised()) {
+                return -1;
+            }
+            frame = (long) slotLength * slotCount;
+            start = (long) slot * slotLength + GUARD_TIME;
+            // leave a guard time after the last frame sent in the slot, too
+            end = (long) (slot + 1) * slotLength - 2 * GUARD_TIME;
+        }
+        long position = getNetworkTime() % frame;
+        if (position >= start && position < end) {
+            return 0;
+        }
+        long wait = start - position;
+        return wait < 0 ? wait + frame : wait;
+    }
+
+    public void processIncomingData(byte[] payload, LowPanHeaderInfo headerInfo) {
+        if (payload.length < 1) {
+            return;
+        }
+        if (payload[0] == BEACON && payload.length >= BEACON_HEADER_SIZE) {
+            processBeacon(payload, headerInfo.timestamp);
+        } else if (payload[0] == SLOT_REQUEST) {
+            synchronized (this) {
+                if (coordinating) {
+                    try {
+                        assignSlot(headerInfo.originator);
+                    } catch (IllegalStateException e) {
+                        // full: the node keeps using CSMA
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isCoordinating(Thread thread) {
+        return coordinating && beaconThread == thread;
+    }
+
+    private int beaconPeriodEstimate() {
+        // nodes aren't told the beacon period, so allow the longest we would expect
+        return coordinating ? beaconPeriod : 30000;
+    }
+
+    private void sendBeacon() {
+        byte[] beacon;
+        synchronized (this) {
+            int first = nextPage * OWNERS_PER_BEACON;
+            if (first >= slotOwners.length) {
+                first = 0;
+                nextPage = 0;
+            }
+            int count = Math.min(OWNERS_PER_BEACON, slotOwners.length - first);
+            nextPage++;
+            beacon = new byte[BEACON_HEADER_SIZE + 8 * count];
+            beacon[0] = BEACON;
+            Utils.writeBigEndInt(beacon, SEQUENCE_OFFSET, ++beaconSequence);
+            beacon[DEPTH_OFFSET] = 0;
+            Utils.writeBigEndShort(beacon, SLOT_LENGTH_OFFSET, slotLength);
+            Utils.writeBigEndShort(beacon, SLOT_COUNT_OFFSET, slotCount);
+            Utils.writeBigEndLong(beacon, COORDINATOR_OFFSET, ourAddress);
+            Utils.writeBigEndShort(beacon, FIRST_SLOT_OFFSET, first);
+            beacon[OWNER_COUNT_OFFSET] = (byte) count;
+            for (int i = 0; i < count; i++) {
+                Utils.writeBigEndLong(beacon, BEACON_HEADER_SIZE + 8 * i, slotOwners[first + i]);
+            }
+        }
+        broadcast(beacon);
+    }
+
+    private void broadcast(byte[] beacon) {
+        Utils.writeBigEndLong(beacon, TIME_OFFSET, getNetworkTime() + SEND_LATENCY);
+        try {
+            lowpan.sendBroadcast(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, beacon, 0, beacon.length, 1,
+                    TransmitScheduler.TRAFFIC_CLASS_CONTROL);
+        } catch (ChannelBusyException e) {
+            // try again next beacon
+        }
+    }
+
+    private void processBeacon(final byte[] beacon, long receivedAt) {
+        int newSlotLength = Utils.readBigEndShort(beacon, SLOT_LENGTH_OFFSET);
+        int newSlotCount = Utils.readBigEndShort(beacon, SLOT_COUNT_OFFSET);
+        if (newSlotLength < MIN_SLOT_LENGTH || newSlotCount == 0) {
+            return; // not a schedule any coordinator would send
+        }
+        int sequence = Utils.readBigEndInt(beacon, SEQUENCE_OFFSET);
+        int depth = beacon[DEPTH_OFFSET] & 0xFF;
+        boolean forward;
+        boolean sendRequest = false;
+        synchronized (this) {
+            if (coordinating) {
+                return;
+            }
+            boolean stale = !isSynchronised();
+            if (!stale && (sequence - syncSequence < 0 || (sequence == syncSequence && depth >= syncDepth))) {
+                return; // an old beacon, or a copy of the current one by a longer path
+            }
+            forward = stale || sequence != syncSequence;
+            clockOffset = Utils.readBigEndLong(beacon, TIME_OFFSET) - receivedAt;
+            lastSyncTime = receivedAt;
+            syncSequence = sequence;
+            syncDepth = depth;
+            long coordinator = Utils.readBigEndLong(beacon, COORDINATOR_OFFSET);
+            if (coordinator != coordinatorAddress) {
+                coordinatorAddress = coordinator;
+                ourSlot = -1;
+            }
+            slotLength = newSlotLength;
+            slotCount = newSlotCount;
+            int first = Utils.readBigEndShort(beacon, FIRST_SLOT_OFFSET);
+            int count = Math.min(beacon[OWNER_COUNT_OFFSET] & 0xFF, (beacon.length - BEACON_HEADER_SIZE) / 8);
+            for (int i = 0; i < count; i++) {
+                long owner = Utils.readBigEndLong(beacon, BEACON_HEADER_SIZE + 8 * i);
+                if (owner == ourAddress) {
+                    ourSlot = first + i;
+                } else if (ourSlot == first + i) {
+                    ourSlot = -1; // the coordinator has given our slot to someone else
+                }
+            }
+            if (slotWanted && ourSlot < 0 && receivedAt - lastSlotRequestTime > slotLength * slotCount) {
+                lastSlotRequestTime = receivedAt;
+                sendRequest = true;
+            } else if (ourSlot >= 0) {
+                slotWanted = false;
+            }
+        }
+        final boolean sendRequestToCoordinator = sendRequest;
+        final boolean rebroadcast = forward && depth + 1 < MAX_DEPTH && !RoutingPolicyManager.getInstance().isEndNode();
+        final long coordinator = coordinatorAddress;
+        if (rebroadcast || sendRequestToCoordinator) {
+            // we are called from LowPan's receive path, so don't send from here
+            new Thread() {
+                public void run() {
+                    if (rebroadcast) {
+                        // spread the rebroadcasts of neighbours that heard the same beacon
+                        Utils.sleep(random.nextInt(MAX_REBROADCAST_DELAY));
+                        beacon[DEPTH_OFFSET] = (byte) (beacon[DEPTH_OFFSET] + 1);
+                        broadcast(beacon);
+                    }
+                    if (sendRequestToCoordinator) {
+                        try {
+                            lowpan.send(LowPanHeader.DISPATCH_SPOT, PROTOCOL_NUMBER, coordinator, new byte[] {SLOT_REQUEST}, 0, 1,
+                                    TransmitScheduler.TRAFFIC_CLASS_CONTROL);
+                        } catch (ChannelBusyException e) {
+                            // ask again at a later beacon
+                        } catch (NoRouteException e) {
+                            // ask again at a later beacon
+                        }
+                    }
+                }
+            }.start();
+        }
+    }
+}
@@ -294,6 +294,10 @@ public class AODVManager implements IRoutingManager {
      * send out a route reply message to advertise this nodes presence to its neighbors.
      * If a SPOT application will be deep sleeping it may want to disable this
      * advertising thread, so the SPOT will not wake up every 30 seconds.
+     * With low-power listening on (see
+     * {@link com.sun.spot.peripheral.radio.IRadioPolicyManager#setLowPowerListeningInterval(int)})
+     * advertisements are strobed, so duty-cycled neighbours still hear them and keep
+     * their routes through this node while it sleeps between advertisements.
      * 
      * @param enable true if advertisements should be sent periodically.
      */
@@ -31,6 +31,8 @@ import java.util.Vector;
 import com.sun.spot.peripheral.ChannelBusyException;
 import com.sun.spot.peripheral.NoAckException;
 import com.sun.spot.peripheral.radio.ILowPan;
+import com.sun.spot.peripheral.radio.LowPanHeader;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
 import com.sun.spot.peripheral.radio.mhrp.aodv.messages.AODVMessage;
 import com.sun.spot.peripheral.radio.mhrp.aodv.messages.RERR;
 import com.sun.spot.peripheral.radio.mhrp.aodv.messages.RREP;
@@ -266,8 +268,8 @@ public class Sender extends Thread {
         if (!requestTable.hasActiveRequest(message)) {
             requestTable.addRREQ(message, eventClient, uniqueKey);
         }
-        lowPan.sendBroadcast(Constants.AODV_PROTOCOL_NUMBER, buffer, 0,
-                buffer.length, 0);
+        lowPan.sendBroadcast(LowPanHeader.DISPATCH_SPOT, Constants.AODV_PROTOCOL_NUMBER, buffer, 0,
+                buffer.length, 0, TransmitScheduler.TRAFFIC_CLASS_CONTROL);
         if (!mhRouteListeners.isEmpty()) {
             Enumeration en = mhRouteListeners.elements();
             while (en.hasMoreElements()) {
@@ -297,7 +299,8 @@ public class Sender extends Thread {
             for (int i = 0; i < MAX_RETRIES; i++) {
                 try {
                     lowPan.sendWithoutMeshingOrFragmentation(Constants.AODV_PROTOCOL_NUMBER,
-                            destinationAddress, buffer, 0, buffer.length);
+                            destinationAddress, buffer, 0, buffer.length,
+                            TransmitScheduler.TRAFFIC_CLASS_CONTROL);
                     break;
                 } catch (NoAckException e) {
 //                    Debug.print("sendRREP: can't send RREP to "
@@ -353,7 +356,8 @@ public class Sender extends Thread {
 	    // Try only once, since we may be reporting *THIS* is broken
             try {
                 lowPan.sendWithoutMeshingOrFragmentation(Constants.AODV_PROTOCOL_NUMBER,
-                        destinationAddress, buffer, 0, buffer.length);
+                        destinationAddress, buffer, 0, buffer.length,
+                            TransmitScheduler.TRAFFIC_CLASS_CONTROL);
                 
             } catch (NoAckException e) {
 //                    Debug.print("[AODV] sendRERR: can't send RERR to "
@@ -50,6 +50,7 @@ public class Constants {
    */
     public static final int RREQ_RETRIES = 3;
     public static final int RREQ_RATELIMIT = 10; // not used
+    public static final int MAX_ROUTES_PER_DESTINATION = 3; // best route plus alternates kept for failover
     public static final int RERR_RATELIMIT = 10; // not used
     
     
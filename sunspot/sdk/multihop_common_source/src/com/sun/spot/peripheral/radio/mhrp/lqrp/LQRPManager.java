@@ -42,7 +42,7 @@ import com.sun.spot.peripheral.radio.mhrp.lqrp.routing.RoutingTable;
 import com.sun.spot.peripheral.radio.mhrp.interfaces.IMHEventListener;
 import com.sun.spot.peripheral.radio.routing.RouteTable;
 import com.sun.spot.peripheral.radio.routing.RoutingPolicyManager;
-import com.sun.spot.peripheral.radio.routing.interfaces.IRoutingManager;
+import com.sun.spot.peripheral.radio.routing.interfaces.IMultipathRoutingManager;
 import com.sun.spot.peripheral.radio.routing.interfaces.RouteEventClient;
 import com.sun.spot.service.IService;
 import com.sun.spot.util.Debug;
@@ -53,7 +53,7 @@ import java.util.Enumeration;
  * @author Allen Ajit George, modification by Pradip De and Pete St. Pierre
  * @version 0.1
  */
-public class LQRPManager implements IRoutingManager {
+public class LQRPManager implements IMultipathRoutingManager {
 
     private static String name = "LQRPManager";
     private Sender sender;
@@ -142,6 +142,36 @@ public class LQRPManager implements IRoutingManager {
         return info;
     }
 
+    /**
+     * Drop the route to a destination through a next hop that failed to
+     * acknowledge and return the best alternate route, if one is known.
+     *
+     * @param destination the final destination
+     * @param failedNextHop the next hop that failed
+     * @return the alternate route, or a route info with an invalid next hop
+     */
+    public RouteInfo getAlternateRouteInfo(long destination, long failedNextHop) {
+        RoutingEntry entry = routingTable.getAlternateEntry(destination, failedNextHop);
+        if (entry == null) {
+            return new RouteInfo(destination, Constants.INVALID_NEXT_HOP, 0);
+        }
+        return new RouteInfo(destination, entry.nextHopMACAddress, entry.hopCount);
+    }
+
+    /**
+     * Start a background route discovery for a destination we are sending to
+     * if its route will soon expire or the alternates learnt for it have run
+     * out. The route stays in use while the discovery runs, and any replies
+     * replace it or become its alternates.
+     *
+     * @param destination the final destination
+     */
+    public void routeInUse(long destination) {
+        if (sender != null && routingTable.routeNeedsRefresh(destination)) {
+            sender.sendNewRREQ(destination, null, null);
+        }
+    }
+
     /**
      * This method triggers a new route request.
      * Note: the radio must be on or no route will be found.
@@ -324,6 +354,10 @@ public class LQRPManager implements IRoutingManager {
      * send out a route reply message to advertise this nodes presence to its neighbors.
      * If a SPOT application will be deep sleeping it may want to disable this
      * advertising thread, so the SPOT will not wake up every 30 seconds.
+     * With low-power listening on (see
+     * {@link com.sun.spot.peripheral.radio.IRadioPolicyManager#setLowPowerListeningInterval(int)})
+     * advertisements are strobed, so duty-cycled neighbours still hear them and keep
+     * their routes through this node while it sleeps between advertisements.
      *
      * @param enable true if advertisements should be sent periodically.
      */
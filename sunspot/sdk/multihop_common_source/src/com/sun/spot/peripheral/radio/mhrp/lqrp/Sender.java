@@ -31,6 +31,8 @@ import java.util.Vector;
 import com.sun.spot.peripheral.ChannelBusyException;
 import com.sun.spot.peripheral.NoAckException;
 import com.sun.spot.peripheral.radio.ILowPan;
+import com.sun.spot.peripheral.radio.LowPanHeader;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
 import com.sun.spot.peripheral.radio.mhrp.interfaces.ILQRPEventListener;
 import com.sun.spot.peripheral.radio.mhrp.lqrp.messages.LQRPMessage;
 import com.sun.spot.peripheral.radio.mhrp.lqrp.messages.RERR;
@@ -282,8 +284,8 @@ public class Sender extends Thread {
         if (!requestTable.hasActiveRequest(message)) {
             requestTable.addRREQ(message, eventClient, uniqueKey);
         }
-        lowPan.sendBroadcast(Constants.LQRP_PROTOCOL_NUMBER, buffer, 0,
-                buffer.length, 0);
+        lowPan.sendBroadcast(LowPanHeader.DISPATCH_SPOT, Constants.LQRP_PROTOCOL_NUMBER, buffer, 0,
+                buffer.length, 0, TransmitScheduler.TRAFFIC_CLASS_CONTROL);
         if (!lqrpListeners.isEmpty()) {
             Enumeration en = lqrpListeners.elements();
             while (en.hasMoreElements()) {
@@ -324,7 +326,8 @@ public class Sender extends Thread {
             for (int i=0; i< MAX_RETRIES; i++) {
                 try {
                     lowPan.sendWithoutMeshingOrFragmentation(Constants.LQRP_PROTOCOL_NUMBER,
-                            destinationAddress, buffer, 0, buffer.length);
+                            destinationAddress, buffer, 0, buffer.length,
+                            TransmitScheduler.TRAFFIC_CLASS_CONTROL);
                     break;
                 } catch (NoAckException e) {
 //                    Debug.print("sendRREP: can't send RREP to "
@@ -393,7 +396,8 @@ public class Sender extends Thread {
                 // Try only once, since we may be reporting *THIS* is broken
                 try {
                     lowPan.sendWithoutMeshingOrFragmentation(Constants.LQRP_PROTOCOL_NUMBER,
-                            destinationAddress, buffer, 0, buffer.length);
+                            destinationAddress, buffer, 0, buffer.length,
+                            TransmitScheduler.TRAFFIC_CLASS_CONTROL);
 
                 } catch (NoAckException e) {
 //                    Debug.print("[LQRP] sendRERR: can't send RERR to "
@@ -440,7 +444,8 @@ public class Sender extends Thread {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
                 lowPan.sendWithoutMeshingOrFragmentation(Constants.LQRP_PROTOCOL_NUMBER,
-                        destinationAddress, buffer, 0, buffer.length);
+                        destinationAddress, buffer, 0, buffer.length,
+                            TransmitScheduler.TRAFFIC_CLASS_CONTROL);
                 break;
             } catch (NoAckException e) {
 //                System.out.println("[sendLQREQ] no ACK sending to " + IEEEAddress.toDottedHex(destinationAddress));
@@ -473,7 +478,8 @@ public class Sender extends Thread {
         for (int i = 0; i < MAX_RETRIES; i++) {
             try {
                 lowPan.sendWithoutMeshingOrFragmentation(Constants.LQRP_PROTOCOL_NUMBER,
-                        destinationAddress, buffer, 0, buffer.length);
+                        destinationAddress, buffer, 0, buffer.length,
+                            TransmitScheduler.TRAFFIC_CLASS_CONTROL);
                 break;
             } catch (NoAckException e) {
                 if (i < (MAX_RETRIES - 1)) {
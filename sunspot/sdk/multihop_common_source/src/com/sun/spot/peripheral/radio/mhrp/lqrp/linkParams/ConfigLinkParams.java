@@ -42,4 +42,12 @@ public class ConfigLinkParams {
     public static final double THRESH_LOW_LQI = 0.50; // was 0.02; //Flag a link if quality below this value
     public static final double LOW_LQI_PENALTY_FACTOR = 0.8;//Factor to penalize a link if LQ < Low Threshold
     public static final double MAX_BATT_VOLT = 4500; //millivolts
+
+    /* Link quality is estimated in fixed point with this many fractional bits, so LQ_ONE represents 1.0 */
+    public static final int LQ_FRACTION_BITS = 16;
+    public static final int LQ_ONE = 1 << LQ_FRACTION_BITS;
+    public static final int GAMMA_FIXED = (int)(GAMMA * LQ_ONE);
+    public static final int LQ_CHANGE_THRESHOLD_FIXED = (int)(0.05 * LQ_ONE); //Check on a neighbor if its LQ changes by more than this
+    public static final int MAX_NEIGHBORS = 32;             //Most neighbors whose links are tracked at once
+    public static final long STALE_NEIGHBOR_TIME = 3 * TIME_WINDOW; //Forget a neighbor not heard from for this long
 }
@@ -24,47 +24,53 @@
 
 package com.sun.spot.peripheral.radio.mhrp.lqrp.linkParams;
 
-import com.sun.spot.util.IEEEAddress;
-
 
 /**
+ * Link quality information for one neighbor.
+ * <p/>
+ * All arithmetic is done in fixed point with {@link ConfigLinkParams#LQ_FRACTION_BITS}
+ * fractional bits, as the SPOT has no floating point hardware. The per-packet
+ * work is an add and an increment; the time weighted average is updated once
+ * per slot. The sums for the last {@link ConfigLinkParams#NumOfSlots} slots are
+ * kept in a ring so the number of packets heard during the whole window is
+ * available without rescanning. The double accessors convert on demand for
+ * the routing messages, which carry link quality as doubles.
  *
  * @author pradip de pradip.de@sun.com
  */
 public class NbrLinkInfo {
         
-    private double gamma = ConfigLinkParams.GAMMA;
-    /* Circular buffers for maintaining the average signal strength params for each slot */
-    private double slotAvgLQ[];
-    
-    private long numOfPktsRecvdInSlot;//Num of pkts in the current slot
+    private static final int NUM_OF_SLOTS = (int)ConfigLinkParams.NumOfSlots;
+    private static final int UNKNOWN_LQ = -1;
+
+    /* Circular buffers holding the LQ sum and packet count of each completed slot in the window */
+    private int slotSumLQ[] = new int[NUM_OF_SLOTS];
+    private int slotPkts[] = new int[NUM_OF_SLOTS];
+    private int nextSlot = 0;
+    private int windowSumLQ = 0;
+    private int windowPkts = 0;
+
+    private int numOfPktsRecvdInSlot;//Num of pkts in the current slot
     
     /* Sum of the signal values of all packets in current slot */
-    private long sumLQ;
+    private int sumLQ;
     
-   
-    private double currSlotMaxLQ = 0.0;
-
     /* The normalized values of the History Time Window weighted Link Params that the Routing Layer *
      * should build its Cost Metric on                                                              *
      */
-    private double currNormalizedLQ;
+    private int currNormalizedLQ;
 
-    private double nbrLQ = -1.0;   // How well our neighbor can hear our packets
-    private double nbrOurLQ;       // How well we can hear our neighbor's packets
+    private int nbrLQ = UNKNOWN_LQ;   // How well our neighbor can hear our packets
+    private int nbrOurLQ;             // How well we can hear our neighbor's packets
     private long nbrLastHeard;     // When did we last hear from this neighbor
     private long nbrLastLPREQ = 0; // When did we last send an LPREQ to this neighbor
     private long nbrLastLPREP = 0; // When did we last receive an LPREP from this neighbor
+    private long created;          // When this neighbor was first seen
 
     private long nbrAddress;
     
     private NodeLifeAndLinkMonitor linkMonitor;
     
-    private double currAvgLQ = 0;
-    
-    /** Creates a new instance of NbrLinLinkMonitor linkM, long address) {
-     * numOfSlots = (int)ConfigLinkParakInfo */
-    
     public NbrLinkInfo(NodeLifeAndLinkMonitor linkM, long address) {
 
         this.linkMonitor = linkM;
@@ -72,8 +78,29 @@ public class NbrLinkInfo {
         numOfPktsRecvdInSlot = 0;
         sumLQ = 0;
 
-        currNormalizedLQ = 0.93;   // Initialize to a typical value for links
+        currNormalizedLQ = toFixed(0.93);   // Initialize to a typical value for links
         nbrAddress = address;
+        created = System.currentTimeMillis();
+    }
+
+    /**
+     * Convert a link quality between 0.0 and 1.0 to fixed point.
+     *
+     * @param lq the link quality
+     * @return the fixed point link quality
+     */
+    public static int toFixed(double lq) {
+        return (int)(lq * ConfigLinkParams.LQ_ONE);
+    }
+
+    /**
+     * Convert a fixed point link quality to a double between 0.0 and 1.0.
+     *
+     * @param lq the fixed point link quality
+     * @return the link quality
+     */
+    public static double fromFixed(int lq) {
+        return ((double)lq) / ConfigLinkParams.LQ_ONE;
     }
 
     /**
@@ -82,34 +109,63 @@ public class NbrLinkInfo {
      * @return current link cost
      */
     public double getCurrentLinkCost() {
+        return fromFixed(getCurrentLinkCostFixed());
+    }
+    
+    /**
+     * Return the current link cost in fixed point, which is the cost of the worst direction.
+     *
+     * @return current link cost
+     */
+    public synchronized int getCurrentLinkCostFixed() {
         return (nbrLQ < 0) ? currNormalizedLQ : Math.min(currNormalizedLQ, nbrLQ);
     }
     
+    /**
+     * Account for a packet received from this neighbor.
+     *
+     * @param lq the link quality indication of the packet, 0 to MAX_LQ
+     * @param now the time it was received
+     */
+    public synchronized void packetReceived(int lq, long now) {
+        sumLQ += lq;
+        numOfPktsRecvdInSlot++;
+        nbrLastHeard = now;
+    }
+
+    /**
+     * Close the current slot: move its totals into the window ring, dropping the oldest slot.
+     */
     public void updateSlotAvgLQ() {
         synchronized (this) {
-            if (numOfPktsRecvdInSlot != 0) {
-                currAvgLQ = ((double)sumLQ)/numOfPktsRecvdInSlot;
-                currSlotMaxLQ = ConfigLinkParams.MAX_LQ;
-            } else {
-                currAvgLQ = 0.0;
-                currSlotMaxLQ = 0.0;
+            windowSumLQ += sumLQ - slotSumLQ[nextSlot];
+            windowPkts += numOfPktsRecvdInSlot - slotPkts[nextSlot];
+            slotSumLQ[nextSlot] = sumLQ;
+            slotPkts[nextSlot] = numOfPktsRecvdInSlot;
+            if (++nextSlot >= NUM_OF_SLOTS) {
+                nextSlot = 0;
             }
             sumLQ = 0;
             numOfPktsRecvdInSlot = 0;
         }
     }
     
+    /**
+     * Fold the slot just closed by {@link #updateSlotAvgLQ()} into the time weighted average.
+     */
     public void calcTimeWeightedLQ() {
         synchronized (this) {
-            if (currAvgLQ > 0.0 ) {
-                currNormalizedLQ = gamma * currNormalizedLQ + (1 - gamma)*(currAvgLQ/currSlotMaxLQ);
+            int slot = (nextSlot == 0 ? NUM_OF_SLOTS : nextSlot) - 1;
+            int pkts = slotPkts[slot];
+            if (pkts > 0 && slotSumLQ[slot] > 0) {
+                // average LQ of the slot normalized by MAX_LQ; the sum of 255 * packets fits easily in a long
+                int slotLQ = (int)(((long)slotSumLQ[slot] << ConfigLinkParams.LQ_FRACTION_BITS) / (pkts * ConfigLinkParams.MAX_LQ));
+                currNormalizedLQ = (int)(((long)ConfigLinkParams.GAMMA_FIXED * currNormalizedLQ +
+                        (long)(ConfigLinkParams.LQ_ONE - ConfigLinkParams.GAMMA_FIXED) * slotLQ) >> ConfigLinkParams.LQ_FRACTION_BITS);
             } else {
                 // if we haven't heard anything then assume nothing has changed
-                // currNormalizedLQ = gamma * currNormalizedLQ + (1 - gamma)*ConfigLinkParams.LOW_NORM_LQI; //A low value for the normalized LQI
             }
-            
         }
-        //System.out.println("CurrNormLQ : " + currNormalizedLQ + "\n");
     }
     
     public long getNbrAddress() {
@@ -124,6 +180,13 @@ public class NbrLinkInfo {
         nbrLastHeard = when;
     }
     
+    /**
+     * @return the time we last heard from this neighbor, or when it was first seen if never heard
+     */
+    public long getLastActivity() {
+        return Math.max(nbrLastHeard, created);
+    }
+
     public long getNbrLastLQREQ() {
         return nbrLastLPREQ;
     }
@@ -141,19 +204,33 @@ public class NbrLinkInfo {
     }
 
     public double getNbrLQ() {
-        return nbrLQ;
+        return nbrLQ < 0 ? -1.0 : fromFixed(nbrLQ);
     }
 
-    public void setNbrLQ(double cost) {
-        nbrLQ = cost;
+    public synchronized void setNbrLQ(double cost) {
+        nbrLQ = cost < 0 ? UNKNOWN_LQ : toFixed(cost);
     }
 
     public double getOurNbrLQ() {
-        return nbrOurLQ;
+        return fromFixed(nbrOurLQ);
     }
 
     public void setOurNbrLQ(double cost) {
-        nbrOurLQ = cost;
+        nbrOurLQ = toFixed(cost);
+    }
+
+    /**
+     * @return how well we could hear this neighbor when it last learnt our view of the link, in fixed point
+     */
+    public int getOurNbrLQFixed() {
+        return nbrOurLQ;
+    }
+
+    /**
+     * Record that the neighbor now has our current view of the link.
+     */
+    public synchronized void ourNbrLQSent() {
+        nbrOurLQ = currNormalizedLQ;
     }
 
     public long getNumOfPktsInSlot() {
@@ -161,32 +238,53 @@ public class NbrLinkInfo {
     }
     
     public void setNumOfPktsInSlot(long numOfPktsInSlot) {
-        this.numOfPktsRecvdInSlot = numOfPktsInSlot;
+        this.numOfPktsRecvdInSlot = (int)numOfPktsInSlot;
     }
     
-    public void incNumOfPktsInSlot() {
+    public synchronized void incNumOfPktsInSlot() {
         numOfPktsRecvdInSlot++;
     }
 
+    /**
+     * @return the number of packets heard from this neighbor in the completed slots of the window
+     */
+    public synchronized int getNumOfPktsInWindow() {
+        return windowPkts;
+    }
+
+    /**
+     * @return the mean LQ of the packets heard in the completed slots of the window, 0 to MAX_LQ, or 0 if none
+     */
+    public synchronized int getWindowAvgLQ() {
+        return windowPkts == 0 ? 0 : windowSumLQ / windowPkts;
+    }
+
     public long getSumLQ() {
         return sumLQ;
     }
     
     public void setSumLQ(long sumLQ) {
-        this.sumLQ = sumLQ;
+        this.sumLQ = (int)sumLQ;
     }
     
-    public void incSumLQ(long sumLQ) {
+    public synchronized void incSumLQ(long sumLQ) {
         this.sumLQ += sumLQ;
     }
         
     public double getCurrNormalizedLQ() {
-        return currNormalizedLQ;
+        return fromFixed(currNormalizedLQ);
     }
     
+    /**
+     * @return the time weighted link quality in fixed point
+     */
+    public int getCurrNormalizedLQFixed() {
+        return currNormalizedLQ;
+    }
+
     //!!!! for testing purposes only
-    public void setCurrNormalizedLQ(double lq) {
-        currNormalizedLQ = lq;
+    public synchronized void setCurrNormalizedLQ(double lq) {
+        currNormalizedLQ = toFixed(lq);
     }
     
     
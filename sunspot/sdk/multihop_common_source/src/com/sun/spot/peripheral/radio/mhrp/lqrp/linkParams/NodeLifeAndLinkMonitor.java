@@ -33,6 +33,7 @@ import com.sun.spot.peripheral.radio.mhrp.lqrp.routing.RoutingTable;
 import com.sun.spot.util.IEEEAddress;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Vector;
 /**
  *
  * @author pradip de, modified by Ron Goldman
@@ -98,7 +99,7 @@ public class NodeLifeAndLinkMonitor implements IPacketQualityListener {
         if (srcAddress != ourAddress && srcAddress != basestationAddress) { // Received Packet
 //            System.out.println("[notifyPacket] received packet from " + IEEEAddress.toDottedHex(srcAddress) +
 //                    "  to " + IEEEAddress.toDottedHex(dest));
-            NbrLinkInfo nlInfo = getNbrLinkInfoWithAddress(srcAddress);
+            NbrLinkInfo nlInfo = (NbrLinkInfo)neighborLinks.get(new Long(srcAddress));
             if (nlInfo == null) {
                 double lqI = (double)lq/(double)ConfigLinkParams.MAX_LQ;
                 nlInfo = addLinkWithAddress(srcAddress, lqI); //Configure an initial lqI with the value just seen
@@ -109,7 +110,7 @@ public class NodeLifeAndLinkMonitor implements IPacketQualityListener {
                     nlInfo.getNbrLastLQREP() < nlInfo.getNbrLastLQREQ() &&
                     (nlInfo.getNbrLastLQREQ() + 500) < now) {
                 nlInfo.setNbrLQ(0.02);   // hasn't replied to our last ping so assume bad link
-                nlInfo.setOurNbrLQ(nlInfo.getCurrNormalizedLQ());
+                nlInfo.ourNbrLQSent();
                 nlInfo.setNbrLastLQREP(-1);
                 routingTable.deactivateRoutesUsing(srcAddress);
                 if (sender != null) {    // but give neighbor another chance
@@ -117,9 +118,7 @@ public class NodeLifeAndLinkMonitor implements IPacketQualityListener {
                 }
 //                System.out.println("Didn't get an LQREP from " + IEEEAddress.toDottedHex(srcAddress));
             }
-            nlInfo.incSumLQ(lq);
-            nlInfo.incNumOfPktsInSlot();
-            nlInfo.setNbrLastHeard(now);
+            nlInfo.packetReceived(lq, now);
             nodeLifetime.incBytesRecvdCount(packetSize);
         } else {// Sent Packet
             nodeLifetime.incBytesTransCount(packetSize);
@@ -129,34 +128,50 @@ public class NodeLifeAndLinkMonitor implements IPacketQualityListener {
     /* Calculate LQ and RSSI Average using history weights over whole window */
     
     
-    /* Add a new link for a neighbor with a given address */
+    /* Add a new link for a neighbor with a given address, forgetting the least recently heard neighbor if the table is full */
     public NbrLinkInfo addLinkWithAddress(long address, double lq) {
         Long addressKey = new Long(address);
         NbrLinkInfo nbrLink = new NbrLinkInfo(this, address);
         nbrLink.setCurrNormalizedLQ(lq);
-       // neighborLinks.addElement(nbrLink);
-        neighborLinks.put(addressKey, nbrLink);
+        NbrLinkInfo evicted = null;
+        synchronized (neighborLinks) {
+            if (neighborLinks.size() >= ConfigLinkParams.MAX_NEIGHBORS && !neighborLinks.containsKey(addressKey)) {
+                evicted = removeLeastRecentlyHeard();
+            }
+            neighborLinks.put(addressKey, nbrLink);
+        }
+        if (evicted != null) {
+            // outside the lock, as the routing table may ask us about link quality
+            routingTable.deactivateRoutesUsing(evicted.getNbrAddress());
+        }
         //System.out.println("Added Link with Address " + IEEEAddress.toDottedHex(address) + " with Link Quality " + lq);
         return nbrLink;
     }
     
        
     public NbrLinkInfo getNbrLinkInfoWithAddress(long address) {
-        Long addressKey = new Long(address);
-        NbrLinkInfo returnLink = null;
-        if (neighborLinks.containsKey(addressKey)) {
-            returnLink = (NbrLinkInfo)neighborLinks.get(addressKey);
-        }
-        return returnLink;
+        return (NbrLinkInfo)neighborLinks.get(new Long(address));
     }
     
        
     /* Remove a link for a neighbor with a given address */
     public void removeLinkWithAddress(long address) {
-        Long addressKey = new Long(address);
-        if (neighborLinks.containsKey(addressKey)) {
-            neighborLinks.remove(addressKey);
+        neighborLinks.remove(new Long(address));
+    }
+
+    private NbrLinkInfo removeLeastRecentlyHeard() {
+        NbrLinkInfo oldest = null;
+        Enumeration en = neighborLinks.elements();
+        while (en.hasMoreElements()) {
+            NbrLinkInfo nbrLInfo = (NbrLinkInfo)en.nextElement();
+            if (oldest == null || nbrLInfo.getLastActivity() < oldest.getLastActivity()) {
+                oldest = nbrLInfo;
+            }
+        }
+        if (oldest != null) {
+            neighborLinks.remove(new Long(oldest.getNbrAddress()));
         }
+        return oldest;
     }
     
     
@@ -193,14 +208,17 @@ public class NodeLifeAndLinkMonitor implements IPacketQualityListener {
         NbrLinkInfo nbrLInfo = (NbrLinkInfo)neighborLinks.get(addressKey);
         if (nbrLInfo != null) {
             nbrLInfo.setNbrLQ(cost);
-            nbrLInfo.setOurNbrLQ(nbrLInfo.getCurrNormalizedLQ());
+            nbrLInfo.ourNbrLQSent();
             nbrLInfo.setNbrLastLQREP(System.currentTimeMillis());
         }
     }
 
     /* Function executed at the end of each slot duration expiry */
     private void updateLinkInfo() {
-        long prevWindow = System.currentTimeMillis() - ConfigLinkParams.TIME_WINDOW;
+        long now = System.currentTimeMillis();
+        long prevWindow = now - ConfigLinkParams.TIME_WINDOW;
+        long staleTime = now - ConfigLinkParams.STALE_NEIGHBOR_TIME;
+        Vector stale = null;
         NbrLinkInfo nbrLInfo;
         nodeLifetime.updateBytesProcInSlot();
         nodeLifetime.calcNodeEnergyBurnRate();
@@ -216,14 +234,29 @@ public class NodeLifeAndLinkMonitor implements IPacketQualityListener {
 //                System.out.println(IEEEAddress.toDottedHex(nbrLInfo.getNbrAddress()) +
 //                        " cost = " + (1.0/nbrLInfo.getCurrNormalizedLQ()) +
 //                        "  lqi = " + nbrLInfo.getCurrNormalizedLQ());
+                if (nbrLInfo.getLastActivity() < staleTime) {
+                    // silent for several windows: stop tracking it rather than pinging it forever
+                    if (stale == null) {
+                        stale = new Vector();
+                    }
+                    stale.addElement(nbrLInfo);
+                    continue;
+                }
                 // if haven't heard from neighbor or neighbor's LQ has changed by >5% check on them
                 if (sender != null && 
                     (nbrLInfo.getNbrLastHeard() < prevWindow ||
-                     Math.abs(nbrLInfo.getCurrNormalizedLQ() - nbrLInfo.getOurNbrLQ()) > 0.05)) {
+                     Math.abs(nbrLInfo.getCurrNormalizedLQFixed() - nbrLInfo.getOurNbrLQFixed()) > ConfigLinkParams.LQ_CHANGE_THRESHOLD_FIXED)) {
                     sender.forwardLQRPMessage(new LQREQ(ourAddress, nbrLInfo.getNbrAddress(), nbrLInfo.getCurrNormalizedLQ()));
                 }
             }
         }
+        if (stale != null) {
+            for (int i = 0; i < stale.size(); i++) {
+                long address = ((NbrLinkInfo)stale.elementAt(i)).getNbrAddress();
+                removeLinkWithAddress(address);
+                routingTable.deactivateRoutesUsing(address);
+            }
+        }
 
         //System.out.println("slotAvgLQ is  " + slotAvgLQ[endIndex] + "\n");
         
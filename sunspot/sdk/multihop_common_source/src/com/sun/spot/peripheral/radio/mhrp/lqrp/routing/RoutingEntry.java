@@ -71,6 +71,14 @@ public class RoutingEntry implements Comparable {
      * list of those actively using this route entry
      */
     public Vector routeUsers;
+    /**
+     * have alternates to this route been learnt since it was last discovered
+     */
+    public boolean alternatesLearnt;
+    /**
+     * has a background route discovery been started to refresh this route
+     */
+    public boolean refreshRequested;
     
     /**
      * constructs a new routing entry
@@ -25,6 +25,8 @@
 package com.sun.spot.peripheral.radio.mhrp.lqrp.routing;
 
 import com.sun.spot.peripheral.radio.ILowPan;
+import com.sun.spot.peripheral.radio.LowPanHeader;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
 import com.sun.spot.peripheral.radio.mhrp.lqrp.Constants;
 import com.sun.spot.peripheral.radio.mhrp.lqrp.messages.RREP;
 import com.sun.spot.peripheral.radio.mhrp.lqrp.messages.RREQ;
@@ -62,7 +64,8 @@ public class RoutingNeighbor extends Thread {
         byte buffer[] = advert.writeMessage();
         while (keepRunning) {
             try {
-                lowPan.sendBroadcast(Constants.LQRP_PROTOCOL_NUMBER, buffer, 0, buffer.length, 1);
+                lowPan.sendBroadcast(LowPanHeader.DISPATCH_SPOT, Constants.LQRP_PROTOCOL_NUMBER, buffer, 0, buffer.length, 1,
+                        TransmitScheduler.TRAFFIC_CLASS_CONTROL);
                
                 Thread.sleep((int)(Constants.ACTIVE_ROUTE_TIMEOUT * .85));
             } catch (Exception e) {
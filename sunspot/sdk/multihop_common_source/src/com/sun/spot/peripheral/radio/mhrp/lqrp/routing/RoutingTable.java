@@ -39,13 +39,20 @@ import com.sun.spot.util.IEEEAddress;
 import com.sun.squawk.util.MathUtils;
 
 /**
- * An object that represents a routing table for the mesh
+ * An object that represents a routing table for the mesh.
+ * <p/>
+ * Besides the best route to each destination the table keeps up to
+ * {@link Constants#MAX_ROUTES_PER_DESTINATION} - 1 alternate routes through
+ * other next hops, ranked by LQRP cost. When the next hop of the best route
+ * stops acknowledging, the best alternate is promoted at once instead of the
+ * destination being lost until a new route discovery completes.
  * @author Allen Ajit George, Jochen Furtmueller, modifications by Pradip De, Pete St. Pierre & Ron Goldman
  * @version 0.1
  */
 public class RoutingTable {
     
     private final Hashtable table;
+    private final Hashtable alternates;     // Long destination -> Vector of RoutingEntry, best first
     private long ourAddress;
     private static RoutingTable instance;
     
@@ -54,6 +61,7 @@ public class RoutingTable {
      */
     private RoutingTable() {
         table = new Hashtable();
+        alternates = new Hashtable();
     }
     
     public void start() {
@@ -99,6 +107,7 @@ public class RoutingTable {
                                 " through " + IEEEAddress.toDottedHex(entry.nextHopMACAddress) +
                                 " at " + now);
                         table.remove(entry);
+                        alternates.remove(entry.key);
                         entry = null;
                     }
                 }
@@ -249,22 +258,22 @@ public class RoutingTable {
     // FIXME See if I can improve the synchronization here
     private void doTableAddition(RoutingEntry newEntry) {
         synchronized (table) {
-            newEntry.expiryTime = System.currentTimeMillis() + Constants.ACTIVE_ROUTE_TIMEOUT;
+            long now = System.currentTimeMillis();
+            newEntry.expiryTime = now + Constants.ACTIVE_ROUTE_TIMEOUT;
             RoutingEntry existingEntry = getEntry(newEntry.key.longValue());
             if (existingEntry != null) {
                 if (existingEntry.activityFlag) {
 //                    Debug.print("doTableAddition: existing hop count: "
 //                            + existingEntry.hopCount + " new hop count: "
 //                            + newEntry.hopCount, 2);
-                    if (existingEntry.lowLQlinkCount > newEntry.lowLQlinkCount ||
-                            (existingEntry.lowLQlinkCount == newEntry.lowLQlinkCount &&
-                             existingEntry.routeCost > newEntry.routeCost))  {
+                    if (isBetter(newEntry, existingEntry))  {
 //                        Debug.print("doTableAddition: replacing old entry", 2);
                         if (!existingEntry.routeUsers.isEmpty()) {
                             // Copy the users from the old list to the new list
                             copyUserList(existingEntry.routeUsers, newEntry.routeUsers);
                         }
                         table.put(newEntry.key, newEntry);
+                        addAlternate(newEntry, existingEntry);
 //                        Debug.print("doTableAddition: added route for "
 //                                + IEEEAddress.toDottedHex(key.longValue())
 //                                + " through "
@@ -273,6 +282,13 @@ public class RoutingTable {
 //                        Debug.print("doTableAddition: existing route for "
 //                                + IEEEAddress.toDottedHex(key.longValue()) + " found", 2);
                         existingEntry.expiryTime = newEntry.expiryTime;
+                        if (existingEntry.nextHopMACAddress == newEntry.nextHopMACAddress) {
+                            // the route has just been rediscovered
+                            existingEntry.refreshRequested = false;
+                            existingEntry.alternatesLearnt = hasLiveAlternate(existingEntry.key, now);
+                        } else {
+                            addAlternate(existingEntry, newEntry);
+                        }
                         if (!newEntry.routeUsers.isEmpty()) {
                             // There's only one user in the new entry's list, so add that
                             Long user = (Long) newEntry.routeUsers.firstElement();
@@ -288,6 +304,7 @@ public class RoutingTable {
                         copyUserList(existingEntry.routeUsers, newEntry.routeUsers);
                     }
                     table.put(newEntry.key, newEntry);
+                    removeAlternate(newEntry.key, newEntry.nextHopMACAddress);
                 }
             } else {
                 table.put(newEntry.key, newEntry);
@@ -299,6 +316,189 @@ public class RoutingTable {
         }
     }
     
+    /**
+     * @return true if route a has fewer low quality links than route b, or as many and a lower cost
+     */
+    private static boolean isBetter(RoutingEntry a, RoutingEntry b) {
+        return a.lowLQlinkCount < b.lowLQlinkCount ||
+                (a.lowLQlinkCount == b.lowLQlinkCount && a.routeCost < b.routeCost);
+    }
+
+    /**
+     * Remember a route as an alternate to the current best route for its
+     * destination, keeping the alternates in order and at most one per next hop.
+     * Must be called with the table locked.
+     *
+     * @param best the best route to the destination
+     * @param alternate the route to keep as an alternate
+     */
+    private void addAlternate(RoutingEntry best, RoutingEntry alternate) {
+        Vector v = (Vector) alternates.get(best.key);
+        if (v == null) {
+            v = new Vector(Constants.MAX_ROUTES_PER_DESTINATION - 1);
+            alternates.put(best.key, v);
+        }
+        long now = System.currentTimeMillis();
+        for (int i = v.size() - 1; i >= 0; i--) {
+            RoutingEntry entry = (RoutingEntry) v.elementAt(i);
+            if (entry.nextHopMACAddress == alternate.nextHopMACAddress ||
+                    entry.nextHopMACAddress == best.nextHopMACAddress ||
+                    entry.expiryTime <= now) {
+                v.removeElementAt(i);
+            }
+        }
+        if (alternate.nextHopMACAddress != best.nextHopMACAddress) {
+            int i = 0;
+            while (i < v.size() && !isBetter(alternate, (RoutingEntry) v.elementAt(i))) {
+                i++;
+            }
+            v.insertElementAt(alternate, i);
+            if (v.size() >= Constants.MAX_ROUTES_PER_DESTINATION) {
+                v.setSize(Constants.MAX_ROUTES_PER_DESTINATION - 1);
+            }
+            best.alternatesLearnt = true;
+        }
+        if (v.isEmpty()) {
+            alternates.remove(best.key);
+        }
+    }
+
+    /**
+     * Forget any alternate route to a destination through the given next hop.
+     * Must be called with the table locked.
+     */
+    private void removeAlternate(Long key, long nextHop) {
+        Vector v = (Vector) alternates.get(key);
+        if (v != null) {
+            for (int i = v.size() - 1; i >= 0; i--) {
+                if (((RoutingEntry) v.elementAt(i)).nextHopMACAddress == nextHop) {
+                    v.removeElementAt(i);
+                }
+            }
+            if (v.isEmpty()) {
+                alternates.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Replace the best route to a destination by its best unexpired alternate.
+     * Must be called with the table locked.
+     *
+     * @param failed the route being replaced
+     * @return the promoted route, or null if there was no alternate, in which case the failed route is left in the table
+     */
+    private RoutingEntry promoteAlternate(RoutingEntry failed) {
+        Vector v = (Vector) alternates.remove(failed.key);
+        if (v != null) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < v.size(); i++) {
+                RoutingEntry entry = (RoutingEntry) v.elementAt(i);
+                if (entry.expiryTime > now && entry.nextHopMACAddress != failed.nextHopMACAddress) {
+                    copyUserList(failed.routeUsers, entry.routeUsers);
+                    freshenRoute(entry);
+                    entry.refreshRequested = false;
+                    entry.alternatesLearnt = false;
+                    table.put(entry.key, entry);
+                    for (int j = i + 1; j < v.size(); j++) {
+                        RoutingEntry alternate = (RoutingEntry) v.elementAt(j);
+                        if (alternate.nextHopMACAddress != failed.nextHopMACAddress) {
+                            addAlternate(entry, alternate);
+                        }
+                    }
+                    Debug.print("[LQRP] failing over route to " + IEEEAddress.toDottedHex(entry.key.longValue()) +
+                            " from " + IEEEAddress.toDottedHex(failed.nextHopMACAddress) +
+                            " to " + IEEEAddress.toDottedHex(entry.nextHopMACAddress));
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called when the next hop of a route has failed to acknowledge a packet.
+     * Drops every alternate route to the destination through that next hop and
+     * promotes the best remaining one. If there is none the current route is
+     * left for the caller to retry or invalidate.
+     *
+     * @param address the destination
+     * @param failedNextHop the next hop that failed
+     * @return the route to use now, or null if there is no alternate
+     */
+    public RoutingEntry getAlternateEntry(long address, long failedNextHop) {
+        synchronized (table) {
+            Long key = new Long(address);
+            removeAlternate(key, failedNextHop);
+            RoutingEntry entry = (RoutingEntry) table.get(key);
+            if (entry != null && entry.nextHopMACAddress == failedNextHop) {
+                return promoteAlternate(entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the alternate routes currently held for a destination, best first.
+     *
+     * @param address the destination
+     * @return vector of routing entries, which may be empty
+     */
+    public Vector getAlternateEntries(long address) {
+        Vector v = new Vector();
+        synchronized (table) {
+            Vector alts = (Vector) alternates.get(new Long(address));
+            if (alts != null) {
+                for (int i = 0; i < alts.size(); i++) {
+                    v.addElement(alts.elementAt(i));
+                }
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Checks whether a multi-hop route that is being used is about to expire,
+     * or has lost all the alternates that were learnt for it. Returns true
+     * only once until the route is replaced or rediscovered, so the caller
+     * can start a single background route discovery.
+     *
+     * @param address the destination
+     * @return true if the route should be refreshed now
+     */
+    public boolean routeNeedsRefresh(long address) {
+        synchronized (table) {
+            RoutingEntry entry = (RoutingEntry) table.get(new Long(address));
+            if (entry == null || entry.hopCount <= 1 || entry.refreshRequested) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (entry.expiryTime - now <= Constants.PATH_DISCOVERY_TIME ||
+                    (entry.alternatesLearnt && !hasLiveAlternate(entry.key, now))) {
+                entry.refreshRequested = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Must be called with the table locked.
+     *
+     * @return true if there is an unexpired alternate route to the destination
+     */
+    private boolean hasLiveAlternate(Long key, long now) {
+        Vector v = (Vector) alternates.get(key);
+        if (v != null) {
+            for (int i = 0; i < v.size(); i++) {
+                if (((RoutingEntry) v.elementAt(i)).expiryTime > now) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * When a routing entry in the table is replaced by a better one, then all
      * the users of the old route should use the new one from now on. Therefor
@@ -357,6 +557,7 @@ public class RoutingTable {
                         " user " + IEEEAddress.toDottedHex(originator) +
                         " at " + System.currentTimeMillis());
                 table.remove(entry.key);
+                alternates.remove(entry.key);
                 // Remove the originator from the route user's list
 //                boolean entryRemoved =
 //                        entry.routeUsers.removeElement(new Long(originator));
@@ -372,18 +573,34 @@ public class RoutingTable {
     }
 
     /**
-     * removes all routes starting with given node
+     * removes all routes starting with given node, failing over to an
+     * alternate route where there is one
      *
      * @param nextHop starting point for routes to remove
      */
     public void deactivateRoutesUsing(long nextHop) {
         synchronized (table) {
+            Vector failed = new Vector();
             Enumeration en = table.elements();
             while (en.hasMoreElements()) {
                 RoutingEntry entry = (RoutingEntry)en.nextElement();
                 if (entry.nextHopMACAddress == nextHop) {
-                    Debug.print("[LQRP] deactivatingRoute: " + IEEEAddress.toDottedHex(entry.key.longValue()) +
-                            " through " + IEEEAddress.toDottedHex(entry.nextHopMACAddress));
+                    failed.addElement(entry);
+                }
+            }
+            Vector keys = new Vector();
+            en = alternates.keys();
+            while (en.hasMoreElements()) {
+                keys.addElement(en.nextElement());
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                removeAlternate((Long) keys.elementAt(i), nextHop);
+            }
+            for (int i = 0; i < failed.size(); i++) {
+                RoutingEntry entry = (RoutingEntry) failed.elementAt(i);
+                Debug.print("[LQRP] deactivatingRoute: " + IEEEAddress.toDottedHex(entry.key.longValue()) +
+                        " through " + IEEEAddress.toDottedHex(entry.nextHopMACAddress));
+                if (promoteAlternate(entry) == null) {
                     table.remove(entry.key);
                 }
             }
@@ -24,6 +24,9 @@
 
 package com.sun.spot.peripheral.radio.proxy;
 
+import java.util.Hashtable;
+import java.util.Vector;
+
 import com.sun.spot.interisolate.BooleanReplyEnvelope;
 import com.sun.spot.interisolate.NumberReplyEnvelope;
 import com.sun.spot.interisolate.ReplyEnvelope;
@@ -37,8 +40,20 @@ import com.sun.spot.peripheral.radio.IRadioProtocolManager;
 import com.sun.spot.peripheral.radio.IncomingData;
 import com.sun.squawk.io.mailboxes.NoSuchMailboxException;
 
+/**
+ * Gives a child isolate access to a protocol manager in the master isolate. Each call is an
+ * RPC to the master isolate, so receiving fetches up to {@link #RECEIVE_BATCH_SIZE} packets at a
+ * time and hands out the extra ones, and {@link #packetsAvailable(ConnectionID)}, from a queue
+ * kept here for each connection.
+ */
 public class ProxyRadioProtocolManager implements IRadioProtocolManager {
+	/**
+	 * The most packets fetched from the master isolate by one receive
+	 */
+	public static final int RECEIVE_BATCH_SIZE = 8;
+
 	protected RequestSender requestSender;
+	private Hashtable prefetchedPackets = new Hashtable(); // ConnectionID -> Vector of IncomingData
 
 	protected ProxyRadioProtocolManager(byte protocolNum, String name, String channelIdentifier) {
 		try{
@@ -49,6 +64,9 @@ public class ProxyRadioProtocolManager implements IRadioProtocolManager {
 	}
 
 	public void closeConnection(ConnectionID cid) {
+		synchronized (prefetchedPackets) {
+			prefetchedPackets.remove(cid);
+		}
 		ReplyEnvelope resultEnvelope = requestSender.send(new CloseConnectionCommand(cid));
 		resultEnvelope.checkForRuntimeException();
 	}
@@ -85,20 +103,63 @@ public class ProxyRadioProtocolManager implements IRadioProtocolManager {
 	}
 
 	public IncomingData receivePacket(ConnectionID cid) {
-		ReplyEnvelope resultEnvelope = requestSender.send(new ReceiveRadioPacketCommand(cid));
-		resultEnvelope.checkForRuntimeException();
-		return (IncomingData)resultEnvelope.getContents();
+		IncomingData packet = takePrefetchedPacket(cid);
+		if (packet != null) {
+			return packet;
+		}
+		return fetchPackets(cid, new ReceiveRadioPacketsCommand(cid, RECEIVE_BATCH_SIZE, -1));
 	}
 
 	public IncomingData receivePacket(ConnectionID cid, long timeout) {
-		ReplyEnvelope resultEnvelope = requestSender.send(new ReceiveRadioPacketWithTimeoutCommand(cid, timeout));
-		resultEnvelope.checkForRuntimeException();
-		return (IncomingData)resultEnvelope.getContents();
+		IncomingData packet = takePrefetchedPacket(cid);
+		if (packet != null) {
+			return packet;
+		}
+		return fetchPackets(cid, new ReceiveRadioPacketsCommand(cid, RECEIVE_BATCH_SIZE, timeout));
 	}
 
 	public boolean packetsAvailable(ConnectionID connectionID) {
+		synchronized (prefetchedPackets) {
+			Vector queue = (Vector) prefetchedPackets.get(connectionID);
+			if (queue != null && !queue.isEmpty()) {
+				return true;
+			}
+		}
 		ReplyEnvelope resultEnvelope = requestSender.send(new PacketsAvailableCommand(connectionID));
 		resultEnvelope.checkForRuntimeException();
 		return ((BooleanReplyEnvelope)resultEnvelope).getBooleanContents();
 	}
+
+	private IncomingData fetchPackets(ConnectionID cid, ReceiveRadioPacketsCommand command) {
+		ReplyEnvelope resultEnvelope = requestSender.send(command);
+		resultEnvelope.checkForRuntimeException();
+		IncomingData[] packets = (IncomingData[])resultEnvelope.getContents();
+		if (packets.length == 0) {
+			return null;
+		}
+		synchronized (prefetchedPackets) {
+			// another thread may have queued packets that arrived before these, so they go first
+			Vector queue = (Vector) prefetchedPackets.get(cid);
+			if (queue == null) {
+				queue = new Vector(RECEIVE_BATCH_SIZE);
+				prefetchedPackets.put(cid, queue);
+			}
+			for (int i = 0; i < packets.length; i++) {
+				queue.addElement(packets[i]);
+			}
+			return takePrefetchedPacket(cid);
+		}
+	}
+
+	private IncomingData takePrefetchedPacket(ConnectionID cid) {
+		synchronized (prefetchedPackets) {
+			Vector queue = (Vector) prefetchedPackets.get(cid);
+			if (queue == null || queue.isEmpty()) {
+				return null;
+			}
+			IncomingData packet = (IncomingData) queue.elementAt(0);
+			queue.removeElementAt(0);
+			return packet;
+		}
+	}
 }
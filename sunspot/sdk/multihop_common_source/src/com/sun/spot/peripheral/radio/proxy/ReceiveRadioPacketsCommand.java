@@ -0,0 +1,72 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.proxy;
+
+import java.util.Vector;
+
+import com.sun.spot.interisolate.ObjectReplyEnvelope;
+import com.sun.spot.interisolate.ReplyEnvelope;
+import com.sun.spot.peripheral.radio.ConnectionID;
+import com.sun.spot.peripheral.radio.IRadioProtocolManager;
+import com.sun.spot.peripheral.radio.IncomingData;
+
+/**
+ * Receives up to a given number of packets in one request: it waits for the first
+ * packet and then takes any others that have already arrived, without waiting for more.
+ * The reply contents are an IncomingData[], which is empty if no packet arrived.
+ */
+class ReceiveRadioPacketsCommand extends RadioRequestEnvelope {
+	private ConnectionID cid;
+	private int maxPackets;
+	private long timeout;
+	
+	/**
+	 * @param cid the connection to receive from
+	 * @param maxPackets the most packets to return
+	 * @param timeout the longest time to wait for the first packet in milliseconds, or -1 to wait indefinitely
+	 */
+	public ReceiveRadioPacketsCommand(ConnectionID cid, int maxPackets, long timeout) {
+		this.cid = cid;
+		this.maxPackets = maxPackets;
+		this.timeout = timeout;
+	}
+
+	public ReplyEnvelope execute(IRadioProtocolManager radioProtocolManager) {
+		Vector packets = new Vector(maxPackets);
+		IncomingData packet = (timeout < 0) ?
+				radioProtocolManager.receivePacket(cid) :
+				radioProtocolManager.receivePacket(cid, timeout);
+		while (packet != null) {
+			packets.addElement(packet);
+			if (packets.size() == maxPackets || !radioProtocolManager.packetsAvailable(cid)) {
+				break;
+			}
+			packet = radioProtocolManager.receivePacket(cid);
+		}
+		IncomingData[] result = new IncomingData[packets.size()];
+		packets.copyInto(result);
+		return new ObjectReplyEnvelope(getUid(), result);
+	}
+}
@@ -25,6 +25,10 @@
 package com.sun.spot.peripheral.radio.routing;
 
 import com.sun.spot.util.IEEEAddress;
+import com.sun.spot.util.VarInt;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 
@@ -33,7 +37,13 @@ import java.util.Hashtable;
  * @author Pete St. Pierre
  */
 public class RouteTable {
+    /**
+     * version of the format written by {@link #writeCompact(DataOutput, int, RouteTable, int)}
+     */
+    public static final int COMPACT_VERSION = 1;
+    
     private Hashtable table;  //A hashtable of RouteInfo objects, keyed on destination
+    private int snapshotId;   //Snapshot this table was last decoded from by readCompact, 0 if none
     
     /** Creates a new instance of RouteTable */
     public RouteTable() {
@@ -51,6 +61,23 @@ public class RouteTable {
         return ri;
     }
     
+    /**
+     * Remove the route to a destination
+     * @param address the destination
+     */
+    public void removeEntry(long address) {
+        table.remove(new Long(address));
+    }
+    
+    /**
+     * Remove all the routes. The table then matches no snapshot, so the next
+     * compact refresh fetches the whole table rather than a delta.
+     */
+    public void removeAllEntries() {
+        table.clear();
+        snapshotId = 0;
+    }
+    
     public Enumeration getAllEntries() {
         return table.elements();
     }
@@ -58,6 +85,129 @@ public class RouteTable {
         return table.size();
     }
     
+    /**
+     * Write this table in a compact form. Entries are sent in order of destination, each destination
+     * as the difference from the one before and each next hop exclusive-ored with its destination, so
+     * that the many addresses that share their upper bytes, and one hop routes, take few bytes.
+     * If a base table is given, only the entries that are new or differ from it are sent, followed
+     * by the destinations that have gone.
+     * Format: [byte version][varint snapshot id][varint base id, 0 if none][varint count] followed
+     * by [varint destination difference][varint destination xor next hop][varint hop count] for each
+     * entry, then [varint count] followed by [varint destination difference] for each removed entry.
+     * @param out where to write the table
+     * @param snapshotId an id for this table, which the reader quotes to ask for a delta against it
+     * @param base the table the reader already has, or null to send it all
+     * @param baseId the id the base was sent with
+     * @throws IOException
+     */
+    public void writeCompact(DataOutput out, int snapshotId, RouteTable base, int baseId) throws IOException {
+        RouteInfo[] entries = getSortedEntries();
+        int changed = 0;
+        for (int i = 0; i < entries.length; i++) {
+            RouteInfo old = base == null ? null : base.getEntry(entries[i].destination);
+            if (old == null || old.nextHop != entries[i].nextHop || old.hopCount != entries[i].hopCount) {
+                entries[changed++] = entries[i];
+            }
+        }
+        RouteInfo[] removed = base == null ? new RouteInfo[0] : base.getSortedEntries();
+        int removedCount = 0;
+        for (int i = 0; i < removed.length; i++) {
+            if (getEntry(removed[i].destination) == null) {
+                removed[removedCount++] = removed[i];
+            }
+        }
+        out.writeByte(COMPACT_VERSION);
+        VarInt.writeUnsigned(out, snapshotId);
+        VarInt.writeUnsigned(out, base == null ? 0 : baseId);
+        VarInt.writeUnsigned(out, changed);
+        long previous = 0;
+        for (int i = 0; i < changed; i++) {
+            VarInt.writeUnsigned(out, entries[i].destination - previous);
+            VarInt.writeUnsigned(out, entries[i].destination ^ entries[i].nextHop);
+            VarInt.writeUnsigned(out, entries[i].hopCount);
+            previous = entries[i].destination;
+        }
+        VarInt.writeUnsigned(out, removedCount);
+        previous = 0;
+        for (int i = 0; i < removedCount; i++) {
+            VarInt.writeUnsigned(out, removed[i].destination - previous);
+            previous = removed[i].destination;
+        }
+    }
+    
+    /**
+     * Update this table, in place, from a table written by {@link #writeCompact(DataOutput, int, RouteTable, int)}.
+     * Existing entries are updated rather than replaced, so only new routes are allocated.
+     * @param in where to read the table from
+     * @throws IOException if the format is not understood, or the table is a delta against a
+     * snapshot other than the one this table holds. In either case the table should be requested in full.
+     */
+    public void readCompact(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != COMPACT_VERSION) {
+            throw new IOException("Unsupported route table format version " + version);
+        }
+        int id = (int) VarInt.readUnsigned(in);
+        int baseId = (int) VarInt.readUnsigned(in);
+        int currentId = snapshotId;
+        // until we have read everything, this table matches no snapshot
+        snapshotId = 0;
+        if (baseId != 0 && baseId != currentId) {
+            throw new IOException("Route table is a delta against snapshot " + baseId + ", not " + currentId);
+        }
+        if (baseId == 0) {
+            removeAllEntries();
+        }
+        int count = (int) VarInt.readUnsigned(in);
+        long destination = 0;
+        for (int i = 0; i < count; i++) {
+            destination += VarInt.readUnsigned(in);
+            long nextHop = destination ^ VarInt.readUnsigned(in);
+            int hopCount = (int) VarInt.readUnsigned(in);
+            RouteInfo ri = getEntry(destination);
+            if (ri == null) {
+                addEntry(new RouteInfo(destination, nextHop, hopCount));
+            } else {
+                ri.nextHop = nextHop;
+                ri.hopCount = hopCount;
+            }
+        }
+        count = (int) VarInt.readUnsigned(in);
+        destination = 0;
+        for (int i = 0; i < count; i++) {
+            destination += VarInt.readUnsigned(in);
+            removeEntry(destination);
+        }
+        snapshotId = id;
+    }
+    
+    /**
+     * @return the id of the snapshot this table was last read from by {@link #readCompact(DataInput)}, or 0
+     */
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+    
+    /**
+     * @return the entries, in order of destination address treated as unsigned
+     */
+    private RouteInfo[] getSortedEntries() {
+        RouteInfo[] entries = new RouteInfo[table.size()];
+        Enumeration e = getAllEntries();
+        int size = 0;
+        while (e.hasMoreElements() && size < entries.length) {
+            RouteInfo ri = (RouteInfo)e.nextElement();
+            // insertion sort; route tables are small
+            int j = size++;
+            while (j > 0 && (ri.destination ^ Long.MIN_VALUE) < (entries[j-1].destination ^ Long.MIN_VALUE)) {
+                entries[j] = entries[j-1];
+                j--;
+            }
+            entries[j] = ri;
+        }
+        return entries;
+    }
+    
     public String toString() {
         Enumeration e = getAllEntries();
         String output = "   Destination\t\tNext Hop\tHops\n";
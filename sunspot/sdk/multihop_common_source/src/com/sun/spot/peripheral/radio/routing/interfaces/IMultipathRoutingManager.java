@@ -0,0 +1,53 @@
+/*
+ * Copyright 2006-2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.routing.interfaces;
+
+import com.sun.spot.peripheral.radio.routing.RouteInfo;
+
+/**
+ * A routing manager that keeps more than one next hop for a destination,
+ * so that traffic can switch to another next hop at once when the current
+ * one stops acknowledging, instead of waiting for a new route discovery.
+ */
+public interface IMultipathRoutingManager extends IRoutingManager {
+    /**
+     * Drop the route to a destination through a next hop that has failed and
+     * return the best remaining route, if any.
+     *
+     * @param destination the final destination
+     * @param failedNextHop the next hop that did not acknowledge
+     * @return the alternate route, or a RouteInfo with an invalid next hop if there is none
+     */
+    public RouteInfo getAlternateRouteInfo(long destination, long failedNextHop);
+
+    /**
+     * Called by the originator of traffic each time it sends to a destination.
+     * The routing manager may use this to refresh the routes of active flows
+     * in the background before they expire.
+     *
+     * @param destination the final destination
+     */
+    public void routeInUse(long destination);
+}
@@ -54,6 +54,7 @@ public class Protocol extends RadioConnectionBase implements RadiostreamConnecti
 	private byte portNo;
 
 	private RadioPolicy selection = RadioPolicy.ON;
+	private int latencyBudget = -1;
 
 	private RadioInputStream radioInputStream;
 	private RadioOutputStream radioOutputStream;
@@ -118,6 +119,9 @@ public class Protocol extends RadioConnectionBase implements RadiostreamConnecti
 	public InputStream openInputStream() {
 		ConnectionID inputConnectionID = getProtocolManager().addInputConnection(macAddress, portNo);
 		radioInputStream = new RadioInputStream(getProtocolManager(), inputConnectionID, getTimeout(), selection, getRadioPolicyManager());
+		if (latencyBudget >= 0) {
+			radioInputStream.setLatencyBudget(latencyBudget);
+		}
 		portNo = inputConnectionID.getPortNo();
 		return radioInputStream;
     }
@@ -128,6 +132,9 @@ public class Protocol extends RadioConnectionBase implements RadiostreamConnecti
 	public OutputStream openOutputStream() {
 		ConnectionID outputConnectionID = getProtocolManager().addOutputConnection(macAddress, portNo);
 		radioOutputStream = new RadioOutputStream(getProtocolManager(), outputConnectionID, selection, getRadioPolicyManager());
+		if (latencyBudget >= 0) {
+			radioOutputStream.setLatencyBudget(latencyBudget);
+		}
 		portNo = outputConnectionID.getPortNo(); 
 		return radioOutputStream;
     }
@@ -142,6 +149,16 @@ public class Protocol extends RadioConnectionBase implements RadiostreamConnecti
 		}
 	}
 
+	public void setLatencyBudget(int millis) {
+		this.latencyBudget = millis;
+		if (radioInputStream != null) {
+			radioInputStream.setLatencyBudget(millis);
+		}
+		if (radioOutputStream != null) {
+			radioOutputStream.setLatencyBudget(millis);
+		}
+	}
+
 	public byte getLocalPort() {
 		if (portNo == 0) {
 			throw new IllegalStateException("Radiostream connection has no port assigned before streams opened.");
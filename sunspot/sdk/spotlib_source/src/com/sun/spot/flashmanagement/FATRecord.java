@@ -47,6 +47,7 @@ abstract class FATRecord {
 	static final byte[] DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY = new byte[] {0, 0};
 
 	private int offsetInFAT;
+	private int lengthInFAT;
 	protected boolean needsWriting;
 
 	public FATRecord(int offsetInFAT) {
@@ -68,6 +69,20 @@ abstract class FATRecord {
 		this.offsetInFAT = offsetInFAT;
 	}
 
+	/**
+	 * @return the number of bytes the record occupies in the FAT, including padding
+	 */
+	public int getLengthInFAT() {
+		return lengthInFAT;
+	}
+
+	/**
+	 * @param lengthInFAT The lengthInFAT to set.
+	 */
+	public void setLengthInFAT(int lengthInFAT) {
+		this.lengthInFAT = lengthInFAT;
+	}
+
 	public byte[] asFATRecord() throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -141,6 +141,19 @@ public class FlashFile {
 		return getFlashManager();
 	}
 	
+	/**
+	 * Move one sector of data that is rarely rewritten onto the most worn free sector, so that the
+	 * little-used sector it occupied takes its share of erases. Nothing is moved unless the erase
+	 * counts of the two sectors are far apart, so it is cheap to call often, for example from a
+	 * low priority background thread. Only unmapped files are moved, and none of them should have a
+	 * stream open while this runs.
+	 * @return true if a sector was moved
+	 * @throws IOException
+	 */
+	public static boolean levelWear() throws IOException {
+		return getFlashManager().levelWear();
+	}
+
 	/**
 	 * Returns an unused virtual address.
 	 * @return The virtual address
@@ -243,6 +243,17 @@ class FlashFileDescriptor extends FATRecord implements IExtendedFlashFileInfo {
 		needsWriting = true;
 	}
 
+	void replaceSector(IAddressableNorFlashSector oldSector, IAddressableNorFlashSector newSector) {
+		int index = sectors.indexOf(oldSector);
+		if (index == -1) {
+			throw new SpotFatalException("Sector " + oldSector.getSectorNumber() + 
+					" is not part of " + name);
+		}
+		sectors.setElementAt(newSector, index);
+		calculateAllocatedSpace();
+		needsWriting = true;
+	}
+
 	public boolean exists() {
 		return true;
 	}
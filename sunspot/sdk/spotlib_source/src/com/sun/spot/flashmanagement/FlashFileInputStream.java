@@ -113,6 +113,25 @@ public class FlashFileInputStream extends InputStream {
 		return numberOfBytesToReturn;
 	}
 
+	/**
+	 * Move to an absolute position in the file, so that the next read starts there.
+	 * @param position offset from the start of the file, from 0 to the file's length
+	 * @throws IOException if the position is outside the file
+	 */
+	public void seek(int position) throws IOException {
+		if (position < 0 || position > fileDescriptor.length()) {
+			throw new IOException("Cannot seek to " + position + " in a file of length " + fileDescriptor.length());
+		}
+		currentSector = fileDescriptor.getFirstSector();
+		int offset = position;
+		while (offset > currentSector.getSize()) {
+			offset -= currentSector.getSize();
+			currentSector = fileDescriptor.getNextSector(currentSector);
+		}
+		offsetInSector = offset;
+		offsetInFile = position;
+	}
+
 	/**
 	 * @see java.io.InputStream#read()
 	 */
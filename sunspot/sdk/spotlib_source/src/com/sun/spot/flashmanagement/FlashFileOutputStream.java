@@ -48,7 +48,13 @@ import java.util.Vector;
  * FlashFileOutputStream ffos = new FlashFileOutputStream(new NorFlashSector(mySectorNumber));<br />
  * </pre></blockquote></p>
  * In this case, the output stream will throw an IOException if you attempt to write beyond the end of the 
- * sector.
+ * sector.<br />
+ * <br />
+ * Programming the flash memory is slow, and by default it is done by the thread that fills the buffer.
+ * A stream opened with {@link #FlashFileOutputStream(FlashFile, int, int)} hands full buffers to a
+ * background thread instead, so that a thread logging data only waits when that many buffers are
+ * already queued for programming. Such a stream's {@link #flush()} only queues the data: call
+ * {@link #sync()} to wait for it to be programmed and recorded in the file's length.
  */
 
 public class FlashFileOutputStream extends OutputStream {
@@ -65,6 +71,7 @@ public class FlashFileOutputStream extends OutputStream {
 	private int numOfBytesInFile;
 	private int numOfBytesInBuffer;
 	private FlashFile file = null;
+	private PageWriter writer = null;
 
 	/**
 	 * Construct an output stream over the space allocated to a previously created FlashFile 
@@ -81,12 +88,52 @@ public class FlashFileOutputStream extends OutputStream {
 	 * flash memory when either this buffer is full, or when {@link #flush()} or {@link #close()}
 	 * are called. Thus varying the buffer size affects the performance characteristics of the
 	 * output stream. The default value is {@value #DEFAULT_BUFFER_SIZE};
+	 * Because the file is rewritten from the start, any of its sectors that are much more worn
+	 * than the free ones may be swapped for free ones first.
 	 * @param file The FlashFile to write data to
 	 * @param bufferSize The size - in bytes - for the FlashFile's output buffer.
 	 * @throws FlashFileNotFoundException 
 	 */
 	public FlashFileOutputStream(FlashFile file, int bufferSize) throws FlashFileNotFoundException {
-		this(file.getFileDescriptor(), bufferSize);
+		this(getDescriptorForRewrite(file), bufferSize, false);
+		this.file = file;
+	}
+
+	/**
+	 * Construct an output stream over the space allocated to a previously created FlashFile,
+	 * whose buffers are programmed into the flash memory by a background thread. Writing only
+	 * waits when pagesInFlight buffers are queued for programming, so a thread that produces data
+	 * steadily is not held up by each program operation. {@link #flush()} queues the data buffered
+	 * so far without waiting; {@link #sync()} and {@link #close()} wait until everything written
+	 * has been programmed and then record the file's length.
+	 * @param file The FlashFile to write data to
+	 * @param bufferSize The size - in bytes - of each buffer, which must be even
+	 * @param pagesInFlight How many full buffers may be waiting to be programmed, or 0 to program
+	 * them on the writing thread as {@link #FlashFileOutputStream(FlashFile, int)} does
+	 * @throws FlashFileNotFoundException 
+	 */
+	public FlashFileOutputStream(FlashFile file, int bufferSize, int pagesInFlight) throws FlashFileNotFoundException {
+		this(file, bufferSize);
+		if (pagesInFlight < 0) {
+			throw new IllegalArgumentException("pagesInFlight must not be negative");
+		}
+		if (pagesInFlight > 0) {
+			writer = new PageWriter(pagesInFlight, bufferSize);
+		}
+	}
+
+	/**
+	 * Construct an output stream that adds to the data already written to a previously created
+	 * FlashFile, for example to carry on with a transfer that was interrupted. The data already in
+	 * the file is kept. Because flash memory is written a half-word at a time the file's length
+	 * must be even, which it always is after a {@link #flush()} of an even number of bytes.
+	 * @param file The FlashFile to add data to
+	 * @param append true to keep the existing data, false to behave like {@link #FlashFileOutputStream(FlashFile)}
+	 * @throws FlashFileNotFoundException If the file does not exist
+	 * @throws IllegalStateException If appending and the file's length is odd
+	 */
+	public FlashFileOutputStream(FlashFile file, boolean append) throws FlashFileNotFoundException {
+		this(append ? file.getFileDescriptor() : getDescriptorForRewrite(file), DEFAULT_BUFFER_SIZE, append);
 		this.file = file;
 	}
 	
@@ -106,14 +153,35 @@ public class FlashFileOutputStream extends OutputStream {
 			0,
 			"",
 			(short)0),
-			DEFAULT_BUFFER_SIZE);
+			DEFAULT_BUFFER_SIZE,
+			false);
 	}
 
-	private FlashFileOutputStream(FlashFileDescriptor fileDescriptor, int bufferSize) throws FlashFileNotFoundException {
+	private static FlashFileDescriptor getDescriptorForRewrite(FlashFile file) throws FlashFileNotFoundException {
+		FlashFileDescriptor descriptor = file.getFileDescriptor();
+		FlashFile.getFlashManager().relocateForRewrite(descriptor);
+		return descriptor;
+	}
+
+	private FlashFileOutputStream(FlashFileDescriptor fileDescriptor, int bufferSize, boolean append) throws FlashFileNotFoundException {
 		buffer = new byte[bufferSize];
 		this.fileDescriptor = fileDescriptor;
 		numOfBytesInFile = numOfBytesWrittenInSector = numOfBytesInBuffer = 0;
 		currentSector = fileDescriptor.getFirstSector();
+		if (append) {
+			numOfBytesInFile = fileDescriptor.length();
+			if (numOfBytesInFile % 2 != 0) {
+				throw new IllegalStateException("Cannot append to " + fileDescriptor.getName() + " as its length is odd");
+			}
+			// the space beyond the end of the data is still erased, so carry on writing where the data ends
+			int offset = numOfBytesInFile;
+			while (offset > currentSector.getSize()) {
+				offset -= currentSector.getSize();
+				currentSector = fileDescriptor.getNextSector(currentSector);
+			}
+			numOfBytesWrittenInSector = offset;
+			return;
+		}
 		fileDescriptor.setFileSize(0);
 		IAddressableNorFlashSector[] sectors = fileDescriptor.getSectors();
 		for (int i = 0; i < sectors.length; i++) {
@@ -137,16 +205,51 @@ public class FlashFileOutputStream extends OutputStream {
 	}
 
 	/**
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			int spaceInFile = fileDescriptor.getAllocatedSpace() - numOfBytesInFile;
+			if (spaceInFile == 0) {
+				throw new IOException("File " + fileDescriptor.getName() + " is full");
+			}
+			int n = Math.min(len, Math.min(spaceInFile, buffer.length - numOfBytesInBuffer));
+			System.arraycopy(b, off, buffer, numOfBytesInBuffer, n);
+			numOfBytesInBuffer += n;
+			numOfBytesInFile += n;
+			off += n;
+			len -= n;
+			if (numOfBytesInBuffer == buffer.length) {
+				writeOutBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Write out the buffered data and record the file's length. For a stream that programs the
+	 * flash memory in the background this only queues the buffered data - see {@link #sync()}.
 	 * @see java.io.OutputStream#flush()
 	 */
 	public void flush() throws IOException {
-		int numOfBytesInBufferOnEntry = numOfBytesInBuffer;
-		writeOutBuffer();
-		// numOfBytesInBuffer is now 0
-		if (numOfBytesInBufferOnEntry % 2 != 0) {
-			buffer[numOfBytesInBuffer++] = buffer[numOfBytesInBufferOnEntry-1];
-			numOfBytesInBuffer = 1;
-			numOfBytesWrittenInSector--;
+		if (writer != null) {
+			writeOutPartialBuffer();
+		} else {
+			sync();
+		}
+	}
+
+	/**
+	 * Wait until all the data written to the stream has been programmed into the flash memory,
+	 * and record the file's length persistently. After this returns the data survives a reset.
+	 * @throws IOException if programming the flash memory failed
+	 */
+	public void sync() throws IOException {
+		writeOutPartialBuffer();
+		if (writer != null) {
+			writer.waitUntilIdle();
 		}
 		fileDescriptor.setFileSize(numOfBytesInFile);
 		if (file != null) {
@@ -158,22 +261,167 @@ public class FlashFileOutputStream extends OutputStream {
 	 * @see java.io.OutputStream#close()
 	 */
 	public void close() throws IOException {
-		flush();
+		sync();
 		super.close();
 	}
 
-	private void writeOutBuffer() {
+	private void writeOutPartialBuffer() throws IOException {
+		int numOfBytesInBufferOnEntry = numOfBytesInBuffer;
+		if (numOfBytesInBufferOnEntry == 0) {
+			return;
+		}
+		byte lastByte = buffer[numOfBytesInBufferOnEntry-1];
+		writeOutBuffer();
+		// numOfBytesInBuffer is now 0
+		if (numOfBytesInBufferOnEntry % 2 != 0) {
+			// flash is written a half-word at a time, so the odd byte is written again with the next one
+			buffer[numOfBytesInBuffer++] = lastByte;
+			numOfBytesWrittenInSector--;
+		}
+	}
+
+	private void writeOutBuffer() throws IOException {
+		IAddressableNorFlashSector sector = currentSector;
+		int offset = numOfBytesWrittenInSector;
 		int unusedBytesInSector = currentSector.getSize()-numOfBytesWrittenInSector;
 		if (numOfBytesInBuffer > unusedBytesInSector) {
-			currentSector.setBytes(numOfBytesWrittenInSector, buffer, 0, unusedBytesInSector);
 			currentSector = fileDescriptor.getNextSector(currentSector);
-			currentSector.setBytes(0, buffer, unusedBytesInSector, numOfBytesInBuffer-unusedBytesInSector);
 			numOfBytesWrittenInSector = numOfBytesInBuffer-unusedBytesInSector;
 		} else {
-			currentSector.setBytes(numOfBytesWrittenInSector, buffer, 0, numOfBytesInBuffer);
 			numOfBytesWrittenInSector+= numOfBytesInBuffer;
 		}
+		if (writer != null) {
+			buffer = writer.submit(sector, offset, buffer, numOfBytesInBuffer);
+		} else {
+			program(sector, offset, buffer, numOfBytesInBuffer);
+		}
 		numOfBytesInBuffer = 0;
 	}
-}
 
+	private void program(IAddressableNorFlashSector sector, int offset, byte[] data, int length) {
+		int unusedBytesInSector = sector.getSize()-offset;
+		if (length > unusedBytesInSector) {
+			sector.setBytes(offset, data, 0, unusedBytesInSector);
+			fileDescriptor.getNextSector(sector).setBytes(0, data, unusedBytesInSector, length-unusedBytesInSector);
+		} else {
+			sector.setBytes(offset, data, 0, length);
+		}
+	}
+
+	/**
+	 * A buffer waiting to be programmed at a place in the file
+	 */
+	private static class Page {
+		IAddressableNorFlashSector sector;
+		int offset;
+		byte[] data;
+		int length;
+
+		Page(IAddressableNorFlashSector sector, int offset, byte[] data, int length) {
+			this.sector = sector;
+			this.offset = offset;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Programs queued buffers in the order they were written. Its thread is started when there is
+	 * work and ends after {@link #IDLE_TIMEOUT} milliseconds without any, so a stream that is never
+	 * closed does not leave a thread behind.
+	 */
+	private class PageWriter implements Runnable {
+		private static final int IDLE_TIMEOUT = 1000;
+
+		private Vector queue = new Vector();
+		private Vector freeBuffers = new Vector();
+		private boolean running = false;
+		private IOException failure = null;
+
+		PageWriter(int pagesInFlight, int bufferSize) {
+			// the buffer being filled is the extra one
+			for (int i = 0; i < pagesInFlight; i++) {
+				freeBuffers.addElement(new byte[bufferSize]);
+			}
+		}
+
+		/**
+		 * Queue a buffer for programming.
+		 * @return an empty buffer to carry on with, once one is free
+		 */
+		synchronized byte[] submit(IAddressableNorFlashSector sector, int offset, byte[] data, int length) throws IOException {
+			checkFailure();
+			queue.addElement(new Page(sector, offset, data, length));
+			if (!running) {
+				running = true;
+				Thread thread = new Thread(this, "FlashFileOutputStream writer");
+				thread.start();
+			}
+			notifyAll();
+			while (freeBuffers.isEmpty()) {
+				waitForWriter();
+			}
+			byte[] result = (byte[]) freeBuffers.elementAt(0);
+			freeBuffers.removeElementAt(0);
+			return result;
+		}
+
+		synchronized void waitUntilIdle() throws IOException {
+			while (!queue.isEmpty()) {
+				waitForWriter();
+			}
+			checkFailure();
+		}
+
+		public void run() {
+			while (true) {
+				Page page;
+				synchronized (this) {
+					if (queue.isEmpty()) {
+						try {
+							wait(IDLE_TIMEOUT);
+						} catch (InterruptedException e) {
+							// carry on
+						}
+						if (queue.isEmpty()) {
+							running = false;
+							return;
+						}
+					}
+					// the page stays queued until it is programmed, so waitUntilIdle waits for it
+					page = (Page) queue.elementAt(0);
+				}
+				RuntimeException problem = null;
+				if (failure == null) {
+					try {
+						program(page.sector, page.offset, page.data, page.length);
+					} catch (RuntimeException e) {
+						problem = e;
+					}
+				}
+				synchronized (this) {
+					if (problem != null) {
+						failure = new IOException("Failed to write to " + fileDescriptor.getName() + ": " + problem.getMessage());
+					}
+					queue.removeElementAt(0);
+					freeBuffers.addElement(page.data);
+					notifyAll();
+				}
+			}
+		}
+
+		private void waitForWriter() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting to write to " + fileDescriptor.getName());
+			}
+		}
+
+		private void checkFailure() throws IOException {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+}
@@ -24,6 +24,7 @@
 
 package com.sun.spot.flashmanagement;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,10 +42,32 @@ import com.sun.squawk.vm.ChannelConstants;
 
 /**
  * FlashManager
- *
+ * <br><br>
+ * The FAT is a log: a commit appends a new record for each changed file and marks the record it
+ * replaces as deleted by clearing its status, which needs no erase. Only when the FAT sector fills
+ * is it compacted, by erasing it and writing back the current records, which makes the FAT a
+ * checkpoint of the filing system again. The bootloader reads the FAT in place, so its layout is fixed.
+ * <br><br>
+ * To keep the erase away from applications that commit often, once the FAT is
+ * {@link #COMPACTION_HIGH_WATER_MARK_PERCENT} percent full and at least half of it is deleted
+ * records, it is compacted in the background as soon as there have been no commits for
+ * {@link #COMPACTION_QUIET_PERIOD} milliseconds, and it is also compacted at startup.
+ * <br><br>
+ * Erases are counted in a {@link SectorWearTable} and the free sectors are allocated by wear.
+ * A file that is rewritten from the start swaps any of its sectors that have been erased
+ * {@link #REWRITE_RELOCATION_THRESHOLD} times more than the least worn free sector for that one,
+ * so a file that is rewritten over and over moves around the flash. Data that never changes
+ * would still pin the sectors it sits on, so {@link #levelWear()} moves it onto the most worn
+ * free sector once the difference reaches {@link #STATIC_WEAR_LEVELING_THRESHOLD} erases.
  */
 class FlashManager implements IFlashManager {
 
+	static final int COMPACTION_HIGH_WATER_MARK_PERCENT = 75;
+	static final int COMPACTION_QUIET_PERIOD = 2000;
+	static final int REWRITE_RELOCATION_THRESHOLD = 16;
+	static final int STATIC_WEAR_LEVELING_THRESHOLD = 500;
+	private static final int COPY_BUFFER_SIZE = 512;
+
 	// These three are package visibility to aid testing
 	Hashtable fileDescriptors;
 	FreeSectorsList freeSectorsRecord;
@@ -52,6 +75,10 @@ class FlashManager implements IFlashManager {
 	private IAddressableNorFlashSector fatSector;
 	private INorFlashSectorFactory flashSectorFactory;
 	private int fatWriteOffset;
+	private int liveRecordBytes;
+	private long lastWriteTime;
+	private Thread compactor;
+	private SectorWearTable wearTable;
 	private int lowestSectorInFilingSystem;
 	private int highestSectorInFilingSystem;
 	
@@ -65,6 +92,7 @@ class FlashManager implements IFlashManager {
 		resetFAT();
 		fileDescriptors = new Hashtable();
 		freeSectorsRecord = new FreeSectorsList(lowestSectorInFilingSystem, highestSectorInFilingSystem, factory);
+		initWearTable(false);
 	}
 
 	private void resetFAT() {
@@ -73,11 +101,44 @@ class FlashManager implements IFlashManager {
 		Utils.writeBigEndInt(buffer, 0, FlashFile.FAT_IDENTIFIER_V3);
 		getFatSector().setBytes(0, buffer, 0, buffer.length);
 		fatWriteOffset = buffer.length;
+		liveRecordBytes = 0;
 	}
 	
 	public void initFromStoredFAT(INorFlashSectorFactory factory) throws IOException {
 		flashSectorFactory = factory;
-		initFrom(new FlashFileInputStream(getFatSector()), factory);
+		// read the sector in one go: parsing it a byte at a time from flash is what makes startup slow
+		byte[] fat = new byte[getFatSector().getSize()];
+		getFatSector().getBytes(0, fat, 0, fat.length);
+		initFrom(new ByteArrayInputStream(fat), factory);
+		if (isCompactionWorthwhile()) {
+			// nothing else is using the flash yet
+			compactFAT();
+		}
+		initWearTable(true);
+	}
+
+	/**
+	 * Count erases from now on, keeping the counts in the file {@link SectorWearTable#FILE_NAME},
+	 * which is created if need be.
+	 */
+	private void initWearTable(boolean load) {
+		wearTable = new SectorWearTable(highestSectorInFilingSystem);
+		if (flashSectorFactory instanceof NorFlashSectorFactory) {
+			// other factories, such as those used by tests, are not expected to count erases
+			((NorFlashSectorFactory) flashSectorFactory).setWearTable(wearTable);
+		}
+		freeSectorsRecord.setWearTable(wearTable);
+		try {
+			boolean existed = load && exists(SectorWearTable.FILE_NAME);
+			if (!existed) {
+				createFile(SectorWearTable.FILE_NAME, 1);
+				writeFAT();
+			}
+			wearTable.attach(getFileDescriptorFor(SectorWearTable.FILE_NAME).getFirstSector(), existed);
+		} catch (IOException e) {
+			// includes running out of space: the counts are then kept only until the next reboot
+			System.err.println("[FlashManager] Not keeping sector erase counts: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -97,6 +158,7 @@ class FlashManager implements IFlashManager {
 		
 		freeSectorsRecord = new FreeSectorsList();
 		int fatOffset = 4; // length of identifier int
+		liveRecordBytes = 0;
 
 		short recordStatus = dis.readShort();
 		while (recordStatus != FATRecord.UNUSED_FAT_RECORD_STATUS) {
@@ -110,11 +172,12 @@ class FlashManager implements IFlashManager {
 					byte recordType = dis.readByte();
 					switch (recordType) {
 						case FATRecord.FILE_FAT_RECORD_TYPE:
-							readFATFileRecord(factory, dis, fatOffset);
+							readFATFileRecord(factory, dis, fatOffset, recordSize + recordSize % 2);
 							break;
 						default:
 							throw new IOException("[FlashManager] FAT contains bad record type " + recordType);
 					}
+					liveRecordBytes += recordSize + recordSize % 2;
 					break;
 
 				default:
@@ -153,8 +216,9 @@ class FlashManager implements IFlashManager {
 		}
 	}
 
-	private void readFATFileRecord(INorFlashSectorFactory factory, DataInputStream dis, int offsetInFAT) throws IOException {
+	private void readFATFileRecord(INorFlashSectorFactory factory, DataInputStream dis, int offsetInFAT, int lengthInFAT) throws IOException {
 		FlashFileDescriptor flashFileDescriptor = new FlashFileDescriptor(factory, dis, offsetInFAT);
+		flashFileDescriptor.setLengthInFAT(lengthInFAT);
 		if (!flashFileDescriptor.isObsolete()) {
 			if (flashFileDescriptor.getVirtualAddress() != 0) {
 				mapSectors(flashFileDescriptor);
@@ -212,13 +276,18 @@ class FlashManager implements IFlashManager {
 	public synchronized void deleteFile(String name) {
 		if (exists(name)) {
 			FlashFileDescriptor descriptor = (FlashFileDescriptor) fileDescriptors.remove(name);
+			if (wearTable != null && wearTable.isAttachedTo(descriptor.getFirstSector())) {
+				// the sector is about to be reused, so stop logging into it
+				wearTable.detach();
+			}
 			addToNeedsDeleting(descriptor);
 			freeSectorsRecord.addSectors(descriptor.getSectors());
 		}
 	}
 
 	public synchronized void writeFAT() throws IOException {
-		Hashtable recordsToWrite = new Hashtable();
+		Vector recordsToWrite = new Vector();
+		Vector recordBytes = new Vector();
 		Enumeration e = fileDescriptors.elements();
 		int totalSize = 0;
 
@@ -226,7 +295,8 @@ class FlashManager implements IFlashManager {
 			FATRecord record = (FATRecord) e.nextElement();
 			if (record.needsWriting()) {
 				byte[] fatRecord = record.asFATRecord();
-				recordsToWrite.put(record, fatRecord);
+				recordsToWrite.addElement(record);
+				recordBytes.addElement(fatRecord);
 				totalSize += fatRecord.length;
 			}
 		}
@@ -235,44 +305,107 @@ class FlashManager implements IFlashManager {
 			// room in FAT just to write
 			e = needsDeleting.elements();
 			while (e.hasMoreElements()) {
-				FATRecord record = (FATRecord) e.nextElement();
-				getFatSector().setBytes(record.getOffsetInFAT(), FATRecord.DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY, 0, FATRecord.DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY.length);
+				markDeleted((FATRecord) e.nextElement());
 			}
-
-			e = fileDescriptors.elements();
-			while (e.hasMoreElements()) {
-				FATRecord record = (FATRecord) e.nextElement();
+			for (int i = 0; i < recordsToWrite.size(); i++) {
+				FATRecord record = (FATRecord) recordsToWrite.elementAt(i);
 				if (record.needsDeleting()) {
-					getFatSector().setBytes(record.getOffsetInFAT(), FATRecord.DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY, 0, FATRecord.DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY.length);
+					markDeleted(record);
 				}
-				record.setClean();
-			}
-			e = recordsToWrite.keys();
-			while (e.hasMoreElements()) {
-				FATRecord record = (FATRecord) e.nextElement();
-				byte[] recordAsByteArray = (byte[]) recordsToWrite.get(record);
+				byte[] recordAsByteArray = (byte[]) recordBytes.elementAt(i);
 				getFatSector().setBytes(fatWriteOffset, recordAsByteArray, 0, recordAsByteArray.length);
 				record.setOffsetInFAT(fatWriteOffset);
+				record.setLengthInFAT(recordAsByteArray.length);
+				record.setClean();
 				fatWriteOffset += recordAsByteArray.length;
+				liveRecordBytes += recordAsByteArray.length;
 			}
-		} else {
-			resetFAT();
-			e = fileDescriptors.elements();
-			while (e.hasMoreElements()) {
-				FATRecord record = (FATRecord) e.nextElement();
-				byte[] recordAsByteArray = record.asFATRecord();
-				if (getFatSector().getSize() - fatWriteOffset - 2 < recordAsByteArray.length) {
-					throw new SpotFatalException("FAT is full");
-				}
-				getFatSector().setBytes(fatWriteOffset, recordAsByteArray, 0, recordAsByteArray.length);
-				record.setOffsetInFAT(fatWriteOffset);
-				fatWriteOffset += recordAsByteArray.length;				
-				record.setClean();
+			needsDeleting = new Vector();
+			lastWriteTime = System.currentTimeMillis();
+			if (isCompactionWorthwhile()) {
+				scheduleCompaction();
 			}
+		} else {
+			compactFAT();
+		}
+	}
+
+	/**
+	 * Rewrite the FAT with only the current records. Every record is serialised before the sector
+	 * is erased, so that nothing can fail between the erase and the rewrite except the flash itself.
+	 */
+	synchronized void compactFAT() throws IOException {
+		byte[][] records = new byte[fileDescriptors.size()][];
+		FATRecord[] owners = new FATRecord[records.length];
+		Enumeration e = fileDescriptors.elements();
+		int totalSize = 4; // identifier
+		for (int i = 0; e.hasMoreElements(); i++) {
+			owners[i] = (FATRecord) e.nextElement();
+			records[i] = owners[i].asFATRecord();
+			totalSize += records[i].length;
+		}
+		if (getFatSector().getSize() - totalSize - 2 < 0) {
+			throw new SpotFatalException("FAT is full");
 		}
+		byte[] fat = new byte[totalSize];
+		Utils.writeBigEndInt(fat, 0, FlashFile.FAT_IDENTIFIER_V3);
+		int offset = 4;
+		for (int i = 0; i < records.length; i++) {
+			System.arraycopy(records[i], 0, fat, offset, records[i].length);
+			owners[i].setOffsetInFAT(offset);
+			owners[i].setLengthInFAT(records[i].length);
+			owners[i].setClean();
+			offset += records[i].length;
+		}
+		getFatSector().erase();
+		getFatSector().setBytes(0, fat, 0, fat.length);
+		fatWriteOffset = fat.length;
+		liveRecordBytes = fat.length - 4;
 		needsDeleting = new Vector();
 	}
 
+	private void markDeleted(FATRecord record) {
+		getFatSector().setBytes(record.getOffsetInFAT(), FATRecord.DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY, 0, FATRecord.DELETED_FAT_RECORD_STATUS_AS_BYTE_ARRAY.length);
+		liveRecordBytes -= record.getLengthInFAT();
+	}
+
+	/**
+	 * @return true if the FAT is nearly full and compacting it would free at least half of it
+	 */
+	private boolean isCompactionWorthwhile() {
+		return fatWriteOffset * 100 >= getFatSector().getSize() * COMPACTION_HIGH_WATER_MARK_PERCENT
+			&& liveRecordBytes * 2 <= fatWriteOffset;
+	}
+
+	private void scheduleCompaction() {
+		if (compactor != null) {
+			return;
+		}
+		compactor = new Thread() {
+			public void run() {
+				synchronized (FlashManager.this) {
+					try {
+						long quietTime;
+						while ((quietTime = System.currentTimeMillis() - lastWriteTime) < COMPACTION_QUIET_PERIOD) {
+							FlashManager.this.wait(COMPACTION_QUIET_PERIOD - quietTime);
+						}
+						if (isCompactionWorthwhile()) {
+							compactFAT();
+						}
+					} catch (InterruptedException e) {
+						// give up; the FAT is compacted when it fills anyway
+					} catch (IOException e) {
+						System.err.println("[FlashManager] Background FAT compaction failed: " + e.getMessage());
+					} finally {
+						compactor = null;
+					}
+				}
+			}
+		};
+		compactor.setPriority(Thread.MIN_PRIORITY);
+		compactor.start();
+	}
+
 	FlashFileDescriptor[] getFileDescriptors() {
 		FlashFileDescriptor[] result = new FlashFileDescriptor[fileDescriptors.size()];
 		Enumeration e = fileDescriptors.elements();
@@ -373,6 +506,108 @@ class FlashManager implements IFlashManager {
 		}
 	}
 
+	public synchronized void relocateForRewrite(FlashFileDescriptor fileDescriptor) {
+		if (!canMove(fileDescriptor)) {
+			return;
+		}
+		boolean moved = false;
+		IAddressableNorFlashSector[] sectors = fileDescriptor.getSectors();
+		for (int i = 0; i < sectors.length; i++) {
+			IAddressableNorFlashSector freeSector = freeSectorsRecord.getLeastWornSector();
+			if (freeSector != null && freeSector.getSize() == sectors[i].getSize() && getEraseCount(sectors[i].getSectorNumber()) - 
+					getEraseCount(freeSector.getSectorNumber()) >= REWRITE_RELOCATION_THRESHOLD) {
+				swapSector(fileDescriptor, sectors[i], freeSector);
+				moved = true;
+			}
+		}
+		if (moved) {
+			// the old sectors are free now, so the FAT must stop pointing at them before they are reused
+			commitMove();
+		}
+	}
+
+	/**
+	 * Move the least worn sector of data that can be moved onto the most worn free sector, if
+	 * their erase counts differ by at least {@link #STATIC_WEAR_LEVELING_THRESHOLD}.
+	 * @return true if a sector was moved
+	 */
+	public synchronized boolean levelWear() throws IOException {
+		if (wearTable == null) {
+			return false;
+		}
+		IAddressableNorFlashSector target = freeSectorsRecord.getMostWornSector();
+		if (target == null) {
+			return false;
+		}
+		FlashFileDescriptor coldFile = null;
+		IAddressableNorFlashSector coldSector = null;
+		int sectorOffset = 0;
+		Enumeration e = fileDescriptors.elements();
+		while (e.hasMoreElements()) {
+			FlashFileDescriptor descriptor = (FlashFileDescriptor) e.nextElement();
+			if (canMove(descriptor)) {
+				IAddressableNorFlashSector[] sectors = descriptor.getSectors();
+				int offset = 0;
+				for (int i = 0; i < sectors.length; i++) {
+					if (coldSector == null || getEraseCount(sectors[i].getSectorNumber()) < getEraseCount(coldSector.getSectorNumber())) {
+						coldFile = descriptor;
+						coldSector = sectors[i];
+						sectorOffset = offset;
+					}
+					offset += sectors[i].getSize();
+				}
+			}
+		}
+		if (coldSector == null || coldSector.getSize() != target.getSize() ||
+				getEraseCount(target.getSectorNumber()) - getEraseCount(coldSector.getSectorNumber()) < STATIC_WEAR_LEVELING_THRESHOLD) {
+			return false;
+		}
+		// only the part of the sector holding data needs copying, rounded up to whole half-words
+		int bytesToCopy = Math.max(0, Math.min(coldSector.getSize(), coldFile.length() - sectorOffset));
+		bytesToCopy += bytesToCopy % 2;
+		target.erase();
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		for (int offset = 0; offset < bytesToCopy; offset += buffer.length) {
+			int length = Math.min(buffer.length, bytesToCopy - offset);
+			coldSector.getBytes(offset, buffer, 0, length);
+			target.setBytes(offset, buffer, 0, length);
+		}
+		swapSector(coldFile, coldSector, target);
+		writeFAT();
+		return true;
+	}
+
+	/**
+	 * Only files whose sectors no one else holds on to can be moved: not mapped files,
+	 * which may be running, nor the RMS or ring logs, which keep their own references to
+	 * their sectors, nor the file holding the erase counts.
+	 */
+	private boolean canMove(FlashFileDescriptor descriptor) {
+		return wearTable != null &&
+			!descriptor.isAddressed() &&
+			!descriptor.getName().equals(NorFlashSectorAllocator.RMS_FILE_NAME) &&
+			!descriptor.getName().equals(SectorWearTable.FILE_NAME) &&
+			!descriptor.getComment().startsWith(FlashRingLog.COMMENT_PREFIX);
+	}
+
+	private void swapSector(FlashFileDescriptor descriptor, IAddressableNorFlashSector oldSector, IAddressableNorFlashSector newSector) {
+		freeSectorsRecord.removeSector(newSector);
+		descriptor.replaceSector(oldSector, newSector);
+		freeSectorsRecord.addSectors(new IAddressableNorFlashSector[] {oldSector});
+	}
+
+	private void commitMove() {
+		try {
+			writeFAT();
+		} catch (IOException e) {
+			throw new SpotFatalException("Unexpected IOException while moving sectors: " + e.getMessage());
+		}
+	}
+
+	public synchronized int getEraseCount(int sectorNumber) {
+		return wearTable == null ? 0 : wearTable.getEraseCount(sectorNumber);
+	}
+
 	public IFlashFileInfo[] getFileInfos() {
 		return getFileDescriptors();
 	}
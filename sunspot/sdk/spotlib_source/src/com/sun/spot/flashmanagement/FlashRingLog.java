@@ -0,0 +1,338 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.flashmanagement;
+
+import java.io.IOException;
+
+import com.sun.spot.util.CRC;
+import com.sun.spot.util.Utils;
+
+/**
+ * FlashRingLog is an append-only log of records kept in the sectors of a {@link FlashFile}, which
+ * are used in turn as a ring. When the last sector fills, writing carries on in the first, which
+ * is erased then, so the oldest records are lost a sector at a time. Appending never rewrites the
+ * FAT: the file is created once and afterwards only its sectors change.
+ * <br><br>
+ * Each record is given a sequence number, one more than the record before, and carries a CRC.
+ * A record is written in one go and is durable when {@link #append(byte[], int, int)} returns; one
+ * that was being written when power was lost fails its CRC and is ignored. Each sector starts
+ * with the sequence number of its first record, so reopening the log reads the start of each
+ * sector and then only scans the sector being written.
+ * <br><br>
+ * A {@link Reader} returns the records from a given sequence number onwards, so a log can be
+ * drained a little at a time: remember the sequence number of the last record that was dealt
+ * with and next time read from the one after it.
+ * <br><br>
+ * As for {@link FlashFile}, nothing stops two FlashRingLogs being opened over the same file in
+ * different isolates, and doing so will corrupt it.
+ */
+public class FlashRingLog {
+
+	/**
+	 * The start of the comment of a FlashFile that holds a FlashRingLog
+	 */
+	public static final String COMMENT_PREFIX = "ringlog ";
+
+	private static final int SECTOR_MAGIC = 0x52494E47; // "RING"
+	private static final int SECTOR_HEADER_SIZE = 12; // magic, log id, first sequence number
+	private static final int RECORD_HEADER_SIZE = 6; // length and sequence number
+	private static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + 2; // and CRC
+	private static final int ERASED_LENGTH = 0xFFFF;
+
+	private IAddressableNorFlashSector[] sectors;
+	private int logId;
+	private boolean[] inUse;
+	private int[] firstSequenceNumbers;
+	private int head;
+	private int writeOffset;
+	private boolean headDamaged;
+	private int nextSequenceNumber;
+	private byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+
+	/**
+	 * Open the log held in a FlashFile, creating the file if it does not exist.
+	 * @param name the name of the FlashFile
+	 * @param size the number of bytes to allocate if the file is created, which must come to at
+	 * least two sectors; ignored if the file exists
+	 * @throws IOException if the file exists but does not hold a FlashRingLog, or cannot be created
+	 */
+	public FlashRingLog(String name, int size) throws IOException {
+		FlashFile file = new FlashFile(name);
+		if (!file.exists()) {
+			create(file, size);
+		}
+		String comment = file.getComment();
+		if (!comment.startsWith(COMMENT_PREFIX)) {
+			throw new IOException(name + " is not a ring log");
+		}
+		try {
+			logId = Integer.parseInt(comment.substring(COMMENT_PREFIX.length()), 16);
+		} catch (NumberFormatException e) {
+			throw new IOException(name + " has a damaged ring log comment: " + comment);
+		}
+		sectors = file.getFileDescriptor().getSectors();
+		recover();
+	}
+
+	private static void create(FlashFile file, int size) throws IOException {
+		file.createNewFile(size);
+		if (file.getFileDescriptor().getSectors().length < 2) {
+			file.delete();
+			throw new IllegalArgumentException("A ring log needs at least two sectors, so " + size + " bytes is too small");
+		}
+		// the id tells this log's sectors from any left in them by an earlier file
+		int id = (int) System.currentTimeMillis() ^ file.getName().hashCode();
+		file.setComment(COMMENT_PREFIX + Integer.toHexString(id));
+		file.commit();
+	}
+
+	/**
+	 * Append a record to the log, erasing the oldest sector first if the current one is full.
+	 * @param data source of the record
+	 * @param offset offset in data of the record's first byte
+	 * @param length number of bytes in the record, at most {@link #getMaxRecordLength()}
+	 * @return the sequence number given to the record
+	 */
+	public synchronized int append(byte[] data, int offset, int length) {
+		if (length < 0 || length > getMaxRecordLength()) {
+			throw new IllegalArgumentException("Record length " + length + " is not between 0 and " + getMaxRecordLength());
+		}
+		int recordSize = recordSize(length);
+		if (headDamaged || writeOffset + recordSize > sectors[head].getSize()) {
+			startSector((head + 1) % sectors.length);
+		}
+		byte[] record = new byte[recordSize];
+		Utils.writeBigEndShort(record, 0, length);
+		Utils.writeBigEndInt(record, 2, nextSequenceNumber);
+		System.arraycopy(data, offset, record, RECORD_HEADER_SIZE, length);
+		int crc = CRC.update(CRC.INITIAL_CRC, record, 2, recordSize - 2 - 2);
+		Utils.writeBigEndShort(record, recordSize - 2, CRC.finish(crc));
+		sectors[head].setBytes(writeOffset, record, 0, recordSize);
+		writeOffset += recordSize;
+		return nextSequenceNumber++;
+	}
+
+	/**
+	 * @return the length of the longest record that can be appended
+	 */
+	public int getMaxRecordLength() {
+		// the length is a half-word and all ones means there is no record
+		return Math.min(ERASED_LENGTH - 1, (sectors[0].getSize() - SECTOR_HEADER_SIZE - RECORD_OVERHEAD) & ~1);
+	}
+
+	/**
+	 * @return the sequence number that the next record appended will have
+	 */
+	public synchronized int getNextSequenceNumber() {
+		return nextSequenceNumber;
+	}
+
+	/**
+	 * @return the sequence number of the oldest record that may still be in the log. There are no
+	 * records in the log if this is the same as {@link #getNextSequenceNumber()}.
+	 */
+	public synchronized int getOldestSequenceNumber() {
+		return firstSequenceNumbers[oldestSector()];
+	}
+
+	/**
+	 * Open a reader over the records in the log.
+	 * @param fromSequenceNumber the sequence number of the first record to return. If the record
+	 * has already been overwritten, reading starts with the oldest record still in the log.
+	 * @return a new reader
+	 */
+	public synchronized Reader openReader(int fromSequenceNumber) {
+		return new Reader(fromSequenceNumber);
+	}
+
+	/**
+	 * Reads records from a {@link FlashRingLog}, following the records that are appended after it
+	 * is opened. A reader that falls so far behind that its records are overwritten carries on
+	 * with the oldest record still in the log, which can be seen from its sequence numbers.
+	 */
+	public class Reader {
+		private int sector;
+		private int offset;
+		private int sectorFirstSequenceNumber;
+		private int sequenceNumber = -1;
+
+		Reader(int fromSequenceNumber) {
+			seek(fromSequenceNumber);
+		}
+
+		/**
+		 * @return the next record, or null if there are no more records in the log yet
+		 */
+		public byte[] next() {
+			synchronized (FlashRingLog.this) {
+				if (!inUse[sector] || firstSequenceNumbers[sector] != sectorFirstSequenceNumber) {
+					// the sector has been erased and reused under us
+					seek(getOldestSequenceNumber());
+				}
+				while (true) {
+					if (sector == head && offset >= writeOffset) {
+						return null;
+					}
+					byte[] record = readRecord(sector, offset, -1);
+					if (record != null) {
+						offset += recordSize(record.length);
+						sequenceNumber = Utils.readBigEndInt(recordHeader, 2);
+						return record;
+					}
+					if (sector == head) {
+						return null;
+					}
+					moveToSector((sector + 1) % sectors.length);
+				}
+			}
+		}
+
+		/**
+		 * @return the sequence number of the record last returned by {@link #next()}, or -1 if none has been
+		 */
+		public int getSequenceNumber() {
+			return sequenceNumber;
+		}
+
+		private void seek(int fromSequenceNumber) {
+			// start in the newest sector that begins at or before the record wanted
+			int oldest = oldestSector();
+			moveToSector(oldest);
+			for (int i = 1; i < sectors.length; i++) {
+				int s = (oldest + i) % sectors.length;
+				if (inUse[s] && firstSequenceNumbers[s] <= fromSequenceNumber) {
+					moveToSector(s);
+				}
+			}
+			// then skip the records before it
+			int skip = Math.max(0, fromSequenceNumber - sectorFirstSequenceNumber);
+			while (skip-- > 0 && !(sector == head && offset >= writeOffset)) {
+				byte[] record = readRecord(sector, offset, -1);
+				if (record == null) {
+					break;
+				}
+				offset += recordSize(record.length);
+			}
+		}
+
+		private void moveToSector(int s) {
+			sector = s;
+			offset = SECTOR_HEADER_SIZE;
+			sectorFirstSequenceNumber = firstSequenceNumbers[s];
+		}
+	}
+
+	private void recover() {
+		inUse = new boolean[sectors.length];
+		firstSequenceNumbers = new int[sectors.length];
+		byte[] header = new byte[SECTOR_HEADER_SIZE];
+		int newest = -1;
+		for (int i = 0; i < sectors.length; i++) {
+			sectors[i].getBytes(0, header, 0, SECTOR_HEADER_SIZE);
+			if (Utils.readBigEndInt(header, 0) == SECTOR_MAGIC && Utils.readBigEndInt(header, 4) == logId) {
+				inUse[i] = true;
+				firstSequenceNumbers[i] = Utils.readBigEndInt(header, 8);
+				if (newest == -1 || firstSequenceNumbers[i] > firstSequenceNumbers[newest]) {
+					newest = i;
+				}
+			}
+		}
+		if (newest == -1) {
+			nextSequenceNumber = 0;
+			startSector(0);
+			return;
+		}
+		head = newest;
+		writeOffset = SECTOR_HEADER_SIZE;
+		nextSequenceNumber = firstSequenceNumbers[head];
+		byte[] record;
+		while ((record = readRecord(head, writeOffset, nextSequenceNumber)) != null) {
+			writeOffset += recordSize(record.length);
+			nextSequenceNumber++;
+		}
+		headDamaged = (Utils.readBigEndShort(recordHeader, 0) & 0xFFFF) != ERASED_LENGTH;
+		if (headDamaged) {
+			// a record was cut short: its space cannot be reused, nor its number
+			nextSequenceNumber++;
+		}
+	}
+
+	private void startSector(int sector) {
+		sectors[sector].erase();
+		byte[] header = new byte[SECTOR_HEADER_SIZE];
+		Utils.writeBigEndInt(header, 0, SECTOR_MAGIC);
+		Utils.writeBigEndInt(header, 4, logId);
+		Utils.writeBigEndInt(header, 8, nextSequenceNumber);
+		sectors[sector].setBytes(0, header, 0, header.length);
+		inUse[sector] = true;
+		firstSequenceNumbers[sector] = nextSequenceNumber;
+		head = sector;
+		writeOffset = SECTOR_HEADER_SIZE;
+		headDamaged = false;
+	}
+
+	private int oldestSector() {
+		// the sectors after the head are the oldest, unless they have not been used yet
+		for (int i = 1; i <= sectors.length; i++) {
+			int s = (head + i) % sectors.length;
+			if (inUse[s]) {
+				return s;
+			}
+		}
+		return head;
+	}
+
+	/**
+	 * Read the record at an offset in a sector, leaving its header in {@link #recordHeader}.
+	 * @param expectedSequenceNumber the sequence number the record must have, or -1 for any
+	 * @return the record's data, or null if there is no intact record there
+	 */
+	private byte[] readRecord(int sector, int offset, int expectedSequenceNumber) {
+		IAddressableNorFlashSector s = sectors[sector];
+		if (offset + RECORD_HEADER_SIZE > s.getSize()) {
+			Utils.writeBigEndShort(recordHeader, 0, ERASED_LENGTH);
+			return null;
+		}
+		s.getBytes(offset, recordHeader, 0, RECORD_HEADER_SIZE);
+		int length = Utils.readBigEndShort(recordHeader, 0) & 0xFFFF;
+		if (length == ERASED_LENGTH || offset + recordSize(length) > s.getSize() ||
+				(expectedSequenceNumber != -1 && Utils.readBigEndInt(recordHeader, 2) != expectedSequenceNumber)) {
+			return null;
+		}
+		byte[] record = new byte[recordSize(length)];
+		s.getBytes(offset, record, 0, record.length);
+		int crc = CRC.update(CRC.INITIAL_CRC, record, 2, record.length - 2 - 2);
+		if (CRC.finish(crc) != (short) Utils.readBigEndShort(record, record.length - 2)) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(record, RECORD_HEADER_SIZE, data, 0, length);
+		return data;
+	}
+
+	private static int recordSize(int length) {
+		return RECORD_OVERHEAD + length + length % 2;
+	}
+}
@@ -34,11 +34,19 @@ import com.sun.squawk.peripheral.InsufficientFlashMemoryException;
 
 /**
  * FreeSectorsFATRecord
- *
+ * <br><br>
+ * Without a {@link SectorWearTable} sectors are handed out in the order they were freed. With one,
+ * single sectors are the least worn that are free, and a file is given the least worn run of
+ * consecutively numbered sectors that holds it, unless that run is more than
+ * {@link #EXTENT_WEAR_SLACK} erases more worn than the least worn sectors that would hold it,
+ * in which case it gets those.
  */
 class FreeSectorsList {
 
+	static final int EXTENT_WEAR_SLACK = 16;
+
 	private Vector freeSectors = new Vector();
+	private SectorWearTable wearTable;
 	
 	public FreeSectorsList(int lowestFreeSector, int highestFreeSector, INorFlashSectorFactory factory) {
 		freeSectors = new Vector();
@@ -68,26 +76,118 @@ class FreeSectorsList {
 		freeSectors.addElement(sector);
 	}
 
+	void setWearTable(SectorWearTable wearTable) {
+		this.wearTable = wearTable;
+	}
+
 	public Vector allocateSectors(String name, int size) throws InsufficientFlashMemoryException {
+		Vector sectors = (wearTable == null) ? takeInListOrder(size) : chooseSectors(size);
+		if (sectors == null) {
+			throw new InsufficientFlashMemoryException("Not enough space to create file " + name + " (wants " + size + ", " + getFreeSpace() + " available)");
+		}
+		Enumeration e = sectors.elements();
+		while (e.hasMoreElements()) {
+			freeSectors.removeElement(e.nextElement());
+		}
+		return sectors;
+	}
+
+	private Vector takeInListOrder(int size) {
 		Vector sectors = new Vector();
 		int sizeSoFar = 0;
 		int freeSectorIndex = 0;
 		while (sizeSoFar < size) {
-			if (freeSectorIndex < freeSectors.size()) {
-				IAddressableNorFlashSector s = (IAddressableNorFlashSector) freeSectors.elementAt(freeSectorIndex++);
-				sectors.addElement(s);
-				sizeSoFar += s.getSize();
-			} else {
-				throw new InsufficientFlashMemoryException("Not enough space to create file " + name + " (wants " + size + ", " + sizeSoFar + " available)");
+			if (freeSectorIndex == freeSectors.size()) {
+				return null;
 			}
+			IAddressableNorFlashSector s = (IAddressableNorFlashSector) freeSectors.elementAt(freeSectorIndex++);
+			sectors.addElement(s);
+			sizeSoFar += s.getSize();
 		}
-		Enumeration e = sectors.elements();
-		while (e.hasMoreElements()) {
-			freeSectors.removeElement(e.nextElement());
+		return sectors;
+	}
+
+	private Vector chooseSectors(int size) {
+		IAddressableNorFlashSector[] byWear = sortedCopy(true);
+		int sizeSoFar = 0;
+		int leastWornCount = 0;
+		while (sizeSoFar < size) {
+			if (leastWornCount == byWear.length) {
+				return null;
+			}
+			sizeSoFar += byWear[leastWornCount++].getSize();
+		}
+		int leastWornMaxWear = leastWornCount == 0 ? 0 : wearOf(byWear[leastWornCount-1]);
+
+		// find the run of consecutive sectors whose most worn sector is least worn
+		IAddressableNorFlashSector[] byNumber = sortedCopy(false);
+		int bestStart = -1;
+		int bestCount = 0;
+		int bestMaxWear = Integer.MAX_VALUE;
+		for (int start = 0; start < byNumber.length; start++) {
+			int runSize = 0;
+			int runMaxWear = 0;
+			int end = start;
+			while (end < byNumber.length && runSize < size &&
+					(end == start || byNumber[end].getSectorNumber() == byNumber[end-1].getSectorNumber() + 1)) {
+				runSize += byNumber[end].getSize();
+				runMaxWear = Math.max(runMaxWear, wearOf(byNumber[end]));
+				end++;
+			}
+			if (runSize >= size && runMaxWear < bestMaxWear) {
+				bestStart = start;
+				bestCount = end - start;
+				bestMaxWear = runMaxWear;
+			}
+		}
+
+		Vector sectors = new Vector();
+		if (bestStart != -1 && bestMaxWear <= leastWornMaxWear + EXTENT_WEAR_SLACK) {
+			for (int i = bestStart; i < bestStart + bestCount; i++) {
+				sectors.addElement(byNumber[i]);
+			}
+		} else {
+			// keep the file's sectors in ascending order even when they are scattered
+			for (int i = 0; i < byNumber.length; i++) {
+				for (int j = 0; j < leastWornCount; j++) {
+					if (byNumber[i] == byWear[j]) {
+						sectors.addElement(byNumber[i]);
+					}
+				}
+			}
 		}
 		return sectors;
 	}
 
+	private IAddressableNorFlashSector[] sortedCopy(boolean byWear) {
+		IAddressableNorFlashSector[] result = new IAddressableNorFlashSector[freeSectors.size()];
+		freeSectors.copyInto(result);
+		// insertion sort: stable, so equally worn sectors stay in the order they were freed
+		for (int i = 1; i < result.length; i++) {
+			IAddressableNorFlashSector s = result[i];
+			int key = byWear ? wearOf(s) : s.getSectorNumber();
+			int j = i - 1;
+			while (j >= 0 && (byWear ? wearOf(result[j]) : result[j].getSectorNumber()) > key) {
+				result[j+1] = result[j];
+				j--;
+			}
+			result[j+1] = s;
+		}
+		return result;
+	}
+
+	private int wearOf(IAddressableNorFlashSector sector) {
+		return wearTable.getEraseCount(sector.getSectorNumber());
+	}
+
+	private int getFreeSpace() {
+		int result = 0;
+		for (int i = 0; i < freeSectors.size(); i++) {
+			result += ((IAddressableNorFlashSector)freeSectors.elementAt(i)).getSize();
+		}
+		return result;
+	}
+
 	// For test only
 	public Vector getFreeSectors() {
 		return freeSectors;
@@ -97,11 +197,41 @@ class FreeSectorsList {
 		if (freeSectors.isEmpty()) {
 			throw new InsufficientFlashMemoryException("Not enough space to allocate sector for " + name);
 		}
-		IAddressableNorFlashSector sector = (IAddressableNorFlashSector) freeSectors.elementAt(0);
-		freeSectors.removeElementAt(0);
+		IAddressableNorFlashSector sector = getLeastWornSector();
+		freeSectors.removeElement(sector);
 		return sector;
 	}
 
+	/**
+	 * @return the free sector that has been erased least, or null if there are none
+	 */
+	IAddressableNorFlashSector getLeastWornSector() {
+		return findByWear(false);
+	}
+
+	/**
+	 * @return the free sector that has been erased most, or null if there are none
+	 */
+	IAddressableNorFlashSector getMostWornSector() {
+		return findByWear(true);
+	}
+
+	private IAddressableNorFlashSector findByWear(boolean most) {
+		IAddressableNorFlashSector result = null;
+		for (int i = 0; i < freeSectors.size(); i++) {
+			IAddressableNorFlashSector s = (IAddressableNorFlashSector) freeSectors.elementAt(i);
+			if (result == null || (wearTable != null &&
+					(most ? wearOf(s) > wearOf(result) : wearOf(s) < wearOf(result)))) {
+				result = s;
+			}
+		}
+		return result;
+	}
+
+	void removeSector(IAddressableNorFlashSector sector) {
+		freeSectors.removeElement(sector);
+	}
+
 	public int[] getFreeSectorIndices() {
 		int[] result = new int[freeSectors.size()];
 		for (int i = 0; i < result.length; i++) {
@@ -42,5 +42,11 @@ public interface IFAT {
 	 * that are not currently allocated to a specific {@link FlashFile}
 	 */
 	int[] getFreeSectorIndices();
+
+	/**
+	 * @param sectorNumber the unique number associated with a sector
+	 * @return the number of times that the sector is known to have been erased
+	 */
+	int getEraseCount(int sectorNumber);
 }
 
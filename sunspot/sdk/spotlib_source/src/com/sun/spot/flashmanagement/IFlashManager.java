@@ -51,5 +51,9 @@ interface IFlashManager extends IFAT {
 	boolean rename(FlashFileDescriptor fileDescriptor, String name) throws IOException;
 
 	FlashFileDescriptor getFileDescriptorFor(String name) throws FlashFileNotFoundException;
+
+	void relocateForRewrite(FlashFileDescriptor fileDescriptor);
+
+	boolean levelWear() throws IOException;
 }
 
@@ -37,7 +37,7 @@ import com.sun.squawk.peripheral.InsufficientFlashMemoryException;
  */
 public class NorFlashSectorAllocator implements INorFlashSectorAllocator {
 
-	private static final String RMS_FILE_NAME = "rms";
+	static final String RMS_FILE_NAME = "rms";
 
 	/**
 	 * @see com.sun.squawk.peripheral.INorFlashSectorAllocator#getExtraSector(int)
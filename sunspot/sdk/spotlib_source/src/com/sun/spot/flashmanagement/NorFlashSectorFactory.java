@@ -29,18 +29,33 @@ import com.sun.spot.peripheral.NorFlashSector;
 
 /**
  * NorFlashSectorFactory
- *
+ * <br><br>
+ * Once it has been given a {@link SectorWearTable}, every erase of a sector it has created is
+ * counted there, whichever isolate or library does the erase.
  */
 class NorFlashSectorFactory implements INorFlashSectorFactory {
 
 	private IFlashMemoryDevice device;
+	private SectorWearTable wearTable;
 
 	public NorFlashSectorFactory(IFlashMemoryDevice device) {
 		this.device = device;
 	}
 
 	public IAddressableNorFlashSector create(int sectorNumber, int purpose) {
-		return new NorFlashSector(device, sectorNumber, purpose);
+		return new NorFlashSector(device, sectorNumber, purpose) {
+			public void erase() {
+				super.erase();
+				SectorWearTable table = wearTable;
+				if (table != null) {
+					table.sectorErased(getSectorNumber());
+				}
+			}
+		};
+	}
+
+	void setWearTable(SectorWearTable wearTable) {
+		this.wearTable = wearTable;
 	}
 
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2007-2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.flashmanagement;
+
+import com.sun.spot.util.Utils;
+
+/**
+ * SectorWearTable counts the erases of each sector of the flash memory, so that the allocator
+ * can spread erases across the filing system instead of wearing out the sectors it happens to
+ * find first.
+ * <br><br>
+ * The counts are kept in the one sector of the file {@link #FILE_NAME}. Rewriting that sector for
+ * every erase would wear it out first, so it holds a snapshot of all the counts followed by a log
+ * of the numbers of the sectors erased since, one half-word each, written into the erased space
+ * without erasing it. When the log fills the sector is erased and a new snapshot written. If the
+ * file is lost or unreadable the counts start again from zero, which only makes allocation less
+ * even for a while.
+ */
+class SectorWearTable {
+
+	/**
+	 * The name of the file that holds the counts
+	 */
+	static final String FILE_NAME = "sector-wear";
+
+	private static final int MAGIC = 0x57454152; // "WEAR"
+	private static final int HEADER_SIZE = 6; // magic and count of counts
+	private static final int END_OF_LOG = 0xFFFF;
+	private static final int READ_CHUNK_SIZE = 512;
+
+	private int[] counts;
+	private IAddressableNorFlashSector logSector;
+	private int logOffset;
+	private byte[] halfWord = new byte[2];
+
+	SectorWearTable(int highestSectorNumber) {
+		counts = new int[highestSectorNumber+1];
+	}
+
+	/**
+	 * @param sectorNumber the sector to ask about
+	 * @return the number of times the sector is known to have been erased
+	 */
+	synchronized int getEraseCount(int sectorNumber) {
+		return sectorNumber < counts.length ? counts[sectorNumber] : 0;
+	}
+
+	/**
+	 * Record an erase of a sector, and log it if the table is attached to its file.
+	 * @param sectorNumber the sector that has been erased
+	 */
+	synchronized void sectorErased(int sectorNumber) {
+		ensureCapacity(sectorNumber);
+		counts[sectorNumber]++;
+		if (logSector != null && sectorNumber != logSector.getSectorNumber()) {
+			appendToLog(sectorNumber);
+		}
+	}
+
+	/**
+	 * Start keeping the counts in a sector.
+	 * @param sector the sector of the file {@link #FILE_NAME}
+	 * @param load true to read the counts already in the sector, false if the sector is new
+	 */
+	synchronized void attach(IAddressableNorFlashSector sector, boolean load) {
+		logSector = sector;
+		if (!load || !load()) {
+			writeSnapshot();
+		}
+	}
+
+	/**
+	 * Stop keeping the counts in the sector, for example because its file is being deleted.
+	 * The counts in memory are kept.
+	 */
+	synchronized void detach() {
+		logSector = null;
+	}
+
+	synchronized boolean isAttachedTo(IAddressableNorFlashSector sector) {
+		return logSector != null && logSector.getSectorNumber() == sector.getSectorNumber();
+	}
+
+	private boolean load() {
+		byte[] chunk = new byte[READ_CHUNK_SIZE];
+		logSector.getBytes(0, chunk, 0, HEADER_SIZE);
+		int countOfCounts = Utils.readBigEndShort(chunk, 4) & 0xFFFF;
+		int logStart = HEADER_SIZE + countOfCounts*4;
+		if (Utils.readBigEndInt(chunk, 0) != MAGIC || logStart > logSector.getSize()) {
+			return false;
+		}
+		counts = new int[Math.max(counts.length, countOfCounts)];
+		// read the snapshot and the log in chunks rather than allocating the whole sector
+		int offset = HEADER_SIZE;
+		int chunkStart = 0;
+		int chunkLength = 0;
+		while (offset < logSector.getSize()) {
+			if (offset >= chunkStart + chunkLength) {
+				chunkStart = offset;
+				chunkLength = Math.min(chunk.length, logSector.getSize() - offset);
+				logSector.getBytes(chunkStart, chunk, 0, chunkLength);
+			}
+			if (offset < logStart) {
+				counts[(offset - HEADER_SIZE) / 4] = Utils.readBigEndInt(chunk, offset - chunkStart);
+				offset += 4;
+			} else {
+				int sectorNumber = Utils.readBigEndShort(chunk, offset - chunkStart) & 0xFFFF;
+				if (sectorNumber == END_OF_LOG) {
+					break;
+				}
+				ensureCapacity(sectorNumber);
+				counts[sectorNumber]++;
+				offset += 2;
+			}
+		}
+		logOffset = offset;
+		return true;
+	}
+
+	private void appendToLog(int sectorNumber) {
+		if (logOffset + 2 > logSector.getSize()) {
+			writeSnapshot();
+			return;
+		}
+		Utils.writeBigEndShort(halfWord, 0, sectorNumber);
+		logSector.setBytes(logOffset, halfWord, 0, 2);
+		logOffset += 2;
+	}
+
+	private void writeSnapshot() {
+		// if the factory counts erases this records the erase of the log sector itself
+		logSector.erase();
+		byte[] snapshot = new byte[HEADER_SIZE + counts.length*4];
+		Utils.writeBigEndInt(snapshot, 0, MAGIC);
+		Utils.writeBigEndShort(snapshot, 4, counts.length);
+		for (int i = 0; i < counts.length; i++) {
+			Utils.writeBigEndInt(snapshot, HEADER_SIZE + i*4, counts[i]);
+		}
+		logSector.setBytes(0, snapshot, 0, snapshot.length);
+		logOffset = snapshot.length;
+	}
+
+	private void ensureCapacity(int sectorNumber) {
+		if (sectorNumber >= counts.length) {
+			int[] newCounts = new int[sectorNumber+1];
+			System.arraycopy(counts, 0, newCounts, 0, counts.length);
+			counts = newCounts;
+		}
+	}
+}
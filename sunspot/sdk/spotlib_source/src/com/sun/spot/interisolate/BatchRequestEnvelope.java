@@ -0,0 +1,59 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.interisolate;
+
+import com.sun.spot.peripheral.SpotFatalException;
+
+/**
+ * @see com.sun.spot.interisolate.InterIsolateServer for details
+ * 
+ * Carries several requests to the other isolate in one channel message. They are
+ * executed in order by one worker thread, and each sends its own reply; the batch
+ * itself gets none.
+ */
+class BatchRequestEnvelope extends RequestEnvelope {
+
+	private RequestEnvelope[] requests;
+
+	BatchRequestEnvelope(RequestEnvelope[] requests) {
+		this.requests = requests;
+	}
+
+	RequestEnvelope[] getRequests() {
+		return requests;
+	}
+
+	public int getPriority() {
+		int priority = Integer.MIN_VALUE;
+		for (int i = 0; i < requests.length; i++) {
+			priority = Math.max(priority, requests[i].getPriority());
+		}
+		return priority;
+	}
+
+	public ReplyEnvelope execute(Object context) throws Exception {
+		throw new SpotFatalException("A BatchRequestEnvelope is not executed itself");
+	}
+}
@@ -84,6 +84,16 @@ import com.sun.squawk.io.mailboxes.ServerChannel;
  * the int example above. Exceptions are caught and propagated back to the proxy.
  * <br /><br />
  * 
+ * A proxy that has several requests ready can send them without waiting using
+ * RequestSender.sendAsync(), or in one message using RequestSender.sendAll(), and collect
+ * the replies later with RequestEnvelope.waitForReply(). The RequestSender records the
+ * latency of each request for its channel.
+ * <br /><br />
+ * Each request is executed by a worker thread. By default a new worker is made whenever
+ * none is free, which suits contexts whose requests may block indefinitely, such as a
+ * radio receive. A server can instead be given a limit on the workers per proxy, in which
+ * case requests wait in a queue, ordered by RequestEnvelope.getPriority(), until a worker is free.
+ * <br /><br />
  * This class defines a thread that listens on the ServerChannel
  */
 public class InterIsolateServer {
@@ -92,19 +102,31 @@ public class InterIsolateServer {
 	private String channelName;
 	private Object context;
 	private int threadPriority;
+	private int maxWorkers;
 
 	public static void run(String channelName, Object context) {
 		run(channelName, context, Thread.currentThread().getPriority());
 	}
 
 	public static void run(String channelName, Object context, int threadPriority) {
-		new InterIsolateServer(channelName, context, threadPriority);
+		run(channelName, context, threadPriority, 0);
+	}
+
+	/**
+	 * @param channelName the name of the server channel
+	 * @param context the object that executes the requests
+	 * @param threadPriority the system priority of the server's threads, including its workers
+	 * @param maxWorkers the most worker threads for each proxy channel, or 0 for no limit
+	 */
+	public static void run(String channelName, Object context, int threadPriority, int maxWorkers) {
+		new InterIsolateServer(channelName, context, threadPriority, maxWorkers);
 	}
 	
-	private InterIsolateServer(String channelName, Object context, int priority) {
+	private InterIsolateServer(String channelName, Object context, int priority, int maxWorkers) {
 		this.channelName = channelName;
 		this.context = context;
 		this.threadPriority = priority;
+		this.maxWorkers = maxWorkers;
 		try {
 			restart();
 		} catch (MailboxInUseException e) {
@@ -115,7 +137,7 @@ public class InterIsolateServer {
 
 	private void restart() throws MailboxInUseException {
 		ServerChannel serverChannel = ServerChannel.create(channelName);
-		masterThread = new ServerThread(serverChannel, context, threadPriority);
+		masterThread = new ServerThread(serverChannel, context, threadPriority, maxWorkers);
 		VM.setAsDaemonThread(masterThread);
 		VM.setSystemThreadPriority(masterThread, threadPriority);
 		masterThread.start();
@@ -38,6 +38,8 @@ public abstract class RequestEnvelope extends Envelope {
 
 	private static int lastUid = 0;
 	private ReplyEnvelope reply;
+	private boolean replied = false;
+	private long sendTime;
 	private int uid = ++lastUid;
 
 	public Object getContents() {
@@ -51,24 +53,93 @@ public abstract class RequestEnvelope extends Envelope {
 	 */
 	public abstract ReplyEnvelope execute(Object context) throws Exception;
 
+	/**
+	 * The priority of the request in the queue of a server whose worker threads are all busy:
+	 * requests with a higher priority are executed first. The default is 0.
+	 * 
+	 * @return the priority of this request
+	 */
+	public int getPriority() {
+		return 0;
+	}
+
 	/**
 	 * Send the request off to the other isolate, where it will get executed.
 	 * 
 	 * @param channel
 	 * @return the ReplyEnvelope representing the result of the remote execute.
 	 */
-	synchronized ReplyEnvelope sendOn(Channel channel) {
+	ReplyEnvelope sendOn(Channel channel) {
+		postOn(channel);
+		return waitForReply();
+	}
+
+	/**
+	 * Send the request off to the other isolate without waiting for the reply.
+	 * 
+	 * @param channel
+	 */
+	void postOn(Channel channel) {
+		markSent();
 		try {
 			channel.send(this);
+		} catch (AddressClosedException e) {
+			throw new RuntimeException("AddressClosedException: " + e.getMessage());
+		}
+	}
+
+	void markSent() {
+		sendTime = System.currentTimeMillis();
+	}
+
+	long getSendTime() {
+		return sendTime;
+	}
+
+	/**
+	 * Wait for the reply to a request sent with {@link RequestSender#sendAsync(RequestEnvelope)}
+	 * or {@link RequestSender#sendAll(RequestEnvelope[])}.
+	 * 
+	 * @return the ReplyEnvelope representing the result of the remote execute, or null if interrupted
+	 */
+	public synchronized ReplyEnvelope waitForReply() {
+		while (!replied) {
 			try {
 				wait();
 			} catch (InterruptedException e) {
 				e.printStackTrace();
+				break;
 			}
-			return reply;
-		} catch (AddressClosedException e) {
-			throw new RuntimeException("AddressClosedException: " + e.getMessage());
 		}
+		return reply;
+	}
+
+	/**
+	 * Wait a limited time for the reply to a request sent with {@link RequestSender#sendAsync(RequestEnvelope)}
+	 * or {@link RequestSender#sendAll(RequestEnvelope[])}.
+	 * 
+	 * @param timeout the longest time to wait in milliseconds
+	 * @return the ReplyEnvelope representing the result of the remote execute, or null if there is none yet
+	 */
+	public synchronized ReplyEnvelope waitForReply(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (!replied && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return reply;
+	}
+
+	/**
+	 * @return true if the reply to this request has arrived
+	 */
+	public synchronized boolean isDone() {
+		return replied;
 	}
 
 	/**
@@ -77,7 +148,8 @@ public abstract class RequestEnvelope extends Envelope {
 	 */
 	synchronized void setReply(ReplyEnvelope reply) {
 		this.reply = reply;
-		notify();
+		replied = true;
+		notifyAll();
 	}
 
 	public int getUid() {
@@ -24,6 +24,8 @@
 
 package com.sun.spot.interisolate;
 
+import java.util.Vector;
+
 import com.sun.spot.util.Queue;
 import com.sun.spot.util.Utils;
 import com.sun.squawk.VM;
@@ -31,16 +33,26 @@ import com.sun.squawk.io.mailboxes.AddressClosedException;
 import com.sun.squawk.io.mailboxes.Channel;
 import com.sun.squawk.io.mailboxes.MailboxClosedException;
 
+/**
+ * Reads requests from a channel and hands each to a worker thread. Idle workers are reused,
+ * and new ones are made while there are fewer than the server's limit. When the limit is
+ * reached requests wait in a queue, highest {@link RequestEnvelope#getPriority()} first, for the
+ * next worker to finish.
+ */
 class RequestReceiver implements Runnable {
 	private Channel channel;
 	private Object context;
 	private String serverChannelName;
+	private int maxWorkers;
+	private int workerCount = 0;
 	private Queue availableThreads = new Queue();
+	private Vector queuedRequests = new Vector();
 	
-	public RequestReceiver(Channel channel, Object context, String serverChannelName) {
+	public RequestReceiver(Channel channel, Object context, String serverChannelName, int maxWorkers) {
 		this.channel = channel;
 		this.context = context;
 		this.serverChannelName = serverChannelName;
+		this.maxWorkers = maxWorkers;
 	}
 
 	public void run() {
@@ -48,7 +60,7 @@ class RequestReceiver implements Runnable {
 			while (true) {
 				final RequestEnvelope request = (RequestEnvelope) channel.receive();
 //				Utils.log("[RequestReceiver] received " + request.getClass().getName() + " uid " + request.getUid());
-				getNextWorkerThread().processRequest(request);				
+				dispatch(request);
 			}
 		} catch (AddressClosedException e) {
 			Utils.log("AddressClosedException in worker thread for server channel "+serverChannelName);
@@ -60,36 +72,64 @@ class RequestReceiver implements Runnable {
 	}
 
 	/*
-	 * Synchronise this methods with addAvailableWorkerThread, in case a worker thread is busily processing
+	 * Synchronise this methods with workerAvailable, in case a worker thread is busily processing
 	 * and attempts to rejoin the queue after we've emptied it and before we null the field.
 	 */
 	synchronized private void terminateWorkerThreads() {
 		while (!availableThreads.isEmpty()) {
-			WorkerThread thread = getNextWorkerThread();
+			WorkerThread thread = (WorkerThread)availableThreads.get(0);
 			thread.processRequest(null);
 		}
 		availableThreads = null;
+		queuedRequests.removeAllElements();
 	}
 
-	synchronized public void addAvailableWorkerThread(WorkerThread thread) {
+	/**
+	 * Called by a worker thread that has finished a request.
+	 * @return a queued request for it to do next, or null if it has been made available instead
+	 */
+	synchronized RequestEnvelope workerAvailable(WorkerThread thread) {
+		if (!queuedRequests.isEmpty()) {
+			RequestEnvelope request = (RequestEnvelope) queuedRequests.elementAt(0);
+			queuedRequests.removeElementAt(0);
+			return request;
+		}
 		if (availableThreads != null) {
 			availableThreads.put(thread);
 		}
+		return null;
 	}
 
-	private WorkerThread getNextWorkerThread() {
-		WorkerThread t = (WorkerThread)availableThreads.get(0);
+	private void dispatch(RequestEnvelope request) {
+		WorkerThread t;
+		synchronized (this) {
+			t = (WorkerThread)availableThreads.get(0);
+			if (t == null) {
+				if (maxWorkers > 0 && workerCount >= maxWorkers) {
+					enqueue(request);
+					return;
+				}
+				workerCount++;
+			}
+		}
 		if (t == null) {
 //			Utils.log("[RequestReceiver] making new worker thread");
-			Thread thread = new Thread(new WorkerThread(this, channel, context), "worker thread for " + serverChannelName);
+			Thread thread = new Thread(new WorkerThread(this, channel, context, request), "worker thread for " + serverChannelName);
 			VM.setAsDaemonThread(thread);
 			int priority = Thread.currentThread().getPriority();
 			VM.setSystemThreadPriority(thread, priority);
 			thread.start();
-			// the WorkerThread will put itself on the queue once it starts
-			// so we can safely call get() with no timeout
-			t = (WorkerThread)availableThreads.get();
+		} else {
+			// outside our lock, as the worker takes it when it finishes
+			t.processRequest(request);
+		}
+	}
+
+	private void enqueue(RequestEnvelope request) {
+		int i = queuedRequests.size();
+		while (i > 0 && ((RequestEnvelope) queuedRequests.elementAt(i-1)).getPriority() < request.getPriority()) {
+			i--;
 		}
-		return t;
+		queuedRequests.insertElementAt(request, i);
 	}
 }
@@ -39,7 +39,11 @@ import com.sun.squawk.util.IntHashtable;
 /**
  * @see com.sun.spot.interisolate.InterIsolateServer for details
  * 
- * Sends RPC requests and handles replies.
+ * Sends RPC requests and handles replies. {@link #send(RequestEnvelope)} waits for the reply;
+ * {@link #sendAsync(RequestEnvelope)} returns at once, and the request is then a future whose
+ * reply can be collected with {@link RequestEnvelope#waitForReply()}. {@link #sendAll(RequestEnvelope[])}
+ * sends several small requests in one channel message. The round-trip time of each request is
+ * recorded, so the latency of a channel can be watched.
  */
 public class RequestSender {
 
@@ -48,6 +52,9 @@ public class RequestSender {
 	private IntHashtable outstandingRequests = new IntHashtable();
 	private String channelIdentifier;
 	private Thread receiveThread;
+	private int repliesReceived;
+	private long totalLatency;
+	private long maxLatency;
 
 	private class UnhibernateHook implements Isolate.LifecycleListener {
 		public void handleLifecycleListenerEvent(Isolate iso, int eventKind) {
@@ -102,8 +109,63 @@ public class RequestSender {
 	public ReplyEnvelope send(RequestEnvelope envelope) {
 //		Utils.log("[RequestSender] sending "  + envelope.getClass().getName() + " uid "+ envelope.getUid());
 		registerRequest(envelope);
-			return envelope.sendOn(channel);
-				}
+		return envelope.sendOn(channel);
+	}
+
+	/**
+	 * Send a request without waiting for its reply.
+	 * 
+	 * @param envelope the request
+	 * @return the request, whose {@link RequestEnvelope#waitForReply()} returns the reply
+	 */
+	public RequestEnvelope sendAsync(RequestEnvelope envelope) {
+		registerRequest(envelope);
+		envelope.postOn(channel);
+		return envelope;
+	}
+
+	/**
+	 * Send several requests in one channel message without waiting for their replies. They
+	 * are executed in order, one after the other, by the other isolate.
+	 * 
+	 * @param envelopes the requests
+	 * @return the requests, whose {@link RequestEnvelope#waitForReply()} methods return the replies
+	 */
+	public RequestEnvelope[] sendAll(RequestEnvelope[] envelopes) {
+		for (int i = 0; i < envelopes.length; i++) {
+			registerRequest(envelopes[i]);
+			envelopes[i].markSent();
+		}
+		new BatchRequestEnvelope(envelopes).postOn(channel);
+		return envelopes;
+	}
+
+	/**
+	 * @return the number of replies received on this channel since the statistics were last reset
+	 */
+	public synchronized int getRepliesReceived() {
+		return repliesReceived;
+	}
+
+	/**
+	 * @return the mean time in milliseconds from sending a request to receiving its reply, or 0 if there have been none
+	 */
+	public synchronized long getAverageLatency() {
+		return repliesReceived == 0 ? 0 : totalLatency / repliesReceived;
+	}
+
+	/**
+	 * @return the longest time in milliseconds from sending a request to receiving its reply
+	 */
+	public synchronized long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public synchronized void resetStatistics() {
+		repliesReceived = 0;
+		totalLatency = 0;
+		maxLatency = 0;
+	}
 
 	public boolean isOpen() {
 		return channel.isOpen();
@@ -114,7 +176,14 @@ public class RequestSender {
 	}
 	
 	private synchronized RequestEnvelope findRequest(ReplyEnvelope reply) {
-		return (RequestEnvelope)outstandingRequests.remove(reply.getUid());
+		RequestEnvelope request = (RequestEnvelope)outstandingRequests.remove(reply.getUid());
+		if (request != null) {
+			long latency = System.currentTimeMillis() - request.getSendTime();
+			repliesReceived++;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+		}
+		return request;
 	}
 	
 	private class ProxyReceiveThread implements Runnable {
@@ -34,12 +34,14 @@ class ServerThread extends Thread {
 	private ServerChannel serverChannel;
 	private Object context;
 	private int threadPriority;
+	private int maxWorkers;
 	
-	public ServerThread(ServerChannel channel, Object context, int threadPriority) {
+	public ServerThread(ServerChannel channel, Object context, int threadPriority, int maxWorkers) {
 		super("ServerThread for " + channel.getName());
 		this.serverChannel = channel;
 		this.context = context;
 		this.threadPriority = threadPriority;
+		this.maxWorkers = maxWorkers;
 	}
 
 	public void run() {
@@ -58,7 +60,7 @@ class ServerThread extends Thread {
 	}
 	
 	private void runRequestReceiverThreadFor(Channel channel) {
-		RequestReceiver requestReceiver = new RequestReceiver(channel, context, serverChannel.getName());
+		RequestReceiver requestReceiver = new RequestReceiver(channel, context, serverChannel.getName(), maxWorkers);
 		Thread t = new Thread(requestReceiver, serverChannel.getName());
 		VM.setAsDaemonThread(t);
 		VM.setSystemThreadPriority(t, threadPriority);
@@ -35,15 +35,18 @@ class WorkerThread implements Runnable {
 	private final Object context;
 	private final RequestReceiver owner;
 
-	public WorkerThread(RequestReceiver owner, Channel channel, Object context) {
+	public WorkerThread(RequestReceiver owner, Channel channel, Object context, RequestEnvelope firstRequest) {
 		this.channel = channel;
 		this.context = context;
 		this.owner = owner;
+		this.request = firstRequest;
 	}
 
 	public void run() {
 		while (true) {
-			waitForRequest();
+			if (request == null) {
+				waitForRequest();
+			}
             if (!channel.isOpen()) {
                 break;
             }
@@ -52,12 +55,20 @@ class WorkerThread implements Runnable {
                 break;
             }
 			try {
-				ReplyEnvelope response = executeRequest(request);
-//				Utils.log("[RequestReceiver] sending "  + response.getClass().getName() + " uid " + response.getUid());
-				channel.send(response);
+				if (request instanceof BatchRequestEnvelope) {
+					RequestEnvelope[] requests = ((BatchRequestEnvelope) request).getRequests();
+					for (int i = 0; i < requests.length; i++) {
+						channel.send(executeRequest(requests[i]));
+					}
+				} else {
+					ReplyEnvelope response = executeRequest(request);
+//					Utils.log("[RequestReceiver] sending "  + response.getClass().getName() + " uid " + response.getUid());
+					channel.send(response);
+				}
 			} catch (AddressClosedException e) {
 //				Utils.log("AddressClosedException in worker thread "+Thread.currentThread().getName());
 			}
+			request = null;
 		}
 	}
 
@@ -67,8 +78,8 @@ class WorkerThread implements Runnable {
 	}
 	
 	private synchronized void waitForRequest() {
-		owner.addAvailableWorkerThread(this);
-		if (channel.isOpen()) {
+		request = owner.workerAvailable(this);
+		if (request == null && channel.isOpen()) {
 			try {
 				wait();
 			} catch (InterruptedException e) {
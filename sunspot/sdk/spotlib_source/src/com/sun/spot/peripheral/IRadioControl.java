@@ -33,6 +33,14 @@ public interface IRadioControl {
 	 * @param selection the policy required
 	 */
 	void setRadioPolicy(RadioPolicy selection);
+
+	/**
+	 * Set how much extra delay this connection can accept in receiving packets, so that with
+	 * low-power listening on the receiver can be duty-cycled.
+	 * @see com.sun.spot.peripheral.radio.IRadioPolicyManager#setLatencyBudget(com.sun.spot.peripheral.radio.IConnectionID, int)
+	 * @param millis the latency budget in milliseconds, or -1 for none
+	 */
+	void setLatencyBudget(int millis);
 	
 	/**
 	 * Answer the port number for this connection
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.basestation;
+
+import com.sun.spot.util.Utils;
+
+/**
+ * Reads or writes big endian values in a byte array, moving along as it goes. Each
+ * {@link MACCommand} has its own cursor, which it points at the serial buffers with
+ * {@link #at(byte[], int)}, so reading parameters and writing results allocates nothing.
+ */
+public class CommandCursor {
+	private byte[] buffer;
+	private int offset;
+
+	/**
+	 * Point this cursor at a buffer.
+	 * 
+	 * @param buffer the buffer to read or write
+	 * @param offset where to start
+	 * @return this cursor
+	 */
+	public CommandCursor at(byte[] buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * @return the buffer, for commands that copy blocks of data directly
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the offset of the next byte to read or write
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Move past bytes that have been read or written directly in the buffer.
+	 * 
+	 * @param count the number of bytes
+	 */
+	public void skip(int count) {
+		offset += count;
+	}
+
+	public byte readByte() {
+		return buffer[offset++];
+	}
+
+	public boolean readBoolean() {
+		return buffer[offset++] != 0;
+	}
+
+	public short readShort() {
+		short value = (short) Utils.readBigEndShort(buffer, offset);
+		offset += Utils.SIZE_OF_SHORT;
+		return value;
+	}
+
+	public int readInt() {
+		int value = Utils.readBigEndInt(buffer, offset);
+		offset += Utils.SIZE_OF_INT;
+		return value;
+	}
+
+	public long readLong() {
+		long value = Utils.readBigEndLong(buffer, offset);
+		offset += Utils.SIZE_OF_LONG;
+		return value;
+	}
+
+	public void writeByte(int value) {
+		buffer[offset++] = (byte) value;
+	}
+
+	public void writeBoolean(boolean value) {
+		buffer[offset++] = (byte) (value ? 1 : 0);
+	}
+
+	public void writeInt(int value) {
+		Utils.writeBigEndInt(buffer, offset, value);
+		offset += Utils.SIZE_OF_INT;
+	}
+
+	public void writeLong(long value) {
+		Utils.writeBigEndLong(buffer, offset, value);
+		offset += Utils.SIZE_OF_LONG;
+	}
+}
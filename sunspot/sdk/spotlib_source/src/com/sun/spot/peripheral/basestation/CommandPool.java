@@ -0,0 +1,111 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.basestation;
+
+import java.util.Stack;
+
+import com.sun.spot.peripheral.SpotFatalException;
+
+/**
+ * Hands out command objects by class indicator byte and takes them back once their
+ * result has been sent, so the base station reuses a few instances of each command
+ * instead of allocating one per message. Adding a command is one call to
+ * {@link #register(byte, Class, int)}.
+ */
+class CommandPool {
+
+	/**
+	 * the most idle instances of one command that are kept
+	 */
+	private static final int MAX_IDLE = 8;
+
+	private Class[] types = new Class[256];
+	private Stack[] idle = new Stack[256];
+	private MACCommand[] shared = new MACCommand[256];
+
+	/**
+	 * Register a command that is pooled.
+	 * 
+	 * @param indicator the command's class indicator byte
+	 * @param type the command's class, which must have a public no-arg constructor
+	 * @param preallocate how many instances to create now
+	 */
+	synchronized void register(byte indicator, Class type, int preallocate) {
+		int i = indicator & 0xFF;
+		types[i] = type;
+		idle[i] = new Stack();
+		for (int n = 0; n < preallocate; n++) {
+			idle[i].push(newInstance(type));
+		}
+	}
+
+	/**
+	 * Register a command of which one instance serves every request. Its
+	 * writeResultOnto method must be synchronized.
+	 * 
+	 * @param indicator the command's class indicator byte
+	 * @param command the instance
+	 */
+	synchronized void registerShared(byte indicator, MACCommand command) {
+		shared[indicator & 0xFF] = command;
+	}
+
+	/**
+	 * @param indicator a class indicator byte
+	 * @return a command ready to be populated
+	 */
+	synchronized MACCommand take(byte indicator) {
+		int i = indicator & 0xFF;
+		if (shared[i] != null) {
+			return shared[i];
+		}
+		if (types[i] == null) {
+			throw new SpotFatalException("Do not know a command indicated by " + indicator);
+		}
+		return idle[i].empty() ? newInstance(types[i]) : (MACCommand) idle[i].pop();
+	}
+
+	/**
+	 * Take back a command whose result has been sent.
+	 * 
+	 * @param command the command
+	 */
+	synchronized void give(MACCommand command) {
+		int i = command.classIndicatorByte() & 0xFF;
+		if (shared[i] == null && idle[i] != null && idle[i].size() < MAX_IDLE) {
+			idle[i].push(command);
+		}
+	}
+
+	private MACCommand newInstance(Class type) {
+		try {
+			return (MACCommand) type.newInstance();
+		} catch (InstantiationException e) {
+			throw new SpotFatalException("Cannot create " + type.getName() + ": " + e);
+		} catch (IllegalAccessException e) {
+			throw new SpotFatalException("Cannot create " + type.getName() + ": " + e);
+		}
+	}
+}
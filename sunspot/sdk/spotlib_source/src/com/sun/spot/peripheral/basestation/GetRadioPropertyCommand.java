@@ -30,7 +30,6 @@ import java.io.IOException;
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
 import com.sun.spot.peripheral.radio.IProprietaryMAC;
 import com.sun.spot.peripheral.radio.RadioFactory;
-import com.sun.spot.util.Utils;
 
 public class GetRadioPropertyCommand extends MACCommand {
 
@@ -49,8 +48,8 @@ public class GetRadioPropertyCommand extends MACCommand {
         dataOutputStream.writeInt(attribute);
     }
 
-    public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-        attribute = Utils.readBigEndInt(inputBuffer, startingOffset);
+    protected void readParametersFrom(CommandCursor in) throws IOException {
+        attribute = in.readInt();
     }
 
     protected void prepareResultOrExecute(I802_15_4_MAC mac) {
@@ -67,9 +66,8 @@ public class GetRadioPropertyCommand extends MACCommand {
         }
     }
 
-    protected int writePreparedResult(byte[] outputBuffer, int startingOffset) throws IOException {
-        Utils.writeBigEndLong(outputBuffer, startingOffset, preparedResult);
-        return 8;
+    protected void writePreparedResult(CommandCursor out) throws IOException {
+        out.writeLong(preparedResult);
     }
 
     protected Object readResultFrom(DataInputStream dataInputStream) throws IOException {
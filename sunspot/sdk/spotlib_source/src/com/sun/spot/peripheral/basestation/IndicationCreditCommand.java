@@ -0,0 +1,75 @@
+/*
+ * Copyright 2006-2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.basestation;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.sun.spot.peripheral.radio.I802_15_4_MAC;
+
+/**
+ * Sent by the host to have received packets pushed to it rather than asking
+ * for each one with an {@link MCPSDataIndicationCommand}.
+ * <p/>
+ * The base station sends one received packet for each credit granted, each as an
+ * {@link MCPSDataIndicationCommand} result tagged with the UID of the most recent
+ * IndicationCreditCommand. The reply to this command is always sent before any packet
+ * it pays for. Credits add up, so the host keeps the stream going by
+ * granting more as it consumes packets. Granting 0 credits stops the stream, although
+ * a packet already being sent may still arrive. Resetting the proxy also stops it.
+ */
+public class IndicationCreditCommand extends MACCommand {
+	private int credits;
+
+	public ICommand with(int credits) {
+		this.credits = credits;
+		return this;
+	}
+
+	protected void writeParametersOnto(DataOutputStream dataOutputStream) throws IOException {
+		dataOutputStream.writeInt(credits);
+	}
+
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		credits = in.readInt();
+	}
+
+	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
+		if (credits < 0) {
+			throw new IllegalArgumentException("Credits must not be negative: " + credits);
+		}
+	}
+
+	/**
+	 * @return the number of credits granted, or 0 to stop streaming
+	 */
+	public int getCredits() {
+		return credits;
+	}
+
+	protected byte classIndicatorByte() {
+		return IndicationCreditCommand;
+	}
+}
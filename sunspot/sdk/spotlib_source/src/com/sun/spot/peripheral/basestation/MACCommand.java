@@ -51,12 +51,22 @@ public abstract class MACCommand implements ICommand {
 	public static final byte MLMEStartCommand                 = 13;
 	public static final byte SetPLMETransmitPowerCommand      = 14;
 	public static final byte SetPLMEChannelCommand            = 15;
+	public static final byte SetSerialProtocolCommand         = 16;
+	public static final byte IndicationCreditCommand          = 17;
 	
 	public static final byte ResetProxyCommand                = 101;
 	public static final byte ExitCommand                      = 102;
 	
 
+	/**
+	 * results that most commands return, shared so that reading them allocates nothing
+	 */
+	private static final Integer[] SMALL_INTEGERS = new Integer[256];
+
 	private int uid;	
+	// separate cursors, as the indication command is populated and written on different threads
+	private final CommandCursor in = new CommandCursor();
+	private final CommandCursor out = new CommandCursor();
 
 	public final void writeOnto(DataOutputStream dataOutputStream) throws IOException {
 		dataOutputStream.writeByte(classIndicatorByte());
@@ -69,15 +79,25 @@ public abstract class MACCommand implements ICommand {
 		//default for no-arg commands
 	}
 
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
+	public final void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
+		readParametersFrom(in.at(inputBuffer, startingOffset));
+	}
+
+	/**
+	 * Read the parameters written by {@link #writeParametersOnto(DataOutputStream)}.
+	 * Commands are reused, so every field that depends on the request must be set here.
+	 */
+	protected void readParametersFrom(CommandCursor in) throws IOException {
 		//default for no-arg commands
 	}
 
 	public int writeResultOnto(byte[] outputBuffer, int startingOffset, I802_15_4_MAC mac) throws IOException {
 		try {
 			prepareResultOrExecute(mac);
-			outputBuffer[startingOffset] = SUCCESS;
-			return writePreparedResult(outputBuffer, startingOffset+1) + 1; // 1 for SUCCESS byte
+			out.at(outputBuffer, startingOffset);
+			out.writeByte(SUCCESS);
+			writePreparedResult(out);
+			return out.getOffset() - startingOffset;
 		} catch (Throwable ex) {
 			ex.printStackTrace();
 			outputBuffer[startingOffset] = FAILURE;
@@ -100,9 +120,8 @@ public abstract class MACCommand implements ICommand {
 
 	protected abstract void prepareResultOrExecute(I802_15_4_MAC mac) throws Throwable;
 	
-	protected int writePreparedResult(byte[] outputBuffer, int startingOffset) throws IOException {
+	protected void writePreparedResult(CommandCursor out) throws IOException {
 		//default for void commands
-		return 0;
 	}
 
 	public final Object resultFrom(DataInputStream dataInputStream, ICreateExceptions exceptionCreator) throws Throwable {
@@ -121,6 +140,22 @@ public abstract class MACCommand implements ICommand {
 		return null;
 	}
 	
+	/**
+	 * @param value an int result
+	 * @return the value as an Integer, shared if it is small
+	 */
+	protected static Integer integerFor(int value) {
+		if (value < 0 || value >= SMALL_INTEGERS.length) {
+			return new Integer(value);
+		}
+		Integer result = SMALL_INTEGERS[value];
+		if (result == null) {
+			result = new Integer(value);
+			SMALL_INTEGERS[value] = result;
+		}
+		return result;
+	}
+
 	public int getUID() {
 		return this.uid;
 	}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.basestation;
+
+import java.io.IOException;
+
+import com.sun.spot.peripheral.radio.I802_15_4_MAC;
+import com.sun.spot.peripheral.radio.SpotSerialPipe;
+import com.sun.spot.util.Queue;
+import com.sun.spot.util.Utils;
+
+/**
+ * Carries out MAC commands sent by the host over a serial link. Commands are
+ * handled by a pool of worker threads, so a slow command such as a data request
+ * that is retrying does not hold up the others, and results go back to the host
+ * tagged with the command's UID in whatever order they complete. Received
+ * packets are either sent in reply to {@link MCPSDataIndicationCommand}s or,
+ * once the host has sent an {@link IndicationCreditCommand}, pushed to the host
+ * as they arrive.
+ * <p/>
+ * Command objects come from a {@link CommandPool} and go back to it once their
+ * result has been sent, and parameters and results are read and written in place
+ * in the serial buffers, so carrying out a command normally allocates nothing.
+ * <p/>
+ * This class knows nothing of the SPOT it runs on, so the same server can be
+ * driven by the real MAC on a base station or by a simulated MAC on the host.
+ * Subclasses hook in through {@link #serverStarted()}, {@link #packetSent()} and
+ * {@link #packetReceived()}.
+ */
+public abstract class MACProxyServerBase implements IResettableServer {
+
+    private static final int NUMBER_OF_WORKER_THREADS = 4;
+    /**
+     * data requests created up front: enough for every worker to be sending one with
+     * as many again waiting in the queue
+     */
+    private static final int PREALLOCATED_DATA_REQUESTS = 2 * NUMBER_OF_WORKER_THREADS;
+
+    private Queue commandQueue = new Queue();
+    private SpotSerialPipe serialPipe;
+    private I802_15_4_MAC mac;
+    private byte[] inputBuffer = new byte[255];
+    private MCPSDataIndicationCommand dataIndicationCommand;
+    private int indicationCredits = 0;
+    private int indicationStreamUID;
+    private final Object creditLock = new Object();
+    private CommandPool commands = new CommandPool();
+
+    protected MACProxyServerBase(SpotSerialPipe serialPipe, I802_15_4_MAC mac) {
+        this.serialPipe = serialPipe;
+        this.mac = mac;
+        dataIndicationCommand = new MCPSDataIndicationCommand().with(mac);
+        registerCommands();
+    }
+
+    private void registerCommands() {
+        commands.register(MACCommand.GetNullPacketAfterAckWaitCommand, GetNullPacketAfterAckWaitCommand.class, 0);
+        commands.register(MACCommand.GetChannelAccessFailureCommand, GetChannelAccessFailureCommand.class, 0);
+        commands.register(MACCommand.GetNoAckCommand, GetNoAckCommand.class, 0);
+        commands.register(MACCommand.GetRadioPropertyCommand, GetRadioPropertyCommand.class, 0);
+        commands.register(MACCommand.GetWrongAckCommand, GetWrongAckCommand.class, 0);
+        commands.registerShared(MACCommand.MCPSDataIndicationCommand, dataIndicationCommand);
+        commands.register(MACCommand.MCPSDataRequestCommand, MCPSDataRequestCommand.class, PREALLOCATED_DATA_REQUESTS);
+        commands.register(MACCommand.MLMEGetCommand, MLMEGetCommand.class, 0);
+        commands.register(MACCommand.MLMEResetCommand, MLMEResetCommand.class, 0);
+        commands.register(MACCommand.MLMERxEnableCommand, MLMERxEnableCommand.class, 0);
+        commands.register(MACCommand.MLMESetCommand, MLMESetCommand.class, 0);
+        commands.register(MACCommand.MLMEStartCommand, MLMEStartCommand.class, 0);
+        commands.register(MACCommand.SetPLMETransmitPowerCommand, SetPLMETransmitPowerCommand.class, 0);
+        commands.register(MACCommand.SetSerialProtocolCommand, SetSerialProtocolCommand.class, 0);
+        commands.register(MACCommand.IndicationCreditCommand, IndicationCreditCommand.class, 0);
+        commands.registerShared(MACCommand.ResetProxyCommand, new ResetProxyCommand().with(this));
+        commands.register(MACCommand.ExitCommand, ExitCommand.class, 0);
+    }
+
+    public void run() {
+        for (int i = 0; i < NUMBER_OF_WORKER_THREADS; i++) {
+            new MACProxyWorkerThread().start();
+        }
+        new IndicationStreamThread().start();
+        serverStarted();
+
+        while (true) {
+            try {
+                commandQueue.put(receiveCommand());
+            } catch (Throwable t) {
+                System.err.println("[basestation] main thread failed with " + t);
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Called once the worker threads are running, just before the first command is read.
+     */
+    protected void serverStarted() {
+    }
+
+    /**
+     * Called after the result of each data request has been sent to the host.
+     */
+    protected void packetSent() {
+    }
+
+    /**
+     * Called after each received packet has been sent to the host.
+     */
+    protected void packetReceived() {
+    }
+
+    /**
+     * @return the MAC that commands are carried out on
+     */
+    protected I802_15_4_MAC getMAC() {
+        return mac;
+    }
+
+    private ICommand receiveCommand() throws IOException {
+        byte classIndicatorByte;
+        while (true) {
+            serialPipe.receive(inputBuffer);
+            classIndicatorByte = inputBuffer[Utils.SIZE_OF_INT]; // space for uid
+            if (serialPipe.getProtocolVersion() == SpotSerialPipe.LEGACY_PROTOCOL || serialPipe.wasLastFrameChecked()) {
+                break;
+            }
+            // an unchecked frame while batched is most likely line noise, unless the host
+            // has been restarted and is starting again in the legacy protocol
+            if (classIndicatorByte == MACCommand.ResetProxyCommand || classIndicatorByte == MACCommand.SetSerialProtocolCommand) {
+                serialPipe.setProtocolVersion(SpotSerialPipe.LEGACY_PROTOCOL);
+                break;
+            }
+        }
+
+        int uid = Utils.readBigEndInt(inputBuffer, 0);
+
+        ICommand command = commands.take(classIndicatorByte);
+        command.setUID(uid);
+        command.populateFrom(inputBuffer, Utils.SIZE_OF_INT + 1); // uid, plus 1 byte for the class indicator
+
+        return command;
+    }
+
+    /**
+     * Synchronize this method rather than SpotSerialPipe.send() for performance gain of around 20% (no, really)
+     */
+    private synchronized void serialPipeSend(byte[] outputBuffer, int length, ICommand command) {
+        serialPipe.send(outputBuffer, length);
+        if (command instanceof SetSerialProtocolCommand) {
+            // the reply went out in the old protocol; everything after it uses the new one
+            serialPipe.setProtocolVersion(((SetSerialProtocolCommand) command).getAgreedVersion());
+        } else if (command instanceof IndicationCreditCommand) {
+            // only now the reply has gone can packets tagged with this UID follow it
+            grantIndicationCredits(((IndicationCreditCommand) command).getCredits(), command.getUID());
+        }
+        if (commandQueue.isEmpty() && !(indicationCredits > 0 && dataIndicationCommand.isPacketWaiting())) {
+            // nothing else to send straight away so don't keep the host waiting for a fuller batch
+            serialPipe.flush();
+        }
+    }
+
+    private final class MACProxyWorkerThread extends Thread {
+
+        byte[] outputBuffer = new byte[255];
+
+        public MACProxyWorkerThread() {
+        }
+
+        public void run() {
+            while (true) {
+                ICommand command = null;
+                try {
+                    command = (ICommand) commandQueue.get();
+                    if (command != null) {
+                        Utils.writeBigEndInt(outputBuffer, SpotSerialPipe.PAYLOAD_OFFSET, command.getUID());
+                        int dataLength = command.writeResultOnto(outputBuffer, SpotSerialPipe.PAYLOAD_OFFSET + Utils.SIZE_OF_INT, mac);
+                        if (!resetting) {
+                            serialPipeSend(outputBuffer, dataLength + Utils.SIZE_OF_INT, command); //for the command uid
+                        }
+                        if (command instanceof MCPSDataRequestCommand) {
+                            packetSent();
+                        }
+                        if (command == dataIndicationCommand) {
+                            packetReceived();
+                        }
+                    } else {
+                        System.err.println("Ignoring null command");
+                    }
+                } catch (Throwable t) {
+                    System.err.println("[basestation] worker thread failed with " + t);
+                    t.printStackTrace();
+                }
+                if (command != null) {
+                    commands.give((MACCommand) command);
+                }
+            }
+        }
+    }
+
+    private void grantIndicationCredits(int credits, int uid) {
+        synchronized (creditLock) {
+            if (credits == 0) {
+                indicationCredits = 0;
+            } else if (credits > 0) {
+                indicationCredits += credits;
+                indicationStreamUID = uid;
+                creditLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the host has granted a credit, then use it.
+     *
+     * @return the UID to tag the next streamed packet with
+     */
+    private int takeIndicationCredit() throws InterruptedException {
+        synchronized (creditLock) {
+            while (indicationCredits <= 0) {
+                creditLock.wait();
+            }
+            indicationCredits--;
+            return indicationStreamUID;
+        }
+    }
+
+    /**
+     * Pushes received packets to the host while it has credit.
+     */
+    private final class IndicationStreamThread extends Thread {
+
+        byte[] outputBuffer = new byte[255];
+
+        public IndicationStreamThread() {
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    int uid = takeIndicationCredit();
+                    Utils.writeBigEndInt(outputBuffer, SpotSerialPipe.PAYLOAD_OFFSET, uid);
+                    int dataLength = dataIndicationCommand.writeResultOnto(outputBuffer, SpotSerialPipe.PAYLOAD_OFFSET + Utils.SIZE_OF_INT, mac);
+                    if (!resetting) {
+                        serialPipeSend(outputBuffer, dataLength + Utils.SIZE_OF_INT, dataIndicationCommand);
+                    }
+                    packetReceived();
+                } catch (Throwable t) {
+                    System.err.println("[basestation] indication stream thread failed with " + t);
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private boolean resetting = false;
+
+    public void reset(I802_15_4_MAC mac) throws IOException {
+        try {
+            resetting = true;
+            grantIndicationCredits(0, 0);
+            dataIndicationCommand.reset();
+            serialPipe.reset();
+            Utils.sleep(250); // allow worker threads to clean themselves up
+        } finally {
+            resetting = false;
+        }
+    }
+
+}
@@ -61,6 +61,21 @@ public class MCPSDataIndicationCommand extends MACCommand {
 		return this;
 	}
 
+	/**
+	 * The same instance serves every indication request, and the indication
+	 * stream, so only one thread at a time may take a packet and write it out.
+	 */
+	public synchronized int writeResultOnto(byte[] outputBuffer, int startingOffset, I802_15_4_MAC mac) throws IOException {
+		return super.writeResultOnto(outputBuffer, startingOffset, mac);
+	}
+
+	/**
+	 * @return true if a received packet is waiting to be sent to the host
+	 */
+	public boolean isPacketWaiting() {
+		return !incomingPackets.isEmpty();
+	}
+
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) throws InterruptedException {
 		radioPacket = (RadioPacket) incomingPackets.get();
 		int size = incomingPackets.size();
@@ -71,12 +86,15 @@ public class MCPSDataIndicationCommand extends MACCommand {
 		}			
 	}
 	
-	protected int writePreparedResult(byte[] outputBuffer, int startingOffset) throws IOException {
+	/**
+	 * Fixed layout, so the packet is copied straight into the serial buffer.
+	 */
+	protected void writePreparedResult(CommandCursor out) throws IOException {
 		if (radioPacket == null) {
 			System.err.println("[MCPSDataIndicationCommand] null packet");
-			return 0; // should be resetting if packet is null
+			// should be resetting if packet is null
 		} else {
-			return radioPacket.writeWithoutTimestampOnto(outputBuffer, startingOffset);
+			out.skip(radioPacket.writeWithoutTimestampOnto(out.getBuffer(), out.getOffset()));
 		}
 	}
 	
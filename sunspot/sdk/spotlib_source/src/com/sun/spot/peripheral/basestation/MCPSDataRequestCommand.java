@@ -30,7 +30,6 @@ import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
 import com.sun.spot.peripheral.radio.RadioPacket;
-import com.sun.spot.util.Utils;
 
 public class MCPSDataRequestCommand extends MACCommand {
 	private RadioPacket radioPacket = RadioPacket.getDataPacket();
@@ -45,21 +44,23 @@ public class MCPSDataRequestCommand extends MACCommand {
 		radioPacket.writeOnto(dataOutputStream);
 	}
 
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		radioPacket.readFrom(inputBuffer, startingOffset);
+	/**
+	 * Fixed layout, so the packet is copied straight out of the serial buffer.
+	 */
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		radioPacket.readFrom(in.getBuffer(), in.getOffset());
 	}
 	
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
 		preparedResult = mac.mcpsDataRequest(radioPacket);
 	}
 	
-	protected int writePreparedResult(byte[] outputBuffer, int startingOffset) throws IOException {
-		Utils.writeBigEndInt(outputBuffer, startingOffset, preparedResult);
-		return 4;
+	protected void writePreparedResult(CommandCursor out) throws IOException {
+		out.writeInt(preparedResult);
 	}
 	
 	protected Object readResultFrom(DataInputStream dataInputStream) throws IOException {
-		return new Integer(dataInputStream.readInt());
+		return integerFor(dataInputStream.readInt());
 	}
 	
 	protected byte classIndicatorByte() {
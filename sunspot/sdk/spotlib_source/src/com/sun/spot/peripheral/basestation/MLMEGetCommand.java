@@ -29,7 +29,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
-import com.sun.spot.util.Utils;
 
 public class MLMEGetCommand extends MACCommand {
 	private int attribute;
@@ -44,17 +43,16 @@ public class MLMEGetCommand extends MACCommand {
 		dataOutputStream.writeInt(attribute);
 	}
 
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		attribute = Utils.readBigEndInt(inputBuffer, startingOffset);
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		attribute = in.readInt();
 	}
 
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
 		preparedResult = mac.mlmeGet(attribute);
 	}
 
-	protected int writePreparedResult(byte[] outputBuffer, int startingOffset)  throws IOException {
-		Utils.writeBigEndLong(outputBuffer, startingOffset, preparedResult);
-		return 8;
+	protected void writePreparedResult(CommandCursor out) throws IOException {
+		out.writeLong(preparedResult);
 	}
 
 	protected Object readResultFrom(DataInputStream dataInputStream) throws IOException {
@@ -41,8 +41,8 @@ public class MLMEResetCommand extends MACCommand {
 		dataOutputStream.writeBoolean(resetAttribs);
 	}
 	
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		resetAttribs = inputBuffer[startingOffset] == 1;
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		resetAttribs = in.readByte() == 1;
 	}
 	
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
@@ -28,7 +28,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
-import com.sun.spot.util.Utils;
 
 public class MLMERxEnableCommand extends MACCommand {
 	private int rxOnDuration;
@@ -42,8 +41,8 @@ public class MLMERxEnableCommand extends MACCommand {
 		dataOutputStream.writeInt(rxOnDuration);
 	}
 
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		rxOnDuration = Utils.readBigEndInt(inputBuffer, startingOffset);
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		rxOnDuration = in.readInt();
 	}
 
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
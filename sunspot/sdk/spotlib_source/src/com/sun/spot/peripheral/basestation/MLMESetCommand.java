@@ -28,7 +28,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
-import com.sun.spot.util.Utils;
 
 public class MLMESetCommand extends MACCommand {
 	private int attribute;
@@ -45,9 +44,9 @@ public class MLMESetCommand extends MACCommand {
 		dataOutputStream.writeLong(value);
 	}
 
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		attribute = Utils.readBigEndInt(inputBuffer, startingOffset);
-		value = Utils.readBigEndLong(inputBuffer, startingOffset+4);
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		attribute = in.readInt();
+		value = in.readLong();
 	}
 
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
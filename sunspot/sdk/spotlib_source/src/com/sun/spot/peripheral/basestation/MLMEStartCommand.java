@@ -28,7 +28,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
-import com.sun.spot.util.Utils;
 
 public class MLMEStartCommand extends MACCommand {
 	private short panId;
@@ -45,9 +44,9 @@ public class MLMEStartCommand extends MACCommand {
 		dataOutputStream.writeInt(channel);
 	}
 	
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		panId = (short) Utils.readBigEndShort(inputBuffer, startingOffset);
-		channel = Utils.readBigEndInt(inputBuffer, startingOffset+2);
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		panId = in.readShort();
+		channel = in.readInt();
 	}
 
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
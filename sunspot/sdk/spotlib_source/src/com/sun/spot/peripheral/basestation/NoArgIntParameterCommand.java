@@ -29,7 +29,6 @@ import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
 import com.sun.spot.peripheral.radio.IProprietaryMAC;
-import com.sun.spot.util.Utils;
 
 public abstract class NoArgIntParameterCommand extends MACCommand {
 	private int preparedResult;
@@ -40,12 +39,11 @@ public abstract class NoArgIntParameterCommand extends MACCommand {
 
 	protected abstract int getIntResult(IProprietaryMAC mac);
 
-	protected final int writePreparedResult(byte[] outputBuffer, int startingOffset) throws IOException {
-		Utils.writeBigEndInt(outputBuffer, startingOffset, preparedResult);
-		return Utils.SIZE_OF_INT;
+	protected final void writePreparedResult(CommandCursor out) throws IOException {
+		out.writeInt(preparedResult);
 	}
 	
 	protected final Object readResultFrom(DataInputStream dataInputStream) throws IOException {
-		return new Integer(dataInputStream.readInt());
+		return integerFor(dataInputStream.readInt());
 	}
 }
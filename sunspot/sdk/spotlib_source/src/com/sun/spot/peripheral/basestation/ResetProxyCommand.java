@@ -37,6 +37,14 @@ public class ResetProxyCommand extends MACCommand {
 		return this;
 	}
 
+	/**
+	 * The same instance serves every reset request, so only one thread at a
+	 * time may carry one out and write its result.
+	 */
+	public synchronized int writeResultOnto(byte[] outputBuffer, int startingOffset, I802_15_4_MAC mac) throws IOException {
+		return super.writeResultOnto(outputBuffer, startingOffset, mac);
+	}
+
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
 		try {
 			server.reset(mac);
@@ -29,7 +29,6 @@ import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
 import com.sun.spot.peripheral.radio.IProprietaryMAC;
-import com.sun.spot.util.Utils;
 
 public class SetPLMEChannelCommand extends MACCommand {
 	private int channel;
@@ -43,8 +42,8 @@ public class SetPLMEChannelCommand extends MACCommand {
 		dataOutputStream.writeInt(channel);
 	}
 	
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		channel = Utils.readBigEndInt(inputBuffer, startingOffset);
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		channel = in.readInt();
 	}
 	
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
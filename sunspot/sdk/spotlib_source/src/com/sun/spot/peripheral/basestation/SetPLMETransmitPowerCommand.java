@@ -29,7 +29,6 @@ import java.io.IOException;
 
 import com.sun.spot.peripheral.radio.I802_15_4_MAC;
 import com.sun.spot.peripheral.radio.IProprietaryMAC;
-import com.sun.spot.util.Utils;
 
 public class SetPLMETransmitPowerCommand extends MACCommand {
 	private int power;
@@ -43,8 +42,8 @@ public class SetPLMETransmitPowerCommand extends MACCommand {
 		dataOutputStream.writeInt(power);
 	}
 	
-	public void populateFrom(byte[] inputBuffer, int startingOffset) throws IOException {
-		power = Utils.readBigEndInt(inputBuffer, startingOffset);
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		power = in.readInt();
 	}
 	
 	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
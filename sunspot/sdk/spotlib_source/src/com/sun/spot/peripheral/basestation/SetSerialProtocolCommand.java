@@ -0,0 +1,87 @@
+/*
+ * Copyright 2006-2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.basestation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.sun.spot.peripheral.radio.I802_15_4_MAC;
+import com.sun.spot.peripheral.radio.SpotSerialPipe;
+
+/**
+ * Sent by the host to ask the base station to switch the serial link to a newer
+ * protocol. The result is the protocol version the base station will use from
+ * now on, which is never newer than the one requested. The command and its
+ * reply both use the legacy framing.
+ * <p/>
+ * A base station that predates this command ignores it, so a host that gets no
+ * reply within the timeout must carry on with {@link SpotSerialPipe#LEGACY_PROTOCOL}.
+ */
+public class SetSerialProtocolCommand extends MACCommand {
+	private int requestedVersion;
+	private int agreedVersion = SpotSerialPipe.LEGACY_PROTOCOL;
+
+	public ICommand with(int requestedVersion) {
+		this.requestedVersion = requestedVersion;
+		return this;
+	}
+
+	protected void writeParametersOnto(DataOutputStream dataOutputStream) throws IOException {
+		dataOutputStream.writeInt(requestedVersion);
+	}
+
+	protected void readParametersFrom(CommandCursor in) throws IOException {
+		requestedVersion = in.readInt();
+	}
+
+	protected void prepareResultOrExecute(I802_15_4_MAC mac) {
+		agreedVersion = Math.max(SpotSerialPipe.LEGACY_PROTOCOL,
+				Math.min(requestedVersion, SpotSerialPipe.BATCHED_PROTOCOL));
+	}
+
+	protected void writePreparedResult(CommandCursor out) throws IOException {
+		out.writeInt(agreedVersion);
+	}
+
+	protected Object readResultFrom(DataInputStream dataInputStream) throws IOException {
+		return integerFor(dataInputStream.readInt());
+	}
+
+	/**
+	 * @return the protocol version agreed with the host
+	 */
+	public int getAgreedVersion() {
+		return agreedVersion;
+	}
+
+	protected byte classIndicatorByte() {
+		return SetSerialProtocolCommand;
+	}
+
+	public long getTimeout() {
+		return 500;
+	}
+}
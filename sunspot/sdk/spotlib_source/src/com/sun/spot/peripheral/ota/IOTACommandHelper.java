@@ -136,6 +136,31 @@ public interface IOTACommandHelper {
 	 */
 	void replaceSuiteFile(DataInputStream params, String filename, int virtualAddress) throws IOException;
 
+	/**
+	 * Replace a suite file like {@link #replaceSuiteFile(DataInputStream, String, int)}, but if an earlier
+	 * transfer of the same suite was interrupted, offer the host the data already received so that it
+	 * only needs to send the rest. This is a specialised helper method, only intended to be used in the
+	 * implementation of the flash app resume command.
+	 * @param params the params supplied with the {@link IOTACommand}
+	 * @param filename the name of the FlashFile to replace
+	 * @param virtualAddress the virtual address at which the FlashFile should be mapped after restart
+	 * @throws IOException
+	 */
+	void resumeSuiteFile(DataInputStream params, String filename, int virtualAddress) throws IOException;
+
+	/**
+	 * Replace a suite file with one rebuilt from the existing file and a {@link SuiteDelta}
+	 * sent by the host. This is a specialised helper method, only intended to be used in
+	 * the implementation of the flash app delta command. If the delta cannot be applied
+	 * the existing file is left alone and the error is reported to the host.
+	 * @param params the params supplied with the {@link IOTACommand}
+	 * @param filename the name of the FlashFile to replace, which must exist
+	 * @param virtualAddress the virtual address at which the FlashFile should be mapped after restart
+	 * @return true if the file was replaced, false if an error has been sent to the host
+	 * @throws IOException
+	 */
+	boolean replaceSuiteFileFromDelta(DataInputStream params, String filename, int virtualAddress) throws IOException;
+
 	/**
 	 * Invoke the default behaviour for one of the built-in commands. Intended for add-in commands that have replaced
 	 * one of the default commands to extend its behaviour and want to invoke the default behaviour at some point. 
@@ -32,6 +32,10 @@ import com.sun.spot.flashmanagement.FlashFileOutputStream;
  */
 public interface ISpotAdminConstants {
 	public static final String FLASH_APP_CMD 			= "DEF-FA";
+	public static final String FLASH_APP_DELTA_CMD		= "DEF-FD";
+	public static final String FLASH_APP_RESUME_CMD		= "DEF-FR";
+	public static final String MULTICAST_RECEIVE_CMD	= "DEF-MR";
+	public static final String MULTICAST_SEND_CMD		= "DEF-MS";
 	public static final String FLASH_LIB_CMD 			= "DEF-FL";
 	public static final String UNDEPLOY_CMD 			= "DEF-UD";
 
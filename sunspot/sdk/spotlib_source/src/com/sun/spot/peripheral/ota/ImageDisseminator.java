@@ -0,0 +1,626 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.ota;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.sun.spot.flashmanagement.FlashFile;
+import com.sun.spot.flashmanagement.FlashFileInputStream;
+import com.sun.spot.flashmanagement.FlashFileOutputStream;
+import com.sun.spot.peripheral.ChannelBusyException;
+import com.sun.spot.peripheral.radio.IProtocolManager;
+import com.sun.spot.peripheral.radio.LowPan;
+import com.sun.spot.peripheral.radio.LowPanHeader;
+import com.sun.spot.peripheral.radio.LowPanHeaderInfo;
+import com.sun.spot.peripheral.radio.RadioFactory;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
+import com.sun.spot.util.Utils;
+import com.sun.squawk.Isolate;
+import com.sun.squawk.VM;
+
+/**
+ * Distributes a suite image to many SPOTs at once by broadcasting it, in the
+ * style of Deluge, so that updating a network does not send the same image
+ * across the mesh once for every SPOT.<br>
+ * <br>
+ * The image is split into pages of {@link #PAGE_SIZE} bytes, each sent as up to
+ * {@link #PACKETS_PER_PAGE} single hop broadcast packets. Every SPOT taking part
+ * regularly advertises how many pages it holds. The interval between
+ * advertisements doubles up to {@link #MAX_ADVERTISE_INTERVAL} while the
+ * neighbours agree, an advertisement is skipped if enough neighbours have
+ * already said the same thing, and the interval drops back when a neighbour is
+ * heard to be behind or ahead. A SPOT that is behind asks one advertiser for its
+ * next page, sending a bitmap of the packets it is still missing, and the
+ * advertiser broadcasts just those packets. Requests are broadcast too, so a
+ * SPOT that overhears a request for the page it wants holds its own back, and
+ * every SPOT keeps any packet of its next page that it hears.<br>
+ * <br>
+ * Pages are gathered in order and written to a staging FlashFile, and a SPOT
+ * serves each page to its neighbours as soon as it is on flash, so the image
+ * spreads outwards hop by hop while the host only sends it to one SPOT.<br>
+ * <br>
+ * A SPOT only accepts an image it has been told to expect by a
+ * {@link ISpotAdminConstants#MULTICAST_RECEIVE_CMD}, which like every OTA
+ * command is checked against the owner's key, and which gives the length and
+ * CRC of the image. A SPOT that already holds the suite is made a source with
+ * {@link ISpotAdminConstants#MULTICAST_SEND_CMD}. A complete image is checked
+ * against the CRC and installed in the same way as by
+ * {@link ISpotAdminConstants#FLASH_APP_CMD}, so it is verified when it is next
+ * loaded. If the suite is in use the image is held until it can be installed.
+ */
+public class ImageDisseminator implements IProtocolManager, Runnable {
+
+	/**
+	 * LowPan protocol number used for image distribution
+	 */
+	public static final byte DISSEMINATION_PROTOCOL_NUMBER = 106;
+	public static final int PAGE_SIZE = 1024; // must be even, so that flushing a page leaves no odd byte behind
+	public static final int PACKET_DATA_SIZE = 64;
+	public static final int PACKETS_PER_PAGE = PAGE_SIZE / PACKET_DATA_SIZE; // at most 32, one bit each in a request
+	public static final int MIN_ADVERTISE_INTERVAL = 1000;
+	public static final int MAX_ADVERTISE_INTERVAL = 60000;
+
+	private static final byte ADVERTISEMENT = 1;
+	private static final byte REQUEST = 2;
+	private static final byte DATA = 3;
+	private static final int HEADER_SIZE = 5; // type, image id
+	private static final int DATA_HEADER_SIZE = HEADER_SIZE + 3; // page, packet
+
+	/**
+	 * Don't advertise if this many neighbours have advertised the same page count in the current interval
+	 */
+	private static final int SUPPRESSION_THRESHOLD = 2;
+	private static final int MAX_REQUEST_DELAY = 200;
+	private static final int REQUEST_TIMEOUT = 2000;
+	private static final int MAX_REQUEST_ATTEMPTS = 5;
+	private static final int DATA_INTERVAL = 20;
+	/**
+	 * Commit received pages to flash after this many, rather than after every page
+	 */
+	private static final int PAGES_PER_FLUSH = 16;
+	/**
+	 * Stop once complete and nothing has been heard from a neighbour that is behind for this long
+	 */
+	private static final int IDLE_TIMEOUT = 30 * 60 * 1000;
+
+	private static ImageDisseminator theInstance;
+
+	private final long ourAddress;
+	private final Random random = new Random();
+	private final byte[] sendBuffer = new byte[DATA_HEADER_SIZE + PACKET_DATA_SIZE];
+	private final byte[] page = new byte[PAGE_SIZE];
+	private Thread thread;
+	private boolean running;
+
+	// the image
+	private int imageId;
+	private String fileName;
+	private int length;
+	private short crc;
+	private int totalPages;
+	private FlashFile image;
+	private FlashFileOutputStream imageOutputStream;
+	private FlashFileInputStream imageInputStream;
+	private boolean installPending;
+
+	// receiving
+	private int pagesComplete;
+	private int pagesFlushed;
+	private int missingPackets;
+	private boolean pageReady;
+	private long server;
+	private int serverPages;
+	private long requestTime;
+	private int requestAttempts;
+
+	// serving
+	private int servePage = -1;
+	private int servePackets;
+
+	// advertising
+	private int advertiseInterval;
+	private long advertiseTime;
+	private int consistentAdvertisementsHeard;
+	private long lastActivity;
+
+	/**
+	 * @return the singleton instance of this class
+	 */
+	public static synchronized ImageDisseminator getInstance() {
+		if (theInstance == null) {
+			theInstance = new ImageDisseminator();
+		}
+		return theInstance;
+	}
+
+	private ImageDisseminator() {
+		ourAddress = RadioFactory.getRadioPolicyManager().getIEEEAddress();
+	}
+
+	/**
+	 * Start gathering an image from neighbouring SPOTs, replacing any image
+	 * currently being distributed.
+	 *
+	 * @param fileName the name of the suite file the image will replace or create
+	 * @param imageId the id the image is distributed under
+	 * @param length the length of the image in bytes
+	 * @param crc the CRC of the image
+	 * @param slotDescriptor the comment to give the suite file
+	 * @throws IOException if there is not enough flash for the image
+	 */
+	public synchronized void receive(String fileName, int imageId, int length, short crc, String slotDescriptor) throws IOException {
+		stop();
+		FlashFile staging = new FlashFile("multicast:" + fileName);
+		if (staging.exists()) {
+			staging.delete();
+		}
+		staging.createNewFile(length + 1);
+		staging.setComment(slotDescriptor);
+		this.fileName = fileName;
+		this.imageId = imageId;
+		this.length = length;
+		this.crc = crc;
+		image = staging;
+		imageOutputStream = new FlashFileOutputStream(image, PAGE_SIZE);
+		imageInputStream = new FlashFileInputStream(image);
+		setPagesComplete(0);
+		pagesFlushed = 0;
+		installPending = false;
+		Utils.log("[OTA] Waiting for " + fileName + " (" + length + " bytes) as image " + imageId);
+		start();
+	}
+
+	/**
+	 * Start serving a suite already on this SPOT to neighbouring SPOTs, replacing
+	 * any image currently being distributed.
+	 *
+	 * @param fileName the name of the suite file to serve
+	 * @param imageId the id to distribute the image under
+	 * @throws IOException if the file does not exist
+	 */
+	public synchronized void serve(String fileName, int imageId) throws IOException {
+		stop();
+		this.fileName = fileName;
+		this.imageId = imageId;
+		image = new FlashFile(fileName);
+		length = image.length() - 1; // not the suite verified flag
+		imageInputStream = new FlashFileInputStream(image);
+		crc = SuiteDelta.crc(imageInputStream, length);
+		imageOutputStream = null;
+		setPagesComplete(pagesIn(length));
+		pagesFlushed = pagesComplete;
+		installPending = false;
+		Utils.log("[OTA] Serving " + fileName + " as image " + imageId);
+		start();
+	}
+
+	/**
+	 * Stop taking part in distribution, waiting for the distribution thread to
+	 * finish. An image that has not been completely received is discarded.
+	 */
+	public synchronized void stop() {
+		Thread oldThread = thread;
+		boolean wasRunning = running;
+		running = false;
+		notifyAll();
+		// let the distribution thread finish any page it is writing before the image is changed
+		while (oldThread != null && thread == oldThread && oldThread != Thread.currentThread()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// keep waiting
+			}
+		}
+		if (!wasRunning) {
+			return;
+		}
+		LowPan.getInstance().deregisterProtocol(DISSEMINATION_PROTOCOL_NUMBER);
+		if (pagesComplete < totalPages) {
+			try {
+				image.delete();
+			} catch (IOException e) {
+				Utils.log("[OTA] Could not delete incomplete image: " + e.getMessage());
+			}
+		}
+		Utils.log("[OTA] Stopped distributing image " + imageId);
+	}
+
+	/**
+	 * @return true if an image is being received or served
+	 */
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the number of pages of the current image held on flash
+	 */
+	public synchronized int getPagesComplete() {
+		return pagesComplete;
+	}
+
+	/**
+	 * @return the number of pages in the current image
+	 */
+	public synchronized int getTotalPages() {
+		return totalPages;
+	}
+
+	public synchronized void processIncomingData(byte[] payload, LowPanHeaderInfo headerInfo) {
+		if (!running || payload.length < HEADER_SIZE || Utils.readBigEndInt(payload, 1) != imageId) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		switch (payload[0]) {
+		case ADVERTISEMENT:
+			if (payload.length >= HEADER_SIZE + 2) {
+				advertisementReceived(Utils.readBigEndShort(payload, HEADER_SIZE), headerInfo.sourceAddress, now);
+			}
+			break;
+		case REQUEST:
+			if (payload.length >= HEADER_SIZE + 14) {
+				requestReceived(Utils.readBigEndLong(payload, HEADER_SIZE), Utils.readBigEndShort(payload, HEADER_SIZE + 8),
+						Utils.readBigEndInt(payload, HEADER_SIZE + 10), now);
+			}
+			break;
+		case DATA:
+			if (payload.length > DATA_HEADER_SIZE) {
+				dataReceived(Utils.readBigEndShort(payload, HEADER_SIZE), payload[HEADER_SIZE + 2], payload, now);
+			}
+			break;
+		}
+	}
+
+	public void run() {
+		try {
+			distribute();
+		} finally {
+			synchronized (this) {
+				if (thread == Thread.currentThread()) {
+					thread = null;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private void distribute() {
+		while (true) {
+			boolean writePage = false;
+			int packetToServe = -1;
+			int pageToServe = -1;
+			int sendLength = 0;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				if (!running || thread != Thread.currentThread()) {
+					return; // stopped, or replaced by a later session
+				}
+				if (pageReady) {
+					writePage = true;
+				} else if (servePage >= 0) {
+					pageToServe = servePage;
+					packetToServe = lowestBit(servePackets);
+					if (packetToServe >= 0) {
+						servePackets &= ~(1 << packetToServe);
+					}
+					if (servePackets == 0) {
+						servePage = -1;
+					}
+				} else if (server != 0 && now >= requestTime) {
+					if (requestAttempts++ == MAX_REQUEST_ATTEMPTS) {
+						server = 0; // wait to hear from someone else
+					} else {
+						sendLength = writeRequest(server, pagesComplete, missingPackets);
+						requestTime = now + REQUEST_TIMEOUT;
+					}
+				} else if (now >= advertiseTime) {
+					if (consistentAdvertisementsHeard < SUPPRESSION_THRESHOLD) {
+						sendLength = writeAdvertisement();
+					}
+					advertiseInterval = Math.min(advertiseInterval * 2, MAX_ADVERTISE_INTERVAL);
+					scheduleAdvertisement(now);
+					if (installPending) {
+						try {
+							install();
+						} catch (IOException e) {
+							Utils.log("[OTA] Could not install image " + imageId + ": " + e.getMessage());
+						}
+					}
+					if (pagesComplete == totalPages && now - lastActivity > IDLE_TIMEOUT) {
+						stop();
+						return;
+					}
+				} else {
+					long wakeTime = advertiseTime;
+					if (server != 0) {
+						wakeTime = Math.min(wakeTime, requestTime);
+					}
+					try {
+						wait(Math.max(1, wakeTime - now));
+					} catch (InterruptedException e) {
+						// go round again
+					}
+					continue;
+				}
+			}
+			try {
+				if (writePage) {
+					writePage();
+				} else if (packetToServe >= 0) {
+					if (pageToServe >= pagesFlushed) {
+						flushImage(pagesComplete); // a neighbour wants a page that is still buffered
+					}
+					sendLength = writeData(pageToServe, packetToServe);
+					send(sendLength, TransmitScheduler.TRAFFIC_CLASS_BULK);
+					Utils.sleep(DATA_INTERVAL);
+				} else if (sendLength > 0) {
+					send(sendLength, TransmitScheduler.TRAFFIC_CLASS_CONTROL);
+				}
+			} catch (IOException e) {
+				Utils.log("[OTA] Image distribution failed: " + e.getMessage());
+				stop();
+			}
+		}
+	}
+
+	private void start() {
+		running = true;
+		advertiseInterval = MIN_ADVERTISE_INTERVAL;
+		scheduleAdvertisement(System.currentTimeMillis());
+		lastActivity = System.currentTimeMillis();
+		servePage = -1;
+		LowPan.getInstance().registerProtocol(DISSEMINATION_PROTOCOL_NUMBER, this);
+		thread = new Thread(this, "ImageDisseminator");
+		thread.setPriority(Thread.MIN_PRIORITY + 1);
+		thread.start();
+	}
+
+	private void advertisementReceived(int theirPages, long from, long now) {
+		if (theirPages == pagesComplete) {
+			consistentAdvertisementsHeard++;
+			return;
+		}
+		resetAdvertising(now);
+		if (theirPages < pagesComplete) {
+			lastActivity = now;
+		} else if (server == 0 && !pageReady) {
+			server = from;
+			serverPages = theirPages;
+			requestTime = now + random.nextInt(MAX_REQUEST_DELAY);
+			requestAttempts = 0;
+			notifyAll();
+		}
+	}
+
+	private void requestReceived(long target, int requestedPage, int packets, long now) {
+		if (target == ourAddress && requestedPage < pagesComplete) {
+			int wanted = packets & allPackets(requestedPage);
+			if (wanted == 0) {
+				return;
+			}
+			// only one page is served at a time; anyone asking for another will ask again
+			if (servePage == -1 || servePage == requestedPage) {
+				servePage = requestedPage;
+				servePackets |= wanted;
+				lastActivity = now;
+				notifyAll();
+			}
+		} else if (requestedPage == pagesComplete && server != 0) {
+			// someone else has asked for the page we want; listen for the answer instead of asking too
+			requestTime = Math.max(requestTime, now + REQUEST_TIMEOUT);
+		}
+	}
+
+	private void dataReceived(int dataPage, int packet, byte[] payload, long now) {
+		if (dataPage != pagesComplete || pageReady || packet < 0 || packet >= PACKETS_PER_PAGE
+				|| (missingPackets & (1 << packet)) == 0) {
+			return;
+		}
+		int packetLength = packetLength(dataPage, packet);
+		if (payload.length - DATA_HEADER_SIZE != packetLength) {
+			return;
+		}
+		System.arraycopy(payload, DATA_HEADER_SIZE, page, packet * PACKET_DATA_SIZE, packetLength);
+		missingPackets &= ~(1 << packet);
+		requestTime = Math.max(requestTime, now + REQUEST_TIMEOUT);
+		requestAttempts = 0;
+		if (missingPackets == 0) {
+			pageReady = true;
+			notifyAll();
+		}
+	}
+
+	private void writePage() throws IOException {
+		// the receive thread leaves the page alone until pageReady is cleared
+		imageOutputStream.write(page, 0, pageLength(pagesComplete));
+		if ((pagesComplete + 1) % PAGES_PER_FLUSH == 0 || pagesComplete + 1 == totalPages) {
+			flushImage(pagesComplete + 1);
+		}
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			setPagesComplete(pagesComplete + 1);
+			pageReady = false;
+			if (pagesComplete < serverPages) {
+				requestTime = System.currentTimeMillis(); // carry straight on with the next page
+				requestAttempts = 0;
+			} else {
+				server = 0;
+			}
+			resetAdvertising(System.currentTimeMillis());
+			if (pagesComplete == totalPages) {
+				server = 0;
+				if (SuiteDelta.crc(new FlashFileInputStream(image), length) != crc) {
+					Utils.log("[OTA] Image " + imageId + " does not match its CRC, discarding");
+					pagesComplete = 0; // so stop() deletes it
+					stop();
+					return;
+				}
+				imageOutputStream.write(0xFF); // append an 0xFF to allow space for suite verified flag
+				imageOutputStream.close();
+				Utils.log("[OTA] Received " + fileName);
+				installPending = true;
+				install();
+			}
+		}
+	}
+
+	private void install() throws IOException {
+		boolean isReplacingCurrentAppSuite = fileName.equals(Isolate.currentIsolate().getParentSuiteSourceURI());
+		FlashFile suiteFile = new FlashFile(fileName);
+		int virtualAddress;
+		if (isReplacingCurrentAppSuite) {
+			virtualAddress = suiteFile.getVirtualAddress();
+		} else {
+			String reason = OTADefaultCommands.reasonChildSuiteCannotBeFlashed(fileName);
+			if (reason != null) {
+				Utils.log("[OTA] Holding image " + imageId + ": " + reason);
+				return;
+			}
+			if (suiteFile.exists()) {
+				VM.unregisterSuite(fileName);
+				suiteFile.delete();
+			}
+			virtualAddress = FlashFile.getUnusedVirtualAddress();
+		}
+		OTACommandProcessor.installSuiteFile(image, fileName, virtualAddress);
+		image = suiteFile; // the input stream follows the rename, so serving carries on
+		installPending = false;
+		if (!isReplacingCurrentAppSuite) {
+			Utils.log("[OTA] remapping virtual addresses...");
+			suiteFile.map();
+		}
+		Utils.log("[OTA] Installed " + fileName + " from image " + imageId);
+	}
+
+	private void setPagesComplete(int pages) {
+		totalPages = pagesIn(length);
+		pagesComplete = pages;
+		missingPackets = pages < totalPages ? allPackets(pages) : 0;
+	}
+
+	/**
+	 * Commit the pages written so far, so they can be read back to serve them.
+	 * Called only from the distribution thread, which is the only writer of the image.
+	 *
+	 * @param pages the number of pages that have been written
+	 */
+	private void flushImage(int pages) throws IOException {
+		imageOutputStream.flush();
+		pagesFlushed = pages;
+	}
+
+	private void resetAdvertising(long now) {
+		if (advertiseInterval > MIN_ADVERTISE_INTERVAL) {
+			advertiseInterval = MIN_ADVERTISE_INTERVAL;
+			scheduleAdvertisement(now);
+			notifyAll();
+		}
+	}
+
+	private void scheduleAdvertisement(long now) {
+		// pick a time in the second half of the interval, so neighbours that started together drift apart
+		int half = advertiseInterval / 2;
+		advertiseTime = now + half + random.nextInt(half);
+		consistentAdvertisementsHeard = 0;
+	}
+
+	private int writeAdvertisement() {
+		writeHeader(ADVERTISEMENT);
+		Utils.writeBigEndShort(sendBuffer, HEADER_SIZE, pagesComplete);
+		return HEADER_SIZE + 2;
+	}
+
+	private int writeRequest(long target, int requestedPage, int packets) {
+		writeHeader(REQUEST);
+		Utils.writeBigEndLong(sendBuffer, HEADER_SIZE, target);
+		Utils.writeBigEndShort(sendBuffer, HEADER_SIZE + 8, requestedPage);
+		Utils.writeBigEndInt(sendBuffer, HEADER_SIZE + 10, packets);
+		return HEADER_SIZE + 14;
+	}
+
+	/*
+	 * Called without holding the lock, but only by the disseminator's thread, which is the
+	 * only user of sendBuffer and imageInputStream
+	 */
+	private int writeData(int dataPage, int packet) throws IOException {
+		int packetLength = packetLength(dataPage, packet);
+		writeHeader(DATA);
+		Utils.writeBigEndShort(sendBuffer, HEADER_SIZE, dataPage);
+		sendBuffer[HEADER_SIZE + 2] = (byte) packet;
+		imageInputStream.seek(dataPage * PAGE_SIZE + packet * PACKET_DATA_SIZE);
+		int offset = 0;
+		while (offset < packetLength) {
+			int n = imageInputStream.read(sendBuffer, DATA_HEADER_SIZE + offset, packetLength - offset);
+			if (n < 0) {
+				throw new IOException("Image is shorter than expected");
+			}
+			offset += n;
+		}
+		return DATA_HEADER_SIZE + packetLength;
+	}
+
+	private void writeHeader(byte type) {
+		sendBuffer[0] = type;
+		Utils.writeBigEndInt(sendBuffer, 1, imageId);
+	}
+
+	private void send(int sendLength, int trafficClass) {
+		try {
+			LowPan.getInstance().sendBroadcast(LowPanHeader.DISPATCH_SPOT, DISSEMINATION_PROTOCOL_NUMBER, sendBuffer, 0,
+					sendLength, 1, trafficClass);
+		} catch (ChannelBusyException e) {
+			// a lost packet is repaired like any other
+		}
+	}
+
+	private int pageLength(int p) {
+		return Math.min(PAGE_SIZE, length - p * PAGE_SIZE);
+	}
+
+	private int packetLength(int p, int packet) {
+		return Math.min(PACKET_DATA_SIZE, pageLength(p) - packet * PACKET_DATA_SIZE);
+	}
+
+	private int allPackets(int p) {
+		int packets = (pageLength(p) + PACKET_DATA_SIZE - 1) / PACKET_DATA_SIZE;
+		return packets == 32 ? -1 : (1 << packets) - 1;
+	}
+
+	private static int pagesIn(int length) {
+		return (length + PAGE_SIZE - 1) / PAGE_SIZE;
+	}
+
+	private static int lowestBit(int bits) {
+		for (int bit = 0; bit < 32; bit++) {
+			if ((bits & (1 << bit)) != 0) {
+				return bit;
+			}
+		}
+		return -1;
+	}
+}
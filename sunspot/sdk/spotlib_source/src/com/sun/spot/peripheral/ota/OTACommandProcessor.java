@@ -39,6 +39,7 @@ import javax.microedition.io.Connector;
 import javax.microedition.io.StreamConnection;
 
 import com.sun.spot.flashmanagement.FlashFile;
+import com.sun.spot.flashmanagement.FlashFileInputStream;
 import com.sun.spot.flashmanagement.FlashFileOutputStream;
 import com.sun.spot.io.j2me.remoteprinting.IRemotePrintManager;
 import com.sun.spot.peripheral.IPowerController;
@@ -48,6 +49,7 @@ import com.sun.spot.peripheral.Spot;
 import com.sun.spot.peripheral.SpotFatalException;
 import com.sun.spot.peripheral.TimeoutException;
 import com.sun.spot.peripheral.radio.RadioPolicy;
+import com.sun.spot.util.CRC;
 import com.sun.spot.util.CrcOutputStream;
 import com.sun.spot.util.IEEEAddress;
 import com.sun.spot.util.Utils;
@@ -67,6 +69,8 @@ class OTACommandProcessor extends Thread implements ISpotAdminConstants, IOTACom
 	public static final int PORT = 8;
 
 	private static final int COMMAND_OFFSET = 2;
+	private static final int CHECKPOINT_INTERVAL = 16 * FlashFileOutputStream.DEFAULT_BUFFER_SIZE;
+	private static final String CHECKPOINT_PREFIX = "partial ";
 	private static final int CRC_BLOCK_SIZE = 121; // bug 1131: if you set this to 122 then CRC stream blocks are 128 long and
 												   // fit exactly into two USB frames - these are sent to the host but not
 												   // passed to the application
@@ -104,6 +108,9 @@ class OTACommandProcessor extends Thread implements ISpotAdminConstants, IOTACom
 			public void setRadioPolicy(RadioPolicy selection) {
 				// no op
 			}
+			public void setLatencyBudget(int millis) {
+				// no op
+			}
 		};
 		OutputStream rawOutputStream = conn.openOutputStream();
 		InputStream rawInputStream = conn.openInputStream();
@@ -309,32 +316,163 @@ class OTACommandProcessor extends Thread implements ISpotAdminConstants, IOTACom
 	}
 
 	public void replaceSuiteFile(DataInputStream params, String filename, int virtualAddress) throws IOException {
+		transferSuiteFile(params, filename, virtualAddress, false);
+	}
+
+	public void resumeSuiteFile(DataInputStream params, String filename, int virtualAddress) throws IOException {
+		transferSuiteFile(params, filename, virtualAddress, true);
+	}
+
+	private void transferSuiteFile(DataInputStream params, String filename, int virtualAddress, boolean resume) throws IOException {
 		String slotDescriptor = params.readUTF();
 		FlashFile newFile = new FlashFile("new:" + filename);
+		dataOutputStream.writeInt(virtualAddress);
+		dataOutputStream.flush();
+		int size = dataInputStream.readInt();
+		int offset = 0;
+		int runningCrc = CRC.INITIAL_CRC;
+		if (resume) {
+			// offer the host what we have, and let it check that it is the start of the same suite
+			int[] checkpoint = readCheckpoint(newFile, size, slotDescriptor);
+			if (checkpoint != null) {
+				offset = checkpoint[0];
+				runningCrc = checkpoint[1];
+			}
+			dataOutputStream.writeInt(offset);
+			dataOutputStream.writeShort(CRC.finish(runningCrc));
+			dataOutputStream.flush();
+			int hostOffset = dataInputStream.readInt();
+			if (hostOffset == 0) {
+				offset = 0;
+				runningCrc = CRC.INITIAL_CRC;
+			} else if (hostOffset != offset) {
+				throw new IOException("Host asked to resume at " + hostOffset + " but we offered " + offset);
+			}
+		}
+		FlashFileOutputStream flashFileOutputStream;
+		if (offset > 0) {
+			Utils.log("[OTA] Resuming " + filename + " at byte " + offset + " of " + size);
+			flashFileOutputStream = new FlashFileOutputStream(newFile, true);
+		} else {
+			if (newFile.exists()) {
+				newFile.delete();
+			}
+			if (!newFile.createNewFile(size+1)) throw new IOException("File " + newFile.getName() + " already exists");
+			newFile.setComment(slotDescriptor);
+			flashFileOutputStream = new FlashFileOutputStream(newFile);
+		}
+		Utils.log("[OTA] Using virtual address 0x" + Integer.toHexString(virtualAddress) + " for " + filename);
+		notifyListenersOfFlashStart();
+		try {
+			CheckpointingOutputStream checkpointingOutputStream =
+				new CheckpointingOutputStream(newFile, flashFileOutputStream, size, offset, runningCrc, slotDescriptor);
+			receiveFile(size - offset, checkpointingOutputStream);
+			flashFileOutputStream.flush();
+			if (offset > 0 && SuiteDelta.crc(new FlashFileInputStream(newFile), size) != checkpointingOutputStream.getCrc()) {
+				// bytes written after the last checkpoint of the interrupted transfer were not the same
+				// as the ones sent again, and flash can't be rewritten without erasing it
+				newFile.delete();
+				throw new IOException("Resumed transfer of " + filename + " did not verify; it must be sent again");
+			}
+			newFile.setComment(slotDescriptor); // no longer resumable; written by the close below
+			flashFileOutputStream.write(0xFF); // append an 0xFF to allow space for suite verified flag
+			flashFileOutputStream.close();
+			installSuiteFile(newFile, filename, virtualAddress);
+		} finally {
+			notifyListenersOfFlashEnd();
+		}
+	}
+
+	/**
+	 * @return the length and running CRC recorded by the last checkpoint of an interrupted transfer
+	 * of the same suite into newFile, or null if there isn't one
+	 */
+	private static int[] readCheckpoint(FlashFile newFile, int size, String slotDescriptor) throws IOException {
+		if (!newFile.exists()) {
+			return null;
+		}
+		String comment = newFile.getComment();
+		if (!comment.startsWith(CHECKPOINT_PREFIX)) {
+			return null;
+		}
+		try {
+			int sizeEnd = comment.indexOf(' ', CHECKPOINT_PREFIX.length());
+			int offsetEnd = comment.indexOf(' ', sizeEnd + 1);
+			int crcEnd = comment.indexOf(' ', offsetEnd + 1);
+			int checkpointSize = Integer.parseInt(comment.substring(CHECKPOINT_PREFIX.length(), sizeEnd));
+			int offset = Integer.parseInt(comment.substring(sizeEnd + 1, offsetEnd));
+			int runningCrc = Integer.parseInt(comment.substring(offsetEnd + 1, crcEnd));
+			if (checkpointSize != size || offset != newFile.length() || !comment.substring(crcEnd + 1).equals(slotDescriptor)) {
+				return null;
+			}
+			return new int[] {offset, runningCrc};
+		} catch (RuntimeException e) {
+			// not a checkpoint we understand
+			return null;
+		}
+	}
+
+	public boolean replaceSuiteFileFromDelta(DataInputStream params, String filename, int virtualAddress) throws IOException {
+		String slotDescriptor = params.readUTF();
+		FlashFile deltaFile = new FlashFile("delta:" + filename);
+		FlashFile newFile = new FlashFile("new:" + filename);
+		if (deltaFile.exists()) {
+			deltaFile.delete();
+		}
 		if (newFile.exists()) {
 			newFile.delete();
 		}
 		dataOutputStream.writeInt(virtualAddress);
 		dataOutputStream.flush();
-		int size = dataInputStream.readInt();
-		if (!newFile.createNewFile(size+1)) throw new IOException("File " + newFile.getName() + " already exists");
-		newFile.setComment(slotDescriptor);
-		Utils.log("[OTA] Using virtual address 0x" + Integer.toHexString(virtualAddress) + " for " + filename);
+		int deltaSize = dataInputStream.readInt();
+		if (!deltaFile.createNewFile(deltaSize)) throw new IOException("File " + deltaFile.getName() + " already exists");
 		notifyListenersOfFlashStart();
-		FlashFileOutputStream flashFileOutputStream = new FlashFileOutputStream(newFile);
 		try {
-			receiveFile(size, flashFileOutputStream);
+			// stage the delta in flash first: the host's flow control is built around flash writes,
+			// and the delta may be too big for RAM
+			FlashFileOutputStream deltaOutputStream = new FlashFileOutputStream(deltaFile);
+			receiveFile(deltaSize, deltaOutputStream);
+			deltaOutputStream.close();
+
+			DataInputStream delta = new DataInputStream(new FlashFileInputStream(deltaFile));
+			int size = delta.readInt();
+			if (!newFile.createNewFile(size+1)) throw new IOException("File " + newFile.getName() + " already exists");
+			newFile.setComment(slotDescriptor);
+			Utils.log("[OTA] Rebuilding " + filename + " (" + size + " bytes) from a " + deltaSize + " byte delta");
+			FlashFileOutputStream flashFileOutputStream = new FlashFileOutputStream(newFile);
+			delta = new DataInputStream(new FlashFileInputStream(deltaFile));
+			try {
+				SuiteDelta.apply(delta, new FlashFileInputStream(new FlashFile(filename)), flashFileOutputStream);
+			} catch (InvalidDeltaException e) {
+				flashFileOutputStream.close();
+				newFile.delete();
+				sendErrorDetails(e.getMessage());
+				return false;
+			}
 			flashFileOutputStream.write(0xFF); // append an 0xFF to allow space for suite verified flag
 			flashFileOutputStream.close();
-			makeObsolete(filename);
-			newFile.setVirtualAddress(virtualAddress);
-			newFile.renameTo(new FlashFile(filename)); // rename also forces write of virtual address
+			installSuiteFile(newFile, filename, virtualAddress);
+			return true;
 		} finally {
+			deltaFile.delete();
 			notifyListenersOfFlashEnd();
 		}
 	}
 
 	public void makeObsolete(String filename) throws IOException {
+		obsoleteSuiteFile(filename);
+	}
+
+	/**
+	 * Put a newly written suite file in place of the one called filename.
+	 */
+	static void installSuiteFile(FlashFile newFile, String filename, int virtualAddress) throws IOException {
+		obsoleteSuiteFile(filename);
+		newFile.setVirtualAddress(virtualAddress);
+		newFile.renameTo(new FlashFile(filename)); // rename also forces write of virtual address
+	}
+
+	static void obsoleteSuiteFile(String filename) throws IOException {
 		FlashFile currentFile = new FlashFile(filename);
 		if (currentFile.exists()) {
 			FlashFile obsoleteFlashFile = new FlashFile(("obsolete:" + filename));
@@ -533,6 +671,10 @@ class OTACommandProcessor extends Thread implements ISpotAdminConstants, IOTACom
 	}
 
 	public boolean isSuiteInUse(String suiteUri) {
+		return suiteInUse(suiteUri);
+	}
+
+	static boolean suiteInUse(String suiteUri) {
 		System.gc(); // Try to ensure that all exited isolates go away
 		Isolate[] allIsolates = Isolate.getIsolates();
 		for (int i = 0; i < allIsolates.length; i++) {
@@ -542,4 +684,50 @@ class OTACommandProcessor extends Thread implements ISpotAdminConstants, IOTACom
 		}
 		return false;
 	}
+
+	/**
+	 * Writes a suite file, and every {@link #CHECKPOINT_INTERVAL} bytes records how much has been
+	 * written and its running CRC in the file's comment and flushes, so that the FAT entry written
+	 * by the flush describes data that is really on flash. If the transfer is interrupted the host
+	 * can then carry on from the last checkpoint with {@link ISpotAdminConstants#FLASH_APP_RESUME_CMD}
+	 * instead of starting again.
+	 */
+	private static class CheckpointingOutputStream extends OutputStream {
+		private FlashFile file;
+		private FlashFileOutputStream out;
+		private int size;
+		private int position;
+		private int runningCrc;
+		private int lastCheckpoint;
+		private String slotDescriptor;
+
+		CheckpointingOutputStream(FlashFile file, FlashFileOutputStream out, int size, int position, int runningCrc, String slotDescriptor) {
+			this.file = file;
+			this.out = out;
+			this.size = size;
+			this.position = this.lastCheckpoint = position;
+			this.runningCrc = runningCrc;
+			this.slotDescriptor = slotDescriptor;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		short getCrc() {
+			return CRC.finish(runningCrc);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			runningCrc = CRC.update(runningCrc, b, off, len);
+			position += len;
+			// only checkpoint at even lengths, so that the transfer can be resumed with an appending stream
+			if (position - lastCheckpoint >= CHECKPOINT_INTERVAL && (position & 1) == 0 && position < size) {
+				file.setComment(CHECKPOINT_PREFIX + size + " " + position + " " + runningCrc + " " + slotDescriptor);
+				out.flush();
+				lastCheckpoint = position;
+			}
+		}
+	}
 }
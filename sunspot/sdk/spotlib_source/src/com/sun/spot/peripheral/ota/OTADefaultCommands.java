@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.util.Enumeration;
 
 import com.sun.spot.flashmanagement.FlashFile;
+import com.sun.spot.flashmanagement.FlashFileInputStream;
 import com.sun.spot.flashmanagement.IFAT;
 import com.sun.spot.flashmanagement.IFlashFileInfo;
 import com.sun.spot.imp.MIDletSuiteDescriptor;
@@ -183,15 +184,12 @@ class OTADefaultCommands extends Thread implements ISpotAdminConstants, IOTAComm
 		helper.sendPrompt();
 	}
 
-	private void processFlashAppCmd(DataInputStream params, IOTACommandHelper helper) throws IOException {
+	private void processFlashAppCmd(DataInputStream params, IOTACommandHelper helper, boolean resume) throws IOException {
 		String fileNameOnTarget = params.readUTF();
 		FlashFile suiteFile = new FlashFile(fileNameOnTarget);
 		String currentSuiteUri = Isolate.currentIsolate().getParentSuiteSourceURI();
 
 		boolean isReplacingCurrentAppSuite = fileNameOnTarget.equals(currentSuiteUri);
-		boolean isRunningLibrary = currentSuiteUri.equals(ConfigPage.LIBRARY_URI);
-		boolean isLibrarySuiteObsolete = new FlashFile("obsolete:" + ConfigPage.LIBRARY_URI).exists();
-		boolean isMasterAppSuiteObsolete = !isRunningLibrary && new FlashFile("obsolete:" + currentSuiteUri).exists();
 		
 		/*
 		 *   ircas   irl    ilso   imaso      action
@@ -206,21 +204,12 @@ class OTADefaultCommands extends Thread implements ISpotAdminConstants, IOTAComm
 		 */
 		
 		if (!isReplacingCurrentAppSuite) {
-			if (isLibrarySuiteObsolete) {
-				helper.sendErrorDetails("Attempt to flash application suite while update to library is pending");
-				return;				
-			}
-			if (isMasterAppSuiteObsolete) {
-				helper.sendErrorDetails("Attempt to flash child suite while update to master is pending"); // because if we
-					// allowed this we'd need to perform a remap of the MMU, which would cause us to start executing the
-					// new bytecodes of the pending master app
+			String reason = reasonChildSuiteCannotBeFlashed(fileNameOnTarget);
+			if (reason != null) {
+				helper.sendErrorDetails(reason);
 				return;
 			}
 			if (suiteFile.exists()) {
-				if (helper.isSuiteInUse(fileNameOnTarget)) {
-					helper.sendErrorDetails("Attempt to replace child suite that is in use");
-					return;
-				}
 				VM.unregisterSuite(fileNameOnTarget);
 				suiteFile.delete();
 			}
@@ -234,7 +223,11 @@ class OTADefaultCommands extends Thread implements ISpotAdminConstants, IOTAComm
 		}
 		helper.sendPrompt();
 		Utils.log("[OTA] Flashing suite: " + fileNameOnTarget);
-		helper.replaceSuiteFile(params, fileNameOnTarget, virtualAddress);
+		if (resume) {
+			helper.resumeSuiteFile(params, fileNameOnTarget, virtualAddress);
+		} else {
+			helper.replaceSuiteFile(params, fileNameOnTarget, virtualAddress);
+		}
 		if (!isReplacingCurrentAppSuite) {
 			Utils.log("[OTA] remapping virtual addresses...");
 			suiteFile.map();
@@ -242,6 +235,113 @@ class OTADefaultCommands extends Thread implements ISpotAdminConstants, IOTAComm
 		helper.sendPrompt();
 	}
 
+	/**
+	 * Rebuild a suite on the SPOT from the copy already there and a {@link SuiteDelta} against it.
+	 * The host sends the length and CRC of the base it made the delta from, which are checked before
+	 * the delta is transferred, so that a SPOT running some other version of the suite is refused
+	 * without wasting radio time and the host can fall back to {@link ISpotAdminConstants#FLASH_APP_CMD}.
+	 */
+	private void processFlashAppDeltaCmd(DataInputStream params, IOTACommandHelper helper) throws IOException {
+		String fileNameOnTarget = params.readUTF();
+		int baseLength = params.readInt();
+		short baseCrc = params.readShort();
+		FlashFile suiteFile = new FlashFile(fileNameOnTarget);
+		boolean isReplacingCurrentAppSuite = fileNameOnTarget.equals(Isolate.currentIsolate().getParentSuiteSourceURI());
+
+		if (!suiteFile.exists()) {
+			helper.sendErrorDetails("Attempt to apply a delta to a suite that is not on flash");
+			return;
+		}
+		if (!isReplacingCurrentAppSuite) {
+			String reason = reasonChildSuiteCannotBeFlashed(fileNameOnTarget);
+			if (reason != null) {
+				helper.sendErrorDetails(reason);
+				return;
+			}
+		}
+		// the file includes the trailing suite verified flag byte, which is not part of the base
+		if (baseLength >= suiteFile.length() ||
+				SuiteDelta.crc(new FlashFileInputStream(suiteFile), baseLength) != baseCrc) {
+			helper.sendErrorDetails("Suite on flash does not match the delta's base");
+			return;
+		}
+		if (!isReplacingCurrentAppSuite) {
+			VM.unregisterSuite(fileNameOnTarget);
+		}
+		int virtualAddress = suiteFile.getVirtualAddress();
+		helper.sendPrompt();
+		Utils.log("[OTA] Flashing suite from delta: " + fileNameOnTarget);
+		if (!helper.replaceSuiteFileFromDelta(params, fileNameOnTarget, virtualAddress)) {
+			// the old suite is untouched and the error has been reported
+			if (!isReplacingCurrentAppSuite) {
+				suiteFile.map();
+			}
+			return;
+		}
+		if (!isReplacingCurrentAppSuite) {
+			// the old version isn't running, so there's no need to wait for a restart to remove it
+			FlashFile obsoleteFile = new FlashFile("obsolete:" + fileNameOnTarget);
+			if (obsoleteFile.exists()) {
+				obsoleteFile.delete();
+			}
+			Utils.log("[OTA] remapping virtual addresses...");
+			suiteFile.map();
+		}
+		helper.sendPrompt();
+	}
+
+	/**
+	 * Prepare to receive a suite broadcast by an {@link ImageDisseminator}. The signed command carries the
+	 * length and CRC of the image, so an image broadcast by anyone else is not accepted.
+	 */
+	private void processMulticastReceiveCmd(DataInputStream params, IOTACommandHelper helper) throws IOException {
+		String fileNameOnTarget = params.readUTF();
+		int imageId = params.readInt();
+		int length = params.readInt();
+		short crc = params.readShort();
+		String slotDescriptor = params.readUTF();
+		if (!fileNameOnTarget.equals(Isolate.currentIsolate().getParentSuiteSourceURI())) {
+			String reason = reasonChildSuiteCannotBeFlashed(fileNameOnTarget);
+			if (reason != null) {
+				helper.sendErrorDetails(reason);
+				return;
+			}
+		}
+		ImageDisseminator.getInstance().receive(fileNameOnTarget, imageId, length, crc, slotDescriptor);
+		helper.sendPrompt();
+	}
+
+	private void processMulticastSendCmd(DataInputStream params, IOTACommandHelper helper) throws IOException {
+		String fileNameOnTarget = params.readUTF();
+		int imageId = params.readInt();
+		if (!new FlashFile(fileNameOnTarget).exists()) {
+			helper.sendErrorDetails("Attempt to distribute a suite that is not on flash");
+			return;
+		}
+		ImageDisseminator.getInstance().serve(fileNameOnTarget, imageId);
+		helper.sendPrompt();
+	}
+
+	/**
+	 * @return why a suite other than the current application suite can't be flashed now, or null if it can
+	 */
+	static String reasonChildSuiteCannotBeFlashed(String fileNameOnTarget) {
+		String currentSuiteUri = Isolate.currentIsolate().getParentSuiteSourceURI();
+		boolean isRunningLibrary = currentSuiteUri.equals(ConfigPage.LIBRARY_URI);
+		if (new FlashFile("obsolete:" + ConfigPage.LIBRARY_URI).exists()) {
+			return "Attempt to flash application suite while update to library is pending";
+		}
+		if (!isRunningLibrary && new FlashFile("obsolete:" + currentSuiteUri).exists()) {
+			return "Attempt to flash child suite while update to master is pending"; // because if we
+				// allowed this we'd need to perform a remap of the MMU, which would cause us to start executing the
+				// new bytecodes of the pending master app
+		}
+		if (new FlashFile(fileNameOnTarget).exists() && OTACommandProcessor.suiteInUse(fileNameOnTarget)) {
+			return "Attempt to replace child suite that is in use";
+		}
+		return null;
+	}
+
 	private void processUndeployCmd(DataInputStream params, IOTACommandHelper helper) throws IOException {
 		String suiteUri = params.readUTF();
 		FlashFile suiteFile = new FlashFile(suiteUri);
@@ -371,7 +471,19 @@ class OTADefaultCommands extends Thread implements ISpotAdminConstants, IOTAComm
 			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processGetFileListCmd(params, helper); }
 		});
 		repository.addCommand(FLASH_APP_CMD, new ExtensionWrapper(SECURITY_LEVEL_FLASHAPP) {
-			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processFlashAppCmd(params, helper); }
+			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processFlashAppCmd(params, helper, false); }
+		});
+		repository.addCommand(FLASH_APP_RESUME_CMD, new ExtensionWrapper(SECURITY_LEVEL_FLASHAPP) {
+			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processFlashAppCmd(params, helper, true); }
+		});
+		repository.addCommand(FLASH_APP_DELTA_CMD, new ExtensionWrapper(SECURITY_LEVEL_FLASHAPP) {
+			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processFlashAppDeltaCmd(params, helper); }
+		});
+		repository.addCommand(MULTICAST_RECEIVE_CMD, new ExtensionWrapper(SECURITY_LEVEL_FLASHAPP) {
+			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processMulticastReceiveCmd(params, helper); }
+		});
+		repository.addCommand(MULTICAST_SEND_CMD, new ExtensionWrapper(SECURITY_LEVEL_FLASHAPP) {
+			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processMulticastSendCmd(params, helper); }
 		});
 		repository.addCommand(FLASH_LIB_CMD, new ExtensionWrapper(SECURITY_LEVEL_FLASHLIB) {
 			public void processCommand(DataInputStream params, IOTACommandHelper helper) throws IOException { processFlashLibCmd(params, helper); }
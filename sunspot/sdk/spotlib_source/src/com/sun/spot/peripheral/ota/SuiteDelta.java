@@ -0,0 +1,339 @@
+/*
+ * Copyright 2006-2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.ota;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.spot.flashmanagement.FlashFileInputStream;
+import com.sun.spot.util.CRC;
+
+/**
+ * The differences between two versions of a suite image, so that a SPOT that
+ * already has one version can be sent just what changed.
+ * <p/>
+ * A delta is the length of the new image as a big-end int, then a sequence of
+ * blocks that each produce the next part of the new image, then {@link #END}
+ * and the CRC of the whole new image. Each block is its type byte, its
+ * parameters and the CRC of the bytes it produced:
+ * <ul>
+ * <li>{@link #COPY} base offset, length: bytes copied from the old image</li>
+ * <li>{@link #ADD} base offset, length, number of changed bytes, then for each
+ * changed byte the number of unchanged bytes before it as an unsigned short and
+ * the difference to add to it. Recompiled code often differs from the old code
+ * only in the odd offset or constant pool index, so this is much shorter than
+ * the data it produces.</li>
+ * <li>{@link #INSERT} length, then length bytes of new data</li>
+ * </ul>
+ * Offsets and lengths are big-end ints and CRCs are those of {@link CRC}.
+ * <p/>
+ * {@link #create(byte[], int, byte[])} runs on the host to make a delta, and
+ * {@link #apply(DataInputStream, FlashFileInputStream, OutputStream)} runs on the
+ * SPOT, reading the old image from flash and writing the new one, a buffer at
+ * a time, to another flash file.
+ */
+public class SuiteDelta {
+
+	public static final byte END = 0;
+	public static final byte COPY = 1;
+	public static final byte ADD = 2;
+	public static final byte INSERT = 3;
+
+	private static final int BUFFER_SIZE = 512;
+
+	/**
+	 * Shortest run of matching bytes worth a COPY block
+	 */
+	private static final int MIN_MATCH = 16;
+	private static final int HASH_BITS = 16;
+	private static final int MAX_CANDIDATES = 32;
+	/**
+	 * Furthest an ADD block is extended beyond an exact match
+	 */
+	private static final int MAX_ADD_SCAN = 4096;
+
+	private SuiteDelta() {
+	}
+
+	/**
+	 * Rebuild a new image from an old one and a delta.
+	 *
+	 * @param delta the delta, positioned at its start
+	 * @param base the old image
+	 * @param out where to write the new image
+	 * @return the length of the new image
+	 * @throws InvalidDeltaException if the delta is corrupt or refers to data beyond the old image
+	 * @throws IOException if the streams fail
+	 */
+	public static int apply(DataInputStream delta, FlashFileInputStream base, OutputStream out) throws InvalidDeltaException, IOException {
+		int newLength = delta.readInt();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int imageCrc = CRC.INITIAL_CRC;
+		int written = 0;
+		int blockNumber = 0;
+		while (true) {
+			byte type = delta.readByte();
+			if (type == END) {
+				break;
+			}
+			int baseOffset = (type == INSERT) ? 0 : delta.readInt();
+			int length = delta.readInt();
+			if (length < 0 || written + length > newLength) {
+				throw new InvalidDeltaException("Delta block " + blockNumber + " overruns the new image");
+			}
+			if (type != INSERT) {
+				seek(base, baseOffset, blockNumber);
+			}
+			int changes = (type == ADD) ? delta.readInt() : 0;
+			int nextChange = (changes > 0) ? delta.readUnsignedShort() : length;
+			int blockCrc = CRC.INITIAL_CRC;
+			int remaining = length;
+			while (remaining > 0) {
+				int chunk = Math.min(remaining, BUFFER_SIZE);
+				switch (type) {
+					case COPY:
+						readBase(base, buffer, chunk, blockNumber);
+						break;
+					case ADD:
+						readBase(base, buffer, chunk, blockNumber);
+						int chunkStart = length - remaining;
+						while (nextChange < chunkStart + chunk) {
+							buffer[nextChange - chunkStart] += delta.readByte();
+							changes--;
+							nextChange = (changes > 0) ? nextChange + 1 + delta.readUnsignedShort() : length;
+						}
+						break;
+					case INSERT:
+						delta.readFully(buffer, 0, chunk);
+						break;
+					default:
+						throw new InvalidDeltaException("Delta block " + blockNumber + " has unknown type " + type);
+				}
+				out.write(buffer, 0, chunk);
+				blockCrc = CRC.update(blockCrc, buffer, 0, chunk);
+				imageCrc = CRC.update(imageCrc, buffer, 0, chunk);
+				remaining -= chunk;
+			}
+			if (changes != 0) {
+				throw new InvalidDeltaException("Delta block " + blockNumber + " changes bytes beyond its end");
+			}
+			if (delta.readShort() != CRC.finish(blockCrc)) {
+				throw new InvalidDeltaException("Delta block " + blockNumber + " failed its CRC check");
+			}
+			written += length;
+			blockNumber++;
+		}
+		if (written != newLength) {
+			throw new InvalidDeltaException("Delta produced " + written + " bytes, expected " + newLength);
+		}
+		if (delta.readShort() != CRC.finish(imageCrc)) {
+			throw new InvalidDeltaException("New image failed its CRC check");
+		}
+		return newLength;
+	}
+
+	/**
+	 * Calculate the CRC of the start of an image, so that a delta is only applied
+	 * to the image it was made from.
+	 *
+	 * @param image the image
+	 * @param length how many bytes to include
+	 * @return the CRC
+	 * @throws IOException if the image is shorter than length
+	 */
+	public static short crc(FlashFileInputStream image, int length) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int runningCrc = CRC.INITIAL_CRC;
+		int remaining = length;
+		while (remaining > 0) {
+			int n = image.read(buffer, 0, Math.min(remaining, BUFFER_SIZE));
+			if (n < 0) {
+				throw new IOException("Image is shorter than " + length + " bytes");
+			}
+			runningCrc = CRC.update(runningCrc, buffer, 0, n);
+			remaining -= n;
+		}
+		return CRC.finish(runningCrc);
+	}
+
+	private static void seek(FlashFileInputStream base, int offset, int blockNumber) throws InvalidDeltaException {
+		try {
+			base.seek(offset);
+		} catch (IOException e) {
+			throw new InvalidDeltaException("Delta block " + blockNumber + " starts beyond the old image");
+		}
+	}
+
+	private static void readBase(FlashFileInputStream base, byte[] buffer, int length, int blockNumber) throws IOException, InvalidDeltaException {
+		int read = 0;
+		while (read < length) {
+			int n = base.read(buffer, read, length - read);
+			if (n < 0) {
+				throw new InvalidDeltaException("Delta block " + blockNumber + " runs beyond the old image");
+			}
+			read += n;
+		}
+	}
+
+	/**
+	 * Make a delta that turns one image into another.
+	 *
+	 * @param base the old image, as on the SPOT
+	 * @param baseLength how much of base to use
+	 * @param target the new image
+	 * @return the delta
+	 */
+	public static byte[] create(byte[] base, int baseLength, byte[] target) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(target.length / 8 + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(target.length);
+			int[] head = new int[1 << HASH_BITS];
+			int[] next = new int[Math.max(0, baseLength - MIN_MATCH + 1)];
+			for (int i = 0; i < head.length; i++) {
+				head[i] = -1;
+			}
+			for (int i = 0; i < next.length; i++) {
+				int h = hash(base, i);
+				next[i] = head[h];
+				head[h] = i;
+			}
+
+			int literalStart = 0;
+			int position = 0;
+			while (position + MIN_MATCH <= target.length) {
+				int bestOffset = -1;
+				int bestLength = 0;
+				int candidates = 0;
+				for (int c = head[hash(target, position)]; c >= 0 && candidates < MAX_CANDIDATES; c = next[c], candidates++) {
+					int length = matchLength(base, c, baseLength, target, position);
+					if (length > bestLength) {
+						bestLength = length;
+						bestOffset = c;
+					}
+				}
+				if (bestLength < MIN_MATCH) {
+					position++;
+					continue;
+				}
+				writeInsert(out, target, literalStart, position - literalStart);
+				writeBlock(out, COPY, bestOffset, target, position, bestLength, null);
+				position += bestLength;
+				int addLength = addLength(base, bestOffset + bestLength, baseLength, target, position);
+				if (addLength > 0) {
+					writeBlock(out, ADD, bestOffset + bestLength, target, position, addLength, base);
+					position += addLength;
+				}
+				literalStart = position;
+			}
+			writeInsert(out, target, literalStart, target.length - literalStart);
+			out.writeByte(END);
+			out.writeShort(CRC.crc(target, 0, target.length));
+			out.flush();
+		} catch (IOException e) {
+			// cannot happen writing to a byte array
+			throw new RuntimeException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int h = 0;
+		for (int i = 0; i < MIN_MATCH; i++) {
+			h = h * 31 + data[offset + i];
+		}
+		return (h ^ (h >>> HASH_BITS)) & ((1 << HASH_BITS) - 1);
+	}
+
+	private static int matchLength(byte[] base, int baseOffset, int baseLength, byte[] target, int position) {
+		int length = 0;
+		while (baseOffset + length < baseLength && position + length < target.length
+				&& base[baseOffset + length] == target[position + length]) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Find how far the old and new images carry on mostly matching after an
+	 * exact match ends, in the way bsdiff does: the length that maximises
+	 * twice the number of matching bytes less the length, so that the run is
+	 * more than half matches.
+	 */
+	private static int addLength(byte[] base, int baseOffset, int baseLength, byte[] target, int position) {
+		int limit = Math.min(MAX_ADD_SCAN, Math.min(baseLength - baseOffset, target.length - position));
+		int matches = 0;
+		int bestScore = 0;
+		int bestLength = 0;
+		for (int i = 0; i < limit; i++) {
+			if (base[baseOffset + i] == target[position + i]) {
+				matches++;
+			}
+			int score = 2 * matches - (i + 1);
+			if (score > bestScore) {
+				bestScore = score;
+				bestLength = i + 1;
+			}
+		}
+		return bestLength;
+	}
+
+	private static void writeInsert(DataOutputStream out, byte[] target, int offset, int length) throws IOException {
+		if (length > 0) {
+			writeBlock(out, INSERT, 0, target, offset, length, null);
+		}
+	}
+
+	private static void writeBlock(DataOutputStream out, byte type, int baseOffset, byte[] target, int offset, int length, byte[] base) throws IOException {
+		out.writeByte(type);
+		if (type != INSERT) {
+			out.writeInt(baseOffset);
+		}
+		out.writeInt(length);
+		if (type == ADD) {
+			int changes = 0;
+			for (int i = 0; i < length; i++) {
+				if (target[offset + i] != base[baseOffset + i]) {
+					changes++;
+				}
+			}
+			out.writeInt(changes);
+			int previous = -1;
+			for (int i = 0; i < length; i++) {
+				if (target[offset + i] != base[baseOffset + i]) {
+					out.writeShort(i - previous - 1);
+					out.writeByte(target[offset + i] - base[baseOffset + i]);
+					previous = i;
+				}
+			}
+		} else if (type == INSERT) {
+			out.write(target, offset, length);
+		}
+		out.writeShort(CRC.crc(target, offset, length));
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * A backoff policy that tunes itself from the outcome of the most recent
+ * {@link #WINDOW_SIZE} clear channel assessments and ACK waits for each
+ * destination.
+ * <p/>
+ * When CCA keeps failing the channel is congested, so the initial backoff
+ * exponent is raised to spread contending senders out, and retries are
+ * delayed for longer. When ACKs are lost occasionally more retries are allowed,
+ * but when nearly every ACK is lost the neighbour has probably gone away and
+ * the retry budget is cut so that the routing layer can find another route
+ * without first wasting airtime.
+ * <p/>
+ * The history is kept as bit masks so the per-packet cost is a few shifts and
+ * adds; no floating point is used. At most {@link #MAX_DESTINATIONS}
+ * destinations are tracked; the least recently used one is forgotten when the
+ * table is full.
+ */
+public class AdaptiveBackoffPolicy implements IBackoffPolicy {
+
+    /**
+     * Number of recent outcomes remembered for each destination
+     */
+    public static final int WINDOW_SIZE = 32;
+    public static final int MAX_DESTINATIONS = 32;
+
+    private static final int MAX_BE = 8;
+    private static final int MIN_FRAME_RETRIES = 1;
+    private static final int MAX_FRAME_RETRIES = 6;
+    /**
+     * Don't adapt until this many outcomes have been seen
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    private Hashtable destinations = new Hashtable();
+    private int useCounter = 0;
+    private DefaultBackoffPolicy defaults = new DefaultBackoffPolicy();
+
+    public synchronized int getMinBackoffExponent(long destination) {
+        int failures = ccaFailuresIn32(destination);
+        if (failures < 0) {
+            return defaults.getMinBackoffExponent(destination);
+        }
+        if (failures <= 2) {            // < ~6%: the channel is quiet, send at once
+            return 0;
+        } else if (failures <= 8) {     // < 25%
+            return 2;
+        } else if (failures <= 16) {    // < 50%
+            return 3;
+        } else {
+            return 4;
+        }
+    }
+
+    public synchronized int getMaxBackoffExponent(long destination) {
+        int failures = ccaFailuresIn32(destination);
+        if (failures < 0) {
+            return defaults.getMaxBackoffExponent(destination);
+        }
+        return Math.min(MAX_BE, Math.max(DefaultBackoffPolicy.A_MAX_BE, getMinBackoffExponent(destination) + 3));
+    }
+
+    public int getMaxCSMABackoffs(long destination) {
+        return defaults.getMaxCSMABackoffs(destination);
+    }
+
+    public synchronized int getMaxFrameRetries(long destination) {
+        int losses = ackLossesIn32(destination);
+        if (losses < 0) {
+            return defaults.getMaxFrameRetries(destination);
+        }
+        if (losses >= 28) {             // > ~90%: the link has probably gone
+            return MIN_FRAME_RETRIES;
+        } else if (losses <= 2) {
+            return DefaultBackoffPolicy.A_MAX_FRAME_RETRIES - 1;
+        } else if (losses <= 8) {
+            return DefaultBackoffPolicy.A_MAX_FRAME_RETRIES;
+        } else if (losses <= 16) {
+            return DefaultBackoffPolicy.A_MAX_FRAME_RETRIES + 1;
+        } else {
+            return MAX_FRAME_RETRIES;
+        }
+    }
+
+    public synchronized int getTimeBeforeRetry(long destination, int retry) {
+        int wait = defaults.getTimeBeforeRetry(destination, retry);
+        int failures = ccaFailuresIn32(destination);
+        if (failures > 0) {
+            // stretch by up to 2x as the channel gets busier
+            wait += (wait * failures) >> 5;
+        }
+        return wait;
+    }
+
+    public synchronized void channelAccessAttempted(long destination, boolean channelClear) {
+        DestinationState state = lookup(destination, true);
+        state.ccaHistory = (state.ccaHistory << 1) | (channelClear ? 0 : 1);
+        if (state.ccaSamples < WINDOW_SIZE) {
+            state.ccaSamples++;
+        }
+    }
+
+    public synchronized void ackAttempted(long destination, boolean acked) {
+        DestinationState state = lookup(destination, true);
+        state.ackHistory = (state.ackHistory << 1) | (acked ? 0 : 1);
+        if (state.ackSamples < WINDOW_SIZE) {
+            state.ackSamples++;
+        }
+    }
+
+    /**
+     * Forget everything learnt about all destinations.
+     */
+    public synchronized void reset() {
+        destinations.clear();
+    }
+
+    /**
+     * @return the number of CCA failures in the window scaled to a window of 32, or -1 if too few samples
+     */
+    private int ccaFailuresIn32(long destination) {
+        DestinationState state = lookup(destination, false);
+        if (state == null || state.ccaSamples < MIN_SAMPLES) {
+            return -1;
+        }
+        return (bitCount(state.ccaHistory, state.ccaSamples) << 5) / state.ccaSamples;
+    }
+
+    /**
+     * @return the number of ACK losses in the window scaled to a window of 32, or -1 if too few samples
+     */
+    private int ackLossesIn32(long destination) {
+        DestinationState state = lookup(destination, false);
+        if (state == null || state.ackSamples < MIN_SAMPLES) {
+            return -1;
+        }
+        return (bitCount(state.ackHistory, state.ackSamples) << 5) / state.ackSamples;
+    }
+
+    private DestinationState lookup(long destination, boolean create) {
+        Long key = new Long(destination);
+        DestinationState state = (DestinationState) destinations.get(key);
+        if (state == null) {
+            if (!create) {
+                return null;
+            }
+            if (destinations.size() >= MAX_DESTINATIONS) {
+                evictLeastRecentlyUsed();
+            }
+            state = new DestinationState();
+            destinations.put(key, state);
+        }
+        state.lastUsed = ++useCounter;
+        return state;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Object oldestKey = null;
+        int oldestAge = -1;
+        Enumeration keys = destinations.keys();
+        while (keys.hasMoreElements()) {
+            Object key = keys.nextElement();
+            int age = useCounter - ((DestinationState) destinations.get(key)).lastUsed; // safe across wrap
+            if (age > oldestAge) {
+                oldestAge = age;
+                oldestKey = key;
+            }
+        }
+        if (oldestKey != null) {
+            destinations.remove(oldestKey);
+        }
+    }
+
+    private static int bitCount(int bits, int samples) {
+        if (samples < WINDOW_SIZE) {
+            bits &= (1 << samples) - 1;
+        }
+        bits = bits - ((bits >>> 1) & 0x55555555);
+        bits = (bits & 0x33333333) + ((bits >>> 2) & 0x33333333);
+        bits = (bits + (bits >>> 4)) & 0x0F0F0F0F;
+        return (bits * 0x01010101) >>> 24;
+    }
+
+    private static class DestinationState {
+        int ccaHistory;
+        int ccaSamples;
+        int ackHistory;
+        int ackSamples;
+        int lastUsed;
+    }
+}
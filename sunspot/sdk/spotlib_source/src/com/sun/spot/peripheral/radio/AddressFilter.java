@@ -0,0 +1,138 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio;
+
+/**
+ * An immutable whitelist or blacklist of radio addresses used by the MAC
+ * receive thread to decide which packets to keep.
+ * <p/>
+ * The addresses are held in an open addressing hash table with linear probing
+ * that is never more than half full, so a lookup costs a hash and usually one
+ * or two probes however long the list. Because a filter never changes once
+ * built, the MAC can replace its filter with a single reference assignment
+ * while packets are being received.
+ */
+final class AddressFilter {
+
+    private static final long EMPTY = 0;
+
+    private final boolean whitelist;
+    private final long[] table;
+    private final int mask;
+    private final int size;
+    private final boolean containsEmpty;   // address 0 cannot be stored in the table
+
+    /**
+     * Build a filter.
+     *
+     * @param addresses the addresses to match; duplicates are ignored
+     * @param count how many entries of addresses to use
+     * @param whitelist true to accept only packets from these addresses, false to reject them
+     */
+    AddressFilter(long[] addresses, int count, boolean whitelist) {
+        this.whitelist = whitelist;
+        int capacity = 4;
+        while (capacity < 2 * count) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+        mask = capacity - 1;
+        boolean sawEmpty = false;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            long address = addresses[i];
+            if (address == EMPTY) {
+                if (!sawEmpty) {
+                    sawEmpty = true;
+                    n++;
+                }
+                continue;
+            }
+            int slot = hash(address) & mask;
+            while (table[slot] != EMPTY && table[slot] != address) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == EMPTY) {
+                table[slot] = address;
+                n++;
+            }
+        }
+        containsEmpty = sawEmpty;
+        size = n;
+    }
+
+    /**
+     * @param sourceAddress the address a packet was sent from
+     * @return true if the packet should be delivered
+     */
+    boolean accepts(long sourceAddress) {
+        return whitelist == contains(sourceAddress);
+    }
+
+    /**
+     * @param address a radio address
+     * @return true if the address is in the list
+     */
+    boolean contains(long address) {
+        if (address == EMPTY) {
+            return containsEmpty;
+        }
+        int slot = hash(address) & mask;
+        long entry;
+        while ((entry = table[slot]) != EMPTY) {
+            if (entry == address) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this is a whitelist, false if it is a blacklist
+     */
+    boolean isWhitelist() {
+        return whitelist;
+    }
+
+    /**
+     * @return the number of distinct addresses in the list
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * SPOT addresses differ mostly in their low bits, so mix all of them
+     * before they are masked down to a table index.
+     */
+    private static int hash(long address) {
+        address ^= address >>> 33;
+        address *= 0xff51afd7ed558ccdL;
+        address ^= address >>> 33;
+        return (int) address;
+    }
+}
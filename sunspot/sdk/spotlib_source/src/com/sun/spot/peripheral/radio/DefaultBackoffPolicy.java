@@ -0,0 +1,70 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+/**
+ * The fixed backoff and retry parameters the SPOT MAC has always used. The
+ * observed channel load is ignored.
+ */
+public class DefaultBackoffPolicy implements IBackoffPolicy {
+
+    public static final int A_MAX_FRAME_RETRIES = 4;  // was 3
+    public static final int A_MAX_BE = 5;
+    public static final int MAC_MIN_BE = 0;    // was 3; // use 0 so no initial wait before transmitting
+    public static final int DEFAULT_MAX_CSMA_BACKOFFS = 5; // was 4;
+
+    private static final int[] RETRY_WAITS = {
+        10,  // was 0;
+        50,
+        120, // was 200;
+        120
+    };
+
+    public int getMinBackoffExponent(long destination) {
+        return MAC_MIN_BE;
+    }
+
+    public int getMaxBackoffExponent(long destination) {
+        return A_MAX_BE;
+    }
+
+    public int getMaxCSMABackoffs(long destination) {
+        return DEFAULT_MAX_CSMA_BACKOFFS;
+    }
+
+    public int getMaxFrameRetries(long destination) {
+        return A_MAX_FRAME_RETRIES;
+    }
+
+    public int getTimeBeforeRetry(long destination, int retry) {
+        return RETRY_WAITS[Math.min(retry, RETRY_WAITS.length - 1)];
+    }
+
+    public void channelAccessAttempted(long destination, boolean channelClear) {
+    }
+
+    public void ackAttempted(long destination, boolean acked) {
+    }
+}
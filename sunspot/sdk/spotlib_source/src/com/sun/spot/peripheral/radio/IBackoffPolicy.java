@@ -0,0 +1,86 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+/**
+ * Decides how the MAC layer backs off and retries when sending a packet.
+ * The MAC asks the policy for its CSMA and retry parameters before each send
+ * and reports the outcome of every clear channel assessment and every wait for
+ * an ACK, so that a policy can adapt to the load it observes.
+ * <p/>
+ * All methods take the MAC address of the packet's destination (0xFFFF for
+ * broadcasts) so that a policy can keep separate state per neighbour.
+ * Methods are called on the sending thread while it owns the transmitter, and
+ * must be cheap and must not block.
+ */
+public interface IBackoffPolicy {
+
+    /**
+     * @param destination the destination of the packet being sent
+     * @return the backoff exponent to use for the first CSMA backoff
+     */
+    int getMinBackoffExponent(long destination);
+
+    /**
+     * @param destination the destination of the packet being sent
+     * @return the largest backoff exponent CSMA may reach
+     */
+    int getMaxBackoffExponent(long destination);
+
+    /**
+     * @param destination the destination of the packet being sent
+     * @return how many times CSMA may find the channel busy before reporting a channel access failure
+     */
+    int getMaxCSMABackoffs(long destination);
+
+    /**
+     * @param destination the destination of the packet being sent
+     * @return how many times an unacknowledged packet is retransmitted
+     */
+    int getMaxFrameRetries(long destination);
+
+    /**
+     * @param destination the destination of the packet being sent
+     * @param retry the retry about to be made, 0 being the first retry
+     * @return the time in milliseconds to wait before the retry
+     */
+    int getTimeBeforeRetry(long destination, int retry);
+
+    /**
+     * Called after each clear channel assessment.
+     *
+     * @param destination the destination of the packet being sent
+     * @param channelClear true if the channel was clear and the packet was transmitted
+     */
+    void channelAccessAttempted(long destination, boolean channelClear);
+
+    /**
+     * Called after each transmission of a packet that requested an ACK.
+     *
+     * @param destination the destination of the packet being sent
+     * @param acked true if the expected ACK was received
+     */
+    void ackAttempted(long destination, boolean acked);
+}
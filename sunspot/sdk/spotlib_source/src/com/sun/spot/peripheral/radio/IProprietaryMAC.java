@@ -52,7 +52,74 @@ public interface IProprietaryMAC {
 	int getRxError();
 
 	/**
-	 * Reset the NullPacketAfterAckWait, ChannelAccessFailure, NoAck, WrongAck and RxError counters to zero.
+	 * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+	 * @return the number of senders of that traffic class currently waiting to transmit
+	 */
+	int getTransmitQueueDepth(int trafficClass);
+
+	/**
+	 * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+	 * @return the count of sends of that traffic class dropped because too many were waiting to transmit
+	 */
+	int getTransmitDrops(int trafficClass);
+
+	/**
+	 * Set the maximum number of senders of a traffic class that may wait to transmit. Further
+	 * sends of that class fail with a channel access failure until the queue drains.
+	 *
+	 * @param trafficClass one of the TransmitScheduler.TRAFFIC_CLASS_* values
+	 * @param depth the maximum number of waiting senders
+	 */
+	void setMaxTransmitQueueDepth(int trafficClass, int depth);
+
+	/**
+	 * Replace the policy that decides how the MAC backs off when the channel is busy
+	 * and how often it retries unacknowledged packets.
+	 *
+	 * @param policy the new policy
+	 */
+	void setBackoffPolicy(IBackoffPolicy policy);
+
+	/**
+	 * @return the policy that decides how the MAC backs off and retries
+	 */
+	IBackoffPolicy getBackoffPolicy();
+
+	/**
+	 * Set how long a send keeps repeating its frame so that it reaches a receiver that only listens
+	 * briefly once per check interval (low-power listening). Unicast frames stop repeating as soon as
+	 * they are acknowledged; broadcasts are repeated for the whole period. Every node that may send to a
+	 * duty-cycled node should use a period at least as long as that node's check interval.
+	 *
+	 * @param millis the wakeup period, or 0 to send frames with the usual retries only
+	 */
+	void setWakeupPeriod(int millis);
+
+	/**
+	 * @return the wakeup period in milliseconds, or 0 if frames are not repeated
+	 */
+	int getWakeupPeriod();
+
+	/**
+	 * Install the schedule that decides when periodic traffic may be sent. Frames of
+	 * TransmitScheduler.TRAFFIC_CLASS_PERIODIC wait for this node's slot before competing
+	 * for the transmitter; other traffic is not affected.
+	 *
+	 * @param schedule the schedule, or null to send periodic traffic straight away
+	 */
+	void setSlotSchedule(ISlotSchedule schedule);
+
+	/**
+	 * Turn the receiver on for a short time to find out whether a neighbour is sending. The receiver
+	 * is left in the state the MAC_RX_ON_WHEN_IDLE attribute asks for afterwards.
+	 *
+	 * @param listenMillis how long to listen; this should be longer than the gap between repeated frames
+	 * @return true if a frame was received while listening
+	 */
+	boolean checkChannel(int listenMillis);
+
+	/**
+	 * Reset the NullPacketAfterAckWait, ChannelAccessFailure, NoAck, WrongAck, RxError and transmit drop counters to zero.
 	 */
 	public void resetErrorCounters();
 
@@ -50,9 +50,36 @@ public interface IRadioPolicyManager {
 	 */
 	void deregisterConnection(IConnectionID conn);
 
+
+	/**
+	 * Set the longest extra delay a connection can accept before a packet sent to it is received.
+	 * With low-power listening on, the receiver checks the channel as often as the smallest budget
+	 * of any connection that wants the radio on asks for, and at least once per low-power listening
+	 * interval. A budget too short to duty cycle for keeps the receiver fully on.
+	 * 
+	 * @param conn the connection the budget applies to
+	 * @param millis the latency budget in milliseconds, or -1 to remove the connection's budget
+	 */
+	void setLatencyBudget(IConnectionID conn, int millis);
+
+	/**
+	 * Turn low-power listening on or off. While on, the receiver is duty-cycled instead of being left on
+	 * for connections that want it on, and every send is strobed for long enough to reach a neighbour that
+	 * checks the channel once per interval. All nodes that talk to each other should use the same interval.
+	 * The initial value comes from the system property radio.lpl.interval (or the manifest property
+	 * radio-lpl-interval).
+	 * 
+	 * @param millis the longest time between channel checks, or 0 to keep the receiver fully on
+	 */
+	void setLowPowerListeningInterval(int millis);
+
+	/**
+	 * @return the low-power listening interval in milliseconds, or 0 if low-power listening is off
+	 */
+	int getLowPowerListeningInterval();
 	
 	/**
-	 * @return true if the radio receiver is currently enabled
+	 * @return true if the radio receiver is currently enabled, either fully or duty-cycled
 	 */
 	boolean isRadioReceiverOn();
 	
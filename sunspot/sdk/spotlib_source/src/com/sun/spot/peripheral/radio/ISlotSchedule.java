@@ -0,0 +1,44 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+/**
+ * Tells the MAC layer when this node may send periodic traffic. When a schedule is
+ * installed with {@link IProprietaryMAC#setSlotSchedule(ISlotSchedule)}, frames of
+ * {@link TransmitScheduler#TRAFFIC_CLASS_PERIODIC} are held until this node's slot
+ * opens, and then sent with CSMA as usual. All other traffic ignores the schedule.
+ * <p/>
+ * Called on the sending thread before it competes for the transmitter, so it must be
+ * cheap, but it may be called often.
+ */
+public interface ISlotSchedule {
+
+    /**
+     * @return milliseconds until this node's transmit slot opens, 0 if it is open now,
+     * or -1 if there is no usable schedule (for example, the clock is not synchronised)
+     * and periodic traffic should be sent straight away
+     */
+    long getTimeUntilSlot();
+}
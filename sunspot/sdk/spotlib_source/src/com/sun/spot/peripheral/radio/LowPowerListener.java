@@ -0,0 +1,85 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+import com.sun.spot.util.Utils;
+
+/**
+ * Duty-cycles the radio receiver for low-power listening. Once every check interval the receiver
+ * is turned on for {@link #CHECK_WINDOW} milliseconds. If a frame arrives it is kept on until
+ * {@link #HOLD_WINDOW} milliseconds pass without another one; otherwise it goes straight back off.
+ * Senders repeat their frames for the MAC's wakeup period, so a frame sent while this node is
+ * asleep is heard at its next check.<br />
+ * <br />
+ * Between checks this thread just sleeps, so if the interval is longer than the sleep manager's
+ * minimum deep sleep time the SPOT deep sleeps between checks.
+ */
+class LowPowerListener extends Thread {
+
+	/**
+	 * How long each check listens for: long enough to span a frame and the gap before its repeat.
+	 */
+	static final int CHECK_WINDOW = 12;
+
+	/**
+	 * How long the receiver stays on after the last frame heard, so that replies and the rest of
+	 * a multi-frame exchange are not missed.
+	 */
+	static final int HOLD_WINDOW = 100;
+
+	private IProprietaryMAC mac;
+	private int checkInterval;
+	private boolean running = true;
+
+	LowPowerListener(IProprietaryMAC mac, int checkInterval) {
+		super("LowPowerListener");
+		this.mac = mac;
+		this.checkInterval = checkInterval;
+		setPriority(Thread.MAX_PRIORITY - 1);
+		RadioFactory.setAsDaemonThread(this);
+	}
+
+	void setCheckInterval(int checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	void stopListening() {
+		running = false;
+		interrupt();
+	}
+
+	public void run() {
+		while (running) {
+			if (mac.checkChannel(CHECK_WINDOW)) {
+				while (running && mac.checkChannel(HOLD_WINDOW)) {
+					// keep listening while there is traffic
+				}
+			}
+			if (running) {
+				Utils.sleep(Math.max(checkInterval - CHECK_WINDOW, 0));
+			}
+		}
+	}
+}
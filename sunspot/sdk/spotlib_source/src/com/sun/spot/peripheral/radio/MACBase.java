@@ -44,10 +44,11 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
     private static final int TIME_TO_WAIT_FOR_ACK_MICROSECS = 864; // = 54 symbol periods
     public static final int DEFAULT_MAX_RECEIVE_QUEUE_LENGTH = 1500;
     private static final int DEFAULT_RECEIVE_QUEUE_LENGTH_TO_DROP_BROADCAST_PACKETS = 1000;
+    private static final int RECENT_RX_FRAMES = 8; // frames remembered to recognise strobe copies
     private Thread receiveThread;
     private byte macDSN;
     private Object ackMonitor = new Object();
-    private Object sendMonitor = new Object();
+    private TransmitScheduler transmitScheduler = new TransmitScheduler();
     private boolean awaitingAck;
     private byte ackDSN;
     private RadioPacket lastAck;
@@ -62,16 +63,22 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
     private int nullPacketAfterAckWait = 0;
     private int maxReceiveQueueLength = DEFAULT_MAX_RECEIVE_QUEUE_LENGTH;
     private int receiveQueueLengthToDropBroadcastPackets = DEFAULT_RECEIVE_QUEUE_LENGTH_TO_DROP_BROADCAST_PACKETS;
-    static final int A_MAX_FRAME_RETRIES = 4;  // was 3
-    static final int A_MAX_BE = 5;
+    protected IBackoffPolicy backoffPolicy = new DefaultBackoffPolicy();
+    private int wakeupPeriod = 0;
+    private ISlotSchedule slotSchedule = null;
+    private int rxFrameCount = 0;
+    private long[] recentRxSources = new long[RECENT_RX_FRAMES];
+    private byte[] recentRxDSNs = new byte[RECENT_RX_FRAMES];
+    private int recentRxCount = 0;
+    private int nextRecentRx = 0;
+    private boolean transmitting = false;
+    private Object transmitLock = new Object();
 
     private ILed receiveLed = Spot.getInstance().getGreenLed();
     private ILed sendLed = Spot.getInstance().getRedLed();
     private boolean showUse = false;
 
-    private boolean filterPackets = false;
-    private boolean filterWhitelist = true;
-    private long filterList[];
+    private AddressFilter addressFilter = null;     // null when not filtering
     
     /*
      * (non-Javadoc)
@@ -81,17 +88,33 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
      */
     public final int mcpsDataRequest(RadioPacket rp) {
         // TODO Check RadioPacket params (or should the RadioPacket do its own checking?)
-        synchronized (sendMonitor) {
+        if (rp.getTrafficClass() == TransmitScheduler.TRAFFIC_CLASS_PERIODIC) {
+            waitForSlot();
+        }
+        if (!transmitScheduler.acquire(rp.getTrafficClass())) {
+            // too many senders of this class already waiting: treat as a busy channel
+            return I802_15_4_MAC.CHANNEL_ACCESS_FAILURE;
+        }
+        try {
 
             byte myDSN = getDSN();
             rp.setDSN(myDSN);
 
             int result = I802_15_4_MAC.NO_ACK;
-
+            IBackoffPolicy policy = backoffPolicy;
+            long destination = rp.getDestinationAddress();
+            int maxFrameRetries = policy.getMaxFrameRetries(destination);
+            // with low-power listening the frame is repeated until the receiver wakes up and acks it
+            long strobeDeadline = wakeupPeriod > 0 ? System.currentTimeMillis() + wakeupPeriod : 0;
+
+            // stop a low-power listener turning RX off under us
+            synchronized (transmitLock) {
+                transmitting = true;
+            }
             // Enable RX. Note that we do this *even* if we aren't expecting to receive an ack,
             // as otherwise sendIfChannelClear() will be unable to detect whether the channel is clear
             enableRx();
-            for (int i = 0; i <= A_MAX_FRAME_RETRIES; i++) {
+            for (int i = 0; i <= maxFrameRetries || isStrobing(strobeDeadline); i++) {
 
                 int currentPriority = Thread.currentThread().getPriority();
                 VM.setSystemThreadPriority(Thread.currentThread(), VM.MAX_SYS_PRIORITY);
@@ -105,16 +128,21 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
                             if (pollForAckPacket(myDSN)) {
                                 result = I802_15_4_MAC.SUCCESS;
                                 VM.setSystemThreadPriority(Thread.currentThread(), currentPriority);
+                                policy.ackAttempted(destination, true);
                                 break;
-                            } else {
+                            }
+                            VM.setSystemThreadPriority(Thread.currentThread(), currentPriority);
+                            // a strobe that the receiver slept through says nothing about the link
+                            boolean strobing = isStrobing(strobeDeadline);
+                            if (!strobing) {
                                 noAck++;
 //							Utils.log("Timed out waiting for ack of my packet with DSN " + myDSN + " for retry (i)=" + i);
+                                policy.ackAttempted(destination, false);
                             }
-                            VM.setSystemThreadPriority(Thread.currentThread(), currentPriority);
 
                             // didn't break out, so didn't find ack: don't bother to sleep if we aren't going around again
-                            if (i < A_MAX_FRAME_RETRIES) {
-                                int timeBeforeRetry = getTimeBeforeRetry(i);
+                            if (i < maxFrameRetries && !strobing) {
+                                int timeBeforeRetry = getTimeBeforeRetry(destination, i);
                                 if (timeBeforeRetry != 0) {
                                     int initialDelay = 2 * timeBeforeRetry / 3;
                                     Utils.sleep(initialDelay + random(timeBeforeRetry - initialDelay));
@@ -123,7 +151,9 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
                         } else {
                             VM.setSystemThreadPriority(Thread.currentThread(), currentPriority);
                             result = I802_15_4_MAC.SUCCESS;
-                            break;
+                            if (!isStrobing(strobeDeadline)) {
+                                break;
+                            }
                         }
                     }
                 } catch (RuntimeException e) {
@@ -136,7 +166,81 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
                 sendLed.setOn(!sendLed.isOn());
             }
             return result;
+        } finally {
+            synchronized (transmitLock) {
+                transmitting = false;
+            }
+            transmitScheduler.release();
+        }
+    }
+
+    /*
+     * Hold a periodic frame until our slot opens. The frame may still miss the slot if the
+     * transmitter is busy when it opens; it is then sent with plain CSMA.
+     */
+    private void waitForSlot() {
+        ISlotSchedule schedule = slotSchedule;
+        if (schedule != null) {
+            long wait = schedule.getTimeUntilSlot();
+            if (wait > 0) {
+                Utils.sleep(wait);
+            }
+        }
+    }
+
+    public void setSlotSchedule(ISlotSchedule schedule) {
+        slotSchedule = schedule;
+    }
+
+    private boolean isStrobing(long strobeDeadline) {
+        return strobeDeadline != 0 && System.currentTimeMillis() < strobeDeadline;
+    }
+
+    /**
+     * return true if this frame is a repeat of one of the last few received, sent because the
+     * sender was strobing to wake us up; only the first copy is passed on
+     */
+    private boolean isStrobeCopy(RadioPacket recvPacket) {
+        if (wakeupPeriod == 0) {
+            return false;
+        }
+        long source = recvPacket.getSourceAddress();
+        byte dsn = recvPacket.getDataSequenceNumber();
+        for (int i = 0; i < recentRxCount; i++) {
+            if (recentRxSources[i] == source && recentRxDSNs[i] == dsn) {
+                return true;
+            }
+        }
+        recentRxSources[nextRecentRx] = source;
+        recentRxDSNs[nextRecentRx] = dsn;
+        nextRecentRx = (nextRecentRx + 1) % RECENT_RX_FRAMES;
+        recentRxCount = Math.min(recentRxCount + 1, RECENT_RX_FRAMES);
+        return false;
+    }
+
+    public void setWakeupPeriod(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Wakeup period must not be negative");
+        }
+        wakeupPeriod = millis;
+    }
+
+    public int getWakeupPeriod() {
+        return wakeupPeriod;
+    }
+
+    public boolean checkChannel(int listenMillis) {
+        int framesBefore = rxFrameCount;
+        enableRx();
+        Utils.sleep(listenMillis);
+        boolean heard = rxFrameCount != framesBefore || isPhysicalRxDataWaiting();
+        synchronized (transmitLock) {
+            // a frame being sent turns RX off itself when it is done
+            if (!transmitting) {
+                conditionallyDisableRx();
+            }
         }
+        return heard;
     }
 
     /**
@@ -196,9 +300,24 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
     /*
      * Return how long to sleep before retrying a send. retry=0 implies the first retry 
      */
-    protected int getTimeBeforeRetry(int retry) {
-        // no delay unless overridden
-        return 0;
+    protected int getTimeBeforeRetry(long destination, int retry) {
+        return backoffPolicy.getTimeBeforeRetry(destination, retry);
+    }
+
+    /**
+     * Replace the policy that decides how sends back off and retry.
+     *
+     * @param policy the new policy
+     */
+    public void setBackoffPolicy(IBackoffPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Backoff policy must not be null");
+        }
+        backoffPolicy = policy;
+    }
+
+    public IBackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
     }
 
     protected void enableRx() {
@@ -336,9 +455,32 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
         showUse = "true".equalsIgnoreCase(Utils.getSystemProperty("radio.traffic.show.leds",
                 Utils.getManifestProperty("radio-traffic-show-leds", "false")));
         resetFiltering();
+        resetBackoffPolicy();
         startReceiveThread();
     }
 
+    /**
+     * Select the backoff policy named by the system property radio.backoff.policy
+     * (or the manifest property radio-backoff-policy): either "default", "adaptive"
+     * or the fully qualified name of a class implementing IBackoffPolicy.
+     */
+    public void resetBackoffPolicy() {
+        String name = Utils.getSystemProperty("radio.backoff.policy",
+                Utils.getManifestProperty("radio-backoff-policy", "default"));
+        if ("default".equalsIgnoreCase(name)) {
+            backoffPolicy = new DefaultBackoffPolicy();
+        } else if ("adaptive".equalsIgnoreCase(name)) {
+            backoffPolicy = new AdaptiveBackoffPolicy();
+        } else {
+            try {
+                backoffPolicy = (IBackoffPolicy) Class.forName(name).newInstance();
+            } catch (Exception e) {
+                System.out.println("Error: radio.backoff.policy not usable: " + name + " (" + e + ")");
+                backoffPolicy = new DefaultBackoffPolicy();
+            }
+        }
+    }
+
     private byte getDSN() {
         return macDSN++;
     }
@@ -361,37 +503,41 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
      * e.g. 1234 = 0014.4F01.0000.1234
      */
     public void resetFiltering() {
-        filterPackets = false;
+        AddressFilter filter = null;
         if ("true".equalsIgnoreCase(Utils.getSystemProperty("radio.filter",
                                     Utils.getManifestProperty("radio-filter", "false")))) {
             String addrList = Utils.getSystemProperty("radio.whitelist",
                                     Utils.getManifestProperty("radio-whitelist", null));
-                filterWhitelist = true;
+            boolean whitelist = true;
             if (addrList == null || addrList.length() < 1) {
-                filterWhitelist = false;
+                whitelist = false;
                 addrList = Utils.getSystemProperty("radio.blacklist",
                                     Utils.getManifestProperty("radio-blacklist", null));
             }
             // comma separated list of LSBs: 0117, 29e2, 51.047A
             if (addrList != null && addrList.trim().length() > 1) {
-                System.out.println("*** Radio will " + (filterWhitelist ? "only handle" : "ignore") + " packets received from: ");
+                System.out.println("*** Radio will " + (whitelist ? "only handle" : "ignore") + " packets received from: ");
                 String addresses[] = Utils.split(addrList, ',');
-                filterList = new long[addresses.length];
+                long filterList[] = new long[addresses.length];
+                int count = 0;
                 for (int i = 0; i < addresses.length; i++) {
                     String addr = addresses[i].trim();
                     try {
-                        filterList[i] = IEEEAddress.toLong("0014.4F01.0000.0000".substring(0, 19 - addr.length()) + addr);
-                        System.out.println("***    " + IEEEAddress.toDottedHex(filterList[i]));
-                        filterPackets = true;
+                        filterList[count] = IEEEAddress.toLong("0014.4F01.0000.0000".substring(0, 19 - addr.length()) + addr);
+                        System.out.println("***    " + IEEEAddress.toDottedHex(filterList[count]));
+                        count++;
                     } catch (IllegalArgumentException ex) {
                         System.out.println("Error: radio.whitelist badly formed: " + addr);
-                        filterList[i] = 0;
                     }
                 }
-            } else {
-                filterPackets = false;
+                if (count > 0) {
+                    filter = new AddressFilter(filterList, count, whitelist);
+                }
             }
         }
+        // the new filter is built completely before this single assignment, so
+        // the receive thread sees either the old list or the new one, never a mix
+        addressFilter = filter;
     }
     
     /**
@@ -415,7 +561,7 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
         }
 
         public void run() {
-            if (filterPackets) {            // call different routines so that
+            if (addressFilter != null) {    // call different routines so that
                 receiveWithFilter();        // if we are not filtering packets
             } else {                        // we do not need an extra "if" in
                 receiveAll();               // the inner loop of the radio code
@@ -438,6 +584,10 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
                             }
                             validateDestAddr(recvPacket);
 //				Utils.log("rx dsn =" + recvPacket.getDataSequenceNumber() + " " + System.currentTimeMillis() + " " + Thread.currentThread().getPriority());
+                            rxFrameCount++;
+                            if (isStrobeCopy(recvPacket)) {
+                                continue;
+                            }
                             if (recvPacket.getDestinationAddress() == extendedAddress || isRxQueueUnderLowerLimit()) {
                                 rxDataQueue().put(recvPacket);
                             }
@@ -481,7 +631,8 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
 
         /**
          * Same as receiveAll() except before queuing a received packet first check
-         * that it was sent by a SPOT whose address is on our whitelist.
+         * that it was sent by a SPOT whose address is on our whitelist (or not on
+         * our blacklist).
          */
         private void receiveWithFilter() {
             while (true) {
@@ -496,20 +647,13 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
                             }
                             validateDestAddr(recvPacket);
 //				Utils.log("rx dsn =" + recvPacket.getDataSequenceNumber() + " " + System.currentTimeMillis() + " " + Thread.currentThread().getPriority());
+                            rxFrameCount++;
+                            if (isStrobeCopy(recvPacket)) {
+                                continue;
+                            }
                             if (recvPacket.getDestinationAddress() == extendedAddress || isRxQueueUnderLowerLimit()) {
-                                if (filterPackets) {
-                                    long sourceAddr = recvPacket.getSourceAddress();
-                                    boolean match = false;
-                                    for (int i = 0; i < filterList.length; i++) {
-                                        if (filterList[i] == sourceAddr) {
-                                            match = true;
-                                            break;
-                                        }
-                                    }
-                                    if (!(filterWhitelist ^ match)) {
-                                        rxDataQueue().put(recvPacket);
-                                    }
-                                } else {
+                                AddressFilter filter = addressFilter;   // read once: may be replaced at any time
+                                if (filter == null || filter.accepts(recvPacket.getSourceAddress())) {
                                     rxDataQueue().put(recvPacket);
                                 }
                             }
@@ -576,12 +720,25 @@ abstract class MACBase implements I802_15_4_MAC, IProprietaryMAC {
         return nullPacketAfterAckWait;
     }
 
+    public int getTransmitQueueDepth(int trafficClass) {
+        return transmitScheduler.getQueueDepth(trafficClass);
+    }
+
+    public int getTransmitDrops(int trafficClass) {
+        return transmitScheduler.getDrops(trafficClass);
+    }
+
+    public void setMaxTransmitQueueDepth(int trafficClass, int depth) {
+        transmitScheduler.setMaxQueueDepth(trafficClass, depth);
+    }
+
     public void resetErrorCounters() {
         nullPacketAfterAckWait = 0;
 		channelAccessFailure = 0;
         noAck = 0;
         wrongAck = 0;
         rxError = 0;
+        transmitScheduler.resetCounters();
 	}
 
 
@@ -34,23 +34,13 @@ import com.sun.squawk.VM;
  */
 final class MACLayer extends MACBase implements I802_15_4_MAC {
 
-    static final int DEFAULT_MAX_CSMA_BACKOFFS = 5; // was 4;
     private static final int MAC_ACK_WAIT_DURATION = 10;
 
-    private int[] RETRY_WAITS;
-    private int macMinBE = 0;    // was 3; // use 0 so no initial wait before transmitting
-    private int macMaxCSMABackoffs = DEFAULT_MAX_CSMA_BACKOFFS;
     private I802_15_4_PHY physical;
     private Thread rxEnableTimer;
 
     MACLayer(I802_15_4_PHY r) {
         physical = r;
-        RETRY_WAITS = new int[A_MAX_FRAME_RETRIES];
-        RETRY_WAITS[0] = 10;  // was 0;
-        RETRY_WAITS[1] = 50;
-        for (int i = 2; i < RETRY_WAITS.length; i++) {
-            RETRY_WAITS[i] = 120; // was 200;
-        }
         initialize();
     }
 
@@ -145,19 +135,25 @@ final class MACLayer extends MACBase implements I802_15_4_MAC {
      */
     protected boolean   sendIfChannelClear(RadioPacket rp) {
         IProprietaryRadio propRadio = (IProprietaryRadio) physical;
+        IBackoffPolicy policy = backoffPolicy;
+        long destination = rp.getDestinationAddress();
         boolean channelClear = false;
         int numberOfBackoffs = 0;
-        int backoffExponent = macMinBE;
+        int backoffExponent = policy.getMinBackoffExponent(destination);
+        int maxBackoffExponent = policy.getMaxBackoffExponent(destination);
+        int maxCSMABackoffs = policy.getMaxCSMABackoffs(destination);
         do {
             waitBackoffPeriods(random((1 << backoffExponent) - 1));
             if (propRadio.dataRequest(rp, numberOfBackoffs != 0) == I802_15_4_PHY.SUCCESS) {
                 channelClear = true;
+                policy.channelAccessAttempted(destination, true);
                 break;
             }
             channelAccessFailure++;
+            policy.channelAccessAttempted(destination, false);
             numberOfBackoffs++;
-            backoffExponent = Math.min((backoffExponent == 0 ? 3 : (backoffExponent + 1)), A_MAX_BE);
-        } while (numberOfBackoffs <= macMaxCSMABackoffs);
+            backoffExponent = Math.min((backoffExponent == 0 ? 3 : (backoffExponent + 1)), maxBackoffExponent);
+        } while (numberOfBackoffs <= maxCSMABackoffs);
         return channelClear;
     }
 
@@ -201,13 +197,6 @@ final class MACLayer extends MACBase implements I802_15_4_MAC {
         return MAC_ACK_WAIT_DURATION;
     }
 
-    /*
-     * If you don't get an ACK, how long to wait before each retry
-     */
-    protected int getTimeBeforeRetry(int retry) {
-        return RETRY_WAITS[retry];
-    }
-
     /* (non-Javadoc)
      * @see com.sun.squawk.peripheral.radio.MACBase#validateDestAddr(com.sun.squawk.peripheral.radio.RadioPacket)
      */
@@ -143,6 +143,7 @@ public class RadioPacket {
     int rssi;
     int corr;
     long timestamp;
+    private int trafficClass = TransmitScheduler.DEFAULT_TRAFFIC_CLASS;
 
     /**
      * Answer a radio packet preformatted for sending data.
@@ -573,6 +574,7 @@ public class RadioPacket {
         this.rssi = otherRP.rssi;
         this.dsnOK = otherRP.dsnOK;
         this.timestamp = otherRP.timestamp;
+        this.trafficClass = otherRP.trafficClass;
         this.destinationPanOffset = otherRP.destinationPanOffset;
         this.destinationAddressOffset = otherRP.destinationAddressOffset;
         this.sourceAddressOffset = otherRP.sourceAddressOffset;
@@ -913,4 +915,26 @@ public class RadioPacket {
     public long getTimestamp() {
         return timestamp;
     }
+
+    /**
+     * Answer the traffic class used to schedule this packet for transmission.
+     * The traffic class is local to this SPOT and is not sent over the air.
+     *
+     * @return -- one of the TransmitScheduler.TRAFFIC_CLASS_* values
+     */
+    public int getTrafficClass() {
+        return trafficClass;
+    }
+
+    /**
+     * Set the traffic class used to schedule this packet for transmission.
+     *
+     * @param trafficClass -- one of the TransmitScheduler.TRAFFIC_CLASS_* values
+     */
+    public void setTrafficClass(int trafficClass) {
+        if (trafficClass < 0 || trafficClass >= TransmitScheduler.NUMBER_OF_TRAFFIC_CLASSES) {
+            throw new IllegalArgumentException("Unknown traffic class " + trafficClass);
+        }
+        this.trafficClass = trafficClass;
+    }
 }
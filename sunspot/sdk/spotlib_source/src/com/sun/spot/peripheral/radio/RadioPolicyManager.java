@@ -24,13 +24,21 @@
 
 package com.sun.spot.peripheral.radio;
 
+import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import com.sun.spot.peripheral.IDriver;
+import com.sun.spot.util.Utils;
 
 
 public class RadioPolicyManager implements IRadioPolicyManager, IDriver {
 
+	/**
+	 * Latency budgets shorter than this keep the receiver fully on: checking more often saves little.
+	 */
+	private static final int MIN_CHECK_INTERVAL = 2 * LowPowerListener.HOLD_WINDOW;
+
 	private short panId;
 	private int channelNumber;
     private int outputPower;
@@ -42,6 +50,9 @@ public class RadioPolicyManager implements IRadioPolicyManager, IDriver {
 	private Vector connectionsRequestingRadioOff = new Vector();
 	private boolean radioIsOn = false;
 	private boolean radioStateBeforeTearDown;
+	private Hashtable latencyBudgets = new Hashtable(); // IConnectionID -> Integer
+	private int lowPowerListeningInterval = 0;
+	private LowPowerListener lowPowerListener;
 	
 	public RadioPolicyManager(I802_15_4_MAC macDevice, int initialChannel, short initialPanId, int initialOutputPower) {
 		this.macDevice = macDevice;
@@ -52,9 +63,25 @@ public class RadioPolicyManager implements IRadioPolicyManager, IDriver {
         } else {
             setChannelNumber(initialChannel);
             setOutputPower(initialOutputPower);
+            resetLowPowerListening();
         }
 	}
 
+	/**
+	 * Set the low-power listening interval from the system property radio.lpl.interval
+	 * (or the manifest property radio-lpl-interval); 0, the default, keeps it off.
+	 */
+	public void resetLowPowerListening() {
+		String interval = Utils.getSystemProperty("radio.lpl.interval",
+				Utils.getManifestProperty("radio-lpl-interval", "0"));
+		try {
+			setLowPowerListeningInterval(Integer.parseInt(interval.trim()));
+		} catch (RuntimeException e) {
+			System.out.println("Error: radio.lpl.interval not usable: " + interval + " (" + e + ")");
+			setLowPowerListeningInterval(0);
+		}
+	}
+
 	public synchronized void policyHasChanged(IConnectionID conn, RadioPolicy selection) {
 		if (!allConnections.contains(conn)) {
 			throw new IllegalArgumentException("Attempt to change policy for unregistered connection: " + conn);
@@ -77,20 +104,49 @@ public class RadioPolicyManager implements IRadioPolicyManager, IDriver {
 		allConnections.removeElement(conn);
 		connectionsKeepingRadioOn.removeElement(conn);
 		connectionsRequestingRadioOff.removeElement(conn);
+		latencyBudgets.remove(conn);
+		updateRadioState();
+	}
+
+	public synchronized void setLatencyBudget(IConnectionID conn, int millis) {
+		if (!allConnections.contains(conn)) {
+			throw new IllegalArgumentException("Attempt to set latency budget for unregistered connection: " + conn);
+		}
+		if (millis < 0) {
+			latencyBudgets.remove(conn);
+		} else {
+			latencyBudgets.put(conn, new Integer(millis));
+		}
+		updateRadioState();
+	}
+
+	public synchronized void setLowPowerListeningInterval(int millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Low-power listening interval must not be negative");
+		}
+		lowPowerListeningInterval = millis;
+		// a neighbour may check the channel just before we start sending, so strobe for a whole interval and a check
+		getProprietaryMacDevice().setWakeupPeriod(millis == 0 ? 0 : millis + LowPowerListener.CHECK_WINDOW);
 		updateRadioState();
 	}
+
+	public int getLowPowerListeningInterval() {
+		return lowPowerListeningInterval;
+	}
 	 
 	public boolean isRadioReceiverOn() {
-		 return radioIsOn;
+		 return radioIsOn || lowPowerListener != null;
 	}
 
 	public synchronized boolean setRxOn(boolean rxState) {
-		if (rxState == radioIsOn) {
+		if (rxState == radioIsOn && lowPowerListener == null) {
 			return true;
 		} else if (rxState) {
+			primStopChannelChecks();
 			primTurnRxOn();
 			return true;
 		} else if (connectionsKeepingRadioOn.isEmpty()) {
+			primStopChannelChecks();
 			primTurnRxOff();
 			return true;
 		} else {
@@ -102,16 +158,24 @@ public class RadioPolicyManager implements IRadioPolicyManager, IDriver {
 		return "RadioPolicyManager";
 	}
 
-	public boolean tearDown() {
+	public synchronized boolean tearDown() {
 		radioStateBeforeTearDown = radioIsOn;
+		if (lowPowerListener != null) {
+			// the receiver is only on during channel checks, and neighbours strobe long enough
+			// to reach us at the first check after we wake up, so deep sleep costs no packets
+			macDevice.mlmeRxEnable(0);
+			return true;
+		}
 		return setRxOn(false);
 	}
 
 	public void shutDown() {
 	}
 
-	public void setUp() {
-		setRxOn(radioStateBeforeTearDown);
+	public synchronized void setUp() {
+		if (lowPowerListener == null) {
+			setRxOn(radioStateBeforeTearDown);
+		}
 	}
 
 	public int getChannelNumber() {
@@ -198,12 +262,54 @@ public class RadioPolicyManager implements IRadioPolicyManager, IDriver {
 	
 	private void updateRadioState() {
 		if (!connectionsKeepingRadioOn.isEmpty() || (connectionsRequestingRadioOff.isEmpty() && !allConnections.isEmpty())) {
-			primTurnRxOn();
+			int checkInterval = getChannelCheckInterval();
+			if (checkInterval > 0) {
+				primTurnRxOff();
+				primStartChannelChecks(checkInterval);
+			} else {
+				primStopChannelChecks();
+				primTurnRxOn();
+			}
 		} else {
+			primStopChannelChecks();
 			primTurnRxOff();
 		}
 	}
 
+	/*
+	 * Answer how often to check the channel: the smallest latency budget of the connections that
+	 * want to receive, but never longer than the interval neighbours strobe for. 0 means keep the
+	 * receiver fully on.
+	 */
+	private int getChannelCheckInterval() {
+		int interval = lowPowerListeningInterval;
+		Enumeration e = latencyBudgets.keys();
+		while (e.hasMoreElements()) {
+			IConnectionID conn = (IConnectionID) e.nextElement();
+			if (!connectionsRequestingRadioOff.contains(conn)) {
+				interval = Math.min(interval, ((Integer) latencyBudgets.get(conn)).intValue());
+			}
+		}
+		return interval < MIN_CHECK_INTERVAL ? 0 : interval;
+	}
+
+	private void primStartChannelChecks(int checkInterval) {
+		if (lowPowerListener == null) {
+			startMAC();
+			lowPowerListener = new LowPowerListener(getProprietaryMacDevice(), checkInterval);
+			lowPowerListener.start();
+		} else {
+			lowPowerListener.setCheckInterval(checkInterval);
+		}
+	}
+
+	private void primStopChannelChecks() {
+		if (lowPowerListener != null) {
+			lowPowerListener.stopListening();
+			lowPowerListener = null;
+		}
+	}
+
 	private void primTurnRxOn() {
 		if (!radioIsOn) {
 			startMAC();
@@ -31,6 +31,25 @@ import java.io.OutputStream;
 import javax.microedition.io.Connector;
 import javax.microedition.io.StreamConnection;
 
+import com.sun.spot.util.CRC;
+
+/**
+ * The serial link between a base station and its host.
+ * <p/>
+ * In the legacy protocol each frame is a {@link #MAGIC_BYTE}, a length byte and
+ * the payload, and is flushed to the host on its own. In the batched protocol
+ * each frame starts with {@link #BATCH_MAGIC_BYTE} and ends with a 16 bit CRC of
+ * the payload. Frames are collected and written to the host together, either
+ * when {@link #flush()} is called because the sender has nothing more to send
+ * right now, when the batch is nearly a full USB transfer, or at the latest
+ * {@link #MAX_FLUSH_DELAY} milliseconds after the first frame in the batch.
+ * <p/>
+ * Frames of either kind are read on receive, and {@link #wasLastFrameChecked()}
+ * tells the caller whether a frame's CRC was checked. The pipe starts in the
+ * legacy protocol, so a host that knows nothing of batching keeps working. Once
+ * batched, it only goes back to the legacy protocol when told to, because a
+ * legacy magic byte may just be noise in a damaged batched frame.
+ */
 public class SpotSerialPipe {
 	
 	/**
@@ -38,13 +57,46 @@ public class SpotSerialPipe {
 	 */
 	public static final int PAYLOAD_OFFSET = 2;
 
+	/**
+	 * One frame per write, no CRC
+	 */
+	public static final int LEGACY_PROTOCOL = 1;
+	/**
+	 * Frames carry a CRC and are batched into as few writes as possible
+	 */
+	public static final int BATCHED_PROTOCOL = 2;
+
 	private static final byte MAGIC_BYTE = (byte)0xDE;
+	private static final byte BATCH_MAGIC_BYTE = (byte)0xDB;
+	private static final int CRC_LENGTH = 2;
+	private static final int USB_PACKET_SIZE = 64;
+	private static final int BATCH_BUFFER_SIZE = 8 * USB_PACKET_SIZE;
+	private static final int FLUSH_THRESHOLD = BATCH_BUFFER_SIZE - USB_PACKET_SIZE;
+	private static final int MAX_FLUSH_DELAY = 5;
+
 	private InputStream inputStream;
 	private OutputStream outputStream;
 	private byte[] scratchBuffer = new byte[1];
 
+	private int protocolVersion = LEGACY_PROTOCOL;
+	private byte[] batchBuffer = new byte[BATCH_BUFFER_SIZE + 1]; // + 1 for the 64 byte padding
+	private int batchLength = 0;
+	private Thread flushThread = null;
+	private int crcErrors = 0;
+	private boolean lastFrameChecked = false;
+
 	public SpotSerialPipe() throws IOException {
-		StreamConnection c = (StreamConnection)Connector.open("serial://");
+		this((StreamConnection)Connector.open("serial://"));
+	}
+
+	/**
+	 * Run the pipe over some other connection, such as a socket to a host
+	 * talking to an emulated base station.
+	 *
+	 * @param c the connection to the host
+	 * @throws IOException
+	 */
+	public SpotSerialPipe(StreamConnection c) throws IOException {
 		inputStream = c.openInputStream();
 		outputStream = c.openOutputStream();
 		while (inputStream.available()>0) {
@@ -54,17 +106,27 @@ public class SpotSerialPipe {
 
 	public void receive(byte[] in) {
 		try {
-			int length;
-			do {
-				skipToMagicByte();
-				length = inputStream.read();
+			while (true) {
+				byte magic = skipToMagicByte();
+				int length = inputStream.read();
 				if (length > in.length) {
 					System.err.println("[SP] bad len " + length);
+					continue;
+				}
+				readFully(in, length);
+				if (magic == BATCH_MAGIC_BYTE) {
+					readFully(scratchBuffer, 1);
+					int crc = (scratchBuffer[0] & 0xFF) << 8;
+					readFully(scratchBuffer, 1);
+					crc |= scratchBuffer[0] & 0xFF;
+					if ((short)crc != CRC.crc(in, 0, length)) {
+						crcErrors++;
+						System.err.println("[SP] bad crc");
+						continue;
+					}
 				}
-			} while (length > in.length);
-			int offset = 0;
-			while (offset < length) {
-				offset = offset + inputStream.read(in, offset, length - offset);
+				lastFrameChecked = magic == BATCH_MAGIC_BYTE;
+				break;
 			}
 		} catch (Exception e) {
 			System.err.println("receiving exception: " + e.getMessage());
@@ -72,19 +134,35 @@ public class SpotSerialPipe {
 		//System.err.println("Received byte array: " + Utils.stringify(in));
 	}
 
-	private void skipToMagicByte() throws IOException {
+	private void readFully(byte[] in, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			offset = offset + inputStream.read(in, offset, length - offset);
+		}
+	}
+
+	private byte skipToMagicByte() throws IOException {
 		int skippedBytes = 0;
 		do {
 			inputStream.read(scratchBuffer, 0, 1);
 			skippedBytes++;
-		} while (scratchBuffer[0] != MAGIC_BYTE);
+		} while (scratchBuffer[0] != MAGIC_BYTE && scratchBuffer[0] != BATCH_MAGIC_BYTE);
 		
 		if (skippedBytes > 1) {
 			System.err.println("skipped " + (skippedBytes-1));
 		}
+		return scratchBuffer[0];
 	}
 
 	public void send(byte[] out, int length) {
+		if (protocolVersion == LEGACY_PROTOCOL) {
+			sendLegacy(out, length);
+		} else {
+			sendBatched(out, length);
+		}
+	}
+
+	private void sendLegacy(byte[] out, int length) {
 		out[0] = MAGIC_BYTE;
 		out[1] = (byte)length;
 		// System.err.println("About to send a byte array of len " + (length+PAYLOAD_OFFSET) + ": " + Utils.stringify(out));
@@ -93,7 +171,7 @@ public class SpotSerialPipe {
 			// so if the length is 64 (or a multiple) tack a null on the end
 			// TODO - hack here which assumes there will be a free byte at the end
 			int actualLength = length + PAYLOAD_OFFSET;
-			if (actualLength % 64 == 0) out[actualLength++] = 0;
+			if (actualLength % USB_PACKET_SIZE == 0) out[actualLength++] = 0;
 			outputStream.write(out, 0, actualLength);
 			outputStream.flush();
 		} catch (Exception e) {
@@ -101,9 +179,116 @@ public class SpotSerialPipe {
 		}
 	}
 
+	private synchronized void sendBatched(byte[] out, int length) {
+		int frameLength = PAYLOAD_OFFSET + length + CRC_LENGTH;
+		if (batchLength + frameLength > BATCH_BUFFER_SIZE) {
+			flushBatch();
+		}
+		boolean wasEmpty = batchLength == 0;
+		batchBuffer[batchLength] = BATCH_MAGIC_BYTE;
+		batchBuffer[batchLength + 1] = (byte)length;
+		System.arraycopy(out, PAYLOAD_OFFSET, batchBuffer, batchLength + PAYLOAD_OFFSET, length);
+		short crc = CRC.crc(out, PAYLOAD_OFFSET, length);
+		batchBuffer[batchLength + PAYLOAD_OFFSET + length] = (byte)(crc >> 8);
+		batchBuffer[batchLength + PAYLOAD_OFFSET + length + 1] = (byte)crc;
+		batchLength += frameLength;
+		if (batchLength >= FLUSH_THRESHOLD) {
+			flushBatch();
+		} else if (wasEmpty) {
+			notifyAll(); // start the flush thread's clock
+		}
+	}
+
+	/**
+	 * Write any frames waiting to be batched to the host now. Senders should call
+	 * this when they have nothing more to send immediately. Does nothing in the
+	 * legacy protocol, which writes each frame as it is sent.
+	 */
+	public synchronized void flush() {
+		flushBatch();
+	}
+
+	private void flushBatch() {
+		if (batchLength == 0) {
+			return;
+		}
+		// a transfer that is an exact number of USB packets is held back, see sendLegacy()
+		// the padding byte is not a magic byte so the host skips it
+		if (batchLength % USB_PACKET_SIZE == 0) batchBuffer[batchLength++] = 0;
+		try {
+			outputStream.write(batchBuffer, 0, batchLength);
+			outputStream.flush();
+		} catch (Exception e) {
+			System.err.println("sending exception: " + e.getMessage());
+		}
+		batchLength = 0;
+	}
+
+	/**
+	 * Select the protocol used to send to the host. Any batched frames are flushed first.
+	 *
+	 * @param version LEGACY_PROTOCOL or BATCHED_PROTOCOL
+	 */
+	public synchronized void setProtocolVersion(int version) {
+		if (version != LEGACY_PROTOCOL && version != BATCHED_PROTOCOL) {
+			throw new IllegalArgumentException("Unknown serial protocol " + version);
+		}
+		flushBatch();
+		protocolVersion = version;
+		if (version == BATCHED_PROTOCOL && flushThread == null) {
+			flushThread = new Thread("SpotSerialPipe flusher") {
+				public void run() {
+					flushLoop();
+				}
+			};
+			RadioFactory.setAsDaemonThread(flushThread);
+			flushThread.start();
+		}
+	}
+
+	/**
+	 * @return the protocol currently used to send to the host
+	 */
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	/**
+	 * @return true if the last frame received was a batched frame, whose CRC matched,
+	 * rather than a legacy frame, which carries no CRC
+	 */
+	public boolean wasLastFrameChecked() {
+		return lastFrameChecked;
+	}
+
+	/**
+	 * @return the number of batched frames received with a bad CRC and dropped
+	 */
+	public int getCrcErrors() {
+		return crcErrors;
+	}
+
+	/**
+	 * Make sure no frame waits in the batch for more than MAX_FLUSH_DELAY.
+	 */
+	private synchronized void flushLoop() {
+		while (true) {
+			try {
+				while (batchLength == 0) {
+					wait();
+				}
+				wait(MAX_FLUSH_DELAY);
+				flushBatch();
+			} catch (InterruptedException e) {
+				// carry on
+			}
+		}
+	}
+
 	public void reset() throws IOException {
 		// We do this to prompt the RXTX comms into life on the MAC
 		// otherwise a small write upstream never makes it to the host-side Java.
+		setProtocolVersion(LEGACY_PROTOCOL);
 		outputStream.write(new byte[128]);
 	}
 }
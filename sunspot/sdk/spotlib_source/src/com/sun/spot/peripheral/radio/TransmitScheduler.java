@@ -0,0 +1,185 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio;
+
+/**
+ * Strict priority arbiter for the MAC transmit path. Every sender must
+ * {@link #acquire(int)} the transmitter before it touches the radio and
+ * {@link #release()} it afterwards. When the transmitter is freed it is handed
+ * to a waiting sender of the most urgent traffic class, so route maintenance
+ * and acknowledgements are never stuck behind a backlog of bulk data.
+ * <p/>
+ * Each traffic class has a bound on the number of senders that may be waiting.
+ * A sender that arrives when its class is full is dropped, and the drop is
+ * counted against that class.
+ */
+public class TransmitScheduler {
+
+    /**
+     * Routing and network control traffic (e.g. LQRP/AODV messages).
+     */
+    public static final int TRAFFIC_CLASS_CONTROL = 0;
+    /**
+     * Transport level acknowledgements (e.g. radiostream ACKs).
+     */
+    public static final int TRAFFIC_CLASS_ACK = 1;
+    /**
+     * Interactive application traffic such as radiograms. This is the default class.
+     */
+    public static final int TRAFFIC_CLASS_INTERACTIVE = 2;
+    /**
+     * Bulk data transfers such as radiostream payloads.
+     */
+    public static final int TRAFFIC_CLASS_BULK = 3;
+    /**
+     * Periodic reports such as sensor readings. These wait for this node's transmit slot
+     * when an {@link ISlotSchedule} is installed, and are otherwise treated like bulk data.
+     */
+    public static final int TRAFFIC_CLASS_PERIODIC = 4;
+    /**
+     * The number of traffic classes
+     */
+    public static final int NUMBER_OF_TRAFFIC_CLASSES = 5;
+    /**
+     * The traffic class used when a sender does not specify one
+     */
+    public static final int DEFAULT_TRAFFIC_CLASS = TRAFFIC_CLASS_INTERACTIVE;
+
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 16;
+
+    private boolean transmitting = false;
+    private int[] waiting = new int[NUMBER_OF_TRAFFIC_CLASSES];
+    private int[] maxQueueDepth = new int[NUMBER_OF_TRAFFIC_CLASSES];
+    private int[] drops = new int[NUMBER_OF_TRAFFIC_CLASSES];
+
+    public TransmitScheduler() {
+        for (int i = 0; i < NUMBER_OF_TRAFFIC_CLASSES; i++) {
+            maxQueueDepth[i] = DEFAULT_MAX_QUEUE_DEPTH;
+        }
+    }
+
+    /**
+     * Block until the transmitter is free and no sender of a more urgent class is waiting.
+     *
+     * @param trafficClass the class of the traffic about to be sent
+     * @return true if the caller now owns the transmitter, false if the request was dropped
+     */
+    public synchronized boolean acquire(int trafficClass) {
+        trafficClass = checkTrafficClass(trafficClass);
+        if (!transmitting && !isMoreUrgentWaiting(trafficClass)) {
+            transmitting = true;
+            return true;
+        }
+        if (waiting[trafficClass] >= maxQueueDepth[trafficClass]) {
+            drops[trafficClass]++;
+            return false;
+        }
+        waiting[trafficClass]++;
+        try {
+            while (transmitting || isMoreUrgentWaiting(trafficClass)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            drops[trafficClass]++;
+            return false;
+        } finally {
+            waiting[trafficClass]--;
+            // a less urgent sender may have been held back only by us
+            notifyAll();
+        }
+        transmitting = true;
+        return true;
+    }
+
+    /**
+     * Give up the transmitter so that the most urgent waiting sender can proceed.
+     */
+    public synchronized void release() {
+        transmitting = false;
+        notifyAll();
+    }
+
+    /**
+     * @param trafficClass the traffic class
+     * @return the number of senders currently waiting for the transmitter in that class
+     */
+    public synchronized int getQueueDepth(int trafficClass) {
+        return waiting[checkTrafficClass(trafficClass)];
+    }
+
+    /**
+     * @param trafficClass the traffic class
+     * @return the number of sends dropped in that class because its queue was full
+     */
+    public synchronized int getDrops(int trafficClass) {
+        return drops[checkTrafficClass(trafficClass)];
+    }
+
+    /**
+     * Set the maximum number of senders of a traffic class that may wait for the transmitter.
+     *
+     * @param trafficClass the traffic class
+     * @param depth the maximum number of waiting senders
+     */
+    public synchronized void setMaxQueueDepth(int trafficClass, int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Queue depth must not be negative: " + depth);
+        }
+        maxQueueDepth[checkTrafficClass(trafficClass)] = depth;
+    }
+
+    /**
+     * @param trafficClass the traffic class
+     * @return the maximum number of senders of that class that may wait for the transmitter
+     */
+    public synchronized int getMaxQueueDepth(int trafficClass) {
+        return maxQueueDepth[checkTrafficClass(trafficClass)];
+    }
+
+    /**
+     * Reset the drop counters of all traffic classes to zero.
+     */
+    public synchronized void resetCounters() {
+        for (int i = 0; i < NUMBER_OF_TRAFFIC_CLASSES; i++) {
+            drops[i] = 0;
+        }
+    }
+
+    private boolean isMoreUrgentWaiting(int trafficClass) {
+        for (int i = 0; i < trafficClass; i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int checkTrafficClass(int trafficClass) {
+        if (trafficClass < 0 || trafficClass >= NUMBER_OF_TRAFFIC_CLASSES) {
+            throw new IllegalArgumentException("Unknown traffic class " + trafficClass);
+        }
+        return trafficClass;
+    }
+}
@@ -112,6 +112,22 @@ public class ProxyRadioPolicyManager implements IRadioPolicyManager {
 		resultEnvelope.checkForRuntimeException();
 	}
 
+	public void setLatencyBudget(IConnectionID conn, int millis) {
+		ReplyEnvelope resultEnvelope = requestSender.send(new SetLatencyBudgetCommand(conn, millis));
+		resultEnvelope.checkForRuntimeException();
+	}
+
+	public void setLowPowerListeningInterval(int millis) {
+		ReplyEnvelope resultEnvelope = requestSender.send(new SetLowPowerListeningIntervalCommand(millis));
+		resultEnvelope.checkForRuntimeException();
+	}
+
+	public int getLowPowerListeningInterval() {
+		ReplyEnvelope resultEnvelope = requestSender.send(new GetLowPowerListeningIntervalCommand());
+		resultEnvelope.checkForRuntimeException();
+		return ((NumberReplyEnvelope)resultEnvelope).getIntContents();
+	}
+
 	public void closeBaseStation() {
 		throw new IllegalStateException("Not implemented");
 	}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2007-2008 Sun Microsystems, Inc. All Rights Reserved.
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
  * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
  * 
  * This code is free software; you can redistribute it and/or modify
@@ -22,27 +22,25 @@
  * information or have any questions.
  */
 
-package com.sun.spot.resourcesharing;
+package com.sun.spot.peripheral.radio.policy.proxy;
 
 import com.sun.spot.interisolate.ReplyEnvelope;
 import com.sun.spot.interisolate.RequestEnvelope;
 import com.sun.spot.interisolate.VoidReplyEnvelope;
+import com.sun.spot.peripheral.Spot;
+import com.sun.spot.peripheral.radio.IConnectionID;
 
-public class UnlockCommand extends RequestEnvelope {
-
-	private String resourceName;
-	private int isolateId;
-	private ResourceSharingScheme scheme;
-
-	public UnlockCommand(int isolateId, String resourceName, ResourceSharingScheme scheme) {
-		this.isolateId = isolateId;
-		this.resourceName = resourceName;
-		this.scheme = scheme;
+class SetLatencyBudgetCommand extends RequestEnvelope {
+	private IConnectionID cid;
+	private int budget;
+	
+	public SetLatencyBudgetCommand(IConnectionID cid, int budget) {
+		this.cid = cid;
+		this.budget = budget;
 	}
 
-	public ReplyEnvelope execute(Object context) throws Exception {
-		ResourceSharingScheme localScheme = ResourceSharingScheme.schemeMatching(scheme);
-		((IResourceRegistryMaster) context).unlock(isolateId, resourceName, localScheme);
+	public ReplyEnvelope execute(Object context) {
+		Spot.getInstance().getRadioPolicyManager().setLatencyBudget(cid, budget);
 		return new VoidReplyEnvelope(getUid());
 	}
 
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.sim;
+
+import java.util.Random;
+
+import com.sun.spot.peripheral.radio.AdaptiveBackoffPolicy;
+import com.sun.spot.peripheral.radio.DefaultBackoffPolicy;
+import com.sun.spot.peripheral.radio.IBackoffPolicy;
+
+/**
+ * Discrete event simulation of a number of SPOT MACs sharing one 802.15.4
+ * channel, used to compare {@link IBackoffPolicy} implementations without
+ * hardware.
+ * <p/>
+ * Each {@link VirtualMAC} follows the same send procedure as MACBase and
+ * MACLayer: unslotted CSMA with the policy's backoff exponents, then a wait for
+ * an ACK and, if none comes, a policy defined pause before the next retry.
+ * The channel model is simple: every node hears every other node, two frames
+ * whose airtime overlaps are both lost, and a frame that survives may still be
+ * lost with a configurable probability. Receivers ACK frames that arrive
+ * intact, and ACKs occupy the channel like any other frame.
+ * <p/>
+ * Time is counted in microseconds. Run from the host with
+ * <pre>
+ *   java com.sun.spot.peripheral.radio.sim.ChannelSimulator [nodes] [packetsPerSecondPerNode] [seconds] [lossPercent]
+ * </pre>
+ * to compare the default and adaptive policies under the same load.
+ */
+public class ChannelSimulator {
+
+    /**
+     * 250 kbit/s gives 32 microseconds per byte
+     */
+    static final int MICROS_PER_BYTE = 32;
+    /**
+     * One unit backoff period of 20 symbols. MACLayer approximates it as 1/3 ms.
+     */
+    static final int BACKOFF_PERIOD_MICROS = 320;
+    /**
+     * Clear channel assessment plus rx/tx turnaround
+     */
+    static final int CCA_MICROS = 320;
+    static final int TURNAROUND_MICROS = 192;
+    /**
+     * Same as MACBase.TIME_TO_WAIT_FOR_ACK_MICROSECS
+     */
+    static final int ACK_WAIT_MICROS = 864;
+    /**
+     * Preamble, SFD, length, ACK frame and FCS
+     */
+    static final int ACK_BYTES = 11;
+    /**
+     * Preamble, SFD and length byte that precede every frame
+     */
+    static final int PHY_OVERHEAD_BYTES = 6;
+
+    static final int EVENT_ARRIVAL = 0;
+    static final int EVENT_CCA = 1;
+    static final int EVENT_TX_END = 2;
+    static final int EVENT_ACK_TX_END = 3;
+    static final int EVENT_ACK_TIMEOUT = 4;
+    static final int EVENT_RETRY = 5;
+    static final int EVENT_ACK_START = 6;
+
+    private static final int INITIAL_EVENT_CAPACITY = 64;
+    private static final int MAX_LATENCY_MILLIS = 10000;
+
+    private final VirtualMAC[] macs;
+    final Random random;
+    private long now;
+    private int frameLength = 60;
+    private int lossPercent = 0;
+    private int queueLength = 32;
+    private int packetsPerSecond = 10;
+    private long sinkAddress = -1;
+
+    // the frames currently on the air
+    private Transmission[] onAir = new Transmission[8];
+    private int onAirCount;
+
+    // binary heap of pending events ordered by time, then insertion order
+    private long[] eventTimes = new long[INITIAL_EVENT_CAPACITY];
+    private long[] eventOrder = new long[INITIAL_EVENT_CAPACITY];
+    private int[] eventTypes = new int[INITIAL_EVENT_CAPACITY];
+    private Object[] eventTargets = new Object[INITIAL_EVENT_CAPACITY];
+    private int eventCount;
+    private long eventSequence;
+
+    private SimulationResult result;
+
+    /**
+     * Create a simulation of the given number of MACs, all using the default backoff policy.
+     *
+     * @param numberOfMACs the number of nodes on the channel
+     * @param seed seed for the random number generator so runs are repeatable
+     */
+    public ChannelSimulator(int numberOfMACs, long seed) {
+        if (numberOfMACs < 2) {
+            throw new IllegalArgumentException("Need at least two MACs to simulate");
+        }
+        random = new Random(seed);
+        macs = new VirtualMAC[numberOfMACs];
+        for (int i = 0; i < numberOfMACs; i++) {
+            macs[i] = new VirtualMAC(this, i + 1, new DefaultBackoffPolicy());
+        }
+    }
+
+    /**
+     * Set the backoff policy of one simulated MAC.
+     *
+     * @param mac index of the MAC, from 0
+     * @param policy the policy it should use
+     */
+    public void setBackoffPolicy(int mac, IBackoffPolicy policy) {
+        macs[mac].policy = policy;
+    }
+
+    /**
+     * Set the backoff policy of every simulated MAC to a fresh instance of the given class.
+     *
+     * @param policyClass a class implementing IBackoffPolicy with a public no-argument constructor
+     */
+    public void setBackoffPolicy(Class policyClass) {
+        for (int i = 0; i < macs.length; i++) {
+            try {
+                macs[i].policy = (IBackoffPolicy) policyClass.newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot create backoff policy " + policyClass.getName() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @param packetsPerSecond the mean rate at which each MAC generates packets
+     */
+    public void setOfferedLoad(int packetsPerSecond) {
+        this.packetsPerSecond = packetsPerSecond;
+    }
+
+    /**
+     * @param bytes the MAC frame length, header included, of every data packet
+     */
+    public void setFrameLength(int bytes) {
+        frameLength = bytes;
+    }
+
+    /**
+     * @param percent probability that a frame which did not collide is still lost
+     */
+    public void setLossPercent(int percent) {
+        lossPercent = percent;
+    }
+
+    /**
+     * @param packets how many packets a MAC may have waiting before new ones are dropped
+     */
+    public void setQueueLength(int packets) {
+        queueLength = packets;
+    }
+
+    /**
+     * Make every MAC except the first send to the first, as nodes reporting to a
+     * basestation do. By default each packet goes to a randomly chosen other MAC.
+     *
+     * @param toSink true to send everything to MAC 0
+     */
+    public void setSendToSink(boolean toSink) {
+        sinkAddress = toSink ? macs[0].address : -1;
+    }
+
+    /**
+     * Run the simulation.
+     *
+     * @param durationMillis how much simulated time to run for
+     * @return the statistics gathered
+     */
+    public SimulationResult run(long durationMillis) {
+        long end = durationMillis * 1000;
+        now = 0;
+        eventCount = 0;
+        onAirCount = 0;
+        result = new SimulationResult(durationMillis, MAX_LATENCY_MILLIS);
+        for (int i = 0; i < macs.length; i++) {
+            macs[i].reset();
+            if (sinkAddress != macs[i].address) {
+                schedule(nextArrivalDelay(), EVENT_ARRIVAL, macs[i]);
+            }
+        }
+        while (eventCount > 0 && eventTimes[0] <= end) {
+            now = eventTimes[0];
+            int type = eventTypes[0];
+            Object target = eventTargets[0];
+            removeFirstEvent();
+            dispatch(type, target);
+        }
+        return result;
+    }
+
+    private void dispatch(int type, Object target) {
+        switch (type) {
+            case EVENT_ARRIVAL:
+                VirtualMAC mac = (VirtualMAC) target;
+                if (mac.queued >= queueLength) {
+                    result.queueOverflows++;
+                } else {
+                    result.offered++;
+                    mac.enqueue(now, chooseDestination(mac));
+                }
+                schedule(nextArrivalDelay(), EVENT_ARRIVAL, mac);
+                break;
+            case EVENT_CCA:
+                ((VirtualMAC) target).clearChannelAssessment();
+                break;
+            case EVENT_TX_END:
+                endTransmission((Transmission) target);
+                break;
+            case EVENT_ACK_TX_END:
+                endAckTransmission((Transmission) target);
+                break;
+            case EVENT_ACK_TIMEOUT:
+                ((VirtualMAC.AckTimeout) target).fire();
+                break;
+            case EVENT_RETRY:
+                ((VirtualMAC) target).startAttempt();
+                break;
+            case EVENT_ACK_START:
+                sendAck((Transmission) target);
+                break;
+            default:
+                throw new IllegalStateException("Unknown event " + type);
+        }
+    }
+
+    long now() {
+        return now;
+    }
+
+    SimulationResult result() {
+        return result;
+    }
+
+    int getFrameLength() {
+        return frameLength;
+    }
+
+    boolean isChannelBusy() {
+        return onAirCount > 0;
+    }
+
+    void startTransmission(VirtualMAC sender, long destination) {
+        Transmission tx = new Transmission(sender, destination, false);
+        addOnAir(tx);
+        result.framesSent++;
+        schedule((frameLength + PHY_OVERHEAD_BYTES) * MICROS_PER_BYTE, EVENT_TX_END, tx);
+    }
+
+    private void endTransmission(Transmission tx) {
+        removeOnAir(tx);
+        tx.sender.transmissionFinished();
+        if (tx.collided) {
+            result.collisions++;
+        } else if (random.nextInt(100) < lossPercent) {
+            result.framesLost++;
+        } else {
+            // the receiver turns round and sends its ACK regardless of what the sender does next
+            Transmission ack = new Transmission(findMAC(tx.destination), tx.sender.address, true);
+            ack.ackFor = tx.sender;
+            ack.ackSequence = tx.sender.attemptSequence;
+            schedule(TURNAROUND_MICROS, EVENT_ACK_START, ack);
+        }
+    }
+
+    private void sendAck(Transmission ack) {
+        addOnAir(ack);
+        schedule(ACK_BYTES * MICROS_PER_BYTE, EVENT_ACK_TX_END, ack);
+    }
+
+    private void endAckTransmission(Transmission ack) {
+        removeOnAir(ack);
+        if (ack.collided) {
+            result.collisions++;
+        } else {
+            ack.ackFor.ackReceived(ack.ackSequence);
+        }
+    }
+
+    private VirtualMAC findMAC(long address) {
+        return macs[(int) address - 1];
+    }
+
+    private long chooseDestination(VirtualMAC from) {
+        if (sinkAddress != -1) {
+            return sinkAddress;
+        }
+        int to = random.nextInt(macs.length - 1);
+        if (to >= from.address - 1) {
+            to++;
+        }
+        return macs[to].address;
+    }
+
+    /**
+     * Exponential inter-arrival times need a logarithm which CLDC lacks, so use
+     * a uniform spread around the mean instead.
+     */
+    private long nextArrivalDelay() {
+        long mean = 1000000L / Math.max(1, packetsPerSecond);
+        return 1 + (long) random.nextInt((int) (2 * mean));
+    }
+
+    private void addOnAir(Transmission tx) {
+        if (onAirCount > 0) {
+            tx.collided = true;
+            for (int i = 0; i < onAirCount; i++) {
+                onAir[i].collided = true;
+            }
+        }
+        if (onAirCount == onAir.length) {
+            Transmission[] bigger = new Transmission[onAir.length * 2];
+            System.arraycopy(onAir, 0, bigger, 0, onAirCount);
+            onAir = bigger;
+        }
+        onAir[onAirCount++] = tx;
+    }
+
+    private void removeOnAir(Transmission tx) {
+        for (int i = 0; i < onAirCount; i++) {
+            if (onAir[i] == tx) {
+                onAir[i] = onAir[--onAirCount];
+                onAir[onAirCount] = null;
+                return;
+            }
+        }
+    }
+
+    void schedule(long delayMicros, int type, Object target) {
+        if (eventCount == eventTimes.length) {
+            growEventHeap();
+        }
+        int i = eventCount++;
+        long time = now + delayMicros;
+        long order = eventSequence++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!isEarlier(time, order, eventTimes[parent], eventOrder[parent])) {
+                break;
+            }
+            moveEvent(parent, i);
+            i = parent;
+        }
+        setEvent(i, time, order, type, target);
+    }
+
+    private void removeFirstEvent() {
+        int last = --eventCount;
+        long time = eventTimes[last];
+        long order = eventOrder[last];
+        int type = eventTypes[last];
+        Object target = eventTargets[last];
+        eventTargets[last] = null;
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= eventCount) {
+                break;
+            }
+            if (child + 1 < eventCount && isEarlier(eventTimes[child + 1], eventOrder[child + 1], eventTimes[child], eventOrder[child])) {
+                child++;
+            }
+            if (!isEarlier(eventTimes[child], eventOrder[child], time, order)) {
+                break;
+            }
+            moveEvent(child, i);
+            i = child;
+        }
+        if (eventCount > 0) {
+            setEvent(i, time, order, type, target);
+        }
+    }
+
+    private static boolean isEarlier(long time, long order, long otherTime, long otherOrder) {
+        return time < otherTime || (time == otherTime && order < otherOrder);
+    }
+
+    private void moveEvent(int from, int to) {
+        setEvent(to, eventTimes[from], eventOrder[from], eventTypes[from], eventTargets[from]);
+    }
+
+    private void setEvent(int i, long time, long order, int type, Object target) {
+        eventTimes[i] = time;
+        eventOrder[i] = order;
+        eventTypes[i] = type;
+        eventTargets[i] = target;
+    }
+
+    private void growEventHeap() {
+        int size = eventTimes.length * 2;
+        long[] times = new long[size];
+        long[] orders = new long[size];
+        int[] types = new int[size];
+        Object[] targets = new Object[size];
+        System.arraycopy(eventTimes, 0, times, 0, eventCount);
+        System.arraycopy(eventOrder, 0, orders, 0, eventCount);
+        System.arraycopy(eventTypes, 0, types, 0, eventCount);
+        System.arraycopy(eventTargets, 0, targets, 0, eventCount);
+        eventTimes = times;
+        eventOrder = orders;
+        eventTypes = types;
+        eventTargets = targets;
+    }
+
+    /**
+     * A frame on the air. ACKs are sent after the receiver's turnaround without CCA.
+     */
+    static class Transmission {
+        final VirtualMAC sender;
+        final long destination;
+        final boolean isAck;
+        boolean collided;
+        VirtualMAC ackFor;
+        int ackSequence;
+
+        Transmission(VirtualMAC sender, long destination, boolean isAck) {
+            this.sender = sender;
+            this.destination = destination;
+            this.isAck = isAck;
+        }
+    }
+
+    /**
+     * Compare the default and adaptive backoff policies under the same offered load.
+     *
+     * @param args optional: number of nodes, packets per second per node, simulated seconds, loss percent
+     */
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int loss = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        Class[] policies = {DefaultBackoffPolicy.class, AdaptiveBackoffPolicy.class};
+        System.out.println(nodes + " nodes, " + rate + " packets/s each, " + loss + "% loss, " + seconds + "s simulated");
+        for (int i = 0; i < policies.length; i++) {
+            ChannelSimulator sim = new ChannelSimulator(nodes, 42);
+            sim.setOfferedLoad(rate);
+            sim.setLossPercent(loss);
+            sim.setBackoffPolicy(policies[i]);
+            SimulationResult r = sim.run(seconds * 1000L);
+            System.out.println(policies[i].getName() + ":");
+            System.out.println(r);
+        }
+    }
+}
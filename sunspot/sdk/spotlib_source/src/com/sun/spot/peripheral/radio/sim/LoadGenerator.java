@@ -0,0 +1,307 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.sim;
+
+import java.util.Hashtable;
+import java.util.Random;
+
+import com.sun.spot.peripheral.radio.I802_15_4_MAC;
+import com.sun.spot.peripheral.radio.RadioPacket;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
+import com.sun.spot.util.IEEEAddress;
+import com.sun.spot.util.Utils;
+
+/**
+ * Drives a number of virtual SPOTs on a {@link RadioMedium}, each sending a
+ * stream of packets to one sink MAC, typically the MAC behind an emulated base
+ * station, and measures what gets through.
+ * <p/>
+ * Each packet is an unfragmented single hop LowPan frame for protocol
+ * {@link #LOAD_PROTOCOL_NUMBER}, carrying a sequence number and the time the
+ * packet was due to be sent, so a host LowPan stack reading from the base
+ * station sees ordinary traffic. A packet counts as delivered when it is queued
+ * by the sink MAC, so the latency includes time spent waiting behind a virtual
+ * SPOT's earlier packets, CSMA, retries and the medium's latency. If the host
+ * does not keep up the sink's receive queue fills and packets are counted as
+ * queue overflows. Packets sent to a virtual SPOT are acknowledged and
+ * discarded.
+ * <p/>
+ * Run from the host with
+ * <pre>
+ *   java com.sun.spot.peripheral.radio.sim.LoadGenerator [spots] [packetsPerSecondPerSpot] [seconds] [lossPercent] [latencyMillis]
+ * </pre>
+ * to load a sink that takes packets as fast as they arrive.
+ */
+public class LoadGenerator {
+
+    /**
+     * LowPan protocol number of the generated packets
+     */
+    public static final byte LOAD_PROTOCOL_NUMBER = 120;
+    /**
+     * Address of the first virtual SPOT; the others follow on from it. Frames
+     * carry 16 bit addresses, so all are in the range IEEEAddress maps back.
+     */
+    public static final long FIRST_SPOT_ADDRESS = IEEEAddress.HASH_PREFIX + 0x100;
+
+    private static final byte DISPATCH_SPOT = (byte) 0x7f;     // LowPanHeader.DISPATCH_SPOT
+    private static final int SEQUENCE_OFFSET = 2;               // after the dispatch and protocol bytes
+    private static final int TIME_OFFSET = SEQUENCE_OFFSET + 4;
+    private static final int MIN_PAYLOAD_LENGTH = TIME_OFFSET + 8;
+    private static final int MAX_LATENCY_MILLIS = 2000;
+
+    private final RadioMedium medium;
+    private final SimulatedMAC sink;
+    private final SimulatedMAC[] spots;
+    private final Hashtable lastSequences = new Hashtable();    // address -> {last delivered, last refused}
+    private final Random random = new Random(42);
+    private int packetsPerSecond = 10;
+    private int payloadLength = 32;
+    private volatile boolean running;
+    private SimulationResult result;
+    private int downlinkPackets;
+
+    /**
+     * @param medium the medium to put the virtual SPOTs on
+     * @param sink the MAC to send to, already attached to the medium
+     * @param numberOfSpots how many virtual SPOTs to create
+     */
+    public LoadGenerator(RadioMedium medium, SimulatedMAC sink, int numberOfSpots) {
+        this.medium = medium;
+        this.sink = sink;
+        sink.setMonitor(this);
+        spots = new SimulatedMAC[numberOfSpots];
+        for (int i = 0; i < numberOfSpots; i++) {
+            spots[i] = new SimulatedMAC(medium, FIRST_SPOT_ADDRESS + i);
+            spots[i].setMonitor(this);
+            lastSequences.put(new Long(spots[i].getAddress()), new int[] {-1, -1});
+        }
+    }
+
+    /**
+     * @param packetsPerSecond the mean rate at which each virtual SPOT sends
+     */
+    public void setOfferedLoad(int packetsPerSecond) {
+        this.packetsPerSecond = packetsPerSecond;
+    }
+
+    /**
+     * @param payloadLength bytes of MAC payload per packet, LowPan header included
+     */
+    public void setPayloadLength(int payloadLength) {
+        this.payloadLength = Math.max(MIN_PAYLOAD_LENGTH, payloadLength);
+    }
+
+    /**
+     * Send packets from every virtual SPOT for a while, then wait for the last
+     * ones to finish.
+     *
+     * @param durationMillis how long to offer load for
+     * @return what happened
+     */
+    public SimulationResult run(long durationMillis) {
+        int framesSent = medium.getFramesSent();
+        int framesLost = medium.getFramesLost();
+        int collisions = medium.getCollisions();
+        result = new SimulationResult(durationMillis, MAX_LATENCY_MILLIS);
+        running = true;
+        Thread[] threads = new Thread[spots.length];
+        for (int i = 0; i < spots.length; i++) {
+            threads[i] = new VirtualSpot(spots[i]);
+            threads[i].start();
+        }
+        Utils.sleep(durationMillis);
+        running = false;
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                // carry on
+            }
+        }
+        synchronized (result) {
+            result.framesSent = medium.getFramesSent() - framesSent;
+            result.framesLost = medium.getFramesLost() - framesLost;
+            result.collisions = medium.getCollisions() - collisions;
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of packets sent to the virtual SPOTs, by the host for example
+     */
+    public synchronized int getDownlinkPackets() {
+        return downlinkPackets;
+    }
+
+    /**
+     * Called by a MAC when a frame reaches it.
+     */
+    void frameArrived(SimulatedMAC mac, RadioPacket rp, boolean queued) {
+        if (mac != sink || result == null || !isLoadPacket(rp)) {
+            return;
+        }
+        int[] lastSequence = (int[]) lastSequences.get(new Long(rp.getSourceAddress()));
+        if (lastSequence == null) {
+            return;
+        }
+        int sequence = rp.getMACPayloadBigEndIntAt(SEQUENCE_OFFSET);
+        synchronized (result) {
+            if (!queued) {
+                lastSequence[1] = sequence;             // the sender decides whether this was its last try
+            } else if (sequence > lastSequence[0]) {    // ignore a repeat sent because the ACK was lost
+                lastSequence[0] = sequence;
+                long latencyMillis = System.currentTimeMillis() - rp.getMACPayloadBigEndLongAt(TIME_OFFSET);
+                result.delivered(latencyMillis * 1000, 0);
+            }
+        }
+    }
+
+    /**
+     * Called by a MAC each time it has to retry a packet.
+     */
+    void retried(SimulatedMAC mac) {
+        if (mac != sink && result != null) {
+            synchronized (result) {
+                result.retries++;
+            }
+        }
+    }
+
+    private static boolean isLoadPacket(RadioPacket rp) {
+        return rp.getMACPayloadLength() >= MIN_PAYLOAD_LENGTH
+                && rp.getMACPayloadAt(0) == DISPATCH_SPOT
+                && rp.getMACPayloadAt(1) == LOAD_PROTOCOL_NUMBER;
+    }
+
+    private long nextArrivalDelay() {
+        long mean = 1000 / Math.max(1, packetsPerSecond);
+        synchronized (random) {
+            return 1 + (long) random.nextInt((int) Math.max(1, 2 * mean));
+        }
+    }
+
+    /**
+     * One virtual SPOT sending packets in order as they fall due.
+     */
+    private final class VirtualSpot extends Thread {
+
+        private final SimulatedMAC mac;
+        private int sequence = 0;
+
+        VirtualSpot(SimulatedMAC mac) {
+            this.mac = mac;
+        }
+
+        public void run() {
+            long due = System.currentTimeMillis() + nextArrivalDelay();
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (due > now) {
+                    Utils.sleep(due - now);
+                    continue;
+                }
+                discardReceived();
+                synchronized (result) {
+                    result.offered++;
+                }
+                if ((now - due) * packetsPerSecond > TransmitScheduler.DEFAULT_MAX_QUEUE_DEPTH * 1000L) {
+                    // so far behind that a real SPOT's queue would be full
+                    synchronized (result) {
+                        result.queueOverflows++;
+                    }
+                } else {
+                    send(due);
+                }
+                due += nextArrivalDelay();
+            }
+        }
+
+        private void send(long due) {
+            RadioPacket rp = RadioPacket.getDataPacket();
+            rp.setDestinationAddress(sink.getAddress());
+            rp.setSourceAddress(mac.getAddress());
+            rp.setMACPayloadLength(payloadLength);
+            rp.setMACPayloadAt(0, DISPATCH_SPOT);
+            rp.setMACPayloadAt(1, LOAD_PROTOCOL_NUMBER);
+            rp.setMACPayloadBigEndIntAt(SEQUENCE_OFFSET, sequence);
+            rp.setMACPayloadBigEndLongAt(TIME_OFFSET, due);
+            rp.setTrafficClass(TransmitScheduler.TRAFFIC_CLASS_BULK);
+            int status = mac.mcpsDataRequest(rp);
+            if (status != I802_15_4_MAC.SUCCESS) {
+                int[] lastSequence = (int[]) lastSequences.get(new Long(mac.getAddress()));
+                synchronized (result) {
+                    if (status == I802_15_4_MAC.CHANNEL_ACCESS_FAILURE) {
+                        result.channelAccessFailures++;
+                    } else if (lastSequence[1] == sequence) {
+                        // the sink heard it but was too full to take it
+                        result.queueOverflows++;
+                    } else {
+                        result.noAckFailures++;
+                    }
+                }
+            }
+            sequence++;
+        }
+
+        private void discardReceived() {
+            int discarded = 0;
+            while (mac.receive(0) != null) {
+                discarded++;
+            }
+            if (discarded > 0) {
+                synchronized (LoadGenerator.this) {
+                    downlinkPackets += discarded;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int numberOfSpots = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int loss = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int latency = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        RadioMedium medium = new RadioMedium(42);
+        medium.setLossPercent(loss);
+        medium.setLatencyMillis(latency);
+        final SimulatedMAC sink = new SimulatedMAC(medium, MACProxyEmulator.BASE_STATION_ADDRESS);
+        new Thread() {
+            public void run() {
+                while (true) {
+                    sink.receive(Long.MAX_VALUE);
+                }
+            }
+        }.start();
+        LoadGenerator generator = new LoadGenerator(medium, sink, numberOfSpots);
+        generator.setOfferedLoad(rate);
+        System.out.println(numberOfSpots + " spots, " + rate + " packets/s each, " + loss + "% loss, "
+                + latency + "ms latency, " + seconds + "s");
+        System.out.println(generator.run(seconds * 1000L));
+        medium.shutdown();
+        System.exit(0);
+    }
+}
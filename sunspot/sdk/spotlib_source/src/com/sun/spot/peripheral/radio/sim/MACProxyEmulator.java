@@ -0,0 +1,105 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.sim;
+
+import java.io.IOException;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+
+import com.sun.spot.peripheral.basestation.MACProxyServerBase;
+import com.sun.spot.peripheral.radio.SpotSerialPipe;
+import com.sun.spot.util.IEEEAddress;
+
+/**
+ * A base station emulated on the host. The MAC proxy protocol is served over a
+ * TCP socket instead of USB, with a {@link SimulatedMAC} on a
+ * {@link RadioMedium} in place of the radio, so host software, including its
+ * LowPan and routing stack, can be load tested without hardware. To present the
+ * emulator as a serial port, bridge the socket to a pseudo-terminal, for
+ * example with <code>socat pty,link=/tmp/basestation tcp:localhost:9010</code>.
+ * <p/>
+ * Optionally a {@link LoadGenerator} puts virtual SPOTs on the medium, sending
+ * to the base station once the host has connected, and reports what got
+ * through. Run with
+ * <pre>
+ *   java com.sun.spot.peripheral.radio.sim.MACProxyEmulator [port] [spots] [packetsPerSecondPerSpot] [seconds] [lossPercent] [latencyMillis] [collisionWindowMillis]
+ * </pre>
+ */
+public class MACProxyEmulator extends MACProxyServerBase {
+
+    public static final int DEFAULT_PORT = 9010;
+    /**
+     * IEEE address of the emulated base station
+     */
+    public static final long BASE_STATION_ADDRESS = IEEEAddress.HASH_PREFIX + 1;
+
+    public MACProxyEmulator(SpotSerialPipe serialPipe, SimulatedMAC mac) {
+        super(serialPipe, mac);
+    }
+
+    protected void serverStarted() {
+        System.out.println("emulated base station ready ...");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int numberOfSpots = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+        int loss = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int latency = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        int collisionWindow = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+
+        RadioMedium medium = new RadioMedium(42);
+        medium.setLossPercent(loss);
+        medium.setLatencyMillis(latency);
+        medium.setCollisionWindowMillis(collisionWindow);
+        SimulatedMAC mac = new SimulatedMAC(medium, BASE_STATION_ADDRESS);
+        final LoadGenerator generator;
+        if (numberOfSpots > 0) {
+            generator = new LoadGenerator(medium, mac, numberOfSpots);
+            generator.setOfferedLoad(rate);
+        } else {
+            generator = null;
+        }
+
+        StreamConnectionNotifier server = (StreamConnectionNotifier) Connector.open("serversocket://:" + port);
+        System.out.println("waiting for host on port " + port + " ...");
+        StreamConnection connection = server.acceptAndOpen();
+        if (generator != null) {
+            new Thread() {
+                public void run() {
+                    SimulationResult result = generator.run(seconds * 1000L);
+                    System.out.println("load from virtual SPOTs:");
+                    System.out.println(result);
+                    System.out.println("  packets to virtual SPOTs " + generator.getDownlinkPackets());
+                }
+            }.start();
+        }
+        new MACProxyEmulator(new SpotSerialPipe(connection), mac).run();
+    }
+}
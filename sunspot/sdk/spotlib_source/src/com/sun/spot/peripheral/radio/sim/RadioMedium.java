@@ -0,0 +1,280 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.sim;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import com.sun.spot.peripheral.radio.RadioPacket;
+import com.sun.spot.util.Utils;
+
+/**
+ * An in-memory 802.15.4 channel shared by a number of {@link SimulatedMAC}s, in
+ * real time. Unlike the {@link ChannelSimulator} it carries real
+ * {@link RadioPacket}s, so real protocol stacks can be run over it.
+ * <p/>
+ * Every node hears every other node. A frame occupies the channel for its
+ * airtime at 250 kbit/s, rounded up to whole milliseconds. Clear channel
+ * assessment does not see a frame until it has been on the air for the
+ * collision window, so two nodes that start within that window of each other
+ * both transmit and both frames are lost. A frame that survives may still be
+ * lost at each receiver with the configured probability, and reaches the
+ * receivers the configured latency after it leaves the air. A unicast frame is
+ * acknowledged if its destination heard it; the ACK is subject to the same loss.
+ */
+public class RadioMedium {
+
+    /**
+     * 250 kbit/s gives 32 microseconds per byte
+     */
+    private static final int MICROS_PER_BYTE = 32;
+    /**
+     * Preamble, SFD and length byte that precede every frame
+     */
+    private static final int PHY_OVERHEAD_BYTES = 6;
+    /**
+     * Link quality reported for every received frame
+     */
+    private static final int RECEIVED_CORR = 105;
+    private static final int RECEIVED_RSSI = 40;
+
+    private final Vector nodes = new Vector();
+    private final Vector onAir = new Vector();
+    private final Random random;
+    private final Timer deliveryTimer = new Timer();
+    private final byte[] scratch = new byte[RadioPacket.MAX_DATA_LENGTH + 13]; // corr, rssi, timestamp, length, frame and FCS
+
+    private int lossPercent = 0;
+    private int latencyMillis = 0;
+    private int collisionWindowMillis = 1;
+
+    private int framesSent;
+    private int framesLost;
+    private int collisions;
+
+    public RadioMedium(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @param lossPercent the chance, from 0 to 100, that a receiver misses a frame that did not collide
+     */
+    public void setLossPercent(int lossPercent) {
+        this.lossPercent = lossPercent;
+    }
+
+    /**
+     * @param latencyMillis extra delay between a frame leaving the air and its receivers seeing it
+     */
+    public void setLatencyMillis(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param collisionWindowMillis how long a frame must have been on the air before CCA detects it
+     */
+    public void setCollisionWindowMillis(int collisionWindowMillis) {
+        this.collisionWindowMillis = collisionWindowMillis;
+    }
+
+    synchronized void attach(SimulatedMAC node) {
+        nodes.addElement(node);
+    }
+
+    /**
+     * @return true if no frame that CCA can detect is on the air
+     */
+    synchronized boolean isChannelClear() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < onAir.size(); i++) {
+            Transmission t = (Transmission) onAir.elementAt(i);
+            if (t.start + collisionWindowMillis <= now && now < t.end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Put a frame on the air. Any frame already on the air collides with it.
+     *
+     * @param sender the node sending
+     * @param rp the frame
+     * @return the transmission, to be passed to {@link #waitForOutcome(Transmission)}
+     */
+    synchronized Transmission transmit(SimulatedMAC sender, RadioPacket rp) {
+        long now = System.currentTimeMillis();
+        RadioPacket copy;
+        int airtimeMicros;
+        synchronized (scratch) {
+            airtimeMicros = (writeToScratch(rp, now) + PHY_OVERHEAD_BYTES) * MICROS_PER_BYTE;
+            copy = RadioPacket.getDataPacket().readFrom(scratch, 0);
+        }
+        final Transmission t = new Transmission(sender, copy, now, now + (airtimeMicros + 999) / 1000);
+        for (int i = 0; i < onAir.size(); i++) {
+            Transmission other = (Transmission) onAir.elementAt(i);
+            if (other.end > now) {
+                if (!other.collided) {
+                    other.collided = true;
+                    collisions++;
+                }
+                if (!t.collided) {
+                    t.collided = true;
+                    collisions++;
+                }
+            }
+        }
+        onAir.addElement(t);
+        framesSent++;
+        deliveryTimer.schedule(new TimerTask() {
+            public void run() {
+                deliver(t);
+            }
+        }, t.end - now + latencyMillis);
+        return t;
+    }
+
+    /**
+     * Wait until a frame has reached its receivers.
+     *
+     * @param t the transmission
+     * @return true if the frame was unicast and its destination acknowledged it
+     */
+    boolean waitForOutcome(Transmission t) {
+        synchronized (t) {
+            while (!t.finished) {
+                try {
+                    t.wait();
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+            return t.acked;
+        }
+    }
+
+    private void deliver(Transmission t) {
+        boolean acked = false;
+        synchronized (this) {
+            onAir.removeElement(t);
+            if (!t.collided) {
+                long destination = t.packet.getDestinationAddress();
+                for (int i = 0; i < nodes.size(); i++) {
+                    SimulatedMAC node = (SimulatedMAC) nodes.elementAt(i);
+                    if (node == t.sender || !node.isAddressedBy(destination)) {
+                        continue;
+                    }
+                    if (isLost()) {
+                        framesLost++;
+                    } else if (node.frameArrived(copyOf(t.packet, System.currentTimeMillis()))
+                            && destination == node.getAddress() && t.packet.ackRequest()) {
+                        if (isLost()) {
+                            framesLost++;
+                        } else {
+                            acked = true;
+                        }
+                    }
+                }
+            }
+        }
+        synchronized (t) {
+            t.acked = acked;
+            t.finished = true;
+            t.notifyAll();
+        }
+    }
+
+    private boolean isLost() {
+        return lossPercent > 0 && random.nextInt(100) < lossPercent;
+    }
+
+    /**
+     * Copy a frame, giving the copy a timestamp and the medium's link quality.
+     */
+    private RadioPacket copyOf(RadioPacket rp, long now) {
+        synchronized (scratch) {
+            writeToScratch(rp, now);
+            return RadioPacket.getDataPacket().readFrom(scratch, 0);
+        }
+    }
+
+    /**
+     * @return the length of the frame after the PHY header
+     */
+    private int writeToScratch(RadioPacket rp, long now) {
+        int length = rp.writeOnto(scratch, 0);
+        scratch[0] = (byte) RECEIVED_CORR;
+        scratch[1] = (byte) RECEIVED_RSSI;
+        Utils.writeBigEndLong(scratch, 2, now);
+        return length - 11; // corr, rssi, timestamp and length byte
+    }
+
+    /**
+     * @return the number of frames put on the air
+     */
+    public synchronized int getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return the number of frames, counted once per receiver, and ACKs lost to the loss probability
+     */
+    public synchronized int getFramesLost() {
+        return framesLost;
+    }
+
+    /**
+     * @return the number of frames that overlapped another frame on the air
+     */
+    public synchronized int getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Stop delivering frames.
+     */
+    public void shutdown() {
+        deliveryTimer.cancel();
+    }
+
+    static final class Transmission {
+        final SimulatedMAC sender;
+        final RadioPacket packet;
+        final long start;
+        final long end;
+        boolean collided;
+        boolean acked;
+        boolean finished;
+
+        Transmission(SimulatedMAC sender, RadioPacket packet, long start, long end) {
+            this.sender = sender;
+            this.packet = packet;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
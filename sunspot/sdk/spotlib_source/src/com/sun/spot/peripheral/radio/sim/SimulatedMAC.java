@@ -0,0 +1,430 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+package com.sun.spot.peripheral.radio.sim;
+
+import java.util.Random;
+
+import com.sun.spot.peripheral.radio.DefaultBackoffPolicy;
+import com.sun.spot.peripheral.radio.I802_15_4_MAC;
+import com.sun.spot.peripheral.radio.IBackoffPolicy;
+import com.sun.spot.peripheral.radio.IProprietaryMAC;
+import com.sun.spot.peripheral.radio.ISlotSchedule;
+import com.sun.spot.peripheral.radio.MAC_InvalidParameterException;
+import com.sun.spot.peripheral.radio.RadioPacket;
+import com.sun.spot.peripheral.radio.TransmitScheduler;
+import com.sun.spot.util.Queue;
+import com.sun.spot.util.Utils;
+
+/**
+ * A MAC attached to a {@link RadioMedium} instead of a radio chip, so that
+ * anything written against {@link I802_15_4_MAC}, such as the
+ * {@link com.sun.spot.peripheral.basestation.MACProxyServerBase}, can be run
+ * on the host.
+ * <p/>
+ * Sending follows MACBase.mcpsDataRequest and MACLayer.sendIfChannelClear:
+ * senders are queued by traffic class, the channel is sensed with CSMA using
+ * the {@link IBackoffPolicy}'s exponents, and unacknowledged packets are retried
+ * after the policy's delay. Receiving follows MACBase too: when the receive
+ * queue is full the receiver is deaf, so frames are neither queued nor
+ * acknowledged, and broadcasts are dropped once the queue is past its lower
+ * limit. With a wakeup period set, frames are strobed and repeats are
+ * discarded on arrival, and with a slot schedule installed periodic frames
+ * wait for their slot, as in MACBase.
+ */
+public class SimulatedMAC implements I802_15_4_MAC, IProprietaryMAC {
+
+    private static final long BROADCAST_ADDRESS = 0xFFFF;
+    private static final int DEFAULT_MAX_RECEIVE_QUEUE_LENGTH = 1500;
+    private static final int DEFAULT_RECEIVE_QUEUE_LENGTH_TO_DROP_BROADCAST_PACKETS = 1000;
+    private static final int RECENT_RX_FRAMES = 8; // frames remembered to recognise strobe copies
+
+    private final RadioMedium medium;
+    private final long address;
+    private final Random random;
+    private final Queue dataQueue = new Queue();
+    private final TransmitScheduler transmitScheduler = new TransmitScheduler();
+    private IBackoffPolicy backoffPolicy = new DefaultBackoffPolicy();
+    private LoadGenerator monitor;
+
+    private boolean rxOnWhenIdle = true;
+    private long rxEnabledUntil = 0;
+    private int sending = 0;
+    private int maxReceiveQueueLength = DEFAULT_MAX_RECEIVE_QUEUE_LENGTH;
+    private int receiveQueueLengthToDropBroadcastPackets = DEFAULT_RECEIVE_QUEUE_LENGTH_TO_DROP_BROADCAST_PACKETS;
+    private int transmitPower = 0;
+    private int wakeupPeriod = 0;
+    private ISlotSchedule slotSchedule = null;
+    private int rxFrameCount = 0;
+    private RadioPacket[] recentRx = new RadioPacket[RECENT_RX_FRAMES];
+    private long[] recentRxTimes = new long[RECENT_RX_FRAMES];
+    private int nextRecentRx = 0;
+
+    private int channelAccessFailure = 0;
+    private int noAck = 0;
+
+    /**
+     * @param medium the channel to attach to
+     * @param address this MAC's IEEE address
+     */
+    public SimulatedMAC(RadioMedium medium, long address) {
+        this.medium = medium;
+        this.address = address;
+        random = new Random(address);
+        medium.attach(this);
+    }
+
+    public int mcpsDataRequest(RadioPacket rp) {
+        ISlotSchedule schedule = slotSchedule;
+        if (schedule != null && rp.getTrafficClass() == TransmitScheduler.TRAFFIC_CLASS_PERIODIC) {
+            long wait = schedule.getTimeUntilSlot();
+            if (wait > 0) {
+                Utils.sleep(wait);
+            }
+        }
+        if (!transmitScheduler.acquire(rp.getTrafficClass())) {
+            return CHANNEL_ACCESS_FAILURE;
+        }
+        try {
+            synchronized (this) {
+                sending++;
+            }
+            int result = NO_ACK;
+            IBackoffPolicy policy = backoffPolicy;
+            long destination = rp.getDestinationAddress();
+            int maxFrameRetries = policy.getMaxFrameRetries(destination);
+            long strobeDeadline = wakeupPeriod > 0 ? System.currentTimeMillis() + wakeupPeriod : 0;
+            for (int i = 0; i <= maxFrameRetries || isStrobing(strobeDeadline); i++) {
+                RadioMedium.Transmission t = sendIfChannelClear(rp, policy);
+                if (t == null) {
+                    result = CHANNEL_ACCESS_FAILURE;
+                    break;
+                }
+                boolean acked = medium.waitForOutcome(t);
+                boolean strobing = isStrobing(strobeDeadline);
+                if (!rp.ackRequest()) {
+                    result = SUCCESS;
+                    if (strobing) {
+                        continue;
+                    }
+                    break;
+                }
+                if (acked) {
+                    policy.ackAttempted(destination, true);
+                    result = SUCCESS;
+                    break;
+                }
+                if (strobing) {
+                    continue;
+                }
+                policy.ackAttempted(destination, false);
+                synchronized (this) {
+                    noAck++;
+                }
+                if (monitor != null) {
+                    monitor.retried(this);
+                }
+                if (i < maxFrameRetries) {
+                    int timeBeforeRetry = policy.getTimeBeforeRetry(destination, i);
+                    if (timeBeforeRetry != 0) {
+                        int initialDelay = 2 * timeBeforeRetry / 3;
+                        Utils.sleep(initialDelay + random(timeBeforeRetry - initialDelay));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            synchronized (this) {
+                sending--;
+            }
+            transmitScheduler.release();
+        }
+    }
+
+    private boolean isStrobing(long strobeDeadline) {
+        return strobeDeadline != 0 && System.currentTimeMillis() < strobeDeadline;
+    }
+
+    private RadioMedium.Transmission sendIfChannelClear(RadioPacket rp, IBackoffPolicy policy) {
+        long destination = rp.getDestinationAddress();
+        int numberOfBackoffs = 0;
+        int backoffExponent = policy.getMinBackoffExponent(destination);
+        int maxBackoffExponent = policy.getMaxBackoffExponent(destination);
+        int maxCSMABackoffs = policy.getMaxCSMABackoffs(destination);
+        do {
+            int periods = random((1 << backoffExponent) - 1);
+            if (periods > 0) {
+                Utils.sleep(periods / 3);   // a period is 0.32mS
+            }
+            synchronized (medium) {
+                if (medium.isChannelClear()) {
+                    policy.channelAccessAttempted(destination, true);
+                    return medium.transmit(this, rp);
+                }
+            }
+            synchronized (this) {
+                channelAccessFailure++;
+            }
+            policy.channelAccessAttempted(destination, false);
+            numberOfBackoffs++;
+            backoffExponent = Math.min((backoffExponent == 0 ? 3 : (backoffExponent + 1)), maxBackoffExponent);
+        } while (numberOfBackoffs <= maxCSMABackoffs);
+        return null;
+    }
+
+    public void mcpsDataIndication(RadioPacket rp) {
+        RadioPacket internalRP = (RadioPacket) dataQueue.get();
+        rp.copyFrom(internalRP);
+    }
+
+    /**
+     * Called by the medium when a frame reaches this MAC.
+     *
+     * @param rp the frame, already copied for this receiver
+     * @return true if the receiver was on, so the frame is acknowledged
+     */
+    boolean frameArrived(RadioPacket rp) {
+        boolean heard;
+        boolean queued = false;
+        synchronized (this) {
+            heard = isRxOn() && dataQueue.size() < maxReceiveQueueLength;
+            if (heard) {
+                rxFrameCount++;
+            }
+            if (heard && !isStrobeCopy(rp) && (rp.getDestinationAddress() == address || dataQueue.size() < receiveQueueLengthToDropBroadcastPackets)) {
+                dataQueue.put(rp);
+                queued = true;
+            }
+        }
+        if (monitor != null) {
+            monitor.frameArrived(this, rp, queued);
+        }
+        return heard;
+    }
+
+    /*
+     * Only MACBase numbers its frames, so here a repeat is recognised by being identical to one of
+     * the last few frames heard within a wakeup period.
+     */
+    private boolean isStrobeCopy(RadioPacket rp) {
+        if (wakeupPeriod == 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < RECENT_RX_FRAMES; i++) {
+            if (recentRx[i] != null && now - recentRxTimes[i] <= wakeupPeriod && isSameFrame(recentRx[i], rp)) {
+                return true;
+            }
+        }
+        recentRx[nextRecentRx] = rp;
+        recentRxTimes[nextRecentRx] = now;
+        nextRecentRx = (nextRecentRx + 1) % RECENT_RX_FRAMES;
+        return false;
+    }
+
+    private static boolean isSameFrame(RadioPacket a, RadioPacket b) {
+        int length = a.getMACPayloadLength();
+        if (a.getSourceAddress() != b.getSourceAddress() || length != b.getMACPayloadLength()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a.getMACPayloadAt(i) != b.getMACPayloadAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param timeout milliseconds to wait, or 0 not to wait
+     * @return the next received packet, or null if none arrived in time
+     */
+    RadioPacket receive(long timeout) {
+        return (RadioPacket) dataQueue.get(timeout);
+    }
+
+    boolean isAddressedBy(long destination) {
+        return destination == address || destination == BROADCAST_ADDRESS;
+    }
+
+    long getAddress() {
+        return address;
+    }
+
+    void setMonitor(LoadGenerator monitor) {
+        this.monitor = monitor;
+    }
+
+    private synchronized boolean isRxOn() {
+        // like MACBase, the receiver is always on while sending so that ACKs can be heard
+        return rxOnWhenIdle || sending > 0 || System.currentTimeMillis() < rxEnabledUntil;
+    }
+
+    private int random(int i) {
+        synchronized (random) {
+            return random.nextInt(i + 1);
+        }
+    }
+
+    public void mlmeStart(short panId, int channel) throws MAC_InvalidParameterException {
+        // the medium has only one channel
+    }
+
+    public synchronized void mlmeReset(boolean resetAttribs) {
+        while (!dataQueue.isEmpty()) {
+            dataQueue.get();
+        }
+        if (resetAttribs) {
+            rxOnWhenIdle = true;
+            rxEnabledUntil = 0;
+        }
+    }
+
+    public synchronized long mlmeGet(int attribute) throws MAC_InvalidParameterException {
+        switch (attribute) {
+            case A_EXTENDED_ADDRESS:
+                return address;
+            case MAC_RX_ON_WHEN_IDLE:
+                return rxOnWhenIdle ? TRUE : FALSE;
+            default:
+                throw new MAC_InvalidParameterException();
+        }
+    }
+
+    public synchronized void mlmeSet(int attribute, long value) throws MAC_InvalidParameterException {
+        switch (attribute) {
+            case MAC_RX_ON_WHEN_IDLE:
+                rxOnWhenIdle = value == TRUE;
+                break;
+            default:
+                throw new MAC_InvalidParameterException();
+        }
+    }
+
+    public synchronized void mlmeRxEnable(int rxOnDuration) {
+        // a symbol is 16 microseconds
+        rxEnabledUntil = rxOnDuration == 0 ? 0 : System.currentTimeMillis() + ((long) rxOnDuration * 16) / 1000;
+    }
+
+    public int getNullPacketAfterAckWait() {
+        return 0;
+    }
+
+    public synchronized int getChannelAccessFailure() {
+        return channelAccessFailure;
+    }
+
+    public synchronized int getNoAck() {
+        return noAck;
+    }
+
+    public int getWrongAck() {
+        return 0;
+    }
+
+    public int getRxError() {
+        return 0;
+    }
+
+    public int getTransmitQueueDepth(int trafficClass) {
+        return transmitScheduler.getQueueDepth(trafficClass);
+    }
+
+    public int getTransmitDrops(int trafficClass) {
+        return transmitScheduler.getDrops(trafficClass);
+    }
+
+    public void setMaxTransmitQueueDepth(int trafficClass, int depth) {
+        transmitScheduler.setMaxQueueDepth(trafficClass, depth);
+    }
+
+    public void setBackoffPolicy(IBackoffPolicy policy) {
+        backoffPolicy = policy;
+    }
+
+    public IBackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
+    }
+
+    public synchronized void resetErrorCounters() {
+        channelAccessFailure = 0;
+        noAck = 0;
+        transmitScheduler.resetCounters();
+    }
+
+    public void setWakeupPeriod(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Wakeup period must not be negative");
+        }
+        wakeupPeriod = millis;
+    }
+
+    public int getWakeupPeriod() {
+        return wakeupPeriod;
+    }
+
+    public void setSlotSchedule(ISlotSchedule schedule) {
+        slotSchedule = schedule;
+    }
+
+    public boolean checkChannel(int listenMillis) {
+        int framesBefore;
+        synchronized (this) {
+            framesBefore = rxFrameCount;
+            rxEnabledUntil = Math.max(rxEnabledUntil, System.currentTimeMillis() + listenMillis);
+        }
+        Utils.sleep(listenMillis);
+        synchronized (this) {
+            return rxFrameCount != framesBefore;
+        }
+    }
+
+    public void setPLMEChannel(int channel) {
+        // the medium has only one channel
+    }
+
+    public void setPLMETransmitPower(int power) {
+        transmitPower = power;
+    }
+
+    public int getPLMETransmitPower() {
+        return transmitPower;
+    }
+
+    public void setMaxReceiveQueueLength(int maxPackets) {
+        maxReceiveQueueLength = maxPackets;
+    }
+
+    public void setReceiveQueueLengthToDropBroadcastPackets(int maxPackets) {
+        receiveQueueLengthToDropBroadcastPackets = maxPackets;
+    }
+
+    public int getMaxReceiveQueueLength() {
+        return maxReceiveQueueLength;
+    }
+
+    public int getReceiveQueueLengthToDropBroadcastPackets() {
+        return receiveQueueLengthToDropBroadcastPackets;
+    }
+}
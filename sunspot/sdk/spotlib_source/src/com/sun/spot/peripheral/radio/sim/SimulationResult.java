@@ -0,0 +1,150 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio.sim;
+
+/**
+ * Statistics gathered by one run of a {@link ChannelSimulator}.
+ * Latency runs from a packet's arrival at its MAC to receipt of its ACK, and
+ * is kept as a histogram with one millisecond buckets.
+ */
+public class SimulationResult {
+
+    private final long durationMillis;
+    private final int[] latencyHistogram;
+    private long totalLatencyMicros;
+
+    int offered;
+    int deliveredCount;
+    int retries;
+    int channelAccessFailures;
+    int noAckFailures;
+    int queueOverflows;
+    int framesSent;
+    int framesLost;
+    int collisions;
+
+    SimulationResult(long durationMillis, int maxLatencyMillis) {
+        this.durationMillis = durationMillis;
+        latencyHistogram = new int[maxLatencyMillis + 1];
+    }
+
+    void delivered(long latencyMicros, int retriesNeeded) {
+        deliveredCount++;
+        retries += retriesNeeded;
+        totalLatencyMicros += latencyMicros;
+        int bucket = (int) Math.min(latencyMicros / 1000, latencyHistogram.length - 1);
+        latencyHistogram[bucket]++;
+    }
+
+    /**
+     * @return the number of packets accepted onto a MAC's queue
+     */
+    public int getOffered() {
+        return offered;
+    }
+
+    /**
+     * @return the number of packets acknowledged by their destination
+     */
+    public int getDelivered() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return acknowledged packets per second across the whole channel
+     */
+    public int getThroughput() {
+        return durationMillis == 0 ? 0 : (int) (deliveredCount * 1000L / durationMillis);
+    }
+
+    /**
+     * @return mean latency of acknowledged packets in microseconds
+     */
+    public long getMeanLatencyMicros() {
+        return deliveredCount == 0 ? 0 : totalLatencyMicros / deliveredCount;
+    }
+
+    /**
+     * @param percent the percentile wanted, from 1 to 100
+     * @return the latency in milliseconds under which that percentage of acknowledged packets arrived
+     */
+    public int getLatencyPercentileMillis(int percent) {
+        int wanted = (int) (((long) deliveredCount * percent + 99) / 100);
+        int seen = 0;
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            seen += latencyHistogram[i];
+            if (seen >= wanted && seen > 0) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return packets dropped after a channel access failure
+     */
+    public int getChannelAccessFailures() {
+        return channelAccessFailures;
+    }
+
+    /**
+     * @return packets dropped after running out of retries without an ACK
+     */
+    public int getNoAckFailures() {
+        return noAckFailures;
+    }
+
+    /**
+     * @return packets dropped because their MAC's queue was full
+     */
+    public int getQueueOverflows() {
+        return queueOverflows;
+    }
+
+    /**
+     * @return the number of frames, ACKs included, that collided with another frame
+     */
+    public int getCollisions() {
+        return collisions;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("  delivered ").append(deliveredCount).append('/').append(offered)
+          .append(" (").append(getThroughput()).append(" pkts/s), retries ").append(retries).append('\n');
+        sb.append("  latency mean ").append(getMeanLatencyMicros() / 1000).append("ms")
+          .append(" p50 ").append(getLatencyPercentileMillis(50)).append("ms")
+          .append(" p95 ").append(getLatencyPercentileMillis(95)).append("ms")
+          .append(" p99 ").append(getLatencyPercentileMillis(99)).append("ms\n");
+        sb.append("  drops: channel access ").append(channelAccessFailures)
+          .append(", no ack ").append(noAckFailures)
+          .append(", queue full ").append(queueOverflows).append('\n');
+        sb.append("  frames sent ").append(framesSent)
+          .append(", collided ").append(collisions)
+          .append(", lost ").append(framesLost);
+        return sb.toString();
+    }
+}
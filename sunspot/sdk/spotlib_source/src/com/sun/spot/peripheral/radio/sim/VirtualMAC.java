@@ -0,0 +1,205 @@
+/*
+ * Copyright 2006-2009 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ *
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ *
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.peripheral.radio.sim;
+
+import com.sun.spot.peripheral.radio.IBackoffPolicy;
+
+/**
+ * One simulated SPOT MAC. Packets are sent one at a time in arrival order
+ * using the same procedure as MACBase.mcpsDataRequest and
+ * MACLayer.sendIfChannelClear, but driven by {@link ChannelSimulator} events
+ * rather than by sleeping.
+ */
+class VirtualMAC {
+
+    final ChannelSimulator sim;
+    final long address;
+    IBackoffPolicy policy;
+
+    // waiting packets as a ring buffer of arrival times and destinations
+    private long[] arrivals = new long[16];
+    private long[] destinations = new long[16];
+    private int head;
+    int queued;
+
+    // state of the packet being sent
+    private boolean sending;
+    private int retry;
+    private int maxFrameRetries;
+    private int numberOfBackoffs;
+    private int backoffExponent;
+    private int maxBackoffExponent;
+    private int maxCSMABackoffs;
+    private boolean waitingForAck;
+    int attemptSequence;
+
+    VirtualMAC(ChannelSimulator sim, long address, IBackoffPolicy policy) {
+        this.sim = sim;
+        this.address = address;
+        this.policy = policy;
+    }
+
+    void reset() {
+        head = 0;
+        queued = 0;
+        sending = false;
+        waitingForAck = false;
+    }
+
+    void enqueue(long arrivalTime, long destination) {
+        if (queued == arrivals.length) {
+            long[] a = new long[arrivals.length * 2];
+            long[] d = new long[arrivals.length * 2];
+            for (int i = 0; i < queued; i++) {
+                a[i] = arrivals[(head + i) % arrivals.length];
+                d[i] = destinations[(head + i) % arrivals.length];
+            }
+            arrivals = a;
+            destinations = d;
+            head = 0;
+        }
+        int tail = (head + queued) % arrivals.length;
+        arrivals[tail] = arrivalTime;
+        destinations[tail] = destination;
+        queued++;
+        if (!sending) {
+            startPacket();
+        }
+    }
+
+    private long currentDestination() {
+        return destinations[head];
+    }
+
+    private void startPacket() {
+        sending = true;
+        retry = 0;
+        maxFrameRetries = policy.getMaxFrameRetries(currentDestination());
+        startAttempt();
+    }
+
+    /**
+     * Begin CSMA for one transmission attempt of the current packet.
+     */
+    void startAttempt() {
+        long destination = currentDestination();
+        numberOfBackoffs = 0;
+        backoffExponent = policy.getMinBackoffExponent(destination);
+        maxBackoffExponent = policy.getMaxBackoffExponent(destination);
+        maxCSMABackoffs = policy.getMaxCSMABackoffs(destination);
+        scheduleBackoff();
+    }
+
+    private void scheduleBackoff() {
+        int periods = sim.random.nextInt(1 << backoffExponent);
+        sim.schedule(periods * ChannelSimulator.BACKOFF_PERIOD_MICROS + ChannelSimulator.CCA_MICROS,
+                ChannelSimulator.EVENT_CCA, this);
+    }
+
+    void clearChannelAssessment() {
+        long destination = currentDestination();
+        if (!sim.isChannelBusy()) {
+            policy.channelAccessAttempted(destination, true);
+            sim.startTransmission(this, destination);
+            return;
+        }
+        policy.channelAccessAttempted(destination, false);
+        numberOfBackoffs++;
+        backoffExponent = Math.min((backoffExponent == 0 ? 3 : (backoffExponent + 1)), maxBackoffExponent);
+        if (numberOfBackoffs <= maxCSMABackoffs) {
+            scheduleBackoff();
+        } else {
+            // MACBase gives up on the packet at once after a channel access failure
+            sim.result().channelAccessFailures++;
+            finishPacket(false);
+        }
+    }
+
+    void transmissionFinished() {
+        waitingForAck = true;
+        attemptSequence++;
+        sim.schedule(ChannelSimulator.ACK_WAIT_MICROS, ChannelSimulator.EVENT_ACK_TIMEOUT, new AckTimeout(attemptSequence));
+    }
+
+    void ackReceived(int sequence) {
+        if (!waitingForAck || sequence != attemptSequence) {
+            return;
+        }
+        waitingForAck = false;
+        policy.ackAttempted(currentDestination(), true);
+        finishPacket(true);
+    }
+
+    private void ackTimedOut(int sequence) {
+        if (!waitingForAck || sequence != attemptSequence) {
+            return;
+        }
+        waitingForAck = false;
+        long destination = currentDestination();
+        policy.ackAttempted(destination, false);
+        if (retry >= maxFrameRetries) {
+            sim.result().noAckFailures++;
+            finishPacket(false);
+            return;
+        }
+        int timeBeforeRetry = policy.getTimeBeforeRetry(destination, retry);
+        retry++;
+        long delay = 0;
+        if (timeBeforeRetry != 0) {
+            int initialDelay = 2 * timeBeforeRetry / 3;
+            delay = 1000L * (initialDelay + sim.random.nextInt(timeBeforeRetry - initialDelay + 1));
+        }
+        sim.schedule(delay, ChannelSimulator.EVENT_RETRY, this);
+    }
+
+    private void finishPacket(boolean delivered) {
+        if (delivered) {
+            sim.result().delivered(sim.now() - arrivals[head], retry);
+        }
+        head = (head + 1) % arrivals.length;
+        queued--;
+        sending = false;
+        if (queued > 0) {
+            startPacket();
+        }
+    }
+
+    /**
+     * An ACK timeout event. It remembers which attempt it belongs to so that a
+     * stale timeout is ignored.
+     */
+    class AckTimeout {
+        final int sequence;
+
+        AckTimeout(int sequence) {
+            this.sequence = sequence;
+        }
+
+        void fire() {
+            ackTimedOut(sequence);
+        }
+    }
+}
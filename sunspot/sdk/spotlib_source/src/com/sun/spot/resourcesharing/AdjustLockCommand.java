@@ -22,31 +22,31 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
+import com.sun.spot.interisolate.ObjectReplyEnvelope;
 import com.sun.spot.interisolate.ReplyEnvelope;
 import com.sun.spot.interisolate.RequestEnvelope;
-import com.sun.spot.interisolate.VoidReplyEnvelope;
 
 public class AdjustLockCommand extends RequestEnvelope {
 
 	private int isolateId;
-	private String resourceName;
-	private ResourceSharingScheme oldScheme;
+	private int resourceId;
+	private Lease lease;
 	private ResourceSharingScheme newScheme;
 
-	public AdjustLockCommand(int isolateId, String resourceName, ResourceSharingScheme oldScheme, ResourceSharingScheme newScheme) {
+	AdjustLockCommand(int isolateId, int resourceId, Lease lease, ResourceSharingScheme newScheme) {
 		this.isolateId = isolateId;
-		this.resourceName = resourceName;
-		this.oldScheme = oldScheme;
+		this.resourceId = resourceId;
+		this.lease = lease;
 		this.newScheme = newScheme;
 	}
 
 	public ReplyEnvelope execute(Object context) throws Exception {
-		ResourceSharingScheme localOldScheme = ResourceSharingScheme.schemeMatching(oldScheme);
 		ResourceSharingScheme localNewScheme = ResourceSharingScheme.schemeMatching(newScheme);
-		((IResourceRegistryMaster)context).adjustLock(isolateId, resourceName, localOldScheme, localNewScheme);
-		return new VoidReplyEnvelope(getUid());
+		Lease result = ((IResourceRegistryMaster)context).adjustLock(isolateId, resourceId, lease, localNewScheme);
+		return new ObjectReplyEnvelope(getUid(), result);
 	}
 
 }
@@ -29,18 +29,27 @@ import java.util.Hashtable;
 class HandleControl {
 
 	private IResource resource;
+	private int resourceId;
 	private Hashtable handles = new Hashtable();
+	private Hashtable handleLeases = new Hashtable();
+	private Hashtable leases = new Hashtable();
 
-	public HandleControl(IResource resource) {
+	public HandleControl(IResource resource, int resourceId) {
 		this.resource = resource;
+		this.resourceId = resourceId;
 	}
 
-	public IResourceHandle allocateResource(ResourceSharingScheme scheme, boolean otherIsolateHasLock) throws ResourceUnavailableException, ResourceSharingException {
+	public int getResourceId() {
+		return resourceId;
+	}
+
+	public IResourceHandle allocateResource(ResourceSharingScheme scheme, Lease lease, boolean otherIsolateHasLock) throws ResourceUnavailableException, ResourceSharingException {
 		IResourceHandle handle = resource.getHandle(scheme, otherIsolateHasLock);
 		if (handles.containsKey(handle)) {
 			throw new ResourceSharingException("resource " + resource.getResourceName() + " has issued a handle that is still in use");
 		}
 		handles.put(handle, scheme);
+		setLease(handle, scheme, lease);
 		return handle;
 	}
 	
@@ -49,9 +58,37 @@ class HandleControl {
 		return (ResourceSharingScheme) handles.get(handle);
 	}
 
+	/**
+	 * @return the most recent lease obtained for the scheme, which the master may since have released
+	 */
+	public Lease getLease(ResourceSharingScheme scheme) {
+		return (Lease) leases.get(scheme);
+	}
+
+	public Lease getLeaseForHandle(IResourceHandle handle) {
+		return (Lease) handleLeases.get(handle);
+	}
+
+	public void setLease(IResourceHandle handle, ResourceSharingScheme scheme, Lease lease) {
+		handleLeases.put(handle, lease);
+		leases.put(scheme, lease);
+	}
+
+	/**
+	 * Drop all leases, after the master has released them on our behalf
+	 */
+	public void forgetLeases() {
+		handleLeases.clear();
+		leases.clear();
+	}
+
 	public void unlock(IResourceHandle handle) throws ResourceSharingException {
 		checkHandle(handle);
 		handles.remove(handle);
+		Lease lease = (Lease) handleLeases.remove(handle);
+		if (lease != null) {
+			lease.release();
+		}
 		resource.unlocked(handle);
 	}
 
@@ -66,6 +103,10 @@ class HandleControl {
 		IResourceHandle newHandle = resource.lockAdjusted(handle, getSchemeForHandle(handle), newScheme);
 		handles.remove(handle);
 		handles.put(newHandle, newScheme);
+		Lease lease = (Lease) handleLeases.remove(handle);
+		if (lease != null) {
+			handleLeases.put(newHandle, lease);
+		}
 		return newHandle;
 	}
 	
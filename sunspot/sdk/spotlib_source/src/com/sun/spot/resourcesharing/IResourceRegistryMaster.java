@@ -22,18 +22,17 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
 interface IResourceRegistryMaster {
 
-	boolean lock(int isolateId, String resourceName, ResourceSharingScheme scheme) throws ResourceUnavailableException;
+	int register(String resourceName);
 
-	void register(String resourceName);
+	Lease lock(int isolateId, int resourceId, ResourceSharingScheme scheme) throws ResourceUnavailableException;
 
-	void unlock(int isolateId, String resourceName, ResourceSharingScheme scheme);
+	Lease adjustLock(int isolateId, int resourceId, Lease lease, ResourceSharingScheme newScheme) throws ResourceUnavailableException;
 
 	void unlockAllResourcesHeldByIsolate(int isolateId);
 
-	void adjustLock(int isolateId, String resourceName, ResourceSharingScheme oldScheme, ResourceSharingScheme newScheme) throws ResourceUnavailableException;
-
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.resourcesharing;
+
+/**
+ * A lock on one resource granted by the master registry to one isolate for one sharing scheme.
+ * All the handles that an isolate holds for a resource with the same scheme share a single lease,
+ * and the isolate counts its handles in and out of the lease itself. It only needs to go to the
+ * master when it has no lease for the scheme, or when the master has taken its lease back.
+ * 
+ * When the last holder lets go, the lease stays in place for {@link #LEASE_PERIOD} milliseconds,
+ * so a resource that is locked and unlocked repeatedly costs one request to the master rather
+ * than two per use. The master takes back an idle lease once that period has lapsed, or at once
+ * if it stands in the way of a request from any isolate, so an idle lease never makes a resource
+ * unavailable.
+ * 
+ * Leases are passed by reference between isolates. Their state is guarded by the lease's own
+ * monitor, and the master only changes the list a lease is in while holding the monitor of the
+ * {@link ResourceControl} it belongs to.
+ */
+class Lease {
+
+	/**
+	 * How long, in milliseconds, an idle lease is kept before the master takes it back.
+	 */
+	static final long LEASE_PERIOD = 2000;
+
+	final ResourceControl resource;
+	final int isolateId;
+	final ResourceSharingScheme scheme;
+
+	Lease nextLease;
+
+	private int holders;
+	private long expiryTime;
+	private boolean released;
+
+	Lease(ResourceControl resource, int isolateId, ResourceSharingScheme scheme) {
+		this.resource = resource;
+		this.isolateId = isolateId;
+		this.scheme = scheme;
+		this.holders = 1;
+	}
+
+	/**
+	 * Add a holder to this lease, renewing it, unless the master has already taken it back or
+	 * the lease is held and its scheme does not allow a second holder.
+	 * @return false if the lease cannot be renewed and the master must be asked instead
+	 */
+	synchronized boolean acquire() {
+		if (released || (holders > 0 && !scheme.compatibleWith(scheme))) {
+			return false;
+		}
+		holders++;
+		return true;
+	}
+
+	/**
+	 * Remove a holder from this lease. When the last holder goes the lease starts to lapse.
+	 */
+	synchronized void release() {
+		if (holders > 0 && --holders == 0) {
+			expiryTime = System.currentTimeMillis() + LEASE_PERIOD;
+		}
+	}
+
+	synchronized int getHolderCount() {
+		return holders;
+	}
+
+	/**
+	 * Called by the master to take back this lease if nothing is holding it.
+	 * @param force true to take back an idle lease even if it has not yet lapsed
+	 * @param now the current time
+	 * @return true if the lease has been released
+	 */
+	synchronized boolean revokeIfIdle(boolean force, long now) {
+		if (holders == 0 && (force || now >= expiryTime)) {
+			released = true;
+		}
+		return released;
+	}
+
+	/**
+	 * Called by the master to take back this lease whether or not it is held.
+	 */
+	synchronized void revoke() {
+		holders = 0;
+		released = true;
+	}
+}
@@ -22,28 +22,29 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
-import com.sun.spot.interisolate.BooleanReplyEnvelope;
+import com.sun.spot.interisolate.ObjectReplyEnvelope;
 import com.sun.spot.interisolate.ReplyEnvelope;
 import com.sun.spot.interisolate.RequestEnvelope;
 
 public class LockCommand extends RequestEnvelope {
 
 	private int isolateId;
-	private String resourceName;
+	private int resourceId;
 	private ResourceSharingScheme scheme;
 
-	public LockCommand(int isolateId, String resourceName, ResourceSharingScheme scheme) {
+	public LockCommand(int isolateId, int resourceId, ResourceSharingScheme scheme) {
 		this.isolateId = isolateId;
-		this.resourceName = resourceName;
+		this.resourceId = resourceId;
 		this.scheme = scheme;
 	}
 
 	public ReplyEnvelope execute(Object context) throws Exception {
 		ResourceSharingScheme localScheme = ResourceSharingScheme.schemeMatching(scheme);
-		boolean result = ((IResourceRegistryMaster)context).lock(isolateId, resourceName, localScheme);
-		return new BooleanReplyEnvelope(getUid(), result);
+		Lease result = ((IResourceRegistryMaster)context).lock(isolateId, resourceId, localScheme);
+		return new ObjectReplyEnvelope(getUid(), result);
 	}
 
 }
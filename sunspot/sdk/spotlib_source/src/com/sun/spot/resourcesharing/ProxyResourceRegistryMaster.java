@@ -22,9 +22,11 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
-import com.sun.spot.interisolate.BooleanReplyEnvelope;
+import com.sun.spot.interisolate.NumberReplyEnvelope;
+import com.sun.spot.interisolate.ObjectReplyEnvelope;
 import com.sun.spot.interisolate.ReplyEnvelope;
 import com.sun.spot.interisolate.RequestSender;
 import com.sun.spot.peripheral.SpotFatalException;
@@ -43,28 +45,14 @@ public class ProxyResourceRegistryMaster implements IResourceRegistryMaster {
 		}
 	}
 
-	public boolean lock(int isolateId, String resourceName, ResourceSharingScheme scheme) throws ResourceUnavailableException {
-		ReplyEnvelope resultEnvelope = requestSender.send(new LockCommand(isolateId, resourceName, scheme));
-		try {
-			resultEnvelope.checkForThrowable();
-		} catch (RuntimeException e) {
-			throw e;
-		} catch (ResourceUnavailableException e) {
-			throw e;
-		} catch (Throwable e) {
-			throw new SpotFatalException("Unexpected exception: " + e);
-		}
-		return ((BooleanReplyEnvelope)resultEnvelope).getBooleanContents();
+	public Lease lock(int isolateId, int resourceId, ResourceSharingScheme scheme) throws ResourceUnavailableException {
+		return getLease(requestSender.send(new LockCommand(isolateId, resourceId, scheme)));
 	}
 
-	public void register(String resourceName) {
+	public int register(String resourceName) {
 		ReplyEnvelope resultEnvelope = requestSender.send(new RegisterCommand(resourceName));
 		resultEnvelope.checkForRuntimeException();
-	}
-
-	public void unlock(int isolateId, String resourceName, ResourceSharingScheme scheme) {
-		ReplyEnvelope resultEnvelope = requestSender.send(new UnlockCommand(isolateId, resourceName, scheme));
-		resultEnvelope.checkForRuntimeException();
+		return ((NumberReplyEnvelope)resultEnvelope).getIntContents();
 	}
 
 	public void unlockAllResourcesHeldByIsolate(int isolateId) {
@@ -72,8 +60,11 @@ public class ProxyResourceRegistryMaster implements IResourceRegistryMaster {
 		resultEnvelope.checkForRuntimeException();
 	}
 
-	public void adjustLock(int isolateId, String resourceName, ResourceSharingScheme oldScheme, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
-		ReplyEnvelope resultEnvelope = requestSender.send(new AdjustLockCommand(isolateId, resourceName, oldScheme, newScheme));
+	public Lease adjustLock(int isolateId, int resourceId, Lease lease, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
+		return getLease(requestSender.send(new AdjustLockCommand(isolateId, resourceId, lease, newScheme)));
+	}
+
+	private Lease getLease(ReplyEnvelope resultEnvelope) throws ResourceUnavailableException {
 		try {
 			resultEnvelope.checkForThrowable();
 		} catch (RuntimeException e) {
@@ -83,6 +74,7 @@ public class ProxyResourceRegistryMaster implements IResourceRegistryMaster {
 		} catch (Throwable e) {
 			throw new SpotFatalException("Unexpected exception: " + e);
 		}
+		return (Lease)((ObjectReplyEnvelope)resultEnvelope).getContents();
 	}
 
 }
@@ -22,11 +22,12 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
+import com.sun.spot.interisolate.NumberReplyEnvelope;
 import com.sun.spot.interisolate.ReplyEnvelope;
 import com.sun.spot.interisolate.RequestEnvelope;
-import com.sun.spot.interisolate.VoidReplyEnvelope;
 
 public class RegisterCommand extends RequestEnvelope {
 
@@ -37,8 +38,8 @@ public class RegisterCommand extends RequestEnvelope {
 	}
 
 	public ReplyEnvelope execute(Object context) throws Exception {
-		((IResourceRegistryMaster) context).register(resourceName);
-		return new VoidReplyEnvelope(getUid());
+		int resourceId = ((IResourceRegistryMaster) context).register(resourceName);
+		return new NumberReplyEnvelope(getUid(), resourceId);
 	}
 
 }
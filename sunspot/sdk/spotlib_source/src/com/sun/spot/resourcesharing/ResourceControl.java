@@ -22,117 +22,144 @@
  * information or have any questions.
  */
 
-package com.sun.spot.resourcesharing;
 
+package com.sun.spot.resourcesharing;
 
+/**
+ * The master's record of the leases granted on one resource. Each resource is guarded by its own
+ * monitor, so requests for different resources never wait for one another.
+ */
 class ResourceControl {
 
-	private Lock highestLock;
+	private Lease highestLease;
 	private String resourceName;
 
 	public ResourceControl(String resourceName) {
 		this.resourceName = resourceName;
 	}
 
-	public boolean lock(int isolateId, ResourceSharingScheme scheme) throws ResourceUnavailableException {
-		if (highestLock != null && !scheme.compatibleWith(highestLock.scheme)) {
-			throw new ResourceUnavailableException("resource " + resourceName + " is already locked by isolate " + highestLock.isolateId);
+	public synchronized Lease lock(int isolateId, ResourceSharingScheme scheme) throws ResourceUnavailableException {
+		return lock(isolateId, scheme, null);
+	}
+
+	/**
+	 * Move one holder of a lease to a lease with a different scheme. The holder being moved is
+	 * not counted when checking the new scheme for conflicts.
+	 */
+	public synchronized Lease adjust(Lease lease, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
+		Lease newLease = lock(lease.isolateId, newScheme, lease);
+		lease.release();
+		if (lease.revokeIfIdle(true, 0)) {
+			removeLease(lease);
 		}
-		boolean result = false;
-		Lock nextLock = highestLock;
-		while (nextLock != null) {
-			if (nextLock.isolateId != isolateId) {
-				result = true;
-				break;
+		return newLease;
+	}
+
+	private Lease lock(int isolateId, ResourceSharingScheme scheme, Lease movingLease) throws ResourceUnavailableException {
+		long now = System.currentTimeMillis();
+		Lease lease = highestLease;
+		while (lease != null) {
+			Lease nextLease = lease.nextLease;
+			boolean conflicts = !scheme.compatibleWith(lease.scheme);
+			if (lease.revokeIfIdle(conflicts, now)) {
+				removeLease(lease);
+			} else if (conflicts && !(lease == movingLease && lease.getHolderCount() == 1)) {
+				throw new ResourceUnavailableException("resource " + resourceName + " is already locked by isolate " + lease.isolateId);
 			}
-			nextLock = nextLock.nextLock;
+			lease = nextLease;
 		}
-		
-		Lock newLock = new Lock();
-		newLock.scheme = scheme;
-		newLock.isolateId = isolateId;
-		insertIntoList(newLock);
-		return result;
-	}
 
-	public void unlockAll(int isolateId) throws ResourceSharingException {
-		Lock lock;
-		while ((lock = findLock(isolateId)) != null) {
-			removeLock(lock);
+		lease = findLease(isolateId, scheme);
+		if (lease != null && lease.acquire()) {
+			return lease;
 		}
+		Lease newLease = new Lease(this, isolateId, scheme);
+		insertIntoList(newLease);
+		return newLease;
 	}
-	
-	public void unlock(int isolateId, ResourceSharingScheme scheme) throws ResourceSharingException {
-		Lock lock = findLock(isolateId, scheme);
-		if (lock == null) {
-			throw new ResourceSharingException("cannot find lock for " + resourceName + " for isolate " + isolateId);			
+
+	public synchronized void unlockAll(int isolateId) {
+		Lease lease;
+		while ((lease = findLease(isolateId)) != null) {
+			lease.revoke();
+			removeLease(lease);
 		}
-		removeLock(lock);
 	}
-	
-	public boolean isLockedBy(int isolateId) {
-		return findLock(isolateId) != null;
+
+	public synchronized boolean isLockedBy(int isolateId) {
+		return findLease(isolateId) != null;
 	}
-	
-	private void removeLock(Lock lock) {
-		if (lock == highestLock) {
-			highestLock = lock.nextLock;
+
+	/**
+	 * @return true if an isolate other than the one specified holds a lease that is in use
+	 */
+	public synchronized boolean isHeldByOtherIsolate(int isolateId) {
+		Lease nextLease = highestLease;
+		while (nextLease != null) {
+			if (nextLease.isolateId != isolateId && nextLease.getHolderCount() > 0) {
+				return true;
+			}
+			nextLease = nextLease.nextLease;
+		}
+		return false;
+	}
+
+	private void removeLease(Lease lease) {
+		if (lease == highestLease) {
+			highestLease = lease.nextLease;
 		} else {
-			Lock nextLock = highestLock;
-			while (nextLock != null) {
-				if (nextLock.nextLock == lock) {
+			Lease nextLease = highestLease;
+			while (nextLease != null) {
+				if (nextLease.nextLease == lease) {
 					break;
 				}
-				nextLock = nextLock.nextLock;
+				nextLease = nextLease.nextLease;
+			}
+			if (nextLease != null) {
+				nextLease.nextLease = lease.nextLease;
 			}
-			nextLock.nextLock = lock.nextLock;
 		}
+		lease.nextLease = null;
 	}
 
-	private Lock findLock(int isolateId) {
-		Lock nextLock = highestLock;
-		while (nextLock != null) {
-			if (nextLock.isolateId == isolateId) {
+	private Lease findLease(int isolateId) {
+		Lease nextLease = highestLease;
+		while (nextLease != null) {
+			if (nextLease.isolateId == isolateId) {
 				break;
 			}
-			nextLock = nextLock.nextLock;
+			nextLease = nextLease.nextLease;
 		}
-		return nextLock;
+		return nextLease;
 	}
 
-	private Lock findLock(int isolateId, ResourceSharingScheme scheme) {
-		Lock nextLock = highestLock;
-		while (nextLock != null) {
-			if (nextLock.isolateId == isolateId && nextLock.scheme == scheme) {
+	private Lease findLease(int isolateId, ResourceSharingScheme scheme) {
+		Lease nextLease = highestLease;
+		while (nextLease != null) {
+			if (nextLease.isolateId == isolateId && nextLease.scheme == scheme) {
 				break;
 			}
-			nextLock = nextLock.nextLock;
+			nextLease = nextLease.nextLease;
 		}
-		return nextLock;
+		return nextLease;
 	}
 
-	private void insertIntoList(Lock newLock) {
-		if (highestLock == null) {
-			highestLock = newLock;
-		} else if (highestLock.scheme.getRank() < newLock.scheme.getRank()) {
-			// the new lock becomes the head
-			newLock.nextLock = highestLock;
-			highestLock = newLock;
+	private void insertIntoList(Lease newLease) {
+		if (highestLease == null) {
+			highestLease = newLease;
+		} else if (highestLease.scheme.getRank() < newLease.scheme.getRank()) {
+			// the new lease becomes the head
+			newLease.nextLease = highestLease;
+			highestLease = newLease;
 		} else {
-			// insert new lock in correct place
-			Lock nextLock = highestLock;
-			while (nextLock.nextLock != null && nextLock.nextLock.scheme.getRank() >= newLock.scheme.getRank()) {
-				nextLock = nextLock.nextLock;
+			// insert new lease in correct place
+			Lease nextLease = highestLease;
+			while (nextLease.nextLease != null && nextLease.nextLease.scheme.getRank() >= newLease.scheme.getRank()) {
+				nextLease = nextLease.nextLease;
 			}
-			newLock.nextLock = nextLock.nextLock;
-			nextLock.nextLock = newLock;
+			newLease.nextLease = nextLease.nextLease;
+			nextLease.nextLease = newLease;
 		}
 	}
 
-	private static class Lock {
-		Lock nextLock;
-		ResourceSharingScheme scheme;
-		int isolateId;
-	}
-	
 }
@@ -22,6 +22,7 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
 import java.util.Enumeration;
@@ -30,6 +31,11 @@ import java.util.Hashtable;
 import com.sun.spot.peripheral.SpotFatalException;
 import com.sun.squawk.Isolate;
 
+/**
+ * The registry seen by code in one isolate. Locks are obtained from the master as {@link Lease}s,
+ * which are reused for as long as the master leaves them in place, so repeatedly locking and unlocking
+ * a resource with the same scheme usually needs no request to the master at all.
+ */
 public class ResourceRegistryChild implements IResourceRegistry {
 
 	private int isolateId;
@@ -39,6 +45,7 @@ public class ResourceRegistryChild implements IResourceRegistry {
 	private class ExitHook implements Isolate.LifecycleListener {
 		public void handleLifecycleListenerEvent(Isolate iso, int eventKind) {
 			masterRegistry.unlockAllResourcesHeldByIsolate(isolateId);
+			forgetLeases();
 		}
 	};
 
@@ -51,14 +58,14 @@ public class ResourceRegistryChild implements IResourceRegistry {
 	public synchronized IResourceHandle getResource(String resourceName, ResourceSharingScheme scheme) throws ResourceUnavailableException {
 		HandleControl selectedResource = (HandleControl)resourceTable.get(resourceName);
 		if (selectedResource != null) {
-			boolean otherIsolateHasLock = masterRegistry.lock(isolateId, resourceName, scheme);
+			Lease lease = acquireLease(selectedResource, scheme);
 			try {
-				return selectedResource.allocateResource(scheme, otherIsolateHasLock);
+				return selectedResource.allocateResource(scheme, lease, lease.resource.isHeldByOtherIsolate(isolateId));
 			} catch (ResourceUnavailableException e) {
-				masterRegistry.unlock(isolateId, resourceName, scheme);
+				lease.release();
 				throw e;
 			} catch (RuntimeException e) {
-				masterRegistry.unlock(isolateId, resourceName, scheme);
+				lease.release();
 				throw e;
 			}
 		} else {
@@ -80,14 +87,14 @@ public class ResourceRegistryChild implements IResourceRegistry {
 		if (resourceTable.containsKey(resourceName)) {
 			throw new ResourceSharingException("resource already registered: " + resourceName);
 		}
-		masterRegistry.register(resourceName);
-		resourceTable.put(resourceName, new HandleControl(resource));
+		int resourceId = masterRegistry.register(resourceName);
+		resourceTable.put(resourceName, new HandleControl(resource, resourceId));
 	}
 
 	public synchronized void unlock(IResourceHandle handle) throws ResourceSharingException {
 		HandleControl selectedResource = (HandleControl)resourceTable.get(handle.getResourceName());
 		if (selectedResource != null) {
-			masterRegistry.unlock(isolateId, handle.getResourceName(), selectedResource.getSchemeForHandle(handle));
+			// releasing the lease is local; the master takes it back once it lapses
 			selectedResource.unlock(handle);
 		} else {
 			throw new ResourceSharingException("attempt to unlock unknown resource: " + handle.getResourceName());
@@ -96,6 +103,9 @@ public class ResourceRegistryChild implements IResourceRegistry {
 
 	public void unlockAllResourcesHeldByIsolate(int isolateId) {
 		masterRegistry.unlockAllResourcesHeldByIsolate(isolateId);
+		if (isolateId == this.isolateId) {
+			forgetLeases();
+		}
 	}
 
 	public synchronized IResourceHandle adjustLock(IResourceHandle handle, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
@@ -105,23 +115,26 @@ public class ResourceRegistryChild implements IResourceRegistry {
 			if (newScheme == oldScheme) {
 				return handle;
 			}
+			Lease oldLease = selectedResource.getLeaseForHandle(handle);
 			if (!newScheme.compatibleWith(oldScheme)) {
 				// upgrading lock, so adjust with master first
-				masterRegistry.adjustLock(isolateId, handle.getResourceName(), oldScheme, newScheme);
+				Lease newLease = exchangeLease(selectedResource, oldLease, newScheme);
 				try {
-					return selectedResource.lockAdjusted(handle, newScheme);
+					IResourceHandle newHandle = selectedResource.lockAdjusted(handle, newScheme);
+					selectedResource.setLease(newHandle, newScheme, newLease);
+					return newHandle;
 				} catch (ResourceUnavailableException e) {
-					masterRegistry.adjustLock(isolateId, handle.getResourceName(), newScheme, oldScheme);
+					selectedResource.setLease(handle, oldScheme, exchangeLease(selectedResource, newLease, oldScheme));
 					throw e;
 				} catch (RuntimeException e) {
-					masterRegistry.adjustLock(isolateId, handle.getResourceName(), newScheme, oldScheme);
+					selectedResource.setLease(handle, oldScheme, exchangeLease(selectedResource, newLease, oldScheme));
 					throw e;
 				}
 			} else {
 				// downgrading lock, so check with resource first
 				IResourceHandle newHandle = selectedResource.lockAdjusted(handle, newScheme);
 				try {
-					masterRegistry.adjustLock(isolateId, handle.getResourceName(), oldScheme, newScheme);
+					selectedResource.setLease(newHandle, newScheme, exchangeLease(selectedResource, oldLease, newScheme));
 				} catch (ResourceUnavailableException e) {
 					throw new SpotFatalException("Internal error: attempt to downgrade lock failed");
 				}
@@ -132,4 +145,40 @@ public class ResourceRegistryChild implements IResourceRegistry {
 		}
 	}
 
+	/**
+	 * Renew the lease we already have for this scheme if the master has not taken it back and
+	 * it is idle or can be shared, otherwise ask the master, which rejects a conflicting lock.
+	 */
+	private Lease acquireLease(HandleControl resource, ResourceSharingScheme scheme) throws ResourceUnavailableException {
+		Lease lease = resource.getLease(scheme);
+		if (lease == null || !lease.acquire()) {
+			lease = masterRegistry.lock(isolateId, resource.getResourceId(), scheme);
+		}
+		return lease;
+	}
+
+	/**
+	 * Move one holder from oldLease to a lease for newScheme. A lease still in place never conflicts
+	 * with any other lease the master has granted, so if we already have one for the new scheme that
+	 * is idle or can be shared it is renewed without asking the master.
+	 */
+	private Lease exchangeLease(HandleControl resource, Lease oldLease, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
+		if (oldLease == null) {
+			return acquireLease(resource, newScheme);
+		}
+		Lease newLease = resource.getLease(newScheme);
+		if (newLease != null && newLease.acquire()) {
+			oldLease.release();
+			return newLease;
+		}
+		return masterRegistry.adjustLock(isolateId, resource.getResourceId(), oldLease, newScheme);
+	}
+
+	private synchronized void forgetLeases() {
+		Enumeration resources = resourceTable.elements();
+		while (resources.hasMoreElements()) {
+			((HandleControl) resources.nextElement()).forgetLeases();
+		}
+	}
+
 }
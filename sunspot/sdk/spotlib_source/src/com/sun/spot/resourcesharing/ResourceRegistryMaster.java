@@ -22,61 +22,70 @@
  * information or have any questions.
  */
 
+
 package com.sun.spot.resourcesharing;
 
-import java.util.Enumeration;
 import java.util.Hashtable;
 
+/**
+ * The registry of record for locks across all isolates. Resource names are interned to integer ids
+ * when they are registered, and each resource is then guarded by its own monitor, so lock requests
+ * neither look up names nor queue behind requests for other resources.
+ */
 public class ResourceRegistryMaster implements IResourceRegistryMaster {
 
-	private Hashtable resourceTable = new Hashtable();
+	private Hashtable resourceIds = new Hashtable();
+	private ResourceControl[] resources = new ResourceControl[8];
+	private int resourceCount;
 
-	public synchronized void register(String resourceName) throws ResourceSharingException {
-		if (!resourceTable.containsKey(resourceName)) {
-			resourceTable.put(resourceName, new ResourceControl(resourceName));
+	public synchronized int register(String resourceName) throws ResourceSharingException {
+		Integer resourceId = (Integer)resourceIds.get(resourceName);
+		if (resourceId == null) {
+			if (resourceCount == resources.length) {
+				// entries are never changed once added, so readers can keep using the old array
+				ResourceControl[] newResources = new ResourceControl[resources.length * 2];
+				System.arraycopy(resources, 0, newResources, 0, resourceCount);
+				resources = newResources;
+			}
+			resourceId = new Integer(resourceCount);
+			resources[resourceCount++] = new ResourceControl(resourceName);
+			resourceIds.put(resourceName, resourceId);
 		}
+		return resourceId.intValue();
 	}
 
-	public synchronized void unlock(int isolateId, String resourceName, ResourceSharingScheme scheme) throws ResourceSharingException {
-		ResourceControl selectedResource = (ResourceControl)resourceTable.get(resourceName);
-		if (selectedResource != null) {
-			selectedResource.unlock(isolateId, scheme);
-		} else {
-			throw new ResourceSharingException("attempt to unlock unknown resource: " + resourceName);
-		}
+	public Lease lock(int isolateId, int resourceId, ResourceSharingScheme scheme) throws ResourceUnavailableException {
+		return getResourceControl(resourceId).lock(isolateId, scheme);
 	}
 
-	public synchronized boolean lock(int isolateId, String resourceName, ResourceSharingScheme scheme) throws ResourceUnavailableException {
-		ResourceControl selectedResource = (ResourceControl)resourceTable.get(resourceName);
-		if (selectedResource != null) {
-			return selectedResource.lock(isolateId, scheme);
-		} else {
-			throw new ResourceSharingException("unknown resource: " + resourceName);
+	public Lease adjustLock(int isolateId, int resourceId, Lease lease, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
+		ResourceControl selectedResource = getResourceControl(resourceId);
+		if (lease.resource != selectedResource || lease.isolateId != isolateId) {
+			throw new ResourceSharingException("lease does not belong to resource " + resourceId + " for isolate " + isolateId);
 		}
+		return selectedResource.adjust(lease, newScheme);
 	}
 
-	public synchronized void unlockAllResourcesHeldByIsolate(int isolateId) {
-		Enumeration resources = resourceTable.elements();
-		while (resources.hasMoreElements()) {
-			ResourceControl resource = (ResourceControl) resources.nextElement();
-			if (resource.isLockedBy(isolateId)) {
-				try {
-					resource.unlockAll(isolateId);
-				} catch (ResourceSharingException e) {
-					e.printStackTrace();
-				}
+	public void unlockAllResourcesHeldByIsolate(int isolateId) {
+		ResourceControl[] snapshot;
+		int count;
+		synchronized (this) {
+			snapshot = resources;
+			count = resourceCount;
+		}
+		for (int i = 0; i < count; i++) {
+			if (snapshot[i].isLockedBy(isolateId)) {
+				snapshot[i].unlockAll(isolateId);
 			}
 		}
 	}
 
-	public synchronized void adjustLock(int isolateId, String resourceName, ResourceSharingScheme oldScheme, ResourceSharingScheme newScheme) throws ResourceUnavailableException {
-		unlock(isolateId, resourceName, oldScheme);
-		try {
-			lock(isolateId, resourceName, newScheme);
-		} catch (ResourceUnavailableException e) {
-			lock(isolateId, resourceName, oldScheme);
-			throw e;
+	private ResourceControl getResourceControl(int resourceId) {
+		ResourceControl[] snapshot = resources;
+		if (resourceId < 0 || resourceId >= snapshot.length || snapshot[resourceId] == null) {
+			throw new ResourceSharingException("unknown resource id: " + resourceId);
 		}
+		return snapshot[resourceId];
 	}
 
 }
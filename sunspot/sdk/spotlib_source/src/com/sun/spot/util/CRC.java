@@ -31,6 +31,11 @@ import java.io.InputStream;
  * Standalone class to provide 16-bit crc calculations
  */
 public class CRC {
+	/**
+	 * The running value to start an incremental calculation with
+	 */
+	public static final int INITIAL_CRC = 0xffff;
+
 	/* Table of CRCs of all 8-bit messages. */
 	private static int[] crc_table = make_crc_table();
 	
@@ -78,6 +83,32 @@ public class CRC {
 		return (short)(c ^ 0xffff);
 	}   
 
+	/**
+	 * Continue a CRC calculation over more bytes, for data that is not all
+	 * available at once. Start with {@link #INITIAL_CRC}, and pass the running value
+	 * to {@link #finish(int)} to get the same result as {@link #crc(byte[], int, int)}.
+	 *
+	 * @param runningCrc the value returned by the previous call, or {@link #INITIAL_CRC}
+	 * @param buf source of bytes
+	 * @param offset offset in buf to first byte
+	 * @param len number of bytes to include in calculation
+	 * @return the running CRC value
+	 */
+	public static int update(int runningCrc, byte[] buf, int offset, int len) {
+		for (int n = offset; n < len + offset; n++) {
+			runningCrc = update_crc(buf[n], runningCrc);
+		}
+		return runningCrc;
+	}
+
+	/**
+	 * @param runningCrc the value returned by the last call to {@link #update(int, byte[], int, int)}
+	 * @return 16-bit CRC value
+	 */
+	public static short finish(int runningCrc) {
+		return (short)(runningCrc ^ 0xffff);
+	}
+
 	private static int update_crc(byte b, int c) {
 		return crc_table[(c ^ b) & 0xff] ^ (c >> 8);
 	}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc. All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER
+ * 
+ * This code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2
+ * only, as published by the Free Software Foundation.
+ * 
+ * This code is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License version 2 for more details (a copy is
+ * included in the LICENSE file that accompanied this code).
+ * 
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this work; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA
+ * 
+ * Please contact Sun Microsystems, Inc., 16 Network Circle, Menlo
+ * Park, CA 94025 or visit www.sun.com if you need additional
+ * information or have any questions.
+ */
+
+
+package com.sun.spot.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes integers in a variable number of bytes, seven bits to a byte with the top
+ * bit set on all but the last byte, so that small values take a single byte. Signed values are
+ * first "zigzag" mapped (0, -1, 1, -2, ... to 0, 1, 2, 3, ...) so that small negative values
+ * are small too. Values are read directly from the stream, so decoding allocates nothing.
+ */
+public class VarInt {
+
+	private VarInt() {
+	}
+
+	/**
+	 * Write an unsigned value.
+	 * 
+	 * @param out where to write the value
+	 * @param value the value, treated as unsigned
+	 * @throws IOException
+	 */
+	public static void writeUnsigned(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Write a signed value.
+	 * 
+	 * @param out where to write the value
+	 * @param value the value
+	 * @throws IOException
+	 */
+	public static void writeSigned(DataOutput out, long value) throws IOException {
+		writeUnsigned(out, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Read a value written by {@link #writeUnsigned(DataOutput, long)}.
+	 * 
+	 * @param in where to read the value from
+	 * @return the value
+	 * @throws IOException if the value is longer than 64 bits, or the stream ends
+	 */
+	public static long readUnsigned(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Variable length integer is too long");
+	}
+
+	/**
+	 * Read a value written by {@link #writeSigned(DataOutput, long)}.
+	 * 
+	 * @param in where to read the value from
+	 * @return the value
+	 * @throws IOException if the value is longer than 64 bits, or the stream ends
+	 */
+	public static long readSigned(DataInput in) throws IOException {
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}